@@ -78,6 +78,7 @@ import scratch.UCERF3.simulatedAnnealing.completion.TimeCompletionCriteria;
 import scratch.UCERF3.simulatedAnnealing.params.CoolingScheduleType;
 import scratch.alessandro.logicTreeEnums.ScalingRelationshipEnum;
 import scratch.alessandro.logicTreeEnums.SlipAlongRuptureModelEnum;
+import scratch.ned.FSS_Inversion2019.SparseInversionMatrix;
 
 /**
  * This class does an inversion for the rate of events in an unsegmented fault model:
@@ -153,7 +154,7 @@ public class FaultSystemRuptureRateInversion {
 
 	
 	private static boolean MATLAB_TEST = false;
-	double[][] C_wted, C;	// inversion matrices
+	SparseInversionMatrix C_wted, C;	// inversion matrices (sparse)
 	double[] d, d_wted, data_wt, full_wt, d_pred;  // the data vector
 	
 	private double minRupRateArray[]; // the minimum rate constraint for each rupture
@@ -660,9 +661,9 @@ public class FaultSystemRuptureRateInversion {
 		if(D) System.out.println("\n"+tempString+"\n");
 		modelSetUpInfoString += "\n"+tempString+"\n";
 			
-		C = new double[totNumRows][numRuptures];
+		// rows are filled in order, only nonzero values are stored
+		SparseInversionMatrix.Builder cBuilder = new SparseInversionMatrix.Builder(totNumRows, numRuptures);
 		d = new double[totNumRows];  // data vector
-		C_wted = new double[totNumRows][numRuptures]; // wted version
 		d_wted = new double[totNumRows];  // wted data vector
 
 		data_wt = new double[totNumRows];  // data weights
@@ -680,7 +681,7 @@ public class FaultSystemRuptureRateInversion {
 			if(wtedInversion)
 				data_wt[row] = 1/((1-moRateReduction)*sectSlipRateStdDev[row]);
 			for(int col=0; col<numRuptures; col++)
-				C[row][col] = sectSlipInRup[row][col];
+				cBuilder.set(row, col, sectSlipInRup[row][col]);
 		}
 		
 		// now fill in the section event rate constraints if requested
@@ -695,9 +696,9 @@ public class FaultSystemRuptureRateInversion {
 					data_wt[row] = 1/constraint.getStdDevOfMean();
 				for(int col=0; col<numRuptures; col++)
 					if(applyProbVisible)
-						C[row][col] = rupSectionMatrix[seg][col]*getProbVisible(rupMeanMag[col]);
+						cBuilder.set(row, col, rupSectionMatrix[seg][col]*getProbVisible(rupMeanMag[col]));
 					else
-						C[row][col] = rupSectionMatrix[seg][col];
+						cBuilder.set(row, col, rupSectionMatrix[seg][col]);
 			}
 		}
 		
@@ -709,7 +710,7 @@ public class FaultSystemRuptureRateInversion {
 				d[row] = aPriori_rate[i];
 				if(wtedInversion)
 					data_wt[row] = aPriori_wt[i];
-				C[row][col]=1.0;
+				cBuilder.set(row, col, 1.0);
 			}
 		}
 		
@@ -722,7 +723,7 @@ public class FaultSystemRuptureRateInversion {
 				d[row] = segConstraint_rupRate[i];
 				if(wtedInversion)
 					data_wt[row] = segConstraint_RupWt[i];
-				C[row][col]=1.0;
+				cBuilder.set(row, col, 1.0);
 // System.out.println("HERE: "+segConstraint_rupIndex[i]+"\t\t"+ segConstraint_rupRate[i] +"\t\t"+segConstraint_RupWt[i]);
 			}
 		}
@@ -735,28 +736,25 @@ public class FaultSystemRuptureRateInversion {
 				d[row] = mfdConstraint.getY(mag);
 				for(int col=0; col<numRuptures; col++)
 					if(mfdConstraint.getClosestXIndex(rupMeanMag[col]) == i)
-						C[row][col]=1.0;
+						cBuilder.set(row, col, 1.0);
 			}
 		}
 		
 		
+		C = cBuilder.build();
+		
 		// copy un-wted data to wted versions (wts added below)
-		for(int row=0;row<totNumRows; row++){
+		for(int row=0;row<totNumRows; row++)
 			d_wted[row] = d[row];
-			for(int col=0;col<numRuptures; col++)
-				C_wted[row][col] = C[row][col];
-		}
+		C_wted = C.copy();
 			
 
 		// CORRECT IF MINIMUM RATE CONSTRAINT DESIRED
 		if(minRupRate >0.0) {
-			double[] Cmin = new double[totNumRows];  // the data vector
+			double[] Cmin = C_wted.multiply(minRupRateArray);  // the data vector
 			// correct the data vector
-			for(int row=0; row <totNumRows; row++) {
-				for(int col=0; col < numRuptures; col++)
-					Cmin[row]+=minRupRateArray[col]*C_wted[row][col];
+			for(int row=0; row <totNumRows; row++)
 				d_wted[row] -= Cmin[row];
-			}
 		}
 		
 		// APPLY WEIGHTS
@@ -768,8 +766,7 @@ public class FaultSystemRuptureRateInversion {
 			else
 				full_wt[row] = 1.0;
 			d_wted[row] *= full_wt[row];
-			for(int col=0; col<numRuptures; col++)
-				C_wted[row][col] *= full_wt[row];
+			C_wted.scaleRow(row, full_wt[row]);
 		}
 		// segment event rate wts
 		if(relativeSectRateWt > 0.0) {
@@ -778,8 +775,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relativeSectRateWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				for(int col=0; col<numRuptures; col++)
-					C_wted[row][col] *= full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		// a-priori rate wts
@@ -790,7 +786,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relative_aPrioriRupWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				C_wted[row][col]=full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		// a-priori rate wts
@@ -801,7 +797,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relative_segConstraintWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				C_wted[row][col]=full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 
@@ -811,7 +807,7 @@ public class FaultSystemRuptureRateInversion {
 				int row = i+firstRowMFD_constraintData;
 				full_wt[row] = relativeMFD_constraintWt;
 				d_wted[row] *= full_wt[row];
-				for(int rup=0; rup < numRuptures; rup++) C_wted[row][rup] *= full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		
@@ -853,10 +849,7 @@ public class FaultSystemRuptureRateInversion {
 		setRupRatesBelowMinToZero();
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -880,10 +873,7 @@ public class FaultSystemRuptureRateInversion {
 		rupRateSolution = rupRatesArray;
 		
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -918,10 +908,7 @@ public class FaultSystemRuptureRateInversion {
 			Preconditions.checkState(rupRateSolution.length == numRuptures, "input rupture rates does not have the correct number of ruptures (%s vs %s", rupRateSolution.length, numRuptures);
 
 			// compute predicted data
-			d_pred = new double[totNumRows];  // predicted data vector
-			for(int row=0;row<totNumRows; row++)
-				for(int col=0; col <numRuptures; col++)
-					d_pred[row] += rupRateSolution[col]*C[row][col];
+			d_pred = C.multiply(rupRateSolution);  // predicted data vector
 					
 			String solNumString = "\nFOR SOLUTION NUMBER "+solNum+":\n----------------------------\n";
 			modelRunInfoString += solNumString;
@@ -1025,10 +1012,7 @@ public class FaultSystemRuptureRateInversion {
 		setRupRatesBelowMinToZero();
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -1101,10 +1085,7 @@ public class FaultSystemRuptureRateInversion {
 			setRupRatesBelowMinToZero();
 
 			// compute predicted data
-			d_pred = new double[totNumRows];  // predicted data vector
-			for(int row=0;row<totNumRows; row++)
-				for(int col=0; col <numRuptures; col++)
-					d_pred[row] += rupRateSolution[col]*C[row][col];
+			d_pred = C.multiply(rupRateSolution);  // predicted data vector
 					
 			String invNumString = "\nFOR INVERSION NUMBER "+invNum+":\n----------------------------\n";
 			modelRunInfoString += invNumString;
@@ -1276,8 +1257,8 @@ public class FaultSystemRuptureRateInversion {
 	
 
 	
-	private double[] getSimulatedAnnealingSolution(double[][] C, double[] d, double[] initialState, long numIterations,  long randomSeed) {
-		SparseDoubleMatrix2D matrixC = new SparseDoubleMatrix2D(C); //
+	private double[] getSimulatedAnnealingSolution(SparseInversionMatrix C, double[] d, double[] initialState, long numIterations,  long randomSeed) {
+		SparseDoubleMatrix2D matrixC = C.toColtMatrix();
 		SerialSimulatedAnnealing simulatedAnnealing =new SerialSimulatedAnnealing(matrixC, d, initialState);
 		simulatedAnnealing.setCoolingFunc(sa_coolingSchedule);
 		simulatedAnnealing.setRandom(new Random(randomSeed));
@@ -1287,8 +1268,8 @@ public class FaultSystemRuptureRateInversion {
 
 
 
-	private double[] getSimulatedAnnealingThreadedSolution(double[][] C, double[] d, double[] initialState, long numIterations,  long randomSeed) {
-		SparseDoubleMatrix2D matrixC = new SparseDoubleMatrix2D(C); //
+	private double[] getSimulatedAnnealingThreadedSolution(SparseInversionMatrix C, double[] d, double[] initialState, long numIterations,  long randomSeed) {
+		SparseDoubleMatrix2D matrixC = C.toColtMatrix();
 		//this is the "sub completion criteria" - the amount of time (or iterations) between synchronization
 		CompletionCriteria subCompetionCriteria = TimeCompletionCriteria.getInSeconds(1); // 1 second;
 		// this will use all available processors
@@ -1305,28 +1286,28 @@ public class FaultSystemRuptureRateInversion {
 	
 	
 	/**
-	 * This gets the non-negative least squares solution for the matrix C
-	 * and data vector d.
+	 * This gets the non-negative least squares solution for the sparse matrix C
+	 * and data vector d. The NNLS solver requires a dense column-major array,
+	 * which is filled directly from the sparse matrix.
 	 * @param C
 	 * @param d
 	 * @return
 	 */
-	private static double[] getNNLS_solution(double[][] C, double[] d) {
+	private static double[] getNNLS_solution(SparseInversionMatrix C, double[] d) {
 
-		int nRow = C.length;
-		int nCol = C[0].length;
+		int nRow = C.getNumRows();
+		int nCol = C.getNumCols();
 		
-		double[] A = new double[nRow*nCol];
 		double[] x = new double[nCol];
 		
-		int i,j,k=0;
+		int i,j;
 	
 		if(MATLAB_TEST) {
 			System.out.println("display "+"SSAF Inversion test");
 			System.out.println("C = [");
 			for(i=0; i<nRow;i++) {
 				for(j=0;j<nCol;j++) 
-					System.out.print(C[i][j]+"   ");
+					System.out.print(C.get(i, j)+"   ");
 				System.out.print("\n");
 			}
 			System.out.println("];");
@@ -1337,12 +1318,7 @@ public class FaultSystemRuptureRateInversion {
 		}
 /////////////////////////////////////
 		
-		for(j=0;j<nCol;j++) 
-			for(i=0; i<nRow;i++)	{
-				A[k]=C[i][j];
-				k+=1;
-			}
-		nnls.update(A,nRow,nCol);
+		nnls.update(C.toColumnMajorArray(),nRow,nCol);
 		
 		boolean converged = nnls.solve(d,x);
 		if(!converged)
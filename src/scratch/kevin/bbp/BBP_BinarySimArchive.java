@@ -0,0 +1,532 @@
+package scratch.kevin.bbp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Table;
+
+/**
+ * Compact binary columnar archive of BBP simulation results (RotD50/RotD100 spectra, PGVs and significant durations),
+ * converted once from a BBP results zip file (see {@link #convert(BBP_SimZipLoader, List, File)}). Results are
+ * indexed by (directory, site), e.g. (event_123, site), and stored in one fixed width column block per component so
+ * that the location of any value is computed directly. The file is memory mapped when loaded, so startup only
+ * requires reading the header and no text is parsed when accessing results.
+ * <br>
+ * File layout: int magic, int version, int header length, header, then column blocks. The header contains the flags
+ * for which components are present, site names, periods, directory names, and the sorted (directory, site) keys of each
+ * record. Column blocks contain doubles for each record in key order: RotD50 (one per period), RotD100 (one per
+ * period), PGV ([RotD50, RotD100]), and durations ([N, E, Z, GEOM] for each of the 5-75, 5-95 and 20-80 intervals).
+ * Values from missing files are stored as NaN, and reading them throws an exception in the same way that
+ * {@link BBP_SimZipLoader} does for missing files.
+ *
+ * @author kevin
+ *
+ */
+public class BBP_BinarySimArchive implements Closeable {
+	
+	private static final int MAGIC = 0x42425042;
+	private static final int VERSION = 1;
+	
+	private static final int FLAG_ROTD50 = 1;
+	private static final int FLAG_ROTD100 = 2;
+	private static final int FLAG_PGV = 4;
+	private static final int FLAG_DURATIONS = 8;
+	
+	private static final DurationTimeInterval[] DURATION_INTERVALS = {
+			DurationTimeInterval.INTERVAL_5_75, DurationTimeInterval.INTERVAL_5_95, DurationTimeInterval.INTERVAL_20_80 };
+	private static final int NUM_DURATION_COMPONENTS = 4;
+	
+	private int flags;
+	private List<String> siteNames;
+	private Map<String, Integer> siteIndexes;
+	private double[] periods;
+	private List<String> dirNames;
+	private Map<String, Integer> dirIndexes;
+	private long[] keys;
+	
+	private RandomAccessFile raf;
+	private MappedColumn rd50Column;
+	private MappedColumn rd100Column;
+	private MappedColumn pgvColumn;
+	private MappedColumn durationColumn;
+	
+	private List<List<String>> siteDirNames;
+	
+	/**
+	 * Loads (memory maps) the given archive file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public BBP_BinarySimArchive(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		Preconditions.checkState(raf.readInt() == MAGIC, "Not a BBP binary sim archive: %s", file.getAbsolutePath());
+		int version = raf.readInt();
+		Preconditions.checkState(version == VERSION, "Unsupported archive version: %s", version);
+		int headerLen = raf.readInt();
+		byte[] headerBytes = new byte[headerLen];
+		raf.readFully(headerBytes);
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(headerBytes));
+		flags = in.readInt();
+		int numSites = in.readInt();
+		siteNames = new ArrayList<>(numSites);
+		siteIndexes = new HashMap<>();
+		for (int i=0; i<numSites; i++) {
+			String name = in.readUTF();
+			siteNames.add(name);
+			siteIndexes.put(name, i);
+		}
+		periods = new double[in.readInt()];
+		for (int i=0; i<periods.length; i++)
+			periods[i] = in.readDouble();
+		int numDirs = in.readInt();
+		dirNames = new ArrayList<>(numDirs);
+		dirIndexes = new HashMap<>();
+		for (int i=0; i<numDirs; i++) {
+			String name = in.readUTF();
+			dirNames.add(name);
+			dirIndexes.put(name, i);
+		}
+		keys = new long[in.readInt()];
+		for (int i=0; i<keys.length; i++)
+			keys[i] = in.readLong();
+		in.close();
+		
+		FileChannel channel = raf.getChannel();
+		long pos = 12l + headerLen;
+		if ((flags & FLAG_ROTD50) != 0) {
+			rd50Column = new MappedColumn(channel, pos, keys.length, periods.length);
+			pos += rd50Column.getLength();
+		}
+		if ((flags & FLAG_ROTD100) != 0) {
+			rd100Column = new MappedColumn(channel, pos, keys.length, periods.length);
+			pos += rd100Column.getLength();
+		}
+		if ((flags & FLAG_PGV) != 0) {
+			pgvColumn = new MappedColumn(channel, pos, keys.length, 2);
+			pos += pgvColumn.getLength();
+		}
+		if ((flags & FLAG_DURATIONS) != 0) {
+			durationColumn = new MappedColumn(channel, pos, keys.length,
+					DURATION_INTERVALS.length*NUM_DURATION_COMPONENTS);
+			pos += durationColumn.getLength();
+		}
+		Preconditions.checkState(pos == channel.size(), "Archive length mismatch. Expected %s, file has %s",
+				pos, channel.size());
+	}
+	
+	/**
+	 * Fixed width column of doubles, mapped in chunks of whole records
+	 */
+	private static class MappedColumn {
+		private long numRecords;
+		private int valuesPerRecord;
+		private int recordsPerMap;
+		private MappedByteBuffer[] maps;
+		
+		public MappedColumn(FileChannel channel, long start, long numRecords, int valuesPerRecord)
+				throws IOException {
+			this.numRecords = numRecords;
+			this.valuesPerRecord = valuesPerRecord;
+			int recordLen = valuesPerRecord*8;
+			recordsPerMap = Integer.MAX_VALUE/recordLen;
+			int numMaps = (int)((numRecords + recordsPerMap - 1)/recordsPerMap);
+			maps = new MappedByteBuffer[numMaps];
+			for (int m=0; m<numMaps; m++) {
+				long firstRecord = (long)m*recordsPerMap;
+				long mapRecords = Math.min(recordsPerMap, numRecords - firstRecord);
+				maps[m] = channel.map(MapMode.READ_ONLY, start + firstRecord*recordLen, mapRecords*recordLen);
+			}
+		}
+		
+		public long getLength() {
+			return numRecords*valuesPerRecord*8l;
+		}
+		
+		public double get(int record, int index) {
+			MappedByteBuffer map = maps[record/recordsPerMap];
+			int pos = ((record % recordsPerMap)*valuesPerRecord + index)*8;
+			return map.getDouble(pos);
+		}
+		
+		public double[] getRecord(int record) {
+			double[] ret = new double[valuesPerRecord];
+			for (int i=0; i<valuesPerRecord; i++)
+				ret[i] = get(record, i);
+			return ret;
+		}
+	}
+	
+	private static long getKey(int dirIndex, int siteIndex) {
+		return ((long)dirIndex << 32) | (siteIndex & 0xffffffffl);
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @return record index for the given site and directory, or -1 if not present
+	 */
+	private int getRecordIndex(BBP_Site site, String dirName) {
+		Integer siteIndex = siteIndexes.get(site.getName());
+		Integer dirIndex = dirIndexes.get(dirName);
+		if (siteIndex == null || dirIndex == null)
+			return -1;
+		int index = Arrays.binarySearch(keys, getKey(dirIndex, siteIndex));
+		return index < 0 ? -1 : index;
+	}
+	
+	private int locate(BBP_Site site, String dirName, MappedColumn column, String type) {
+		Preconditions.checkNotNull(column, "Archive doesn't contain %s", type);
+		int index = getRecordIndex(site, dirName);
+		Preconditions.checkState(index >= 0, "No results for dir %s, site %s", dirName, site.getName());
+		return index;
+	}
+	
+	/**
+	 * Throws an exception if the given record values are all NaN, which is how convert() stores values for
+	 * files that are missing from the zip file. This is the same exception that BBP_SimZipLoader throws
+	 * when reading a missing file.
+	 */
+	private static void checkPresent(double[] vals, BBP_SimZipLoader.FileType type, BBP_Site site, String dirName) {
+		for (double val : vals)
+			if (!Double.isNaN(val))
+				return;
+		throw new NullPointerException(String.format("No file of type %s for dir %s, site %s",
+				type.name(), dirName, site.getName()));
+	}
+	
+	private DiscretizedFunc buildSpectra(MappedColumn column, int record, BBP_SimZipLoader.FileType type,
+			BBP_Site site, String dirName) {
+		double[] vals = column.getRecord(record);
+		checkPresent(vals, type, site, dirName);
+		return new LightFixedXFunc(periods, vals);
+	}
+	
+	public boolean contains(BBP_Site site, String dirName) {
+		return getRecordIndex(site, dirName) >= 0;
+	}
+	
+	public DiscretizedFunc readRotD50(BBP_Site site, String dirName) {
+		return buildSpectra(rd50Column, locate(site, dirName, rd50Column, "RotD50"),
+				BBP_SimZipLoader.FileType.RotD50, site, dirName);
+	}
+	
+	public DiscretizedFunc readRotD100(BBP_Site site, String dirName) {
+		return buildSpectra(rd100Column, locate(site, dirName, rd100Column, "RotD100"),
+				BBP_SimZipLoader.FileType.RotD100, site, dirName);
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @return array of [RotD50, RotD100]
+	 */
+	public DiscretizedFunc[] readRotD(BBP_Site site, String dirName) {
+		int record = locate(site, dirName, rd100Column, "RotD100");
+		return new DiscretizedFunc[] {
+				buildSpectra(rd50Column, record, BBP_SimZipLoader.FileType.RotD100, site, dirName),
+				buildSpectra(rd100Column, record, BBP_SimZipLoader.FileType.RotD100, site, dirName) };
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @return array of [RotD50, RotD100] PGV
+	 */
+	public double[] readPGV(BBP_Site site, String dirName) {
+		double[] vals = pgvColumn.getRecord(locate(site, dirName, pgvColumn, "PGV"));
+		checkPresent(vals, BBP_SimZipLoader.FileType.RotDPGV, site, dirName);
+		return vals;
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @return PGV (RotD50) for the given site and directory
+	 */
+	public double readRotD50PGV(BBP_Site site, String dirName) {
+		return readPGV(site, dirName)[0];
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @return map from duration interval to array containing [N, E, Z, GEOM] durations
+	 */
+	public Map<DurationTimeInterval, double[]> readDurations(BBP_Site site, String dirName) {
+		int index = locate(site, dirName, durationColumn, "durations");
+		double[] record = durationColumn.getRecord(index);
+		checkPresent(record, BBP_SimZipLoader.FileType.ARIAS_DURATION, site, dirName);
+		Map<DurationTimeInterval, double[]> ret = new HashMap<>();
+		for (int i=0; i<DURATION_INTERVALS.length; i++)
+			ret.put(DURATION_INTERVALS[i], Arrays.copyOfRange(record, i*NUM_DURATION_COMPONENTS,
+					(i+1)*NUM_DURATION_COMPONENTS));
+		return ret;
+	}
+	
+	/**
+	 * @param site
+	 * @param dirName
+	 * @param interval
+	 * @param component 0: N, 1: E, 2: Z, 3: GEOM
+	 * @return single duration value
+	 */
+	public double readDuration(BBP_Site site, String dirName, DurationTimeInterval interval, int component) {
+		int intervalIndex = Arrays.asList(DURATION_INTERVALS).indexOf(interval);
+		Preconditions.checkState(intervalIndex >= 0, "Unsupported interval: %s", interval);
+		return readDurations(site, dirName).get(DURATION_INTERVALS[intervalIndex])[component];
+	}
+	
+	public boolean hasRotD50() {
+		return rd50Column != null;
+	}
+	
+	public boolean hasRotD100() {
+		return rd100Column != null;
+	}
+	
+	public boolean hasPGV() {
+		return pgvColumn != null;
+	}
+	
+	public boolean hasDurations() {
+		return durationColumn != null;
+	}
+	
+	public double[] getPeriods() {
+		return Arrays.copyOf(periods, periods.length);
+	}
+	
+	public List<String> getSiteNames() {
+		return Collections.unmodifiableList(siteNames);
+	}
+	
+	/**
+	 * @param site
+	 * @return all directory names with results for the given site
+	 */
+	public synchronized Collection<String> getDirNames(BBP_Site site) {
+		if (siteDirNames == null) {
+			siteDirNames = new ArrayList<>();
+			for (int s=0; s<siteNames.size(); s++)
+				siteDirNames.add(new ArrayList<>());
+			for (long key : keys)
+				siteDirNames.get((int)key).add(dirNames.get((int)(key >>> 32)));
+		}
+		Integer siteIndex = siteIndexes.get(site.getName());
+		if (siteIndex == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(siteDirNames.get(siteIndex));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+	
+	/**
+	 * Converts all results from the given zip loader to a binary archive
+	 *
+	 * @param loader
+	 * @param sites
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void convert(BBP_SimZipLoader loader, List<BBP_Site> sites, File outputFile) throws IOException {
+		Table<BBP_Site, String, Map<BBP_SimZipLoader.FileType, ZipEntry>> entries = loader.getEntriesTable();
+		
+		List<String> dirNames = new ArrayList<>(entries.columnKeySet());
+		Collections.sort(dirNames);
+		Map<String, Integer> dirIndexes = new HashMap<>();
+		for (int i=0; i<dirNames.size(); i++)
+			dirIndexes.put(dirNames.get(i), i);
+		
+		List<Long> keyList = new ArrayList<>();
+		for (int s=0; s<sites.size(); s++)
+			for (String dirName : entries.row(sites.get(s)).keySet())
+				keyList.add(getKey(dirIndexes.get(dirName), s));
+		Collections.sort(keyList);
+		Preconditions.checkState(!keyList.isEmpty(), "No results found");
+		
+		boolean rd100 = loader.hasRotD100();
+		boolean rd50 = rd100 || loader.hasRotD50();
+		boolean pgv = loader.hasPGV();
+		boolean durations = loader.hasDurations();
+		int flags = 0;
+		if (rd50)
+			flags |= FLAG_ROTD50;
+		if (rd100)
+			flags |= FLAG_ROTD100;
+		if (pgv)
+			flags |= FLAG_PGV;
+		if (durations)
+			flags |= FLAG_DURATIONS;
+		
+		// periods from the first record with spectra
+		double[] periods = new double[0];
+		if (rd50) {
+			for (long key : keyList) {
+				BBP_Site site = sites.get((int)key);
+				String dirName = dirNames.get((int)(key >>> 32));
+				Map<BBP_SimZipLoader.FileType, ZipEntry> fileMap = entries.get(site, dirName);
+				if (fileMap.containsKey(BBP_SimZipLoader.FileType.RotD50)
+						|| fileMap.containsKey(BBP_SimZipLoader.FileType.RotD100)) {
+					DiscretizedFunc first = loader.readRotD50(site, dirName);
+					periods = new double[first.size()];
+					for (int p=0; p<periods.length; p++)
+						periods[p] = first.getX(p);
+					break;
+				}
+			}
+		}
+		
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(flags);
+		header.writeInt(sites.size());
+		for (BBP_Site site : sites)
+			header.writeUTF(site.getName());
+		header.writeInt(periods.length);
+		for (double period : periods)
+			header.writeDouble(period);
+		header.writeInt(dirNames.size());
+		for (String dirName : dirNames)
+			header.writeUTF(dirName);
+		header.writeInt(keyList.size());
+		for (long key : keyList)
+			header.writeLong(key);
+		header.close();
+		
+		long numRecords = keyList.size();
+		long dataStart = 12l + headerBytes.size();
+		long rd50Start = dataStart;
+		long rd100Start = rd50Start + (rd50 ? numRecords*periods.length*8l : 0l);
+		long pgvStart = rd100Start + (rd100 ? numRecords*periods.length*8l : 0l);
+		long durStart = pgvStart + (pgv ? numRecords*2*8l : 0l);
+		int durLen = DURATION_INTERVALS.length*NUM_DURATION_COMPONENTS;
+		long totLength = durStart + (durations ? numRecords*durLen*8l : 0l);
+		
+		RandomAccessFile out = new RandomAccessFile(outputFile, "rw");
+		out.setLength(0l);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(headerBytes.size());
+		out.write(headerBytes.toByteArray());
+		out.setLength(totLength);
+		FileChannel channel = out.getChannel();
+		
+		ByteBuffer spectraBuf = ByteBuffer.allocate(periods.length*8);
+		ByteBuffer pgvBuf = ByteBuffer.allocate(2*8);
+		ByteBuffer durBuf = ByteBuffer.allocate(durLen*8);
+		
+		for (int r=0; r<keyList.size(); r++) {
+			long key = keyList.get(r);
+			BBP_Site site = sites.get((int)key);
+			String dirName = dirNames.get((int)(key >>> 32));
+			Map<BBP_SimZipLoader.FileType, ZipEntry> fileMap = entries.get(site, dirName);
+			
+			if (rd100) {
+				DiscretizedFunc[] spectra = null;
+				if (fileMap.containsKey(BBP_SimZipLoader.FileType.RotD100))
+					spectra = loader.readRotD(site, dirName);
+				else if (fileMap.containsKey(BBP_SimZipLoader.FileType.RotD50))
+					// RotD50 only, keep it so that readRotD50 matches the zip loader
+					spectra = new DiscretizedFunc[] { loader.readRotD50(site, dirName), null };
+				writeSpectra(channel, spectraBuf, rd50Start, r, periods, spectra == null ? null : spectra[0]);
+				writeSpectra(channel, spectraBuf, rd100Start, r, periods, spectra == null ? null : spectra[1]);
+			} else if (rd50) {
+				DiscretizedFunc spectra = null;
+				if (fileMap.containsKey(BBP_SimZipLoader.FileType.RotD50))
+					spectra = loader.readRotD50(site, dirName);
+				writeSpectra(channel, spectraBuf, rd50Start, r, periods, spectra);
+			}
+			if (pgv) {
+				double[] vals = { Double.NaN, Double.NaN };
+				if (fileMap.containsKey(BBP_SimZipLoader.FileType.RotDPGV))
+					vals = loader.readPGV(site, dirName);
+				pgvBuf.clear();
+				for (double val : vals)
+					pgvBuf.putDouble(val);
+				writeFully(channel, pgvBuf, pgvStart + r*2l*8l);
+			}
+			if (durations) {
+				Map<DurationTimeInterval, double[]> vals = null;
+				if (fileMap.containsKey(BBP_SimZipLoader.FileType.ARIAS_DURATION))
+					vals = loader.readDurations(site, dirName);
+				durBuf.clear();
+				for (DurationTimeInterval interval : DURATION_INTERVALS)
+					for (int c=0; c<NUM_DURATION_COMPONENTS; c++)
+						durBuf.putDouble(vals == null ? Double.NaN : vals.get(interval)[c]);
+				writeFully(channel, durBuf, durStart + r*(long)durLen*8l);
+			}
+			
+			if (r % 10000 == 0)
+				System.out.println("Converted "+r+"/"+keyList.size()+" records");
+		}
+		out.close();
+		System.out.println("Wrote "+keyList.size()+" records to "+outputFile.getAbsolutePath());
+	}
+	
+	private static void writeSpectra(FileChannel channel, ByteBuffer buf, long columnStart, int record,
+			double[] periods, DiscretizedFunc spectra) throws IOException {
+		buf.clear();
+		if (spectra != null)
+			Preconditions.checkState(spectra.size() == periods.length,
+					"Spectra period count mismatch: %s != %s", spectra.size(), periods.length);
+		for (int p=0; p<periods.length; p++) {
+			if (spectra == null) {
+				buf.putDouble(Double.NaN);
+			} else {
+				Preconditions.checkState((float)spectra.getX(p) == (float)periods[p], "Period mismatch");
+				buf.putDouble(spectra.getY(p));
+			}
+		}
+		writeFully(channel, buf, columnStart + (long)record*periods.length*8l);
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			pos += channel.write(buf, pos);
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(BBP_BinarySimArchive.class)
+					+" <results.zip> <sites-file> <output-file>");
+			System.exit(2);
+		}
+		File zipFile = new File(args[0]);
+		List<BBP_Site> sites = BBP_Site.readFile(new File(args[1]));
+		File outputFile = new File(args[2]);
+		
+		BBP_SimZipLoader loader = new BBP_SimZipLoader(zipFile, sites);
+		convert(loader, sites, outputFile);
+	}
+	
+}
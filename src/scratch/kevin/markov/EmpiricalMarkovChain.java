@@ -24,7 +24,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 	
 	// this stores the actual path
 	private List<int[]> fullPath;
-	private Map<IndicesKey, List<Integer>> stateIndexesMap;
+	private StatePathIndexes stateIndexesMap;
 	
 	private transient Map<IndicesKey, Collection<int[]>> parentStatesMap;
 	
@@ -43,7 +43,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 		totalStatesDataset = new SparseNDimensionalHashDataset<Double>(nDims, firstBinCenter, distSpacing);
 		stateTransitionDataset = new SparseNDimensionalHashDataset<PossibleStates>(nDims, firstBinCenter, distSpacing);
 		
-		stateIndexesMap = Maps.newHashMap();
+		stateIndexesMap = new StatePathIndexes(nDims);
 		
 		PossibleStates possibleInitialStates = new PossibleStates(null);
 		
@@ -81,13 +81,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			possibilities.add(toState, 1d);
 			possibleInitialStates.add(toState, 1d);
 
-			IndicesKey key = new IndicesKey(toState);
-			List<Integer> indexesForState = stateIndexesMap.get(key);
-			if (indexesForState == null) {
-				indexesForState = Lists.newArrayList();
-				stateIndexesMap.put(key, indexesForState);
-			}
-			indexesForState.add(fullPath.size());
+			stateIndexesMap.add(toState, fullPath.size());
 		}
 		
 		fullPath.add(toState);
@@ -121,7 +115,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			SparseNDimensionalHashDataset<PossibleStates> stateTransitionDataset,
 			PossibleStates possibleInitialStates,
 			List<int[]> fullPath,
-			Map<IndicesKey, List<Integer>> stateIndexesMap) {
+			StatePathIndexes stateIndexesMap) {
 		this.firstBinCenter = firstBinCenter;
 		this.totalStatesDataset = totalStatesDataset;
 		this.stateTransitionDataset = stateTransitionDataset;
@@ -170,7 +164,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			collapsedTot += tot;
 			for (int i=0; i<states.getNumStates(); i++) {
 				int[] pState = states.getStates().get(i);
-				double pFreq = states.getFrequency(pState);
+				double pFreq = states.getFrequencyAt(i);
 				int[] collapsedPState = getCollapsedState(pState, indices);
 				collapsedPossible.add(collapsedPState, pFreq);
 				initials.add(collapsedPState, pFreq);
@@ -181,17 +175,11 @@ public class EmpiricalMarkovChain extends MarkovChain {
 		}
 		
 		List<int[]> collapsedFullPath = Lists.newArrayList();
-		Map<IndicesKey, List<Integer>> collapsedStateIndexesMap = Maps.newHashMap();
+		StatePathIndexes collapsedStateIndexesMap = new StatePathIndexes(nDims);
 		for (int[] state : fullPath) {
 			int[] collapsedState = getCollapsedState(state, indices);
 			collapsedFullPath.add(collapsedState);
-			IndicesKey key = new IndicesKey(collapsedState);
-			List<Integer> indexesForState = collapsedStateIndexesMap.get(key);
-			if (indexesForState == null) {
-				indexesForState = Lists.newArrayList();
-				collapsedStateIndexesMap.put(key, indexesForState);
-			}
-			indexesForState.add(collapsedFullPath.size()-1);
+			collapsedStateIndexesMap.add(collapsedState, collapsedFullPath.size()-1);
 		}
 		
 		return new EmpiricalMarkovChain(nDims, getDistSpacing(), this.firstBinCenter,
@@ -210,7 +198,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 				"must supply shift for each dimension (0 means no shift in that dimension)");
 		List<int[]> newPath = Lists.newArrayList();
 		
-		Map<IndicesKey, List<Integer>> newStateIndexesMap = Maps.newHashMap();
+		StatePathIndexes newStateIndexesMap = new StatePathIndexes(nDims);
 		
 		stateLoop:
 		for (int i=0; i<fullPath.size(); i++) {
@@ -225,13 +213,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			}
 			newPath.add(newState);
 			
-			IndicesKey key = new IndicesKey(newState);
-			List<Integer> indexesForState = newStateIndexesMap.get(key);
-			if (indexesForState == null) {
-				indexesForState = Lists.newArrayList();
-				newStateIndexesMap.put(key, indexesForState);
-			}
-			indexesForState.add(newPath.size()-1);
+			newStateIndexesMap.add(newState, newPath.size()-1);
 		}
 		
 //		System.out.println("Shifted chain has "+newPath.size()+" states (orig had "+fullPath.size()+")");
@@ -366,7 +348,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 	public double getActualTransPathsProbBetweenStates(int[] fromState, int[] toState, int numSteps,
 			int[]... requiredSubsequentStates) {
 		Preconditions.checkState(requiredSubsequentStates.length <= (int)Math.abs(numSteps));
-		List<Integer> indexes = stateIndexesMap.get(new IndicesKey(fromState));
+		int[] indexes = stateIndexesMap.get(fromState);
 		int count = 0;
 		int numChecked = 0;
 		stateLoop:
@@ -400,7 +382,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			}
 			count++;
 		}
-		Preconditions.checkState(count <= indexes.size());
+		Preconditions.checkState(count <= indexes.length);
 		double prob = (double)count/(double)numChecked;
 		if (Double.isNaN(prob))
 			return 0d;
@@ -410,5 +392,47 @@ public class EmpiricalMarkovChain extends MarkovChain {
 	public List<int[]> getFullPath() {
 		return Collections.unmodifiableList(fullPath);
 	}
+	
+	/**
+	 * Path indexes at which each state occurs, stored as primitive int arrays
+	 */
+	private static class StatePathIndexes {
+		
+		private PackedIndicesMap stateIDs;
+		private int[][] pathIndexes = new int[16][];
+		private int[] counts = new int[16];
+		
+		public StatePathIndexes(int nDims) {
+			stateIDs = new PackedIndicesMap(nDims);
+		}
+		
+		public void add(int[] state, int pathIndex) {
+			int id = stateIDs.getOrAddID(state);
+			if (id == pathIndexes.length) {
+				pathIndexes = Arrays.copyOf(pathIndexes, id*2);
+				counts = Arrays.copyOf(counts, id*2);
+			}
+			int[] indexes = pathIndexes[id];
+			if (indexes == null) {
+				indexes = new int[4];
+				pathIndexes[id] = indexes;
+			} else if (counts[id] == indexes.length) {
+				indexes = Arrays.copyOf(indexes, indexes.length*2);
+				pathIndexes[id] = indexes;
+			}
+			indexes[counts[id]++] = pathIndex;
+		}
+		
+		/**
+		 * @param state
+		 * @return path indexes at which the given state occurs, or null if never
+		 */
+		public int[] get(int[] state) {
+			int id = stateIDs.getID(state);
+			if (id < 0)
+				return null;
+			return Arrays.copyOf(pathIndexes[id], counts[id]);
+		}
+	}
 
 }
@@ -129,7 +129,11 @@ public abstract class MarkovChain {
 		PossibleStates states = getDestinationStates(prevState);
 		
 		List<MarkovPath> paths = Lists.newArrayList();
-		for (int[] possibleState : states.getStates()) {
+		List<int[]> possibleStates = states.getStates();
+		for (int p=0; p<possibleStates.size(); p++) {
+			int[] possibleState = possibleStates.get(p);
+			// same as getTransitionProb(prevState, possibleState), without the lookups
+			double transProb = states.getFrequencyAt(p) / states.tot;
 			counter.cloneResgister(possibleState);
 			if (counter.getMaxLoops() > maxLoops)
 				continue;
@@ -145,7 +149,7 @@ public abstract class MarkovChain {
 				}
 				if (match) {
 					MarkovPath path = new MarkovPath(origFromState);
-					path.addToStart(possibleState, getTransitionProb(prevState, possibleState));
+					path.addToStart(possibleState, transProb);
 					paths.add(path);
 				}
 			} else {
@@ -154,7 +158,7 @@ public abstract class MarkovChain {
 				List<MarkovPath> subPaths = getTheoreticalPathsBetweenStates(counter, origFromState, possibleState,
 						toState, numSteps-1, maxLoops, minProb);
 				for (MarkovPath subPath : subPaths) {
-					subPath = subPath.cloneAddToStart(possibleState, getTransitionProb(prevState, possibleState));
+					subPath = subPath.cloneAddToStart(possibleState, transProb);
 					if (subPath.getMaxLoops() <= maxLoops && subPath.getProbability() >= minProb) {
 //						if (Math.random() < 0.00001) {
 //							System.out.println("fin="+pathsFinalized+", rej="+pathsRejected+". rand: "+subPath.getPathStr());
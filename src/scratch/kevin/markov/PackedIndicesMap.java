@@ -0,0 +1,222 @@
+package scratch.kevin.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Maps n-dimensional int indices to sequential ids (0, 1, 2, ... in insertion order). For small dimension counts,
+ * indices are packed into a single long and looked up in a primitive open addressing hash table, so lookups do not
+ * allocate any objects. Indices which can't be packed (too many dimensions, or values outside of the packable range
+ * for each dimension) fall back to an {@link IndicesKey} hash map.
+ *
+ * @author kevin
+ *
+ */
+public class PackedIndicesMap {
+	
+	/**
+	 * Maximum number of dimensions which will be packed into a long (8 bits per dimension at this maximum)
+	 */
+	public static final int MAX_PACKED_DIMS = 8;
+	
+	private static final long EMPTY = Long.MIN_VALUE;
+	
+	private int nDims;
+	private int bitsPerDim;
+	private int offset;
+	private long dimMask;
+	
+	// open addressing table, key slots and corresponding ids
+	private long[] keys;
+	private int[] ids;
+	private int tableMask;
+	private int numPacked = 0;
+	// the EMPTY key itself is tracked separately
+	private int emptyKeyID = -1;
+	
+	// fallback for indices which can't be packed
+	private HashMap<IndicesKey, Integer> overflow;
+	
+	// indices for each id
+	private List<int[]> indicesList;
+	
+	public PackedIndicesMap(int nDims) {
+		this(nDims, 16);
+	}
+	
+	public PackedIndicesMap(int nDims, int expectedSize) {
+		Preconditions.checkArgument(nDims > 0, "Must have at least one dimension");
+		this.nDims = nDims;
+		if (nDims <= MAX_PACKED_DIMS) {
+			bitsPerDim = Math.min(32, 64/nDims);
+			offset = bitsPerDim == 32 ? 0 : 1 << (bitsPerDim-1);
+			dimMask = bitsPerDim == 32 ? 0xFFFFFFFFL : (1L << bitsPerDim) - 1L;
+		} else {
+			bitsPerDim = 0;
+		}
+		int capacity = 16;
+		while (capacity < expectedSize*2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		ids = new int[capacity];
+		tableMask = capacity-1;
+		indicesList = new ArrayList<>(expectedSize);
+	}
+	
+	public int getNDims() {
+		return nDims;
+	}
+	
+	/**
+	 * @return number of unique indices
+	 */
+	public int size() {
+		return indicesList.size();
+	}
+	
+	/**
+	 * @param id
+	 * @return indices for the given id
+	 */
+	public int[] getIndices(int id) {
+		return indicesList.get(id);
+	}
+	
+	/**
+	 * @return list of all indices, in id order. This list should not be modified.
+	 */
+	public List<int[]> getIndicesList() {
+		return indicesList;
+	}
+	
+	/**
+	 * @param indices
+	 * @return true if the given indices can be packed into a long
+	 */
+	public boolean canPack(int[] indices) {
+		if (bitsPerDim == 0)
+			return false;
+		if (bitsPerDim == 32)
+			return true;
+		for (int index : indices)
+			if (index < -offset || index >= offset)
+				return false;
+		return true;
+	}
+	
+	private long pack(int[] indices) {
+		long key = 0l;
+		for (int d=0; d<nDims; d++)
+			key |= ((long)(indices[d] + offset) & dimMask) << (d*bitsPerDim);
+		return key;
+	}
+	
+	private static int hash(long key) {
+		// murmur3 64 bit finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+	
+	/**
+	 * @param indices
+	 * @return id for the given indices, or -1 if not present
+	 */
+	public int getID(int[] indices) {
+		Preconditions.checkArgument(indices.length == nDims);
+		if (!canPack(indices)) {
+			if (overflow == null)
+				return -1;
+			Integer id = overflow.get(new IndicesKey(indices));
+			return id == null ? -1 : id;
+		}
+		long key = pack(indices);
+		if (key == EMPTY)
+			return emptyKeyID;
+		int slot = hash(key) & tableMask;
+		while (true) {
+			long slotKey = keys[slot];
+			if (slotKey == key)
+				return ids[slot];
+			if (slotKey == EMPTY)
+				return -1;
+			slot = (slot+1) & tableMask;
+		}
+	}
+	
+	/**
+	 * Returns the id for the given indices, adding them if not already present. If added, the given array is
+	 * retained and should not be modified.
+	 *
+	 * @param indices
+	 * @return id for the given indices
+	 */
+	public int getOrAddID(int[] indices) {
+		Preconditions.checkArgument(indices.length == nDims);
+		if (!canPack(indices)) {
+			if (overflow == null)
+				overflow = new HashMap<>();
+			IndicesKey indKey = new IndicesKey(indices);
+			Integer id = overflow.get(indKey);
+			if (id == null) {
+				id = indicesList.size();
+				indicesList.add(indices);
+				overflow.put(indKey, id);
+			}
+			return id;
+		}
+		long key = pack(indices);
+		if (key == EMPTY) {
+			if (emptyKeyID < 0) {
+				emptyKeyID = indicesList.size();
+				indicesList.add(indices);
+			}
+			return emptyKeyID;
+		}
+		int slot = hash(key) & tableMask;
+		while (true) {
+			long slotKey = keys[slot];
+			if (slotKey == key)
+				return ids[slot];
+			if (slotKey == EMPTY)
+				break;
+			slot = (slot+1) & tableMask;
+		}
+		int id = indicesList.size();
+		indicesList.add(indices);
+		keys[slot] = key;
+		ids[slot] = id;
+		numPacked++;
+		if (numPacked*2 > keys.length)
+			rehash();
+		return id;
+	}
+	
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldIDs = ids;
+		keys = new long[oldKeys.length*2];
+		Arrays.fill(keys, EMPTY);
+		ids = new int[keys.length];
+		tableMask = keys.length-1;
+		for (int i=0; i<oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key == EMPTY)
+				continue;
+			int slot = hash(key) & tableMask;
+			while (keys[slot] != EMPTY)
+				slot = (slot+1) & tableMask;
+			keys[slot] = key;
+			ids[slot] = oldIDs[i];
+		}
+	}
+	
+}
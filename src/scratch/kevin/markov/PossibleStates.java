@@ -1,16 +1,22 @@
 package scratch.kevin.markov;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
+/**
+ * Destination states and their frequencies. States are indexed with a {@link PackedIndicesMap} and frequencies
+ * are stored in a primitive array (in the same order as {@link #getStates()}), so adding and looking up states
+ * does not allocate for small dimension counts.
+ */
 public class PossibleStates {
-	List<int[]> states = Lists.newArrayList();
-	private Map<IndicesKey, Integer> stateIndexMap = Maps.newHashMap();
-	List<Double> frequencies = Lists.newArrayList();
+	List<int[]> states = Collections.emptyList();
+	// created on the first add, as we don't know the number of dimensions until then
+	private PackedIndicesMap stateIndexMap;
+	double[] frequencies = new double[4];
 	double tot = 0d;
 	int[] fromState;
 	
@@ -20,23 +26,33 @@ public class PossibleStates {
 	
 	public void add(int[] state, double frequency) {
 		Preconditions.checkState(frequency >= 0, "Frequency cannot be negative! freq="+frequency);
-		IndicesKey key = new IndicesKey(state);
-		Integer index = stateIndexMap.get(key);
-		if (index == null) {
-			stateIndexMap.put(key, states.size());
-			states.add(state);
-			frequencies.add(frequency);
-		} else {
-			frequencies.set(index, frequencies.get(index)+frequency);
+		if (stateIndexMap == null) {
+			stateIndexMap = new PackedIndicesMap(state.length, 4);
+			states = stateIndexMap.getIndicesList();
 		}
+		int index = stateIndexMap.getOrAddID(state);
+		if (index == frequencies.length)
+			frequencies = Arrays.copyOf(frequencies, frequencies.length*2);
+		frequencies[index] += frequency;
 		tot += frequency;
 	}
 	
 	public double getFrequency(int[] indices) {
-		Integer index = stateIndexMap.get(new IndicesKey(indices));
-		if (index == null)
+		if (stateIndexMap == null)
 			return 0d;
-		return frequencies.get(index);
+		int index = stateIndexMap.getID(indices);
+		if (index < 0)
+			return 0d;
+		return frequencies[index];
+	}
+	
+	/**
+	 * @param index state index in the {@link #getStates()} list
+	 * @return frequency for the state at the given index
+	 */
+	public double getFrequencyAt(int index) {
+		Preconditions.checkElementIndex(index, states.size());
+		return frequencies[index];
 	}
 	
 	public int[] drawState() {
@@ -44,7 +60,7 @@ public class PossibleStates {
 		double runningTot = 0d;
 		
 		for (int i=0; i<states.size(); i++) {
-			runningTot += frequencies.get(i);
+			runningTot += frequencies[i];
 			if (rand <= runningTot)
 				return states.get(i);
 		}
@@ -87,9 +103,9 @@ public class PossibleStates {
 			newFromState = new int[] {fromState[index]};
 		PossibleStates marginal = new PossibleStates(newFromState);
 		
-		for (int[] state : states) {
-			int[] margState = {state[index]};
-			marginal.add(margState, getFrequency(state));
+		for (int i=0; i<states.size(); i++) {
+			int[] margState = {states.get(i)[index]};
+			marginal.add(margState, frequencies[i]);
 		}
 		
 		return marginal;
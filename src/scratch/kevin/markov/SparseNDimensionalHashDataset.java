@@ -1,15 +1,17 @@
 package scratch.kevin.markov;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 /**
  * This is an n-dimensional dataset without any set limits on dataset or dimensional size. Only non zero values
  * are stored. Solution space is assumed to be all zero before any set operations.
+ * 
+ * Indices are mapped to values with a {@link PackedIndicesMap}, so get/set operations do not allocate for
+ * small dimension counts.
  * @author kevin
  *
  */
@@ -28,7 +30,8 @@ public class SparseNDimensionalHashDataset<E> {
 	private double[] zeroIndLocPerDim;
 	private double[] spacingsPerDim;
 	
-	private HashMap<IndicesKey, E> data;
+	private PackedIndicesMap indicesMap;
+	private ArrayList<E> data;
 	
 	public SparseNDimensionalHashDataset(int nDims, double minValsPerDim, double spacing) {
 		this(nDims, asArray(minValsPerDim, nDims), asArray(spacing, nDims));
@@ -39,7 +42,8 @@ public class SparseNDimensionalHashDataset<E> {
 		this.zeroIndLocPerDim = zeroIndLocPerDim;
 		this.spacingsPerDim = spacingsPerDim;
 		
-		this.data = Maps.newHashMap();
+		this.indicesMap = new PackedIndicesMap(nDims);
+		this.data = new ArrayList<>();
 	}
 	
 	public int getNDims() {
@@ -48,13 +52,19 @@ public class SparseNDimensionalHashDataset<E> {
 	
 	public E get(int[] indices) {
 		Preconditions.checkArgument(indices.length == this.nDims);
-		E val = data.get(new IndicesKey(indices));
-		return val;
+		int id = indicesMap.getID(indices);
+		if (id < 0)
+			return null;
+		return data.get(id);
 	}
 	
 	public void set(int[] indices, E val) {
 		Preconditions.checkArgument(indices.length == this.nDims);
-		data.put(new IndicesKey(indices), val);
+		int id = indicesMap.getOrAddID(indices);
+		if (id == data.size())
+			data.add(val);
+		else
+			data.set(id, val);
 	}
 	
 	public int indexForDimVal(int nDim, double val) {
@@ -72,10 +82,7 @@ public class SparseNDimensionalHashDataset<E> {
 	}
 	
 	public List<int[]> getPopulatedIndices() {
-		List<int[]> indicesList = Lists.newArrayList();
-		for (IndicesKey key : data.keySet())
-			indicesList.add(key.indices);
-		return indicesList;
+		return Lists.newArrayList(indicesMap.getIndicesList());
 	}
 
 }
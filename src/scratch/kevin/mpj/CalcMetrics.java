@@ -0,0 +1,251 @@
+package scratch.kevin.mpj;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import org.opensha.commons.data.CSVFile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Thread safe (lock free) instrumentation for parallel and MPJ calculations. Tracks named counters, named phase timers
+ * (total, count and max time for each phase) and hit rates for Guava caches (which must be built with
+ * CacheBuilder.recordStats()). Metrics for each rank can be written to a CSV file with
+ * {@link #writeCSV(File, int, int)} so that stragglers and thread utilization can be compared across ranks.
+ * <br>
+ * Typical timer use:
+ * <pre>
+ * long start = System.nanoTime();
+ * // do work
+ * metrics.addTime(PHASE_NAME, start);
+ * </pre>
+ *
+ * @author kevin
+ *
+ */
+public class CalcMetrics {
+	
+	private static final LongBinaryOperator MAX_OP = new LongBinaryOperator() {
+		
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+	
+	private static class PhaseTimer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(MAX_OP, 0l);
+		
+		private void add(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+	}
+	
+	private final long startNanos;
+	
+	private final ConcurrentMap<String, LongAdder> counters;
+	private final ConcurrentMap<String, PhaseTimer> timers;
+	private final Map<String, Cache<?, ?>> caches;
+	
+	public CalcMetrics() {
+		startNanos = System.nanoTime();
+		counters = new ConcurrentHashMap<>();
+		timers = new ConcurrentHashMap<>();
+		caches = new LinkedHashMap<>();
+	}
+	
+	private LongAdder getCounter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+	
+	private PhaseTimer getTimer(String phase) {
+		PhaseTimer timer = timers.get(phase);
+		if (timer == null) {
+			timers.putIfAbsent(phase, new PhaseTimer());
+			timer = timers.get(phase);
+		}
+		return timer;
+	}
+	
+	/**
+	 * Increments the given counter by one
+	 *
+	 * @param name
+	 */
+	public void increment(String name) {
+		getCounter(name).increment();
+	}
+	
+	/**
+	 * Adds the given amount to the given counter
+	 *
+	 * @param name
+	 * @param amount
+	 */
+	public void add(String name, long amount) {
+		getCounter(name).add(amount);
+	}
+	
+	/**
+	 * @param name
+	 * @return current value of the given counter, or 0 if never incremented
+	 */
+	public long getCount(String name) {
+		LongAdder counter = counters.get(name);
+		return counter == null ? 0l : counter.sum();
+	}
+	
+	/**
+	 * Records time spent in the given phase, from the given start time until now
+	 *
+	 * @param phase
+	 * @param startNanos start time from {@link System#nanoTime()}
+	 */
+	public void addTime(String phase, long startNanos) {
+		addNanos(phase, System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * Records the given time spent in the given phase
+	 *
+	 * @param phase
+	 * @param nanos
+	 */
+	public void addNanos(String phase, long nanos) {
+		getTimer(phase).add(nanos);
+	}
+	
+	/**
+	 * @param phase
+	 * @return total time in seconds spent in the given phase, summed across all threads
+	 */
+	public double getTotalSeconds(String phase) {
+		PhaseTimer timer = timers.get(phase);
+		return timer == null ? 0d : timer.totalNanos.sum()/1e9;
+	}
+	
+	/**
+	 * Registers a cache for hit rate tracking. The cache must be built with CacheBuilder.recordStats()
+	 *
+	 * @param name
+	 * @param cache
+	 */
+	public synchronized void registerCache(String name, Cache<?, ?> cache) {
+		caches.put(name, cache);
+	}
+	
+	/**
+	 * @return wall clock seconds since this instance was created
+	 */
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - startNanos)/1e9;
+	}
+	
+	private static String nanosToSecs(long nanos) {
+		return (float)(nanos/1e9)+"";
+	}
+	
+	private static String nanosToMillis(double nanos) {
+		return (float)(nanos/1e6)+"";
+	}
+	
+	/**
+	 * Builds a CSV file of all metrics. Columns are rank, metric type (INFO, COUNTER, TIMER or CACHE), name, count
+	 * (number of cache requests for caches), total seconds (total load time for caches), mean and max milliseconds
+	 * (mean load time for caches), and hit rate (caches only).
+	 *
+	 * @param rank
+	 * @param numThreads
+	 * @return CSV file with a header row and one row per metric
+	 */
+	public synchronized CSVFile<String> buildCSV(int rank, int numThreads) {
+		CSVFile<String> csv = new CSVFile<>(true);
+		csv.addLine("Rank", "Type", "Name", "Count", "Total (s)", "Mean (ms)", "Max (ms)", "Hit Rate");
+		String rankStr = rank+"";
+		
+		csv.addLine(rankStr, "INFO", "Wall Time", "", (float)getElapsedSeconds()+"", "", "", "");
+		csv.addLine(rankStr, "INFO", "Threads", numThreads+"", "", "", "", "");
+		
+		List<String> names = new ArrayList<>(counters.keySet());
+		names.sort(null);
+		for (String name : names)
+			csv.addLine(rankStr, "COUNTER", name, counters.get(name).sum()+"", "", "", "", "");
+		
+		names = new ArrayList<>(timers.keySet());
+		names.sort(null);
+		for (String name : names) {
+			PhaseTimer timer = timers.get(name);
+			long count = timer.count.sum();
+			long total = timer.totalNanos.sum();
+			double mean = count == 0 ? 0d : (double)total/(double)count;
+			csv.addLine(rankStr, "TIMER", name, count+"", nanosToSecs(total), nanosToMillis(mean),
+					nanosToMillis(timer.maxNanos.get()), "");
+		}
+		
+		for (String name : caches.keySet()) {
+			CacheStats stats = caches.get(name).stats();
+			csv.addLine(rankStr, "CACHE", name, stats.requestCount()+"", nanosToSecs(stats.totalLoadTime()),
+					nanosToMillis(stats.averageLoadPenalty()), "", (float)stats.hitRate()+"");
+		}
+		
+		return csv;
+	}
+	
+	/**
+	 * Writes all metrics to the given CSV file, see {@link #buildCSV(int, int)}
+	 *
+	 * @param file
+	 * @param rank
+	 * @param numThreads
+	 * @throws IOException
+	 */
+	public void writeCSV(File file, int rank, int numThreads) throws IOException {
+		buildCSV(rank, numThreads).writeToFile(file);
+	}
+	
+	/**
+	 * @param dir
+	 * @param rank
+	 * @return standard metrics file name for the given rank in the given directory
+	 */
+	public static File getRankFile(File dir, int rank) {
+		return new File(dir, "metrics_rank_"+rank+".csv");
+	}
+	
+	@Override
+	public synchronized String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("Wall time: ").append((float)getElapsedSeconds()).append(" s");
+		for (String name : counters.keySet())
+			str.append("\n\t").append(name).append(": ").append(counters.get(name).sum());
+		for (String name : timers.keySet()) {
+			PhaseTimer timer = timers.get(name);
+			str.append("\n\t").append(name).append(": ").append(nanosToSecs(timer.totalNanos.sum()))
+				.append(" s (").append(timer.count.sum()).append(" calls)");
+		}
+		for (String name : caches.keySet())
+			str.append("\n\t").append(name).append(" cache hit rate: ")
+				.append((float)caches.get(name).stats().hitRate());
+		return str.toString();
+	}
+	
+}
@@ -0,0 +1,249 @@
+package scratch.kevin.simCompare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Table;
+
+/**
+ * Batch hazard curve calculator for multiple IMTs (and optionally source contributions) at once. Ruptures for each
+ * site are visited once, RotD50 spectra are fetched once per simulation and shared by all SA periods, and every
+ * curve (including per source curves) is accumulated in that single pass. Results are identical to calling
+ * {@link SimulationHazardCurveCalc#calc(Site, IMT, double)} and
+ * {@link SimulationHazardCurveCalc#calcSourceContributionCurves(Site, IMT, double, Table)} for each IMT.
+ * <br>
+ * Multiple sites can be calculated in parallel with {@link #calc(List, IMT[], int)}, in which case the simulation
+ * provider must be thread safe.
+ *
+ * @author kevin
+ *
+ * @param <E>
+ */
+public class SimulationHazardBatchCalc<E> {
+	
+	private SimulationHazardCurveCalc<E> calc;
+	private SimulationRotDProvider<E> simProv;
+	private double curveDuration;
+	
+	private Table<String, E, Double> sourceRupContribFracts;
+	
+	public SimulationHazardBatchCalc(SimulationHazardCurveCalc<E> calc, double curveDuration) {
+		this.calc = calc;
+		this.simProv = calc.getSimProv();
+		this.curveDuration = curveDuration;
+	}
+	
+	/**
+	 * Enables calculation of source contribution curves alongside the total curves
+	 *
+	 * @param sourceRupContribFracts table of source name, rupture, fraction, or null to disable
+	 */
+	public void setSourceContributionFractions(Table<String, E, Double> sourceRupContribFracts) {
+		this.sourceRupContribFracts = sourceRupContribFracts;
+	}
+	
+	public SimulationHazardCurveCalc<E> getCalc() {
+		return calc;
+	}
+	
+	/**
+	 * Calculates curves for all of the given IMTs at a single site
+	 *
+	 * @param site
+	 * @param imts
+	 * @return curves
+	 * @throws IOException
+	 */
+	public SiteCurves calc(Site site, IMT[] imts) throws IOException {
+		List<IMT> saIMTs = new ArrayList<>();
+		List<IMT> otherIMTs = new ArrayList<>();
+		for (IMT imt : imts) {
+			if (saIMTs.contains(imt) || otherIMTs.contains(imt))
+				continue;
+			if (imt.getParamName().equals(SA_Param.NAME))
+				saIMTs.add(imt);
+			else
+				otherIMTs.add(imt);
+		}
+		// all IMTs, SA first
+		List<IMT> allIMTs = new ArrayList<>(saIMTs);
+		allIMTs.addAll(otherIMTs);
+		
+		List<SimulationHazardCurveCalc<E>.CurveAccumulator> accumulators = new ArrayList<>();
+		for (IMT imt : allIMTs)
+			accumulators.add(calc.new CurveAccumulator(imt));
+		
+		List<String> sourceNames = null;
+		List<List<SimulationHazardCurveCalc<E>.CurveAccumulator>> sourceAccumulators = null;
+		if (sourceRupContribFracts != null) {
+			sourceNames = new ArrayList<>(sourceRupContribFracts.rowKeySet());
+			sourceAccumulators = new ArrayList<>();
+			for (int s=0; s<sourceNames.size(); s++) {
+				List<SimulationHazardCurveCalc<E>.CurveAccumulator> sourceAccs = new ArrayList<>();
+				for (IMT imt : allIMTs)
+					sourceAccs.add(calc.new CurveAccumulator(imt));
+				sourceAccumulators.add(sourceAccs);
+			}
+		}
+		
+		double[][] vals = new double[allIMTs.size()][];
+		for (E rupture : simProv.getRupturesForSite(site)) {
+			double rupRate = simProv.getAnnualRate(rupture);
+			Map<String, Double> rupFracts = null;
+			if (sourceRupContribFracts != null) {
+				rupFracts = sourceRupContribFracts.column(rupture);
+				if (rupRate == 0d || rupFracts.isEmpty())
+					rupFracts = null;
+			}
+			if (rupRate == 0d && rupFracts == null)
+				continue;
+			
+			// fetch all values for this rupture
+			if (!saIMTs.isEmpty()) {
+				int num = simProv.getNumSimulations(site, rupture);
+				for (int i=0; i<saIMTs.size(); i++)
+					vals[i] = new double[num];
+				for (int n=0; n<num; n++) {
+					DiscretizedFunc rd50 = simProv.getRotD50(site, rupture, n);
+					for (int i=0; i<saIMTs.size(); i++)
+						vals[i][n] = rd50.getInterpolatedY(saIMTs.get(i).getPeriod());
+				}
+			}
+			for (int i=saIMTs.size(); i<allIMTs.size(); i++)
+				vals[i] = simProv.getValuesArray(site, rupture, allIMTs.get(i));
+			
+			if (rupRate != 0d)
+				for (int i=0; i<allIMTs.size(); i++)
+					accumulators.get(i).add(rupture, rupRate, vals[i]);
+			
+			if (rupFracts != null) {
+				for (int s=0; s<sourceNames.size(); s++) {
+					Double scale = rupFracts.get(sourceNames.get(s));
+					if (scale == null)
+						continue;
+					double sourceRate = rupRate*scale;
+					if (sourceRate == 0d)
+						continue;
+					List<SimulationHazardCurveCalc<E>.CurveAccumulator> sourceAccs = sourceAccumulators.get(s);
+					for (int i=0; i<allIMTs.size(); i++)
+						sourceAccs.get(i).add(rupture, sourceRate, vals[i]);
+				}
+			}
+		}
+		
+		SiteCurves curves = new SiteCurves(site);
+		for (int i=0; i<allIMTs.size(); i++) {
+			IMT imt = allIMTs.get(i);
+			curves.curves.put(imt, accumulators.get(i).build(site, curveDuration, true));
+			if (sourceNames != null) {
+				Map<String, DiscretizedFunc> sourceCurves = new HashMap<>();
+				for (int s=0; s<sourceNames.size(); s++)
+					sourceCurves.put(sourceNames.get(s),
+							sourceAccumulators.get(s).get(i).build(site, curveDuration, false));
+				curves.sourceCurves.put(imt, sourceCurves);
+			}
+		}
+		return curves;
+	}
+	
+	/**
+	 * Calculates curves for all of the given IMTs at each site in parallel. The simulation provider must be thread
+	 * safe.
+	 *
+	 * @param sites
+	 * @param imts
+	 * @param threads
+	 * @return map from site to curves, in site order
+	 * @throws IOException
+	 */
+	public Map<Site, SiteCurves> calc(List<Site> sites, final IMT[] imts, int threads) throws IOException {
+		// work stealing as the number of ruptures can vary greatly between sites
+		ExecutorService exec = Executors.newWorkStealingPool(threads);
+		List<Future<SiteCurves>> futures = new ArrayList<>();
+		for (final Site site : sites) {
+			futures.add(exec.submit(new Callable<SiteCurves>() {
+				
+				@Override
+				public SiteCurves call() throws Exception {
+					return calc(site, imts);
+				}
+			}));
+		}
+		Map<Site, SiteCurves> ret = new LinkedHashMap<>();
+		try {
+			for (int i=0; i<sites.size(); i++)
+				ret.put(sites.get(i), futures.get(i).get());
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		return ret;
+	}
+	
+	/**
+	 * Hazard curves calculated for a single site
+	 */
+	public class SiteCurves {
+		
+		private Site site;
+		private Map<IMT, DiscretizedFunc> curves = new HashMap<>();
+		private Map<IMT, Map<String, DiscretizedFunc>> sourceCurves = new HashMap<>();
+		
+		private SiteCurves(Site site) {
+			this.site = site;
+		}
+		
+		public Site getSite() {
+			return site;
+		}
+		
+		public SimulationHazardCurveCalc<E> getCalc() {
+			return calc;
+		}
+		
+		public boolean hasIMT(IMT imt) {
+			return curves.containsKey(imt);
+		}
+		
+		/**
+		 * @param imt
+		 * @return hazard curve, or null if there are no ruptures for this site
+		 */
+		public DiscretizedFunc getCurve(IMT imt) {
+			Preconditions.checkState(curves.containsKey(imt), "Not calculated for %s", imt);
+			return curves.get(imt);
+		}
+		
+		public boolean hasSourceCurves() {
+			return !sourceCurves.isEmpty();
+		}
+		
+		/**
+		 * @param imt
+		 * @return map of source name to hazard curve (null for sources with no ruptures), or null if source
+		 * contributions were not calculated
+		 */
+		public Map<String, DiscretizedFunc> getSourceCurves(IMT imt) {
+			return sourceCurves.get(imt);
+		}
+	}
+	
+}
@@ -4,14 +4,21 @@ import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.data.function.UncertainArbDiscDataset;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.gui.infoTools.IMT_Info;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGV_Param;
@@ -20,7 +27,6 @@ import org.opensha.sha.imr.param.IntensityMeasureParams.SignificantDurationParam
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Table;
-import com.google.common.primitives.Doubles;
 
 import scratch.UCERF3.erf.ETAS.ETAS_Utils;
 
@@ -93,18 +99,82 @@ public class SimulationHazardCurveCalc<E> {
 		return ret;
 	}
 	
+	/**
+	 * Calculates hazard curves for multiple sites in parallel. The simulation provider must be thread safe.
+	 * 
+	 * @param sites
+	 * @param imt
+	 * @param curveDuration
+	 * @param threads
+	 * @return map from site to curve (in site order), curves will be null for sites without any simulations
+	 * @throws IOException
+	 */
+	public Map<Site, DiscretizedFunc> calc(List<Site> sites, final IMT imt, final double curveDuration, int threads)
+			throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<DiscretizedFunc>> futures = new ArrayList<>();
+		for (final Site site : sites) {
+			futures.add(exec.submit(new Callable<DiscretizedFunc>() {
+
+				@Override
+				public DiscretizedFunc call() throws Exception {
+					return calc(site, imt, curveDuration);
+				}
+			}));
+		}
+		Map<Site, DiscretizedFunc> ret = new LinkedHashMap<>();
+		try {
+			for (int i=0; i<sites.size(); i++)
+				ret.put(sites.get(i), futures.get(i).get());
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		return ret;
+	}
+	
+	/**
+	 * @param xVals sorted x values
+	 * @param val
+	 * @return the number of x values which are less than or equal to the given value (which will be the first
+	 * N x values)
+	 */
+	private static int getNumExceeded(double[] xVals, double val) {
+		if (!(val >= xVals[0]))
+			// also catches NaN
+			return 0;
+		int low = 0;
+		int high = xVals.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (xVals[mid] <= val)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/*
+	 * rates are still accumulated one value at a time (rather than summing bins afterwards) so that the
+	 * floating point summation order, and thus the result, is unchanged
+	 */
+	private static void addExceedances(double[] xVals, double val, double rate, double[] rates, int[] numExceed) {
+		int num = getNumExceeded(xVals, val);
+		for (int i=0; i<num; i++) {
+			numExceed[i]++;
+			rates[i] += rate;
+		}
+	}
+	
 	private DiscretizedFunc calc(Site site, IMT imt, double curveDuration,
 			Map<E, Double> rupRateScalars, Double fractile) throws IOException {
-		// annual rate curve
-		DiscretizedFunc curve = xValsMap.get(imt.getParamName()).deepClone();
-		for (int i=0; i<curve.size(); i++)
-			curve.set(i, 0d);
-		int[] numExceed = new int[curve.size()];
-		int numRuptures = 0;
-		double firstRate = -1;
+		CurveAccumulator accumulator = new CurveAccumulator(imt);
 //		double minRate = Double.POSITIVE_INFINITY;
 		simProv.getMinimumCurvePlotRate(site);
-		boolean allRatesSame = true;
 		for (E rupture : simProv.getRupturesForSite(site)) {
 			double rupRate = simProv.getAnnualRate(rupture);
 			if (rupRateScalars != null) {
@@ -115,44 +185,99 @@ public class SimulationHazardCurveCalc<E> {
 			}
 			if (rupRate == 0)
 				continue;
+//			minRate = Math.min(rupRate, minRate);
+			double[] vals = simProv.getValuesArray(site, rupture, imt);
+			if (fractile == null)
+				accumulator.add(rupture, rupRate, vals);
+			else
+				accumulator.addFractile(rupRate, vals, fractile);
+		}
+		return accumulator.build(site, curveDuration, rupRateScalars == null);
+	}
+	
+	/**
+	 * Accumulates exceedance rates for a single hazard curve, one rupture at a time
+	 */
+	class CurveAccumulator {
+		private DiscretizedFunc xValsFunc;
+		private double[] xVals;
+		// annual rates
+		private double[] rates;
+		private int[] numExceed;
+		private int numRuptures = 0;
+		private double firstRate = -1;
+		private boolean allRatesSame = true;
+		
+		CurveAccumulator(IMT imt) {
+			xValsFunc = xValsMap.get(imt.getParamName());
+			xVals = new double[xValsFunc.size()];
+			for (int i=0; i<xVals.length; i++)
+				xVals[i] = xValsFunc.getX(i);
+			rates = new double[xVals.length];
+			numExceed = new int[xVals.length];
+		}
+		
+		private void addRate(double rupRate) {
 			if (firstRate == -1)
 				firstRate = rupRate;
 			else
 				allRatesSame = allRatesSame && firstRate == rupRate;
-//			minRate = Math.min(rupRate, minRate);
-			List<Double> vals = simProv.getValues(site, rupture, imt);
-			if (fractile == null) {
-				for (int j=0; j<vals.size(); j++) {
-					double simRate = simProv.getIndividualSimulationRate(rupture, rupRate, j, vals.size());
-					double val = vals.get(j);
-					for (int i=0; i<curve.size(); i++) {
-						if (curve.getX(i) <= val) {
-							numExceed[i]++;
-							curve.set(i, curve.getY(i)+simRate);
-						}
-					}
-					numRuptures++;
-				}
-			} else {
-				Preconditions.checkState(vals.size() > 1,
-						"Must have multiple values per rupture for fractile curves");
-				double[] array = Doubles.toArray(vals);
-				double val = StatUtils.percentile(array, fractile*100d);
-				for (int i=0; i<curve.size(); i++) {
-					if (curve.getX(i) <= val) {
-						numExceed[i]++;
-						curve.set(i, curve.getY(i)+rupRate);
-					}
-				}
+		}
+		
+		/**
+		 * Adds all simulations for the given rupture
+		 * @param rupture
+		 * @param rupRate rupture rate, must be nonzero
+		 * @param vals simulation values
+		 */
+		void add(E rupture, double rupRate, double[] vals) {
+			addRate(rupRate);
+			for (int j=0; j<vals.length; j++) {
+				double simRate = simProv.getIndividualSimulationRate(rupture, rupRate, j, vals.length);
+				addExceedances(xVals, vals[j], simRate, rates, numExceed);
 				numRuptures++;
 			}
 		}
-		if (firstRate < 0)
-			return null;
 		
+		/**
+		 * Adds the given fractile of the simulation values for a rupture
+		 * @param rupRate rupture rate, must be nonzero
+		 * @param vals simulation values
+		 * @param fractile
+		 */
+		void addFractile(double rupRate, double[] vals, double fractile) {
+			addRate(rupRate);
+			Preconditions.checkState(vals.length > 1,
+					"Must have multiple values per rupture for fractile curves");
+			double val = StatUtils.percentile(vals, fractile*100d);
+			addExceedances(xVals, val, rupRate, rates, numExceed);
+			numRuptures++;
+		}
+		
+		/**
+		 * Builds the final probability curve
+		 * @param site
+		 * @param curveDuration
+		 * @param calcBounds if true, binomial confidence bounds will be included if all rupture rates were equal
+		 * @return hazard curve, or null if no ruptures were added
+		 */
+		DiscretizedFunc build(Site site, double curveDuration, boolean calcBounds) {
+			// annual rate curve
+			DiscretizedFunc curve = xValsFunc.deepClone();
+			for (int i=0; i<curve.size(); i++)
+				curve.set(i, rates[i]);
+			if (firstRate < 0)
+				return null;
+			return finalizeCurve(site, curveDuration, curve, numExceed, numRuptures, firstRate,
+					allRatesSame && calcBounds);
+		}
+	}
+	
+	private DiscretizedFunc finalizeCurve(Site site, double curveDuration, DiscretizedFunc curve, int[] numExceed,
+			int numRuptures, double firstRate, boolean calcBounds) {
 		DiscretizedFunc lowerCurve = null;
 		DiscretizedFunc upperCurve = null;
-		if (allRatesSame && rupRateScalars == null) {
+		if (calcBounds) {
 			lowerCurve = curve.deepClone();
 			upperCurve = curve.deepClone();
 			
@@ -178,6 +178,32 @@ public class SimulationHazardPlotter<E> {
 		this.sourceContribMutuallyExclusive = mutuallyExclusive;
 	}
 	
+	/**
+	 * Stores curves which were already calculated with a {@link SimulationHazardBatchCalc} so that they will not be
+	 * recalculated. Source contribution curves are only used if the batch calc was for the primary simulation calc.
+	 * Curves must have been calculated for this site with the same curve duration.
+	 * 
+	 * @param siteCurves
+	 * @param imts
+	 */
+	public synchronized void setPrecomputedSimCurves(SimulationHazardBatchCalc<?>.SiteCurves siteCurves, IMT... imts) {
+		for (IMT imt : imts) {
+			if (!siteCurves.hasIMT(imt))
+				continue;
+			DiscretizedFunc curve = siteCurves.getCurve(imt);
+			if (curve != null)
+				simCurves.put(siteCurves.getCalc(), imt, curve);
+			if (siteCurves.getCalc() == simCalc && siteCurves.hasSourceCurves() && sourceRupContribFracts != null) {
+				Map<String, DiscretizedFunc> sourceCurves = siteCurves.getSourceCurves(imt);
+				for (String sourceName : sourceCurves.keySet()) {
+					DiscretizedFunc sourceCurve = sourceCurves.get(sourceName);
+					if (sourceCurve != null)
+						simSourceCurves.put(imt, sourceName, sourceCurve);
+				}
+			}
+		}
+	}
+	
 	public synchronized DiscretizedFunc getCalcSimCurve(SimulationHazardCurveCalc<?> simCalc, IMT imt) throws IOException {
 		if (simCurves.contains(simCalc, imt))
 			return simCurves.get(simCalc, imt);
@@ -181,6 +181,35 @@ public interface SimulationRotDProvider<E> extends Named {
 		throw new IllegalStateException("Unsupported IMT: "+imt);
 	}
 	
+	/**
+	 * Primitive equivalent of {@link #getValues(Site, Object, IMT)}, which avoids boxing each value
+	 * 
+	 * @param site
+	 * @param rupture
+	 * @param imt
+	 * @return array of values for each simulation of rupture E at the given site
+	 * @throws IOException
+	 */
+	public default double[] getValuesArray(Site site, E rupture, IMT imt) throws IOException {
+		if (imt.getParamName().equals(SA_Param.NAME)) {
+			double period = imt.getPeriod();
+			int num = getNumSimulations(site, rupture);
+			double[] ret = new double[num];
+			for (int i=0; i<num; i++)
+				ret[i] = getRotD50(site, rupture, i).getInterpolatedY(period);
+			return ret;
+		}
+		if (imt == IMT.PGV) {
+			Preconditions.checkState(hasPGV(), "PGV not supported by this provider");
+			int num = getNumSimulations(site, rupture);
+			double[] ret = new double[num];
+			for (int i=0; i<num; i++)
+				ret[i] = getPGV(site, rupture, i);
+			return ret;
+		}
+		return Doubles.toArray(getValues(site, rupture, imt));
+	}
+	
 	/**
 	 * @param site
 	 * @param rupture
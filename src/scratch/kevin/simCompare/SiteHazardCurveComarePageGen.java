@@ -55,6 +55,8 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 	
 	private static double[] disagg_fixed_vals = { 0.1, 0.5, 1.0 };
 	
+	private static double curve_duration = 1d;
+	
 	private static ExecutorService exec;
 	
 	private Map<SimulationHazardCurveCalc<?>, PlotCurveCharacterstics> customPlotChars = new HashMap<>();
@@ -73,6 +75,8 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 	private int sourceRupContributionNum;
 	private Table<String, E, Double> sourceRupContributionFracts;
 	private boolean sourceRupContributionsMutuallyExclusive;
+	
+	private Map<Site, List<SimulationHazardBatchCalc<?>.SiteCurves>> precomputedCurves = new HashMap<>();
 
 	public SiteHazardCurveComarePageGen(SimulationRotDProvider<E> simProv, String simName) {
 		this(simProv, simName, new ArrayList<>());
@@ -149,6 +153,44 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		return list;
 	}
 	
+	/**
+	 * Calculates simulation hazard curves (including comparison simulations and source contributions) for all of
+	 * the given sites and IMTs up front, in parallel across sites, for use by subsequent calls to
+	 * {@link #generateSitePage(Site, List, File, List, IMT[], AttenRelRef)}. Each simulation provider must be
+	 * thread safe. Any source contribution fractions must be set first.
+	 * 
+	 * @param sites
+	 * @param imts
+	 * @param threads
+	 * @throws IOException
+	 */
+	public void precomputeSimCurves(List<Site> sites, IMT[] imts, int threads) throws IOException {
+		List<SimulationHazardBatchCalc<?>> batchCalcs = getBatchCalcs();
+		for (SimulationHazardBatchCalc<?> batchCalc : batchCalcs) {
+			System.out.println("Precomputing "+batchCalc.getCalc().getSimProv().getName()+" curves for "
+					+sites.size()+" sites and "+imts.length+" IMTs");
+			Map<Site, ? extends SimulationHazardBatchCalc<?>.SiteCurves> siteCurves = batchCalc.calc(sites, imts, threads);
+			for (Site site : siteCurves.keySet()) {
+				List<SimulationHazardBatchCalc<?>.SiteCurves> curvesList = precomputedCurves.get(site);
+				if (curvesList == null) {
+					curvesList = new ArrayList<>();
+					precomputedCurves.put(site, curvesList);
+				}
+				curvesList.add(siteCurves.get(site));
+			}
+		}
+	}
+	
+	private List<SimulationHazardBatchCalc<?>> getBatchCalcs() {
+		List<SimulationHazardBatchCalc<?>> batchCalcs = new ArrayList<>();
+		SimulationHazardBatchCalc<E> primary = new SimulationHazardBatchCalc<>(simCalc, curve_duration);
+		primary.setSourceContributionFractions(sourceRupContributionFracts);
+		batchCalcs.add(primary);
+		for (SimulationHazardCurveCalc<?> compCalc : compCurveCals)
+			batchCalcs.add(new SimulationHazardBatchCalc<>(compCalc, curve_duration));
+		return batchCalcs;
+	}
+	
 	public void generateSitePage(Site site, List<? extends RuptureComparison<E>> comps, File outputDir, List<String> headerLines,
 			IMT[] imts, AttenRelRef gmpeRef) throws IOException {
 		File resourcesDir = new File(outputDir, "resources");
@@ -195,12 +237,21 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		int tocIndex = lines.size();
 		String topLink = "*[(top)](#table-of-contents)*";
 		
-		double curveDuration = 1d;
+		double curveDuration = curve_duration;
 		
 		SimulationHazardPlotter<E> curvePlotter = new SimulationHazardPlotter<>(simCalc, compCurveCals, comps, site, curveDuration, gmpeRef);
 		curvePlotter.setGMPE_FixedSigmas(gmpe_fixed_sigmas);
 		curvePlotter.setGMPE_TruncationLevels(gmpe_truncs);
 		curvePlotter.setSourceContributionFractions(sourceRupContributionFracts, sourceRupContributionsMutuallyExclusive);
+		// all simulation curves for this site in one pass over each provider
+		List<SimulationHazardBatchCalc<?>.SiteCurves> siteCurvesList = precomputedCurves.get(site);
+		if (siteCurvesList == null) {
+			siteCurvesList = new ArrayList<>();
+			for (SimulationHazardBatchCalc<?> batchCalc : getBatchCalcs())
+				siteCurvesList.add(batchCalc.calc(site, imts));
+		}
+		for (SimulationHazardBatchCalc<?>.SiteCurves siteCurves : siteCurvesList)
+			curvePlotter.setPrecomputedSimCurves(siteCurves, imts);
 		for (SimulationHazardCurveCalc<?> key : customPlotChars.keySet())
 			curvePlotter.setCustomPlotColors(key, customPlotChars.get(key));
 		
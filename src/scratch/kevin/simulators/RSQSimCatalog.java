@@ -558,6 +558,7 @@ public class RSQSimCatalog implements XMLSaveable {
 	private Boolean variableSlipSpeed = null;
 	
 	private List<SimulatorElement> elements;
+	private RSQSimEventIndex eventIndex;
 	private RSQSimStateTransitionFileReader transReader;
 	private List<? extends FaultSection> subSects;
 	private Map<Integer, Double> subSectAreas;
@@ -780,17 +781,59 @@ public class RSQSimCatalog implements XMLSaveable {
 	}
 	
 	public synchronized int getNumEvents() throws IOException {
-		if (numEvents < 0)
-			numEvents = RSQSimFileReader.getNumEvents(getCatalogDir());
+		if (numEvents < 0) {
+			RSQSimEventIndex index = getExistingEventIndex();
+			if (index == null)
+				numEvents = RSQSimFileReader.getNumEvents(getCatalogDir());
+			else
+				numEvents = index.getNumEvents();
+		}
 		return numEvents;
 	}
 		
 	public synchronized double getDurationYears() throws IOException {
-		if (Double.isNaN(durationYears))
-			durationYears = RSQSimFileReader.getDurationYears(getCatalogDir());
+		if (Double.isNaN(durationYears)) {
+			RSQSimEventIndex index = getExistingEventIndex();
+			if (index == null)
+				durationYears = RSQSimFileReader.getDurationYears(getCatalogDir());
+			else
+				durationYears = index.getDurationYears();
+		}
 		return durationYears;
 	}
 	
+	/**
+	 * @return event index if it has already been loaded or a current one exists on disk, otherwise null (never
+	 * builds or writes an index)
+	 * @throws IOException
+	 */
+	private synchronized RSQSimEventIndex getExistingEventIndex() throws IOException {
+		if (eventIndex == null && hasEventIndex())
+			eventIndex = RSQSimEventIndex.loadIfCurrent(getCatalogDir());
+		return eventIndex;
+	}
+	
+	/**
+	 * @return true if an event index file already exists for this catalog (it may still be stale)
+	 */
+	public boolean hasEventIndex() {
+		return RSQSimEventIndex.getIndexFile(getCatalogDir()).exists();
+	}
+	
+	/**
+	 * Event summary index for this catalog, which will be built and written to the catalog directory if it doesn't
+	 * already exist. Once built, loaders will use it to find matching events without reading the full list files.
+	 * 
+	 * @return event index
+	 * @throws IOException
+	 */
+	public synchronized RSQSimEventIndex getEventIndex() throws IOException {
+		if (eventIndex == null)
+			eventIndex = RSQSimEventIndex.loadOrBuild(getCatalogDir(), getElements(),
+					Runtime.getRuntime().availableProcessors());
+		return eventIndex;
+	}
+	
 	public synchronized Map<String, String> getParams() throws IOException {
 		if (params == null) {
 			File paramFile = getParamFile();
@@ -1517,6 +1560,15 @@ public class RSQSimCatalog implements XMLSaveable {
 		
 		private List<RuptureIdentifier> loadIdens;
 		
+		// for parallel loading: cheap bounds evaluated on raw records, and identifiers which depend on the order
+		// in which events are encountered (and are instead handled by the raw filter)
+		private int threads = 1;
+		private boolean useIndex = false;
+		private RSQSimParallelEventReader.RawEventFilter rawFilter = new RSQSimParallelEventReader.RawEventFilter();
+		private List<RuptureIdentifier> orderDependentIdens = new ArrayList<>();
+		// RSQSim section IDs from section identifiers, used to pre-filter events when an event index is available
+		private List<int[]> sectionFilters = new ArrayList<>();
+		
 		private Loader(List<SimulatorElement> elements, File catalogDir) {
 			super();
 			this.elements = elements;
@@ -1527,6 +1579,7 @@ public class RSQSimCatalog implements XMLSaveable {
 		
 		public Loader magRange(double minMag, double maxMag) {
 			loadIdens.add(new MagRangeRuptureIdentifier(minMag, maxMag));
+			rawFilter.magRange(minMag, maxMag);
 			return this;
 		}
 		
@@ -1544,18 +1597,26 @@ public class RSQSimCatalog implements XMLSaveable {
 		}
 		
 		public Loader skipYears(double years) {
-			if (years > 0)
-				loadIdens.add(new SkipYearsLoadIden(years));
+			if (years > 0) {
+				RuptureIdentifier iden = new SkipYearsLoadIden(years);
+				loadIdens.add(iden);
+				orderDependentIdens.add(iden);
+				rawFilter.skipYears(years);
+			}
 			return this;
 		}
 		
 		public Loader withinTimeRange(double tStartSecs, double tEndSecs) {
 			loadIdens.add(new EventTimeIdentifier(tStartSecs, tEndSecs, false));
+			rawFilter.timeRange(tStartSecs, tEndSecs);
 			return this;
 		}
 		
 		public Loader maxDuration(double years) {
-			loadIdens.add(new CatalogLengthLoadIden(years));
+			RuptureIdentifier iden = new CatalogLengthLoadIden(years);
+			loadIdens.add(iden);
+			orderDependentIdens.add(iden);
+			rawFilter.maxDuration(years);
 			return this;
 		}
 		
@@ -1597,6 +1658,7 @@ public class RSQSimCatalog implements XMLSaveable {
 				}
 			}
 			loadIdens.add(new SectionIDIden(XML_METADATA_NAME, getElements(), sectionIDs));
+			sectionFilters.add(sectionIDs);
 			return this;
 		}
 		
@@ -1613,20 +1675,85 @@ public class RSQSimCatalog implements XMLSaveable {
 		
 		public Loader maxEventID(int maxID) {
 			loadIdens.add(new EventIDsRangeIden(com.google.common.collect.Range.closed(Integer.MIN_VALUE, maxID)));
+			rawFilter.idRange(Integer.MIN_VALUE, maxID);
 			return this;
 		}
 		
 		public Loader minEventID(int minID) {
 			loadIdens.add(new EventIDsRangeIden(com.google.common.collect.Range.closed(minID, Integer.MAX_VALUE)));
+			rawFilter.idRange(minID, Integer.MAX_VALUE);
 			return this;
 		}
 		
 		public Loader forEventIDRange(com.google.common.collect.Range<Integer> range) {
 			loadIdens.add(new EventIDsRangeIden(range));
+			if (range.hasLowerBound() && range.hasUpperBound())
+				rawFilter.idRange(range.lowerEndpoint(), range.upperEndpoint());
+			else if (range.hasLowerBound())
+				rawFilter.idRange(range.lowerEndpoint(), Integer.MAX_VALUE);
+			else if (range.hasUpperBound())
+				rawFilter.idRange(Integer.MIN_VALUE, range.upperEndpoint());
+			return this;
+		}
+		
+		/**
+		 * Load events in parallel with the given number of threads. Records are decoded in parallel chunks and
+		 * magnitude, time, and event ID bounds are applied before events are built. Any custom identifiers supplied
+		 * via {@link #matches(RuptureIdentifier)} must not depend on the order in which events are encountered.
+		 * This has no effect on {@link #iterable()}.
+		 * 
+		 * @param threads
+		 * @return
+		 */
+		public Loader parallel(int threads) {
+			Preconditions.checkArgument(threads > 0);
+			this.threads = threads;
+			return this;
+		}
+		
+		/**
+		 * Use the event index (building it first if needed) to find candidate events and only read their records.
+		 * This has the same contract as {@link #parallel(int)}: custom identifiers must not depend on the order in
+		 * which events are encountered. Parallel loads also use the index if it has already been built, but
+		 * sequential loads never do unless this is called. This has no effect on {@link #iterable()}.
+		 * 
+		 * @return
+		 */
+		public Loader useIndex() {
+			this.useIndex = true;
 			return this;
 		}
 		
+		/**
+		 * Loads all matching events. Events are read sequentially with all identifiers applied in order, unless
+		 * {@link #parallel(int)} or {@link #useIndex()} was called.
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
 		public List<RSQSimEvent> load() throws IOException {
+			boolean indexed = catalogDir.equals(getCatalogDir()) && (useIndex || (threads > 1 && hasEventIndex()));
+			if (threads > 1 || indexed) {
+				List<RuptureIdentifier> idens = new ArrayList<>(loadIdens);
+				// skip years and max duration are handled by the raw filter, relative to the first event
+				idens.removeAll(orderDependentIdens);
+				RuptureIdentifier iden = idens.isEmpty() ? null : new LogicalAndRupIden(idens);
+				RSQSimParallelEventReader reader = new RSQSimParallelEventReader(catalogDir, elements, threads);
+				if (indexed) {
+					// find candidates from the index, then read only their records
+					RSQSimEventIndex index = getEventIndex();
+					int[] indexes = index.getMatchingIndexes(rawFilter, null);
+					for (int[] sectionIDs : sectionFilters) {
+						List<Integer> filtered = new ArrayList<>();
+						for (int i : indexes)
+							if (index.hasAnySection(i, sectionIDs))
+								filtered.add(i);
+						indexes = Ints.toArray(filtered);
+					}
+					return reader.readEvents(index, indexes, iden, skipSlipsAndTimes);
+				}
+				return reader.readEvents(rawFilter, iden, skipSlipsAndTimes);
+			}
 			LogicalAndRupIden loadIden = new LogicalAndRupIden(loadIdens);
 			List<RuptureIdentifier> rupIdens = new ArrayList<>();
 			rupIdens.add(loadIden);
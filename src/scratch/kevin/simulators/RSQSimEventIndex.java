@@ -0,0 +1,387 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.parsers.RSQSimFileReader;
+import org.opensha.sha.simulators.utils.General_EQSIM_Tools;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+/**
+ * On disk summary index of the events in an RSQSim catalog. For each event this stores the event ID, time (earliest
+ * patch time), magnitude, offset and number of records in the list files, participating section IDs and the
+ * hypocenter (center of the first patch to slip). It is built once with a single (parallel) pass over the list files
+ * and stored in the catalog directory, after which catalog metadata and event filtering can be done without reading
+ * the list files, and matching events can be read directly from their record offsets.
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimEventIndex {
+	
+	public static final String INDEX_FILE_NAME = "event_index.bin";
+	private static final int INDEX_VERSION = 2;
+	private static final int buffer_len = 655360;
+	
+	// list files that the index is built from, in order
+	private static final String[] LIST_EXTS = { "eList", "pList", "dList", "tList" };
+	
+	// length and modification time of each list file, used to detect stale indexes
+	private long[] listLengths = new long[LIST_EXTS.length];
+	private long[] listModified = new long[LIST_EXTS.length];
+	
+	private int[] ids;
+	private double[] times;
+	private double[] mags;
+	private long[] recordStarts;
+	private int[] recordCounts;
+	private double[] hypoLats;
+	private double[] hypoLons;
+	private double[] hypoDepths;
+	private int[] sectStarts; // length numEvents+1
+	private int[] sectIDs;
+	
+	private RSQSimEventIndex(int numEvents, int numSectIDs) {
+		ids = new int[numEvents];
+		times = new double[numEvents];
+		mags = new double[numEvents];
+		recordStarts = new long[numEvents];
+		recordCounts = new int[numEvents];
+		hypoLats = new double[numEvents];
+		hypoLons = new double[numEvents];
+		hypoDepths = new double[numEvents];
+		sectStarts = new int[numEvents+1];
+		sectIDs = new int[numSectIDs];
+	}
+	
+	/**
+	 * @param catalogDir
+	 * @return location of the index file for the given catalog directory
+	 */
+	public static File getIndexFile(File catalogDir) {
+		return new File(catalogDir, INDEX_FILE_NAME);
+	}
+	
+	/**
+	 * Loads the existing index for the given catalog if it is current, never building or writing one
+	 *
+	 * @param catalogDir
+	 * @return index, or null if it doesn't exist or is stale
+	 * @throws IOException
+	 */
+	public static RSQSimEventIndex loadIfCurrent(File catalogDir) throws IOException {
+		File indexFile = getIndexFile(catalogDir);
+		if (!indexFile.exists())
+			return null;
+		RSQSimEventIndex index = read(indexFile);
+		if (index == null || !index.isCurrent(catalogDir))
+			return null;
+		return index;
+	}
+	
+	/**
+	 * @param catalogDir
+	 * @return true if none of the list files have changed since this index was built
+	 */
+	private boolean isCurrent(File catalogDir) throws IOException {
+		for (int i=0; i<LIST_EXTS.length; i++) {
+			File listFile = RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]);
+			if (listFile == null || listLengths[i] != listFile.length() || listModified[i] != listFile.lastModified())
+				return false;
+		}
+		return true;
+	}
+	
+	private void setListFileStamps(File catalogDir) throws IOException {
+		for (int i=0; i<LIST_EXTS.length; i++) {
+			File listFile = RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]);
+			listLengths[i] = listFile.length();
+			listModified[i] = listFile.lastModified();
+		}
+	}
+	
+	/**
+	 * Loads the index for the given catalog, building and writing it first if it doesn't yet exist or is stale
+	 *
+	 * @param catalogDir
+	 * @param elements
+	 * @param threads number of threads to use if the index must be built
+	 * @return index
+	 * @throws IOException
+	 */
+	public static RSQSimEventIndex loadOrBuild(File catalogDir, List<SimulatorElement> elements, int threads)
+			throws IOException {
+		File indexFile = getIndexFile(catalogDir);
+		if (indexFile.exists()) {
+			RSQSimEventIndex index = read(indexFile);
+			if (index != null && index.isCurrent(catalogDir))
+				return index;
+			System.out.println("Event index is stale, rebuilding: "+indexFile.getAbsolutePath());
+		}
+		RSQSimEventIndex index = build(catalogDir, elements, threads);
+		try {
+			index.write(indexFile);
+		} catch (IOException e) {
+			// can still use it in memory, e.g. if the directory is read only
+			System.err.println("WARNING: couldn't write event index "+indexFile.getAbsolutePath()+": "+e.getMessage());
+		}
+		return index;
+	}
+	
+	/**
+	 * Builds an index for the given catalog with a single pass over the list files
+	 *
+	 * @param catalogDir
+	 * @param elements
+	 * @param threads
+	 * @return index
+	 * @throws IOException
+	 */
+	public static RSQSimEventIndex build(File catalogDir, List<SimulatorElement> elements, int threads)
+			throws IOException {
+		RSQSimParallelEventReader reader = new RSQSimParallelEventReader(catalogDir, elements, threads);
+		List<RSQSimParallelEventReader.IndexProcessor> chunks = reader.scanSummaries();
+		
+		int numEvents = 0;
+		int numSectIDs = 0;
+		for (RSQSimParallelEventReader.IndexProcessor chunk : chunks) {
+			numEvents += chunk.num;
+			for (int[] sects : chunk.sectionIDs)
+				numSectIDs += sects.length;
+		}
+		
+		RSQSimEventIndex index = new RSQSimEventIndex(numEvents, numSectIDs);
+		index.setListFileStamps(catalogDir);
+		int e = 0;
+		int s = 0;
+		for (RSQSimParallelEventReader.IndexProcessor chunk : chunks) {
+			for (int i=0; i<chunk.num; i++) {
+				index.ids[e] = chunk.ids[i];
+				index.times[e] = chunk.times[i];
+				index.mags[e] = chunk.mags[i];
+				index.recordStarts[e] = chunk.recordStarts[i];
+				index.recordCounts[e] = chunk.recordCounts[i];
+				Location hypo = elements.get(chunk.firstPatchIDs[i]-1).getCenterLocation();
+				index.hypoLats[e] = hypo.getLatitude();
+				index.hypoLons[e] = hypo.getLongitude();
+				index.hypoDepths[e] = hypo.getDepth();
+				index.sectStarts[e] = s;
+				for (int sectID : chunk.sectionIDs.get(i))
+					index.sectIDs[s++] = sectID;
+				e++;
+			}
+		}
+		index.sectStarts[numEvents] = s;
+		return index;
+	}
+	
+	/**
+	 * Reads an index from the given file
+	 *
+	 * @param indexFile
+	 * @return index, or null if the index file version doesn't match
+	 * @throws IOException
+	 */
+	public static RSQSimEventIndex read(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), buffer_len));
+		try {
+			int version = in.readInt();
+			if (version != INDEX_VERSION)
+				return null;
+			long[] listLengths = new long[LIST_EXTS.length];
+			long[] listModified = new long[LIST_EXTS.length];
+			for (int i=0; i<LIST_EXTS.length; i++) {
+				listLengths[i] = in.readLong();
+				listModified[i] = in.readLong();
+			}
+			int numEvents = in.readInt();
+			int numSectIDs = in.readInt();
+			RSQSimEventIndex index = new RSQSimEventIndex(numEvents, numSectIDs);
+			index.listLengths = listLengths;
+			index.listModified = listModified;
+			int s = 0;
+			for (int e=0; e<numEvents; e++) {
+				index.ids[e] = in.readInt();
+				index.times[e] = in.readDouble();
+				index.mags[e] = in.readDouble();
+				index.recordStarts[e] = in.readLong();
+				index.recordCounts[e] = in.readInt();
+				index.hypoLats[e] = in.readDouble();
+				index.hypoLons[e] = in.readDouble();
+				index.hypoDepths[e] = in.readDouble();
+				index.sectStarts[e] = s;
+				int numSects = in.readInt();
+				for (int i=0; i<numSects; i++)
+					index.sectIDs[s++] = in.readInt();
+			}
+			index.sectStarts[numEvents] = s;
+			Preconditions.checkState(s == numSectIDs, "Section ID count mismatch in event index");
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes this index to the given file
+	 *
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile), buffer_len));
+		out.writeInt(INDEX_VERSION);
+		for (int i=0; i<LIST_EXTS.length; i++) {
+			out.writeLong(listLengths[i]);
+			out.writeLong(listModified[i]);
+		}
+		out.writeInt(ids.length);
+		out.writeInt(sectIDs.length);
+		for (int e=0; e<ids.length; e++) {
+			out.writeInt(ids[e]);
+			out.writeDouble(times[e]);
+			out.writeDouble(mags[e]);
+			out.writeLong(recordStarts[e]);
+			out.writeInt(recordCounts[e]);
+			out.writeDouble(hypoLats[e]);
+			out.writeDouble(hypoLons[e]);
+			out.writeDouble(hypoDepths[e]);
+			out.writeInt(sectStarts[e+1] - sectStarts[e]);
+			for (int s=sectStarts[e]; s<sectStarts[e+1]; s++)
+				out.writeInt(sectIDs[s]);
+		}
+		out.close();
+	}
+	
+	public int getNumEvents() {
+		return ids.length;
+	}
+	
+	/**
+	 * @return duration of the catalog in years, from the first to the last event
+	 */
+	public double getDurationYears() {
+		if (ids.length == 0)
+			return 0d;
+		return (times[times.length-1] - times[0])/General_EQSIM_Tools.SECONDS_PER_YEAR;
+	}
+	
+	public int getID(int index) {
+		return ids[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return event time in seconds
+	 */
+	public double getTime(int index) {
+		return times[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return time of the following event in the catalog in seconds, or NaN if this is the last event
+	 */
+	public double getNextEventTime(int index) {
+		if (index == times.length-1)
+			return Double.NaN;
+		return times[index+1];
+	}
+	
+	public double getMag(int index) {
+		return mags[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return index of the first record for this event in the list files
+	 */
+	public long getRecordStart(int index) {
+		return recordStarts[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return number of records (slipping patches) for this event in the list files
+	 */
+	public int getNumRecords(int index) {
+		return recordCounts[index];
+	}
+	
+	public Location getHypocenter(int index) {
+		return new Location(hypoLats[index], hypoLons[index], hypoDepths[index]);
+	}
+	
+	/**
+	 * @param index
+	 * @return RSQSim section IDs which participate in this event
+	 */
+	public int[] getSectionIDs(int index) {
+		int[] ret = new int[sectStarts[index+1] - sectStarts[index]];
+		System.arraycopy(sectIDs, sectStarts[index], ret, 0, ret.length);
+		return ret;
+	}
+	
+	/**
+	 * @param index
+	 * @param sectionIDs
+	 * @return true if any of the given RSQSim section IDs participates in this event
+	 */
+	public boolean hasAnySection(int index, int[] sectionIDs) {
+		for (int s=sectStarts[index]; s<sectStarts[index+1]; s++)
+			if (Ints.contains(sectionIDs, sectIDs[s]))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Finds all events which pass the given filter (and optionally contain any of the given sections)
+	 *
+	 * @param filter
+	 * @param sectionIDs RSQSim section IDs, or null for no section filter
+	 * @return indexes of matching events, in catalog order
+	 */
+	public int[] getMatchingIndexes(RSQSimParallelEventReader.RawEventFilter filter, int[] sectionIDs) {
+		List<Integer> matches = new ArrayList<>();
+		double firstTime = times.length == 0 ? Double.NaN : times[0];
+		for (int e=0; e<ids.length; e++) {
+			if (filter != null && !filter.isMatch(ids[e], times[e], mags[e], firstTime))
+				continue;
+			if (sectionIDs != null && !hasAnySection(e, sectionIDs))
+				continue;
+			matches.add(e);
+		}
+		return Ints.toArray(matches);
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(RSQSimEventIndex.class)
+					+" <catalog-dir> <geometry-file> [<threads>]");
+			System.exit(2);
+		}
+		File catalogDir = new File(args[0]);
+		List<SimulatorElement> elements = RSQSimFileReader.readGeometryFile(new File(args[1]), 11, 'N');
+		int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		RSQSimEventIndex index = build(catalogDir, elements, threads);
+		File indexFile = getIndexFile(catalogDir);
+		index.write(indexFile);
+		System.out.println("Wrote index for "+index.getNumEvents()+" events ("+(float)index.getDurationYears()
+				+" years) to "+indexFile.getAbsolutePath());
+	}
+	
+}
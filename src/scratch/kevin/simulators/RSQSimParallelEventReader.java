@@ -0,0 +1,801 @@
+package scratch.kevin.simulators;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.calc.FaultMomentCalc;
+import org.opensha.commons.eq.MagUtils;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.RSQSimEventRecord;
+import org.opensha.sha.simulators.EventRecord;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.iden.LogicalAndRupIden;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.parsers.RSQSimFileReader;
+import org.opensha.sha.simulators.utils.General_EQSIM_Tools;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Parallel reader for RSQSim eList/pList/dList/tList binary event files. Each list file holds one value per
+ * (event, patch) record, with all records for a given event contiguous. The record range is split into chunks
+ * aligned on event boundaries which are decoded in parallel, and results are merged in event order.
+ * <br>
+ * Cheap predicates (see {@link RawEventFilter}) are evaluated at the raw record level, using the event ID, the event
+ * time (earliest patch time) and magnitude (computed from the total moment), so that RSQSimEvent objects are only
+ * built for events which can possibly match. Any additional identifier is then applied to the built events. Such
+ * identifiers must not depend on the order in which events are seen.
+ * <br>
+ * Events are built the same way as by the sequential {@link RSQSimFileReader}: one record per section, each with the
+ * event time (earliest patch time), and moment and area summed over its patches. Use {@link #main(String[])} (see
+ * {@link #checkAgainstSequential(File, List, int, int)}) to compare the two on a real catalog.
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimParallelEventReader {
+	
+	// number of records read at once by each thread
+	private static final int BLOCK_RECORDS = 1024*1024;
+	
+	private List<SimulatorElement> elements;
+	private File eListFile, pListFile, dListFile, tListFile;
+	private ByteOrder byteOrder;
+	private long numRecords;
+	private int threads;
+	
+	private double[] elemMoments; // moment per meter of slip, indexed by patch ID - 1
+	
+	private double firstEventTime = Double.NaN;
+	
+	public RSQSimParallelEventReader(File catalogDir, List<SimulatorElement> elements, int threads)
+			throws IOException {
+		Preconditions.checkArgument(threads > 0);
+		this.elements = elements;
+		this.threads = threads;
+		
+		eListFile = RSQSimFileReader.findByExt(catalogDir, "eList");
+		pListFile = RSQSimFileReader.findByExt(catalogDir, "pList");
+		dListFile = RSQSimFileReader.findByExt(catalogDir, "dList");
+		tListFile = RSQSimFileReader.findByExt(catalogDir, "tList");
+		
+		numRecords = eListFile.length()/4l;
+		Preconditions.checkState(pListFile.length() == numRecords*4l, "pList/eList length mismatch");
+		Preconditions.checkState(dListFile.length() == numRecords*8l, "dList/eList length mismatch");
+		Preconditions.checkState(tListFile.length() == numRecords*8l, "tList/eList length mismatch");
+		
+		// same byte order check as the sequential reader
+		byteOrder = RSQSimFileReader.isBigEndian(pListFile, elements) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		
+		elemMoments = new double[elements.size()];
+		for (int i=0; i<elemMoments.length; i++) {
+			SimulatorElement elem = elements.get(i);
+			Preconditions.checkState(elem.getID() == i+1, "Elements must be ordered by ID, starting at 1");
+			elemMoments[i] = FaultMomentCalc.getMoment(elem.getArea(), 1d);
+		}
+	}
+	
+	/**
+	 * Conservative event filter evaluated on raw records before events are built. Bounds are inclusive.
+	 */
+	public static class RawEventFilter {
+		
+		private double minMag = Double.NEGATIVE_INFINITY;
+		private double maxMag = Double.POSITIVE_INFINITY;
+		private double minTime = Double.NEGATIVE_INFINITY;
+		private double maxTime = Double.POSITIVE_INFINITY;
+		private int minID = Integer.MIN_VALUE;
+		private int maxID = Integer.MAX_VALUE;
+		private double skipYears = 0d;
+		private double maxDurationYears = Double.POSITIVE_INFINITY;
+		
+		public RawEventFilter magRange(double minMag, double maxMag) {
+			this.minMag = Math.max(this.minMag, minMag);
+			this.maxMag = Math.min(this.maxMag, maxMag);
+			return this;
+		}
+		
+		public RawEventFilter timeRange(double minTimeSecs, double maxTimeSecs) {
+			this.minTime = Math.max(this.minTime, minTimeSecs);
+			this.maxTime = Math.min(this.maxTime, maxTimeSecs);
+			return this;
+		}
+		
+		public RawEventFilter idRange(int minID, int maxID) {
+			this.minID = Math.max(this.minID, minID);
+			this.maxID = Math.min(this.maxID, maxID);
+			return this;
+		}
+		
+		/**
+		 * @param years skip events in the first given years of the catalog (relative to the first event)
+		 */
+		public RawEventFilter skipYears(double years) {
+			this.skipYears = Math.max(this.skipYears, years);
+			return this;
+		}
+		
+		/**
+		 * @param years skip events occurring more than the given years after the first event in the catalog
+		 */
+		public RawEventFilter maxDuration(double years) {
+			this.maxDurationYears = Math.min(this.maxDurationYears, years);
+			return this;
+		}
+		
+		boolean isIDMatch(int id) {
+			return id >= minID && id <= maxID;
+		}
+		
+		boolean isMatch(int id, double time, double mag, double firstEventTime) {
+			if (id < minID || id > maxID)
+				return false;
+			// small tolerance on magnitudes, precise check is done by the identifiers on the built event
+			if ((float)mag < (float)minMag || (float)mag > (float)maxMag)
+				return false;
+			if (time < minTime || time > maxTime)
+				return false;
+			double relYears = (time - firstEventTime)/General_EQSIM_Tools.SECONDS_PER_YEAR;
+			if (relYears < skipYears || relYears > maxDurationYears)
+				return false;
+			return true;
+		}
+	}
+	
+	public long getNumRecords() {
+		return numRecords;
+	}
+	
+	/**
+	 * @return time (seconds) of the first event in the catalog, taken as its earliest patch time
+	 * @throws IOException
+	 */
+	public synchronized double getFirstEventTime() throws IOException {
+		if (Double.isNaN(firstEventTime)) {
+			RecordBlockReader reader = new RecordBlockReader();
+			int firstID = -1;
+			double minTime = Double.POSITIVE_INFINITY;
+			long index = 0;
+			outer:
+			while (index < numRecords) {
+				int num = reader.read(index, (int)Math.min(BLOCK_RECORDS, numRecords - index), false);
+				for (int i=0; i<num; i++) {
+					int id = reader.eBuf.getInt(i*4);
+					if (firstID < 0)
+						firstID = id;
+					else if (id != firstID)
+						break outer;
+					minTime = Math.min(minTime, reader.tBuf.getDouble(i*8));
+				}
+				index += num;
+			}
+			reader.close();
+			firstEventTime = minTime;
+		}
+		return firstEventTime;
+	}
+	
+	/**
+	 * Splits the record range into approximately equal chunks whose boundaries fall between events
+	 *
+	 * @param numChunks
+	 * @return chunk boundaries (length numChunks+1 at most)
+	 * @throws IOException
+	 */
+	private long[] getAlignedBoundaries(int numChunks) throws IOException {
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(0l);
+		RandomAccessFile raf = new RandomAccessFile(eListFile, "r");
+		FileChannel channel = raf.getChannel();
+		ByteBuffer buf = ByteBuffer.allocate(4).order(byteOrder);
+		for (int c=1; c<numChunks; c++) {
+			long b = (long)((double)numRecords*c/(double)numChunks);
+			long prev = boundaries.get(boundaries.size()-1);
+			if (b <= prev)
+				continue;
+			int prevID = readInt(channel, buf, b-1);
+			// advance until the event ID changes
+			while (b < numRecords && readInt(channel, buf, b) == prevID)
+				b++;
+			if (b >= numRecords)
+				break;
+			boundaries.add(b);
+		}
+		raf.close();
+		boundaries.add(numRecords);
+		long[] ret = new long[boundaries.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = boundaries.get(i);
+		return ret;
+	}
+	
+	private static int readInt(FileChannel channel, ByteBuffer buf, long recordIndex) throws IOException {
+		buf.clear();
+		while (buf.hasRemaining())
+			Preconditions.checkState(channel.read(buf, recordIndex*4l + buf.position()) >= 0);
+		return buf.getInt(0);
+	}
+	
+	/**
+	 * Reads events in parallel
+	 *
+	 * @param filter raw filter, can be null
+	 * @param iden identifier applied to built events, can be null
+	 * @param skipSlipsAndTimes if true, per patch slip times will not be stored
+	 * @return matching events, in catalog order
+	 * @throws IOException
+	 */
+	public List<RSQSimEvent> readEvents(RawEventFilter filter, final RuptureIdentifier iden,
+			final boolean skipSlipsAndTimes) throws IOException {
+		if (filter == null)
+			filter = new RawEventFilter();
+		final RawEventFilter myFilter = filter;
+		final double firstTime = getFirstEventTime();
+		
+		List<EventBuildProcessor> results = processChunks(new ProcessorFactory<EventBuildProcessor>() {
+			
+			@Override
+			public EventBuildProcessor build() {
+				return new EventBuildProcessor(myFilter, firstTime, iden, skipSlipsAndTimes);
+			}
+		});
+		
+		// merge in order, setting the next event time for the last event in each chunk from the following chunk
+		List<RSQSimEvent> events = new ArrayList<>();
+		for (int c=0; c<results.size(); c++) {
+			EventBuildProcessor result = results.get(c);
+			if (result.lastEventMatched && c < results.size()-1) {
+				RSQSimEvent last = result.events.get(result.events.size()-1);
+				last.setNextEventTime(results.get(c+1).firstEventTime);
+			}
+			events.addAll(result.events);
+		}
+		return events;
+	}
+	
+	/**
+	 * Reads the given events directly from their record offsets (e.g. from an {@link RSQSimEventIndex}), in parallel
+	 *
+	 * @param index event index
+	 * @param eventIndexes indexes of events to read within the event index, in catalog order
+	 * @param iden identifier applied to built events, can be null
+	 * @param skipSlipsAndTimes if true, per patch slip times will not be stored
+	 * @return matching events, in catalog order
+	 * @throws IOException
+	 */
+	public List<RSQSimEvent> readEvents(final RSQSimEventIndex index, int[] eventIndexes, final RuptureIdentifier iden,
+			final boolean skipSlipsAndTimes) throws IOException {
+		// split into contiguous batches of similar numbers of records
+		long totRecords = 0l;
+		for (int eventIndex : eventIndexes)
+			totRecords += index.getNumRecords(eventIndex);
+		int numBatches = Math.min(eventIndexes.length, threads*4);
+		List<int[]> batches = new ArrayList<>();
+		int batchStart = 0;
+		long runningRecords = 0l;
+		for (int i=0; i<eventIndexes.length; i++) {
+			runningRecords += index.getNumRecords(eventIndexes[i]);
+			if (runningRecords >= (double)totRecords*(batches.size()+1)/(double)numBatches || i == eventIndexes.length-1) {
+				batches.add(Arrays.copyOfRange(eventIndexes, batchStart, i+1));
+				batchStart = i+1;
+			}
+		}
+		
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<List<RSQSimEvent>>> futures = new ArrayList<>();
+		for (final int[] batch : batches) {
+			futures.add(exec.submit(new Callable<List<RSQSimEvent>>() {
+				
+				@Override
+				public List<RSQSimEvent> call() throws Exception {
+					RecordBlockReader reader = new RecordBlockReader();
+					EventAccumulator acc = new EventAccumulator();
+					List<RSQSimEvent> events = new ArrayList<>();
+					for (int eventIndex : batch) {
+						long start = index.getRecordStart(eventIndex);
+						long end = start + index.getNumRecords(eventIndex);
+						acc.reset(index.getID(eventIndex), start);
+						for (long r=start; r<end;) {
+							int num = reader.read(r, (int)Math.min(BLOCK_RECORDS, end - r), false);
+							for (int i=0; i<num; i++) {
+								Preconditions.checkState(reader.eBuf.getInt(i*4) == acc.eventID,
+										"Event index is out of sync with the eList file");
+								int patchID = reader.pBuf.getInt(i*4);
+								acc.add(patchID, reader.dBuf.getDouble(i*8), reader.tBuf.getDouble(i*8),
+										elemMoments[patchID-1]);
+							}
+							r += num;
+						}
+						RSQSimEvent event = buildEvent(acc, null, Double.NaN, iden, skipSlipsAndTimes);
+						if (event != null) {
+							event.setNextEventTime(index.getNextEventTime(eventIndex));
+							events.add(event);
+						}
+					}
+					reader.close();
+					return events;
+				}
+			}));
+		}
+		
+		List<RSQSimEvent> events = new ArrayList<>();
+		try {
+			for (Future<List<RSQSimEvent>> future : futures)
+				events.addAll(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		return events;
+	}
+	
+	/**
+	 * Scans all events in parallel, computing summary information for an {@link RSQSimEventIndex} without building
+	 * any event objects
+	 *
+	 * @return list of per chunk summaries, in catalog order
+	 * @throws IOException
+	 */
+	List<IndexProcessor> scanSummaries() throws IOException {
+		return processChunks(new ProcessorFactory<IndexProcessor>() {
+			
+			@Override
+			public IndexProcessor build() {
+				return new IndexProcessor();
+			}
+		});
+	}
+	
+	private interface ProcessorFactory<E extends ChunkProcessor> {
+		public E build();
+	}
+	
+	/**
+	 * Processes each event in a chunk, in order, after all records for that event have been read
+	 */
+	private static abstract class ChunkProcessor {
+		protected double firstEventTime = Double.NaN;
+		
+		public void eventFinished(EventAccumulator acc) {
+			if (Double.isNaN(firstEventTime))
+				firstEventTime = acc.minTime;
+			processEvent(acc);
+		}
+		
+		/**
+		 * @param eventID
+		 * @return false if records for this event can be skipped entirely (will then not be processed)
+		 */
+		public boolean isIDMatch(int eventID) {
+			return true;
+		}
+		
+		protected abstract void processEvent(EventAccumulator acc);
+		
+		/**
+		 * Called after the last event in the chunk has been processed
+		 */
+		public void chunkFinished() {}
+	}
+	
+	private <E extends ChunkProcessor> List<E> processChunks(final ProcessorFactory<E> factory) throws IOException {
+		// more chunks than threads for load balancing
+		long[] boundaries = getAlignedBoundaries(threads*4);
+		
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<E>> futures = new ArrayList<>();
+		for (int c=0; c<boundaries.length-1; c++) {
+			final long start = boundaries[c];
+			final long end = boundaries[c+1];
+			futures.add(exec.submit(new Callable<E>() {
+				
+				@Override
+				public E call() throws Exception {
+					E processor = factory.build();
+					readChunk(start, end, processor);
+					return processor;
+				}
+			}));
+		}
+		
+		List<E> results = new ArrayList<>();
+		try {
+			for (Future<E> future : futures)
+				results.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		return results;
+	}
+	
+	/**
+	 * Builds events which pass the raw filter and identifier
+	 */
+	private class EventBuildProcessor extends ChunkProcessor {
+		private RawEventFilter filter;
+		private double firstTime;
+		private RuptureIdentifier iden;
+		private boolean skipSlipsAndTimes;
+		
+		private List<RSQSimEvent> events = new ArrayList<>();
+		private boolean lastEventMatched = false;
+		private RSQSimEvent prevMatch = null;
+		
+		public EventBuildProcessor(RawEventFilter filter, double firstTime, RuptureIdentifier iden,
+				boolean skipSlipsAndTimes) {
+			this.filter = filter;
+			this.firstTime = firstTime;
+			this.iden = iden;
+			this.skipSlipsAndTimes = skipSlipsAndTimes;
+		}
+		
+		@Override
+		public boolean isIDMatch(int eventID) {
+			return filter.isIDMatch(eventID);
+		}
+		
+		@Override
+		public void eventFinished(EventAccumulator acc) {
+			// the previous match's next event is the event immediately following it, even if skipped
+			if (prevMatch != null && Double.isNaN(prevMatch.getNextEventTime()))
+				prevMatch.setNextEventTime(acc.minTime);
+			super.eventFinished(acc);
+		}
+		
+		@Override
+		protected void processEvent(EventAccumulator acc) {
+			RSQSimEvent event = acc.num > 0 ? buildEvent(acc, filter, firstTime, iden, skipSlipsAndTimes) : null;
+			if (event != null) {
+				events.add(event);
+				prevMatch = event;
+			}
+			lastEventMatched = event != null;
+		}
+	}
+	
+	/**
+	 * Computes summary information for each event
+	 */
+	class IndexProcessor extends ChunkProcessor {
+		int num = 0;
+		int[] ids = new int[1000];
+		double[] times = new double[1000];
+		double[] mags = new double[1000];
+		long[] recordStarts = new long[1000];
+		int[] recordCounts = new int[1000];
+		int[] firstPatchIDs = new int[1000];
+		List<int[]> sectionIDs = new ArrayList<>();
+		
+		@Override
+		protected void processEvent(EventAccumulator acc) {
+			if (num == ids.length) {
+				int newLen = num*2;
+				ids = Arrays.copyOf(ids, newLen);
+				times = Arrays.copyOf(times, newLen);
+				mags = Arrays.copyOf(mags, newLen);
+				recordStarts = Arrays.copyOf(recordStarts, newLen);
+				recordCounts = Arrays.copyOf(recordCounts, newLen);
+				firstPatchIDs = Arrays.copyOf(firstPatchIDs, newLen);
+			}
+			ids[num] = acc.eventID;
+			times[num] = acc.minTime;
+			mags[num] = MagUtils.moment2Mag(acc.moment);
+			recordStarts[num] = acc.startRecord;
+			recordCounts[num] = acc.num;
+			firstPatchIDs[num] = acc.patchIDs[acc.firstPatchIndex];
+			List<Integer> sects = new ArrayList<>();
+			for (int i=0; i<acc.num; i++) {
+				Integer sectID = elements.get(acc.patchIDs[i]-1).getSectionID();
+				if (!sects.contains(sectID))
+					sects.add(sectID);
+			}
+			int[] sectArray = new int[sects.size()];
+			for (int i=0; i<sectArray.length; i++)
+				sectArray[i] = sects.get(i);
+			sectionIDs.add(sectArray);
+			num++;
+		}
+	}
+	
+	/**
+	 * Reads blocks of records from all four list files
+	 */
+	private class RecordBlockReader {
+		private RandomAccessFile eRAF, pRAF, dRAF, tRAF;
+		private ByteBuffer eBuf, pBuf, dBuf, tBuf;
+		
+		public RecordBlockReader() throws IOException {
+			eRAF = new RandomAccessFile(eListFile, "r");
+			pRAF = new RandomAccessFile(pListFile, "r");
+			dRAF = new RandomAccessFile(dListFile, "r");
+			tRAF = new RandomAccessFile(tListFile, "r");
+			eBuf = ByteBuffer.allocate(BLOCK_RECORDS*4).order(byteOrder);
+			pBuf = ByteBuffer.allocate(BLOCK_RECORDS*4).order(byteOrder);
+			dBuf = ByteBuffer.allocate(BLOCK_RECORDS*8).order(byteOrder);
+			tBuf = ByteBuffer.allocate(BLOCK_RECORDS*8).order(byteOrder);
+		}
+		
+		public int read(long startIndex, int num, boolean eventIDsOnly) throws IOException {
+			fill(eRAF.getChannel(), eBuf, startIndex*4l, num*4);
+			if (!eventIDsOnly) {
+				fill(pRAF.getChannel(), pBuf, startIndex*4l, num*4);
+				fill(dRAF.getChannel(), dBuf, startIndex*8l, num*8);
+				fill(tRAF.getChannel(), tBuf, startIndex*8l, num*8);
+			}
+			return num;
+		}
+		
+		private void fill(FileChannel channel, ByteBuffer buf, long pos, int len) throws IOException {
+			buf.clear();
+			buf.limit(len);
+			while (buf.hasRemaining()) {
+				int read = channel.read(buf, pos + buf.position());
+				Preconditions.checkState(read >= 0, "Unexpected end of file");
+			}
+		}
+		
+		public void close() throws IOException {
+			eRAF.close();
+			pRAF.close();
+			dRAF.close();
+			tRAF.close();
+		}
+	}
+	
+	/**
+	 * Growable primitive storage for the records of the event currently being decoded
+	 */
+	private static class EventAccumulator {
+		private int eventID;
+		private long startRecord;
+		private int num = 0;
+		private int[] patchIDs = new int[1000];
+		private double[] slips = new double[1000];
+		private double[] times = new double[1000];
+		private double moment = 0d;
+		private double minTime = Double.POSITIVE_INFINITY;
+		private int firstPatchIndex = -1;
+		
+		public void reset(int eventID, long startRecord) {
+			this.eventID = eventID;
+			this.startRecord = startRecord;
+			num = 0;
+			moment = 0d;
+			minTime = Double.POSITIVE_INFINITY;
+			firstPatchIndex = -1;
+		}
+		
+		public void add(int patchID, double slip, double time, double elemMoment) {
+			if (num == patchIDs.length) {
+				int newLen = num*2;
+				patchIDs = Arrays.copyOf(patchIDs, newLen);
+				slips = Arrays.copyOf(slips, newLen);
+				times = Arrays.copyOf(times, newLen);
+			}
+			patchIDs[num] = patchID;
+			slips[num] = slip;
+			times[num] = time;
+			moment += elemMoment*slip;
+			if (time < minTime) {
+				minTime = time;
+				firstPatchIndex = num;
+			}
+			num++;
+		}
+	}
+	
+	private void readChunk(long start, long end, ChunkProcessor processor) throws IOException {
+		RecordBlockReader reader = new RecordBlockReader();
+		EventAccumulator acc = new EventAccumulator();
+		boolean hasCurrent = false;
+		boolean curIDMatch = false;
+		
+		for (long index=start; index<end;) {
+			int num = (int)Math.min(BLOCK_RECORDS, end - index);
+			reader.read(index, num, false);
+			for (int i=0; i<num; i++) {
+				int eventID = reader.eBuf.getInt(i*4);
+				if (!hasCurrent || eventID != acc.eventID) {
+					if (hasCurrent)
+						// finish the previous event
+						processor.eventFinished(acc);
+					acc.reset(eventID, index+i);
+					hasCurrent = true;
+					curIDMatch = processor.isIDMatch(eventID);
+				}
+				double time = reader.tBuf.getDouble(i*8);
+				if (curIDMatch) {
+					int patchID = reader.pBuf.getInt(i*4);
+					acc.add(patchID, reader.dBuf.getDouble(i*8), time, elemMoments[patchID-1]);
+				} else {
+					// still need the event time
+					acc.minTime = Math.min(acc.minTime, time);
+				}
+			}
+			index += num;
+		}
+		if (hasCurrent)
+			processor.eventFinished(acc);
+		processor.chunkFinished();
+		reader.close();
+	}
+	
+	private RSQSimEvent buildEvent(EventAccumulator acc, RawEventFilter filter, double firstTime,
+			RuptureIdentifier iden, boolean skipSlipsAndTimes) {
+		double mag = MagUtils.moment2Mag(acc.moment);
+		if (filter != null && !filter.isMatch(acc.eventID, acc.minTime, mag, firstTime))
+			return null;
+		
+		// build one record per section
+		Map<Integer, RSQSimEventRecord> recordsMap = new HashMap<>();
+		List<RSQSimEventRecord> records = new ArrayList<>();
+		for (int i=0; i<acc.num; i++) {
+			int patchID = acc.patchIDs[i];
+			SimulatorElement elem = elements.get(patchID-1);
+			int sectionID = elem.getSectionID();
+			RSQSimEventRecord rec = recordsMap.get(sectionID);
+			if (rec == null) {
+				rec = new RSQSimEventRecord(elements);
+				rec.setID(acc.eventID);
+				rec.setSectionID(sectionID);
+				rec.setTime(acc.minTime);
+				rec.setMagnitude(mag);
+				recordsMap.put(sectionID, rec);
+				records.add(rec);
+			}
+			if (skipSlipsAndTimes)
+				rec.addSlip(patchID, acc.slips[i]);
+			else
+				rec.addSlip(patchID, acc.slips[i], acc.times[i]);
+			rec.setMoment(rec.getMoment() + elemMoments[patchID-1]*acc.slips[i]);
+			rec.setArea(rec.getArea() + elem.getArea());
+			if (i == acc.firstPatchIndex)
+				rec.setFirstPatchToSlip(patchID);
+		}
+		RSQSimEvent event = new RSQSimEvent(records);
+		event.setNextEventTime(Double.NaN);
+		if (iden != null && !iden.isMatch(event))
+			return null;
+		return event;
+	}
+	
+	/**
+	 * Compares the first events in the given catalog as read by the sequential {@link RSQSimFileReader} with those
+	 * read in parallel, both by scanning the list files and from an event index (built in memory, not written).
+	 * Event IDs, times, magnitudes, moments, areas and each section record (section ID, time, moment, area, first
+	 * patch, and patch IDs, slips and times) are compared.
+	 *
+	 * @param catalogDir
+	 * @param elements
+	 * @param threads
+	 * @param maxEvents maximum number of events to compare
+	 * @return number of events which didn't match
+	 * @throws IOException
+	 */
+	public static int checkAgainstSequential(File catalogDir, List<SimulatorElement> elements, int threads,
+			int maxEvents) throws IOException {
+		List<RuptureIdentifier> rupIdens = new ArrayList<>();
+		rupIdens.add(new LogicalAndRupIden(new ArrayList<RuptureIdentifier>()));
+		List<RSQSimEvent> sequential = new ArrayList<>();
+		for (RSQSimEvent event : RSQSimFileReader.getEventsIterable(catalogDir, elements, rupIdens, false)) {
+			sequential.add(event);
+			if (sequential.size() == maxEvents)
+				break;
+		}
+		Preconditions.checkState(!sequential.isEmpty(), "No events found");
+		
+		RSQSimParallelEventReader reader = new RSQSimParallelEventReader(catalogDir, elements, threads);
+		List<RSQSimEvent> scanned = reader.readEvents(new RawEventFilter().idRange(
+				sequential.get(0).getID(), sequential.get(sequential.size()-1).getID()), null, false);
+		
+		RSQSimEventIndex index = RSQSimEventIndex.build(catalogDir, elements, threads);
+		int[] eventIndexes = new int[sequential.size()];
+		for (int i=0; i<eventIndexes.length; i++)
+			eventIndexes[i] = i;
+		List<RSQSimEvent> indexed = reader.readEvents(index, eventIndexes, null, false);
+		
+		int numMismatches = 0;
+		for (int i=0; i<sequential.size(); i++) {
+			RSQSimEvent expected = sequential.get(i);
+			String scanDiff = i < scanned.size() ? compareEvents(expected, scanned.get(i)) : "missing";
+			String indexDiff = i < indexed.size() ? compareEvents(expected, indexed.get(i)) : "missing";
+			if (scanDiff != null || indexDiff != null) {
+				if (numMismatches < 10)
+					System.out.println("Event "+expected.getID()+" mismatch. Scanned: "+scanDiff+", indexed: "+indexDiff);
+				numMismatches++;
+			}
+		}
+		if (scanned.size() != sequential.size())
+			System.out.println("Scanned "+scanned.size()+" events, expected "+sequential.size());
+		return numMismatches;
+	}
+	
+	/**
+	 * @return description of the first difference between the given events, or null if they match
+	 */
+	private static String compareEvents(RSQSimEvent expected, RSQSimEvent actual) {
+		if (expected.getID() != actual.getID())
+			return "ID "+actual.getID()+" != "+expected.getID();
+		if (expected.getTime() != actual.getTime())
+			return "time "+actual.getTime()+" != "+expected.getTime();
+		if (!closeTo(expected.getMagnitude(), actual.getMagnitude()))
+			return "mag "+actual.getMagnitude()+" != "+expected.getMagnitude();
+		if (!closeTo(expected.getArea(), actual.getArea()))
+			return "area "+actual.getArea()+" != "+expected.getArea();
+		List<EventRecord> expectedRecs = new ArrayList<>();
+		for (EventRecord rec : expected)
+			expectedRecs.add(rec);
+		List<EventRecord> actualRecs = new ArrayList<>();
+		for (EventRecord rec : actual)
+			actualRecs.add(rec);
+		if (expectedRecs.size() != actualRecs.size())
+			return actualRecs.size()+" records != "+expectedRecs.size();
+		double expectedMoment = 0d;
+		double actualMoment = 0d;
+		for (int i=0; i<expectedRecs.size(); i++) {
+			EventRecord e = expectedRecs.get(i);
+			EventRecord a = actualRecs.get(i);
+			expectedMoment += e.getMoment();
+			actualMoment += a.getMoment();
+			if (e.getSectionID() != a.getSectionID())
+				return "record "+i+" section "+a.getSectionID()+" != "+e.getSectionID();
+			if (e.getTime() != a.getTime())
+				return "record "+i+" time "+a.getTime()+" != "+e.getTime();
+			if (!closeTo(e.getMoment(), a.getMoment()))
+				return "record "+i+" moment "+a.getMoment()+" != "+e.getMoment();
+			if (!closeTo(e.getArea(), a.getArea()))
+				return "record "+i+" area "+a.getArea()+" != "+e.getArea();
+			if (((RSQSimEventRecord)e).getFirstPatchToSlip() != ((RSQSimEventRecord)a).getFirstPatchToSlip())
+				return "record "+i+" first patch "+((RSQSimEventRecord)a).getFirstPatchToSlip()
+						+" != "+((RSQSimEventRecord)e).getFirstPatchToSlip();
+			if (!Arrays.equals(e.getElementIDs(), a.getElementIDs()))
+				return "record "+i+" patch IDs differ";
+			if (!Arrays.equals(e.getElementSlips(), a.getElementSlips()))
+				return "record "+i+" slips differ";
+			if (!Arrays.equals(e.getElementTimeFirstSlips(), a.getElementTimeFirstSlips()))
+				return "record "+i+" patch times differ";
+		}
+		if (!closeTo(expectedMoment, actualMoment))
+			return "moment "+actualMoment+" != "+expectedMoment;
+		return null;
+	}
+	
+	private static boolean closeTo(double expected, double actual) {
+		return Math.abs(expected - actual) <= 1e-10*Math.max(Math.abs(expected), Math.abs(actual));
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 4) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(RSQSimParallelEventReader.class)
+					+" <catalog-dir> <geometry-file> [<threads> [<max-events>]]");
+			System.exit(2);
+		}
+		File catalogDir = new File(args[0]);
+		List<SimulatorElement> elements = RSQSimFileReader.readGeometryFile(new File(args[1]), 11, 'N');
+		int threads = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int maxEvents = args.length == 4 ? Integer.parseInt(args[3]) : 100000;
+		int numMismatches = checkAgainstSequential(catalogDir, elements, threads, maxEvents);
+		System.out.println(numMismatches+" mismatches");
+		System.exit(numMismatches == 0 ? 0 : 1);
+	}
+	
+}
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
 import org.opensha.sha.simulators.SimulatorEvent;
@@ -46,6 +47,19 @@ public class RandomCatalogBuilder {
 		public static List<SimulatorEvent> getRandomResampledCatalog(
 				List<? extends SimulatorEvent> events, List<? extends RuptureIdentifier> rupIdens,
 				RandomDistType distType, boolean splitMultis, int lengthMult) {
+			return getRandomResampledCatalog(events, rupIdens, distType, splitMultis, lengthMult, null);
+		}
+		
+		/**
+		 * Randomized catalog using the given random number generator, which makes the result reproducible for
+		 * a given seed. A non null random number generator is currently only supported for
+		 * {@link RandomDistType#ACTUAL}.
+		 */
+		public static List<SimulatorEvent> getRandomResampledCatalog(
+				List<? extends SimulatorEvent> events, List<? extends RuptureIdentifier> rupIdens,
+				RandomDistType distType, boolean splitMultis, int lengthMult, Random r) {
+			Preconditions.checkArgument(r == null || distType == RandomDistType.ACTUAL,
+					"Seeded randomization only supported for %s", RandomDistType.ACTUAL);
 			System.out.println("Generating randomized catalog. DistType: "+distType.getName());
 			
 			int numRupIdens = rupIdens.size();
@@ -202,7 +216,7 @@ public class RandomCatalogBuilder {
 						eventsToResample.addAll(origEventsToResample);
 				}
 				eventListsToResample.add(eventsToResample);
-				randomRPsList.add(RandomCatalogBuilder.getReturnPeriodProvider(rupIdens.get(i), distType, events, rps, totTime));
+				randomRPsList.add(RandomCatalogBuilder.getReturnPeriodProvider(rupIdens.get(i), distType, events, rps, totTime, r));
 			}
 			
 			for (int i=0; i<multiEvents.size(); i++) {
@@ -216,10 +230,11 @@ public class RandomCatalogBuilder {
 						eventsToResample.addAll(origEventsToResample);
 				}
 				eventListsToResample.add(eventsToResample);
-				randomRPsList.add(RandomCatalogBuilder.getReturnPeriodProvider(null, distType, events, rps, totTime));
+				randomRPsList.add(RandomCatalogBuilder.getReturnPeriodProvider(null, distType, events, rps, totTime, r));
 			}
 			
-			List<SimulatorEvent> newList = distType.getBuilder().buildCatalog(
+			CatalogBuilder builder = r == null ? distType.getBuilder() : new StandardCatalogBuilder(r);
+			List<SimulatorEvent> newList = builder.buildCatalog(
 					events, randomRPsList, eventListsToResample, lengthMult <= 1);
 			int maxEventID = 0;
 			for (SimulatorEvent e : newList)
@@ -252,11 +267,20 @@ public class RandomCatalogBuilder {
 
 	public static RandomReturnPeriodProvider getReturnPeriodProvider(
 			RuptureIdentifier rupIden, RandomDistType distType, List<? extends SimulatorEvent> events, double[] rps, double totTime) {
+		return getReturnPeriodProvider(rupIden, distType, events, rps, totTime, null);
+	}
+	
+	private static RandomReturnPeriodProvider getReturnPeriodProvider(
+			RuptureIdentifier rupIden, RandomDistType distType, List<? extends SimulatorEvent> events, double[] rps,
+			double totTime, Random r) {
 		if (rps.length == 0) {
 			rps = new double[1];
 			rps[0] = totTime;
-			return new ActualDistReturnPeriodProvider(rps);
+			return new ActualDistReturnPeriodProvider(rps, r);
 		}
+		if (r != null)
+			// only ACTUAL is supported with a random number generator, checked above
+			return new ActualDistReturnPeriodProvider(rps, r);
 		return distType.instance(rupIden, rps, events);
 	}
 
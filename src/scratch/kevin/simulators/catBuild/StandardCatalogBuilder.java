@@ -2,6 +2,7 @@ package scratch.kevin.simulators.catBuild;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.iden.EventsInWindowsMatcher;
@@ -12,6 +13,19 @@ import scratch.kevin.simulators.dists.RandomReturnPeriodProvider;
 import com.google.common.collect.Lists;
 
 public class StandardCatalogBuilder implements CatalogBuilder {
+	
+	private Random r;
+	
+	public StandardCatalogBuilder() {
+		this(null);
+	}
+	
+	/**
+	 * @param r random number generator for start times, or null to use Math.random()
+	 */
+	public StandardCatalogBuilder(Random r) {
+		this.r = r;
+	}
 
 	@Override
 	public List<SimulatorEvent> buildCatalog(
@@ -25,7 +39,7 @@ public class StandardCatalogBuilder implements CatalogBuilder {
 		for (int i=0; i<eventListsToResample.size(); i++) {
 			RandomReturnPeriodProvider randomRP = randomRPsList.get(i);
 			// start at a random interval through the first RP
-			double time = Math.random() * randomRP.getReturnPeriod();
+			double time = (r == null ? Math.random() : r.nextDouble()) * randomRP.getReturnPeriod();
 			for (SimulatorEvent e : eventListsToResample.get(i)) {
 				double timeSecs = time * General_EQSIM_Tools.SECONDS_PER_YEAR;
 				SimulatorEvent newE = e.cloneNewTime(timeSecs, eventID++);
@@ -3,6 +3,7 @@ package scratch.kevin.simulators.dists;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import com.google.common.primitives.Doubles;
 
@@ -12,9 +13,20 @@ public class ActualDistReturnPeriodProvider implements RandomReturnPeriodProvide
 	private double[] random_rps;
 	
 	public ActualDistReturnPeriodProvider(double[] rps) {
+		this(rps, null);
+	}
+	
+	/**
+	 * @param rps
+	 * @param r random number generator for the shuffle, or null to use the default
+	 */
+	public ActualDistReturnPeriodProvider(double[] rps, Random r) {
 		random_rps = Arrays.copyOf(rps, rps.length);
 		List<Double> randomized = Doubles.asList(random_rps);
-		Collections.shuffle(randomized);
+		if (r == null)
+			Collections.shuffle(randomized);
+		else
+			Collections.shuffle(randomized, r);
 		random_rps = Doubles.toArray(randomized);
 	}
 
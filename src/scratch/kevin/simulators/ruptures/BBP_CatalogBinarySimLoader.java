@@ -0,0 +1,218 @@
+package scratch.kevin.simulators.ruptures;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.utils.RSQSimUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+
+import scratch.kevin.bbp.BBP_BinarySimArchive;
+import scratch.kevin.bbp.BBP_SimZipLoader;
+import scratch.kevin.bbp.BBP_Site;
+import scratch.kevin.simCompare.SimulationRotDProvider;
+
+/**
+ * Equivalent of {@link BBP_CatalogSimZipLoader} backed by a memory mapped {@link BBP_BinarySimArchive} rather than
+ * the results zip file. Results are read directly from the mapped file on each request, so no caching is needed.
+ * Use {@link #convert(File, List, File)} (or the main method) to convert a results zip file once.
+ *
+ * @author kevin
+ *
+ */
+public class BBP_CatalogBinarySimLoader implements SimulationRotDProvider<RSQSimEvent> {
+	
+	private BBP_BinarySimArchive archive;
+	private Map<Site, BBP_Site> gmpeToBBP;
+	private Map<Integer, RSQSimEvent> eventsMap;
+	private double durationYears;
+	
+	public BBP_CatalogBinarySimLoader(File archiveFile, BiMap<BBP_Site, Site> gmpeSites,
+			Map<Integer, RSQSimEvent> eventsMap) throws IOException {
+		this(new BBP_BinarySimArchive(archiveFile), gmpeSites, eventsMap);
+	}
+	
+	public BBP_CatalogBinarySimLoader(BBP_BinarySimArchive archive, BiMap<BBP_Site, Site> gmpeSites,
+			Map<Integer, RSQSimEvent> eventsMap) {
+		this.archive = archive;
+		this.eventsMap = eventsMap;
+		double minTime = Double.POSITIVE_INFINITY;
+		double maxTime = Double.NEGATIVE_INFINITY;
+		for (RSQSimEvent event : eventsMap.values()) {
+			double t = event.getTimeInYears();
+			minTime = Math.min(minTime, t);
+			maxTime = Math.max(maxTime, t);
+		}
+		durationYears = maxTime - minTime;
+		gmpeToBBP = gmpeSites.inverse();
+	}
+	
+	/**
+	 * Converts a catalog BBP results zip file to a binary archive
+	 *
+	 * @param zipFile
+	 * @param sites
+	 * @param archiveFile
+	 * @throws IOException
+	 */
+	public static void convert(File zipFile, List<BBP_Site> sites, File archiveFile) throws IOException {
+		BBP_SimZipLoader loader = new BBP_SimZipLoader(new ZipFile(zipFile), sites);
+		BBP_BinarySimArchive.convert(loader, sites, archiveFile);
+	}
+	
+	private static String getDirName(int eventID) {
+		return "event_"+eventID;
+	}
+	
+	private static int getEventID(String dirName) {
+		Preconditions.checkState(dirName.startsWith("event_"));
+		return Integer.parseInt(dirName.substring("event_".length()));
+	}
+	
+	private BBP_Site getBBPSite(Site site) {
+		BBP_Site bbpSite = gmpeToBBP.get(site);
+		Preconditions.checkNotNull(bbpSite, "No mapping for site %s", site.getName());
+		return bbpSite;
+	}
+	
+	public BBP_BinarySimArchive getArchive() {
+		return archive;
+	}
+	
+	public boolean contains(BBP_Site site, int eventID) {
+		return archive.contains(site, getDirName(eventID));
+	}
+	
+	public Collection<Integer> getEventIDs(BBP_Site site) {
+		Collection<String> dirNames = archive.getDirNames(site);
+		List<Integer> ids = new ArrayList<>(dirNames.size());
+		for (String dirName : dirNames) {
+			if (!dirName.contains("rup_gen")) {
+				int eventID = getEventID(dirName);
+				if (eventsMap.containsKey(eventID))
+					ids.add(eventID);
+			}
+		}
+		return ids;
+	}
+	
+	@Override
+	public DiscretizedFunc getRotD50(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		return archive.readRotD50(getBBPSite(site), getDirName(rupture.getID()));
+	}
+	
+	@Override
+	public DiscretizedFunc getRotD100(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		return archive.readRotD100(getBBPSite(site), getDirName(rupture.getID()));
+	}
+	
+	@Override
+	public DiscretizedFunc[] getRotD(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		return archive.readRotD(getBBPSite(site), getDirName(rupture.getID()));
+	}
+	
+	@Override
+	public DiscretizedFunc getRotDRatio(Site site, RSQSimEvent rupture, int index) throws IOException {
+		return SimulationRotDProvider.calcRotDRatio(getRotD(site, rupture, index));
+	}
+	
+	@Override
+	public double getPGV(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		return archive.readRotD50PGV(getBBPSite(site), getDirName(rupture.getID()));
+	}
+	
+	@Override
+	public double getDuration(Site site, RSQSimEvent rupture, DurationTimeInterval interval, int index)
+			throws IOException {
+		Preconditions.checkState(index == 0);
+		return archive.readDuration(getBBPSite(site), getDirName(rupture.getID()), interval, 3); // 3 is geo mean
+	}
+	
+	@Override
+	public int getNumSimulations(Site site, RSQSimEvent rupture) {
+		Preconditions.checkNotNull(site, "Site is null");
+		Preconditions.checkNotNull(rupture, "Rupture is null");
+		if (contains(getBBPSite(site), rupture.getID()))
+			return 1;
+		return 0;
+	}
+	
+	@Override
+	public Location getHypocenter(RSQSimEvent rupture, int index) {
+		return RSQSimUtils.getHypocenter(rupture);
+	}
+	
+	@Override
+	public Collection<RSQSimEvent> getRupturesForSite(Site site) {
+		List<RSQSimEvent> events = new ArrayList<>();
+		for (Integer id : getEventIDs(getBBPSite(site)))
+			events.add(eventsMap.get(id));
+		return events;
+	}
+	
+	@Override
+	public boolean hasRotD50() {
+		return archive.hasRotD50();
+	}
+	
+	@Override
+	public boolean hasRotD100() {
+		return archive.hasRotD100();
+	}
+	
+	@Override
+	public boolean hasPGV() {
+		return archive.hasPGV();
+	}
+	
+	@Override
+	public boolean hasDurations() {
+		return archive.hasDurations();
+	}
+	
+	@Override
+	public double getAnnualRate(RSQSimEvent rupture) {
+		return 1d/durationYears;
+	}
+	
+	@Override
+	public double getMinimumCurvePlotRate(Site site) {
+		return getAnnualRate(null);
+	}
+	
+	@Override
+	public double getMagnitude(RSQSimEvent rupture) {
+		return rupture.getMagnitude();
+	}
+	
+	@Override
+	public String getName() {
+		return "RSQSim-BBP";
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(BBP_CatalogBinarySimLoader.class)
+					+" <results.zip> <sites-file> <output-file>");
+			System.exit(2);
+		}
+		convert(new File(args[0]), BBP_Site.readFile(new File(args[1])), new File(args[2]));
+	}
+	
+}
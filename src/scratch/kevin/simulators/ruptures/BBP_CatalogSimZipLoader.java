@@ -6,20 +6,24 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
 import org.opensha.sha.simulators.RSQSimEvent;
 import org.opensha.sha.simulators.utils.RSQSimUtils;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import scratch.kevin.bbp.BBP_SimZipLoader;
 import scratch.kevin.bbp.BBP_Site;
@@ -32,11 +36,17 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 	private Map<Integer, RSQSimEvent> eventsMap;
 	private double durationYears;
 	
-	private Table<Integer, BBP_Site, DiscretizedFunc> rd50Table;
-	private Table<Integer, Site, DiscretizedFunc> rdRatioTable;
-	private Table<Integer, BBP_Site, DiscretizedFunc[]> rdTable;
-	private Table<Integer, BBP_Site, double[]> rdPGVTable;
-	private Table<Integer, BBP_Site, Map<DurationTimeInterval, double[]>> durationTable;
+	/**
+	 * Default maximum number of cached (event, site) results per type
+	 */
+	public static final int DEFAULT_MAX_CACHE_SIZE = 200000;
+	
+	private Cache<EventSiteKey<BBP_Site>, DiscretizedFunc> rd50Cache;
+	private Cache<EventSiteKey<Site>, DiscretizedFunc> rdRatioCache;
+	private Cache<EventSiteKey<BBP_Site>, DiscretizedFunc[]> rdCache;
+	private Cache<EventSiteKey<BBP_Site>, double[]> rdPGVCache;
+	private Cache<EventSiteKey<BBP_Site>, Map<DurationTimeInterval, double[]>> durationCache;
+	private Cache<EventSiteKey<BBP_Site>, DiscretizedFunc[]> rd50RupGenCache;
 	
 	public BBP_CatalogSimZipLoader(File file, List<BBP_Site> sites, BiMap<BBP_Site, Site> gmpeSites,
 			Map<Integer, RSQSimEvent> eventsMap) throws ZipException, IOException {
@@ -45,6 +55,21 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 	
 	public BBP_CatalogSimZipLoader(ZipFile zip, List<BBP_Site> sites, BiMap<BBP_Site, Site> gmpeSites,
 			Map<Integer, RSQSimEvent> eventsMap) throws ZipException, IOException {
+		this(zip, sites, gmpeSites, eventsMap, DEFAULT_MAX_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param zip
+	 * @param sites
+	 * @param gmpeSites
+	 * @param eventsMap
+	 * @param maxCacheSize maximum number of (event, site) results to cache for each result type, least recently
+	 * used results are evicted beyond this
+	 * @throws ZipException
+	 * @throws IOException
+	 */
+	public BBP_CatalogSimZipLoader(ZipFile zip, List<BBP_Site> sites, BiMap<BBP_Site, Site> gmpeSites,
+			Map<Integer, RSQSimEvent> eventsMap, int maxCacheSize) throws ZipException, IOException {
 		super(zip, sites);
 		this.gmpeSites = gmpeSites;
 		this.eventsMap = eventsMap;
@@ -57,15 +82,66 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 		}
 		durationYears = maxTime - minTime;
 		gmpeToBBP = gmpeSites.inverse();
-		rd50Table = HashBasedTable.create();
+		rd50Cache = buildCache(maxCacheSize);
 		if (hasRotD100()) {
-			rdTable = HashBasedTable.create();
-			rdRatioTable = HashBasedTable.create();
+			rdCache = buildCache(maxCacheSize);
+			rdRatioCache = buildCache(maxCacheSize);
 		}
 		if (hasPGV())
-			rdPGVTable = HashBasedTable.create();
+			rdPGVCache = buildCache(maxCacheSize);
 		if (hasDurations())
-			durationTable = HashBasedTable.create();
+			durationCache = buildCache(maxCacheSize);
+		rd50RupGenCache = buildCache(maxCacheSize);
+	}
+	
+	/*
+	 * Guava caches are split into independently locked segments, and only block concurrent loads of the same key,
+	 * so misses for different (event, site) pairs are parsed in parallel
+	 */
+	private static <K, V> Cache<K, V> buildCache(int maxCacheSize) {
+		return CacheBuilder.newBuilder().maximumSize(maxCacheSize)
+				.concurrencyLevel(Runtime.getRuntime().availableProcessors()).build();
+	}
+	
+	private static class EventSiteKey<S> {
+		private final int eventID;
+		private final S site;
+		
+		public EventSiteKey(int eventID, S site) {
+			this.eventID = eventID;
+			this.site = site;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31*eventID + site.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof EventSiteKey))
+				return false;
+			EventSiteKey<?> other = (EventSiteKey<?>)obj;
+			return eventID == other.eventID && site.equals(other.site);
+		}
+	}
+	
+	private static <V> V getCached(Cache<EventSiteKey<BBP_Site>, V> cache, int eventID, BBP_Site site,
+			Callable<V> loader) throws IOException {
+		return getCached(cache, new EventSiteKey<>(eventID, site), loader);
+	}
+	
+	private static <K, V> V getCached(Cache<K, V> cache, K key, Callable<V> loader) throws IOException {
+		try {
+			return cache.get(key, loader);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		}
 	}
 	
 	private static String getDirName(int eventID) {
@@ -81,58 +157,46 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 		return contains(site, getDirName(eventID));
 	}
 	
-	public DiscretizedFunc readRotD50(BBP_Site site, int eventID) throws IOException {
-		if (rdTable != null)
+	public DiscretizedFunc readRotD50(final BBP_Site site, final int eventID) throws IOException {
+		if (rdCache != null)
 			return readRotD(site, eventID)[0];
-		if (rd50Table.contains(eventID, site))
-			return rd50Table.get(eventID, site);
-		synchronized (rd50Table) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rd50Table.contains(eventID, site))
-				return rd50Table.get(eventID, site);
-			DiscretizedFunc spectra = readRotD50(site, getDirName(eventID));
-			rd50Table.put(eventID, site, spectra);
-			return spectra;
-		}
+		return getCached(rd50Cache, eventID, site, new Callable<DiscretizedFunc>() {
+
+			@Override
+			public DiscretizedFunc call() throws Exception {
+				return readRotD50(site, getDirName(eventID));
+			}
+		});
 	}
 	
-	public DiscretizedFunc[] readRotD(BBP_Site site, int eventID) throws IOException {
-		if (rdTable.contains(eventID, site))
-			return rdTable.get(eventID, site);
-		synchronized (rdTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rdTable.contains(eventID, site))
-				return rdTable.get(eventID, site);
-			DiscretizedFunc[] spectras = readRotD(site, getDirName(eventID));
-			rdTable.put(eventID, site, spectras);
-			return spectras;
-		}
+	public DiscretizedFunc[] readRotD(final BBP_Site site, final int eventID) throws IOException {
+		return getCached(rdCache, eventID, site, new Callable<DiscretizedFunc[]>() {
+
+			@Override
+			public DiscretizedFunc[] call() throws Exception {
+				return readRotD(site, getDirName(eventID));
+			}
+		});
 	}
 	
-	public double[] readPGV(BBP_Site site, int eventID) throws IOException {
-		if (rdPGVTable.contains(eventID, site))
-			return rdPGVTable.get(eventID, site);
-		synchronized (rdPGVTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rdPGVTable.contains(eventID, site))
-				return rdPGVTable.get(eventID, site);
-			double[] vals = readPGV(site, getDirName(eventID));
-			rdPGVTable.put(eventID, site, vals);
-			return vals;
-		}
+	public double[] readPGV(final BBP_Site site, final int eventID) throws IOException {
+		return getCached(rdPGVCache, eventID, site, new Callable<double[]>() {
+
+			@Override
+			public double[] call() throws Exception {
+				return readPGV(site, getDirName(eventID));
+			}
+		});
 	}
 	
-	public Map<DurationTimeInterval, double[]> readDurations(BBP_Site site, int eventID) throws IOException {
-		if (durationTable.contains(eventID, site))
-			return durationTable.get(eventID, site);
-		synchronized (durationTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (durationTable.contains(eventID, site))
-				return durationTable.get(eventID, site);
-			Map<DurationTimeInterval, double[]> durations = readDurations(site, getDirName(eventID));
-			durationTable.put(eventID, site, durations);
-			return durations;
-		}
+	public Map<DurationTimeInterval, double[]> readDurations(final BBP_Site site, final int eventID) throws IOException {
+		return getCached(durationCache, eventID, site, new Callable<Map<DurationTimeInterval, double[]>>() {
+
+			@Override
+			public Map<DurationTimeInterval, double[]> call() throws Exception {
+				return readDurations(site, getDirName(eventID));
+			}
+		});
 	}
 	
 	public DiscretizedFunc readFAS(BBP_Site site, int eventID) throws IOException {
@@ -160,29 +224,26 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 		return ids;
 	}
 	
-	private Table<Integer, BBP_Site, DiscretizedFunc[]> rd50RupGenTable;
-	
-	public synchronized DiscretizedFunc[] readRupGenRotD50(BBP_Site site, int eventID) {
-		if (rd50RupGenTable == null)
-			rd50RupGenTable = HashBasedTable.create();
-		DiscretizedFunc[] ret = rd50RupGenTable.get(eventID, site);
-		if (ret == null) {
-			int cnt = 0;
-			String dirName = getDirName(eventID);
-			List<DiscretizedFunc> funcs = new ArrayList<>();
-			while (true) {
-				try {
-					DiscretizedFunc rd50 = readRotD50(site, dirName+"/rup_gen_"+(cnt++));
-					funcs.add(rd50);
-				} catch (Exception e) {
-					break;
+	public DiscretizedFunc[] readRupGenRotD50(final BBP_Site site, final int eventID) throws IOException {
+		return getCached(rd50RupGenCache, eventID, site, new Callable<DiscretizedFunc[]>() {
+
+			@Override
+			public DiscretizedFunc[] call() throws Exception {
+				int cnt = 0;
+				String dirName = getDirName(eventID);
+				List<DiscretizedFunc> funcs = new ArrayList<>();
+				while (true) {
+					try {
+						DiscretizedFunc rd50 = readRotD50(site, dirName+"/rup_gen_"+(cnt++));
+						funcs.add(rd50);
+					} catch (Exception e) {
+						break;
+					}
 				}
+				Preconditions.checkState(funcs.size() > 0, "No RG files for %s, event %s", site.getName(), eventID);
+				return funcs.toArray(new DiscretizedFunc[funcs.size()]);
 			}
-			Preconditions.checkState(funcs.size() > 0, "No RG files for %s, event %s", site.getName(), eventID);
-			ret = funcs.toArray(new DiscretizedFunc[funcs.size()]);
-			rd50RupGenTable.put(eventID, site, ret);
-		}
-		return ret;
+		});
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -211,19 +272,16 @@ public class BBP_CatalogSimZipLoader extends BBP_SimZipLoader implements Simulat
 	}
 
 	@Override
-	public DiscretizedFunc getRotDRatio(Site site, RSQSimEvent rupture, int index) throws IOException {
+	public DiscretizedFunc getRotDRatio(final Site site, final RSQSimEvent rupture, final int index) throws IOException {
 		Preconditions.checkState(index == 0);
-		if (rdRatioTable.contains(rupture.getID(), site))
-			return rdRatioTable.get(rupture.getID(), site);
-		synchronized (rdTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rdRatioTable.contains(rupture.getID(), site))
-				return rdRatioTable.get(rupture.getID(), site);
-			DiscretizedFunc[] spectras = getRotD(site, rupture, index);
-			DiscretizedFunc ratio = SimulationRotDProvider.calcRotDRatio(spectras);
-			rdRatioTable.put(rupture.getID(), site, ratio);
-			return ratio;
-		}
+		return getCached(rdRatioCache, new EventSiteKey<>(rupture.getID(), site), new Callable<DiscretizedFunc>() {
+
+			@Override
+			public DiscretizedFunc call() throws Exception {
+				DiscretizedFunc[] spectras = getRotD(site, rupture, index);
+				return SimulationRotDProvider.calcRotDRatio(spectras);
+			}
+		});
 	}
 
 	@Override
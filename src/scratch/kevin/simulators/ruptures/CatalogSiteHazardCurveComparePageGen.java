@@ -167,6 +167,15 @@ public class CatalogSiteHazardCurveComparePageGen extends SiteHazardCurveComareP
 //		pageGen.setSourceRupContributionFractions(sourceContribFracts, 4e-4, 10);
 		pageGen.setSourceRupContributionFractions(sourceContribFracts, 0d, 10); // 0 = RTGM
 		
+		// simulation curves don't depend on the GMPE, calculate them for all sites at once
+		List<Site> pageSites = new ArrayList<>();
+		for (String siteName : siteNames) {
+			for (Site oSite : gmpeComp.getGMPESites())
+				if (oSite.getName().equals(siteName))
+					pageSites.add(oSite);
+		}
+		pageGen.precomputeSimCurves(pageSites, imts, Runtime.getRuntime().availableProcessors());
+		
 		for (AttenRelRef gmpeRef : gmpeRefs) {
 			List<EventComparison> comps = gmpeComp.loadCalcComps(gmpeRef, imts);
 			for (String siteName : siteNames) {
@@ -12,8 +12,6 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.opensha.commons.util.ClassUtils;
-import org.opensha.commons.util.threads.Task;
-import org.opensha.commons.util.threads.ThreadedTaskComputer;
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
@@ -81,18 +79,10 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 		checkBuildOrigChain();
 		
 		for (int item : batch) {
-			double[][][] gBars = new double[nDims][nDims][lags.length];
 			EmpiricalMarkovChain chain = SynchParamCalculator.createRandomizedChain(events, rupIdens, dist, distSpacing);
 			
-			List<SynchCalc> tasks = Lists.newArrayList();
-			
-			for (int m=0; m<nDims; m++)
-				for (int n=m; n<nDims; n++)
-					for (int l=0; l<lags.length; l++)
-						tasks.add(new SynchCalc(chain, m, n, l, gBars));
-			
-			ThreadedTaskComputer comp = new ThreadedTaskComputer(tasks);
-			comp.computeThreaded(getNumThreads());
+			// all pairs and lags in a single pass
+			double[][][] gBars = SynchRandTrialEngine.calcGBars(chain, lags);
 			
 			gBarsList.add(gBars);
 		}
@@ -104,32 +94,6 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 		}
 	}
 	
-	static class SynchCalc implements Task {
-		
-		private EmpiricalMarkovChain chain;
-		private int m, n, l;
-		private double[][][] gBars;
-
-		public SynchCalc(EmpiricalMarkovChain chain, int m, int n, int l, double[][][] gBars) {
-			super();
-			this.chain = chain;
-			this.m = m;
-			this.n = n;
-			this.l = l;
-			this.gBars = gBars;
-		}
-
-		@Override
-		public void compute() {
-			int lag = lags[l];
-			double gBar = SynchParamCalculator.calcGBar(chain, m, n, lag);
-			
-			gBars[m][n][l] = gBar;
-			gBars[n][m][l] = gBar;
-		}
-		
-	}
-
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void doFinalAssembly() throws Exception {
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
@@ -36,11 +37,8 @@ import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotSpec;
 import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.util.ComparablePairing;
 import org.opensha.commons.util.DataUtils;
-import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.IDPairing;
 import org.opensha.commons.util.cpt.CPT;
-import org.opensha.commons.util.threads.Task;
-import org.opensha.commons.util.threads.ThreadedTaskComputer;
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
@@ -795,75 +793,18 @@ public class SynchParamCalculator {
 		return scatterPlotFile;
 	}
 
-	private static class SynchRandTask implements Task {
-
-		private List<SimulatorEvent> events;
-		private List<RuptureIdentifier> rupIdens;
-		private int[] lags;
-		private int numTrials;
-		private double distSpacing;
-		private int nDims;
-		private double[][][][] gBars;
-		private RandomDistType dist;
-		private int t;
-
-		public SynchRandTask(List<SimulatorEvent> events,
-				List<RuptureIdentifier> rupIdens, int[] lags, int numTrials,
-				double distSpacing, int nDims, double[][][][] gBars,
-				RandomDistType dist, int t) {
-			this.events = events;
-			this.rupIdens = rupIdens;
-			this.lags = lags;
-			this.numTrials = numTrials;
-			this.distSpacing = distSpacing;
-			this.nDims = nDims;
-			this.gBars = gBars;
-			this.dist = dist;
-			this.t = t;
-		}
-
-		//		private static int numThreads = 1;
-		//		private static int catLenMult = 10;
-
-		private static int numThreads = Runtime.getRuntime().availableProcessors();
-
-		@Override
-		public void compute() {
-			System.out.println("Random trial "+(t+1)+"/"+numTrials);
-
-			EmpiricalMarkovChain chain = createRandomizedChain(events, rupIdens, dist, distSpacing);
-
-			for (int m=0; m<nDims; m++) {
-				for (int n=m; n<nDims; n++) {
-					//						Map<IndicesKey, List<int[]>> binnedIndices = getBinnedIndices(chain, m, n);
-					for (int i=0; i<lags.length; i++) {
-						int lag = lags[i];
-						SynchParamCalculator calc = new SynchParamCalculator(chain, m, n, lag);
-
-						//						if (m == 3 && n == 4 && t < 10 && lag == 0) {
-						//							File subDir = new File("/tmp/synch_xyz_rand");
-						//							if (!subDir.exists())
-						//								subDir.mkdir();
-						//							try {
-						//								calc.generatePlots(subDir, null, "Mojave", "Coachella_rand"+t);
-						//							} catch (IOException e) {
-						//								ExceptionUtils.throwAsRuntimeException(e);
-						//							}
-						//						}
-
-						gBars[m][n][t][i] = calc.getGBar();
-						gBars[n][m][t][i] = calc.getGBar();
-					}
-				}
-			}
-		}
-
-	}
-
 	private static int catLenMult = 1;
 	public static EmpiricalMarkovChain createRandomizedChain(List<? extends SimulatorEvent> events,
 			List<RuptureIdentifier> rupIdens, RandomDistType dist, double distSpacing) {
-		List<SimulatorEvent> randEvents = RandomCatalogBuilder.getRandomResampledCatalog(events, rupIdens, dist, true, catLenMult);
+		return createRandomizedChain(events, rupIdens, dist, distSpacing, null);
+	}
+	
+	/**
+	 * @param r random number generator for reproducible randomization (only supported for ACTUAL), or null
+	 */
+	public static EmpiricalMarkovChain createRandomizedChain(List<? extends SimulatorEvent> events,
+			List<RuptureIdentifier> rupIdens, RandomDistType dist, double distSpacing, Random r) {
+		List<SimulatorEvent> randEvents = RandomCatalogBuilder.getRandomResampledCatalog(events, rupIdens, dist, true, catLenMult, r);
 
 		EmpiricalMarkovChain chain = MarkovChainBuilder.build(distSpacing, randEvents, rupIdens);
 
@@ -873,22 +814,23 @@ public class SynchParamCalculator {
 	public static void writeSynchParamsStdDev(
 			File dir, List<SimulatorEvent> events, List<RuptureIdentifier> rupIdens,
 			EmpiricalMarkovChain origChain, int[] lags, int numTrials, double distSpacing) throws IOException {
+		writeSynchParamsStdDev(dir, events, rupIdens, origChain, lags, numTrials, distSpacing, System.nanoTime(),
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Writes synchronization parameter std devs and biases from randomized trials
+	 * @param seed base random seed, trial t uses seed+t
+	 * @param threads number of trials to run in parallel
+	 */
+	public static void writeSynchParamsStdDev(
+			File dir, List<SimulatorEvent> events, List<RuptureIdentifier> rupIdens,
+			EmpiricalMarkovChain origChain, int[] lags, int numTrials, double distSpacing,
+			long seed, int threads) throws IOException {
 		int nDims = rupIdens.size();
 
-		double[][][][] gBars = new double[nDims][nDims][numTrials][lags.length];
-		RandomDistType dist = RandomDistType.ACTUAL;
-
-		List<SynchRandTask> tasks = Lists.newArrayList();
-		for (int t=0; t<numTrials; t++)
-			tasks.add(new SynchRandTask(events, rupIdens, lags, numTrials, distSpacing,
-					nDims, gBars, dist, t));
-		Collections.reverse(tasks);
-		ThreadedTaskComputer comp = new ThreadedTaskComputer(tasks, false); // false = don't shuffle
-		try {
-			comp.computeThreaded(SynchRandTask.numThreads);
-		} catch (InterruptedException e) {
-			ExceptionUtils.throwAsRuntimeException(e);
-		}
+		SynchRandTrialEngine engine = new SynchRandTrialEngine(events, rupIdens, RandomDistType.ACTUAL, distSpacing, lags);
+		double[][][][] gBars = engine.runTrials(numTrials, seed, threads);
 
 		doWriteSynchStdDevParams(dir, rupIdens, origChain, lags, numTrials,
 				nDims, gBars);
@@ -900,16 +842,7 @@ public class SynchParamCalculator {
 			List<RuptureIdentifier> rupIdens, EmpiricalMarkovChain origChain,
 			int[] lags, int numTrials, int nDims,
 			double[][][][] trialGBars) throws IOException {
-		double[][][] origGBars = new double[nDims][nDims][lags.length];
-		for (int l=0; l<lags.length; l++) {
-			for (int i=0; i<nDims; i++) {
-				for (int j=i+1; j<nDims; j++) {
-					double gBar = calcGBar(origChain, i, j, lags[l]);
-					origGBars[i][j][l] = gBar;
-					origGBars[j][i][l] = gBar;
-				}
-			}
-		}
+		double[][][] origGBars = SynchRandTrialEngine.calcGBars(origChain, lags);
 		doWriteSynchStdDevParams(dir, rupIdens, lags, numTrials, nDims, trialGBars, origGBars);
 	}
 
@@ -0,0 +1,263 @@
+package scratch.kevin.simulators.synch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.SimulatorEvent;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+
+import com.google.common.base.Preconditions;
+
+import scratch.kevin.markov.EmpiricalMarkovChain;
+import scratch.kevin.markov.MarkovChain;
+import scratch.kevin.markov.PossibleStates;
+import scratch.kevin.simulators.MarkovChainBuilder;
+import scratch.kevin.simulators.SimAnalysisCatLoader;
+import scratch.kevin.simulators.SynchIdens;
+import scratch.kevin.simulators.dists.RandomDistType;
+
+/**
+ * Randomized trial engine for synchronization parameter significance testing. For the CATALOG_G weighting scheme
+ * with occupancy based lags, G-bar for every (m, n, lag) combination is computed from the occupancy of the full
+ * (uncollapsed) chain in a single pass over its populated states, rather than collapsing the chain for each pair and
+ * lag. Other schemes fall back to {@link SynchParamCalculator#calcGBar(EmpiricalMarkovChain, int, int, int)}.
+ * <br>
+ * Trials are spread across a fork-join pool, and trial t uses random seed seed+t (so results do not depend on the
+ * number of threads). Seeded randomization is only supported for {@link RandomDistType#ACTUAL}.
+ *
+ * @author kevin
+ *
+ */
+public class SynchRandTrialEngine {
+	
+	private List<? extends SimulatorEvent> events;
+	private List<RuptureIdentifier> rupIdens;
+	private RandomDistType dist;
+	private double distSpacing;
+	private int[] lags;
+	
+	public SynchRandTrialEngine(List<? extends SimulatorEvent> events, List<RuptureIdentifier> rupIdens,
+			RandomDistType dist, double distSpacing, int[] lags) {
+		Preconditions.checkArgument(dist == RandomDistType.ACTUAL, "Only %s is supported", RandomDistType.ACTUAL);
+		this.events = events;
+		this.rupIdens = rupIdens;
+		this.dist = dist;
+		this.distSpacing = distSpacing;
+		this.lags = lags;
+	}
+	
+	/**
+	 * @return true if G-bar values can be calculated in a single pass for the current weighting scheme
+	 */
+	public static boolean isSinglePassSupported() {
+		return SynchParamCalculator.weightingScheme == SynchParamCalculator.WeightingScheme.CATALOG_G
+				&& SynchParamCalculator.doLagByOcc && !SynchParamCalculator.doLagByShift;
+	}
+	
+	/**
+	 * Calculates G-bar for every pair of dimensions (including each dimension with itself) and each lag.
+	 *
+	 * @param chain
+	 * @param lags
+	 * @return G-bar values, indexed [m][n][lagIndex], symmetric in m and n
+	 */
+	public static double[][][] calcGBars(EmpiricalMarkovChain chain, int[] lags) {
+		int nDims = chain.getNDims();
+		double[][][] gBars = new double[nDims][nDims][lags.length];
+		if (!isSinglePassSupported()) {
+			for (int m=0; m<nDims; m++) {
+				for (int n=m; n<nDims; n++) {
+					for (int l=0; l<lags.length; l++) {
+						double gBar = SynchParamCalculator.calcGBar(chain, m, n, lags[l]);
+						gBars[m][n][l] = gBar;
+						gBars[n][m][l] = gBar;
+					}
+				}
+			}
+			return gBars;
+		}
+		return calcOccGBars(chain, lags);
+	}
+	
+	/**
+	 * Single pass equivalent of {@link SynchParamCalculator#calcOccG(MarkovChain, int, int, int)} for every pair
+	 * of dimensions and each lag. The occupancy of a collapsed chain is the marginal of the full chain occupancy, so
+	 * joint frequencies for all pairs can be accumulated directly from the full chain occupancy.
+	 *
+	 * @param chain
+	 * @param lags
+	 * @return G-bar values, indexed [m][n][lagIndex], symmetric in m and n
+	 */
+	public static double[][][] calcOccGBars(MarkovChain chain, int[] lags) {
+		int nDims = chain.getNDims();
+		
+		// lookup from lag value to lag index
+		int minLag = 0;
+		int maxLag = 0;
+		for (int lag : lags) {
+			minLag = Math.min(minLag, lag);
+			maxLag = Math.max(maxLag, lag);
+		}
+		int[] lagIndexes = new int[maxLag-minLag+1];
+		for (int i=0; i<lagIndexes.length; i++)
+			lagIndexes[i] = -1;
+		for (int l=0; l<lags.length; l++)
+			lagIndexes[lags[l]-minLag] = l;
+		int zeroLagIndex = lagIndexes[-minLag];
+		
+		double tot = 0d;
+		// frequency that each dimension is in state 0
+		double[] zeroFreqs = new double[nDims];
+		// joint frequencies for m < n, [m][n][lagIndex]
+		double[][][] jointFreqs = new double[nDims][nDims][lags.length];
+		
+		PossibleStates occ = chain.getOccupancy();
+		List<int[]> states = occ.getStates();
+		for (int s=0; s<states.size(); s++) {
+			int[] state = states.get(s);
+			double freq = occ.getFrequencyAt(s);
+			tot += freq;
+			for (int m=0; m<nDims; m++) {
+				if (state[m] == 0)
+					zeroFreqs[m] += freq;
+				for (int n=m+1; n<nDims; n++) {
+					// see calcOccG: lag=0 is {0,0}, negative lags are {0,-lag}, positive are {lag,0}
+					int lag;
+					if (state[m] == 0)
+						lag = -state[n];
+					else if (state[n] == 0)
+						lag = state[m];
+					else
+						continue;
+					if (lag < minLag || lag > maxLag)
+						continue;
+					int l = lagIndexes[lag-minLag];
+					if (l >= 0)
+						jointFreqs[m][n][l] += freq;
+				}
+			}
+		}
+		
+		double[][][] gBars = new double[nDims][nDims][lags.length];
+		for (int m=0; m<nDims; m++) {
+			double probE1 = zeroFreqs[m]/tot;
+			for (int n=m; n<nDims; n++) {
+				double probE2 = zeroFreqs[n]/tot;
+				for (int l=0; l<lags.length; l++) {
+					double jointFreq;
+					if (m == n)
+						// both must be in the same state
+						jointFreq = l == zeroLagIndex ? zeroFreqs[m] : 0d;
+					else
+						jointFreq = jointFreqs[m][n][l];
+					double gBar = (jointFreq/tot)/(probE1*probE2);
+					gBars[m][n][l] = gBar;
+					gBars[n][m][l] = gBar;
+				}
+			}
+		}
+		return gBars;
+	}
+	
+	/**
+	 * Runs a single randomized trial
+	 *
+	 * @param seed
+	 * @return G-bar values, indexed [m][n][lagIndex]
+	 */
+	public double[][][] runTrial(long seed) {
+		EmpiricalMarkovChain chain = SynchParamCalculator.createRandomizedChain(
+				events, rupIdens, dist, distSpacing, new Random(seed));
+		return calcGBars(chain, lags);
+	}
+	
+	/**
+	 * Runs the given number of randomized trials in parallel
+	 *
+	 * @param numTrials
+	 * @param seed base seed, trial t uses seed+t
+	 * @param threads
+	 * @return G-bar values, indexed [m][n][trial][lagIndex] as expected by
+	 * {@link SynchParamCalculator#doWriteSynchStdDevParams(File, List, EmpiricalMarkovChain, int[], int, int, double[][][][])}
+	 */
+	public double[][][][] runTrials(final int numTrials, final long seed, int threads) {
+		int nDims = rupIdens.size();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<Future<double[][][]>> futures = new ArrayList<>();
+		for (int t=0; t<numTrials; t++) {
+			final int trial = t;
+			futures.add(pool.submit(new Callable<double[][][]>() {
+				
+				@Override
+				public double[][][] call() throws Exception {
+					System.out.println("Random trial "+(trial+1)+"/"+numTrials);
+					return runTrial(seed+trial);
+				}
+			}));
+		}
+		
+		double[][][][] gBars = new double[nDims][nDims][numTrials][];
+		try {
+			for (int t=0; t<numTrials; t++) {
+				double[][][] trialGBars = futures.get(t).get();
+				for (int m=0; m<nDims; m++)
+					for (int n=0; n<nDims; n++)
+						gBars[m][n][t] = trialGBars[m][n];
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			pool.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		pool.shutdown();
+		return gBars;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length > 5) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(SynchRandTrialEngine.class)
+					+" <output-dir> <set (so_cal or nor_cal)> <num-trials> [<threads> [<seed>]]");
+			System.exit(2);
+		}
+		File outputDir = new File(args[0]);
+		String setName = args[1];
+		int numTrials = Integer.parseInt(args[2]);
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime();
+		
+		List<RuptureIdentifier> rupIdens;
+		if (setName.equals("so_cal"))
+			rupIdens = SynchIdens.getStandardSoCal();
+		else if (setName.equals("nor_cal"))
+			rupIdens = SynchIdens.getStandardNorCal();
+		else
+			throw new IllegalArgumentException("Unknown set: "+setName);
+		
+		double distSpacing = 10d;
+		int[] lags = SynchParamCalculator.rangeInclusive(-30, 30);
+		
+		List<? extends SimulatorEvent> events = new SimAnalysisCatLoader(true, rupIdens, false).getEvents();
+		
+		System.out.println("Running "+numTrials+" trials with "+threads+" threads, seed="+seed);
+		SynchRandTrialEngine engine = new SynchRandTrialEngine(events, rupIdens, RandomDistType.ACTUAL, distSpacing, lags);
+		double[][][][] gBars = engine.runTrials(numTrials, seed, threads);
+		
+		File writeDir = new File(outputDir, SynchParamCalculator.getDirName());
+		Preconditions.checkState(writeDir.exists() || writeDir.mkdirs());
+		writeDir = new File(writeDir, setName);
+		Preconditions.checkState(writeDir.exists() || writeDir.mkdir());
+		
+		EmpiricalMarkovChain origChain = MarkovChainBuilder.build(distSpacing, events, rupIdens);
+		SynchParamCalculator.doWriteSynchStdDevParams(writeDir, rupIdens, origChain, lags, numTrials,
+				rupIdens.size(), gBars);
+	}
+	
+}
@@ -61,6 +61,7 @@ import scratch.UCERF3.griddedSeismicity.GridSourceProvider;
 import scratch.UCERF3.logicTree.LogicTreeBranch;
 import scratch.UCERF3.logicTree.LogicTreeBranchNode;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.mpj.CalcMetrics;
 import scratch.kevin.ucerf3.eal.branches.U3_EAL_GMM_Epistemic;
 import scratch.kevin.ucerf3.eal.branches.U3_EAL_GMMs;
 
@@ -108,6 +109,11 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 	private File lecResultsFileCSV;
 	
 	private LossCOV_Model covModel;
+	
+	private static final String PHASE_LOAD = "Load";
+	private static final String PHASE_COMBINE = "Combine";
+	private static final String PHASE_WRITE = "Write";
+	private CalcMetrics metrics = new CalcMetrics();
 
 	public MPJ_UCERF3_EAL_Combiner(CommandLine cmd, File outputDir) throws IOException, DocumentException {
 		super(cmd);
@@ -321,7 +327,7 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 		int maxCacheSize = 50;
 		if (tractNames != null)
 			maxCacheSize = Integer.min(maxCacheSize, tractNames.length);
-		rupLossesCache = CacheBuilder.newBuilder().maximumSize(maxCacheSize).build(new CacheLoader<File, double[][]>() {
+		rupLossesCache = CacheBuilder.newBuilder().maximumSize(maxCacheSize).recordStats().build(new CacheLoader<File, double[][]>() {
 
 			@Override
 			public double[][] load(File key) throws Exception {
@@ -331,7 +337,7 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 			}
 			
 		});
-		griddedLossesCache = CacheBuilder.newBuilder().maximumSize(maxCacheSize).build(new CacheLoader<File, DiscretizedFunc[]>() {
+		griddedLossesCache = CacheBuilder.newBuilder().maximumSize(maxCacheSize).recordStats().build(new CacheLoader<File, DiscretizedFunc[]>() {
 
 			@Override
 			public DiscretizedFunc[] load(File key) throws Exception {
@@ -342,7 +348,7 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 			}
 			
 		});
-		tractCache = CacheBuilder.newBuilder().maximumSize(10).build(new CacheLoader<File, TractLoader>() {
+		tractCache = CacheBuilder.newBuilder().maximumSize(10).recordStats().build(new CacheLoader<File, TractLoader>() {
 
 			@Override
 			public TractLoader load(File key) throws Exception {
@@ -350,6 +356,9 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 			}
 			
 		});
+		metrics.registerCache("Rupture Losses", rupLossesCache);
+		metrics.registerCache("Gridded Losses", griddedLossesCache);
+		metrics.registerCache("Tracts", tractCache);
 		
 		exec = Executors.newFixedThreadPool(getNumThreads());
 		
@@ -585,9 +594,11 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 				}
 			}
 			debug("finished batch and flushing CSV");
+			long writeStart = System.nanoTime();
 			resultsCSV.writeToFile(resultsFile);
 			if (lecResultsCSV != null)
 				lecResultsCSV.writeToFile(lecResultsFileCSV);
+			metrics.addTime(PHASE_WRITE, writeStart);
 		} else {
 			// tract index, calculate for all branches
 			for (int tractIndex : batch) {
@@ -617,7 +628,9 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 						line.add(node.getShortName());
 					csv.addLine(line);
 				}
+				long writeStart = System.nanoTime();
 				csv.writeToFile(new File(resultsDir, tractName+".csv"));
+				metrics.addTime(PHASE_WRITE, writeStart);
 			}
 		}
 	}
@@ -744,6 +757,7 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 			Map<LogicTreeBranch, List<Integer>> taskMappings = new HashMap<>();
 			taskMappings.put(branch.getTIBranch(), mappings.get(branch.getTIBranch()));
 			
+			long loadStart = System.nanoTime();
 			double[][] fssLosses = null;
 			DiscretizedFunc[] griddedLosses = null;
 			if (tractName != null) {
@@ -765,6 +779,9 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 				griddedLosses = tractLoader.griddedLosses;
 			}
 			
+			metrics.addTime(PHASE_LOAD, loadStart);
+			
+			long combineStart = System.nanoTime();
 			ZipFile erfProbsZipFile = probsZipFiles.get(branch.getValue(U3_EAL_ProbModels.class));
 			
 			UCERF3_EAL_Combiner calc = new UCERF3_EAL_Combiner(cfss, taskMappings, trueMeanSol, fssLosses, griddedLosses,
@@ -776,6 +793,8 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 			
 			if (lecXVals != null)
 				lec = calc.getLECs()[0];
+			metrics.addTime(PHASE_COMBINE, combineStart);
+			metrics.increment("Branches Calculated");
 			
 			return this;
 		}
@@ -792,6 +811,9 @@ public class MPJ_UCERF3_EAL_Combiner extends MPJTaskCalculator {
 	@Override
 	protected void doFinalAssembly() throws Exception {
 		exec.shutdown();
+		debug("Metrics: "+metrics);
+		if (!consolidateOnly)
+			metrics.writeCSV(CalcMetrics.getRankFile(resultsDir, rank), rank, getNumThreads());
 		rupLossesCache.invalidateAll();
 		griddedLossesCache.invalidateAll();
 		if (rank == 0 && allTracts == null) {
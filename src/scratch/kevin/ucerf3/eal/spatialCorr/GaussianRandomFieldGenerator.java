@@ -0,0 +1,284 @@
+package scratch.kevin.ucerf3.eal.spatialCorr;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Generates stationary, zero mean, unit variance Gaussian random fields with a given spatial correlation model using
+ * circulant embedding (Dietrich and Newsam, 1997). The correlation function is evaluated on a periodic grid with power
+ * of two dimensions, padded by the distance at which correlation is negligible so that correlation within the requested
+ * grid is not affected by wrap-around. The eigenvalues of the resulting circulant covariance matrix are computed once
+ * with a 2D FFT, and each realization then requires a single 2D FFT of scaled complex white noise, the real and
+ * imaginary parts of which are two independent fields.
+ * <br>
+ * Fields are generated in pairs from a seed (see {@link #generatePair(long)}), so field i of a sequence generated with
+ * {@link #writeArchive(File, int, long)} is identical no matter where it is generated.
+ *
+ * @author kevin
+ *
+ */
+public class GaussianRandomFieldGenerator {
+	
+	protected static boolean D = false;
+	
+	/**
+	 * Isotropic correlation functions, in terms of the practical range (distance at which correlation drops to ~0.05)
+	 */
+	public enum CorrelationModel {
+		EXPONENTIAL("Exponential") {
+			@Override
+			public double getCorrelation(double dist, double range) {
+				return Math.exp(-3d*dist/range);
+			}
+		},
+		GAUSSIAN("Gaussian") {
+			@Override
+			public double getCorrelation(double dist, double range) {
+				double scaled = dist/range;
+				return Math.exp(-3d*scaled*scaled);
+			}
+		};
+		
+		private String name;
+		
+		private CorrelationModel(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * @param dist separation distance (km)
+		 * @param range practical range (km)
+		 * @return correlation coefficient
+		 */
+		public abstract double getCorrelation(double dist, double range);
+		
+		/**
+		 * @param range practical range (km)
+		 * @return distance beyond which correlation is below 1e-4 (km)
+		 */
+		public double getNegligibleDistance(double range) {
+			double dist = range;
+			while (getCorrelation(dist, range) > 1e-4)
+				dist += 0.1*range;
+			return dist;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	/**
+	 * Practical range of the Jayaram and Baker (2009) within-event residual correlation model (case 1, where Vs30
+	 * values do not show clustering)
+	 *
+	 * @param period spectral period in seconds, 0 for PGA
+	 * @return range (km) for use with {@link CorrelationModel#EXPONENTIAL}
+	 */
+	public static double getJayaramBakerRange(double period) {
+		if (period < 1d)
+			return 8.5 + 17.2*period;
+		return 22.0 + 3.7*period;
+	}
+	
+	private int nx, ny;
+	private double gridSpacing;
+	private CorrelationModel corrModel;
+	private double range;
+	
+	// FFT grid dimensions, powers of 2
+	private int nfx, nfy;
+	// square root of the circulant embedding eigenvalues, scaled by 1/sqrt(N)
+	private double[] sqrtEigen;
+	
+	public GaussianRandomFieldGenerator(int nx, int ny, double gridSpacing, CorrelationModel corrModel, double range) {
+		Preconditions.checkArgument(nx > 0 && ny > 0, "Dimensions must be positive");
+		Preconditions.checkArgument(gridSpacing > 0d, "Grid spacing must be positive");
+		Preconditions.checkArgument(range > 0d, "Correlation range must be positive");
+		this.nx = nx;
+		this.ny = ny;
+		this.gridSpacing = gridSpacing;
+		this.corrModel = corrModel;
+		this.range = range;
+		
+		int pad = (int)Math.ceil(corrModel.getNegligibleDistance(range)/gridSpacing);
+		nfx = nextPowerOf2(nx + pad);
+		nfy = nextPowerOf2(ny + pad);
+		
+		// first row of the (block) circulant covariance matrix, using minimum image distances on the periodic grid
+		int n = nfx*nfy;
+		double[] re = new double[n];
+		double[] im = new double[n];
+		for (int j=0; j<nfy; j++) {
+			double dy = Math.min(j, nfy-j)*gridSpacing;
+			for (int i=0; i<nfx; i++) {
+				double dx = Math.min(i, nfx-i)*gridSpacing;
+				re[j*nfx + i] = corrModel.getCorrelation(Math.sqrt(dx*dx + dy*dy), range);
+			}
+		}
+		
+		fft2(re, im, nfx, nfy);
+		
+		sqrtEigen = new double[n];
+		double negSum = 0d;
+		double totSum = 0d;
+		for (int k=0; k<n; k++) {
+			double eigen = re[k];
+			totSum += Math.abs(eigen);
+			if (eigen < 0d) {
+				// small negative eigenvalues can occur with smooth correlation functions, truncate them
+				negSum -= eigen;
+				eigen = 0d;
+			}
+			sqrtEigen[k] = Math.sqrt(eigen/n);
+		}
+		if (D) System.out.println("FFT grid: "+nfx+"x"+nfy+", truncated negative eigenvalue fraction: "
+				+(float)(negSum/totSum));
+	}
+	
+	private static int nextPowerOf2(int n) {
+		int ret = 1;
+		while (ret < n)
+			ret <<= 1;
+		return ret;
+	}
+	
+	/**
+	 * In place forward 2D FFT (without normalization) of data in rows of constant y
+	 */
+	private static void fft2(double[] re, double[] im, int nfx, int nfy) {
+		double[][] rowBuf = new double[2][nfx];
+		for (int j=0; j<nfy; j++) {
+			int offset = j*nfx;
+			System.arraycopy(re, offset, rowBuf[0], 0, nfx);
+			System.arraycopy(im, offset, rowBuf[1], 0, nfx);
+			FastFourierTransformer.transformInPlace(rowBuf, DftNormalization.STANDARD, TransformType.FORWARD);
+			System.arraycopy(rowBuf[0], 0, re, offset, nfx);
+			System.arraycopy(rowBuf[1], 0, im, offset, nfx);
+		}
+		double[][] colBuf = new double[2][nfy];
+		for (int i=0; i<nfx; i++) {
+			for (int j=0; j<nfy; j++) {
+				colBuf[0][j] = re[j*nfx + i];
+				colBuf[1][j] = im[j*nfx + i];
+			}
+			FastFourierTransformer.transformInPlace(colBuf, DftNormalization.STANDARD, TransformType.FORWARD);
+			for (int j=0; j<nfy; j++) {
+				re[j*nfx + i] = colBuf[0][j];
+				im[j*nfx + i] = colBuf[1][j];
+			}
+		}
+	}
+	
+	/**
+	 * Generates a pair of independent fields. Thread safe.
+	 *
+	 * @param seed
+	 * @return two independent fields
+	 */
+	public RandomFieldLoader[] generatePair(long seed) {
+		RandomGenerator rng = new Well19937c(seed);
+		int n = nfx*nfy;
+		double[] re = new double[n];
+		double[] im = new double[n];
+		for (int k=0; k<n; k++) {
+			re[k] = sqrtEigen[k]*rng.nextGaussian();
+			im[k] = sqrtEigen[k]*rng.nextGaussian();
+		}
+		
+		fft2(re, im, nfx, nfy);
+		
+		float[] vals1 = new float[nx*ny];
+		float[] vals2 = new float[nx*ny];
+		for (int j=0; j<ny; j++) {
+			for (int i=0; i<nx; i++) {
+				vals1[j*nx + i] = (float)re[j*nfx + i];
+				vals2[j*nx + i] = (float)im[j*nfx + i];
+			}
+		}
+		return new RandomFieldLoader[] { new RandomFieldLoader(nx, ny, gridSpacing, vals1),
+				new RandomFieldLoader(nx, ny, gridSpacing, vals2) };
+	}
+	
+	/**
+	 * Generates the given number of fields and writes them to a {@link RandomFieldArchive}. Pair p of fields is
+	 * generated with seed+p, and only one pair is held in memory at a time.
+	 *
+	 * @param outputFile
+	 * @param numFields
+	 * @param seed
+	 * @throws IOException
+	 */
+	public void writeArchive(File outputFile, int numFields, long seed) throws IOException {
+		RandomFieldArchive.Writer writer = new RandomFieldArchive.Writer(outputFile, nx, ny, gridSpacing, numFields);
+		for (int f=0; f<numFields; f+=2) {
+			RandomFieldLoader[] pair = generatePair(seed + f/2);
+			writer.write(pair[0]);
+			if (f+1 < numFields)
+				writer.write(pair[1]);
+		}
+		writer.close();
+	}
+	
+	public int getNumX() {
+		return nx;
+	}
+	
+	public int getNumY() {
+		return ny;
+	}
+	
+	public double getGridSpacing() {
+		return gridSpacing;
+	}
+	
+	public CorrelationModel getCorrelationModel() {
+		return corrModel;
+	}
+	
+	public double getRange() {
+		return range;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 6 || args.length > 8) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(GaussianRandomFieldGenerator.class)
+					+" <output-file> <num-fields> <num-x> <num-y> <grid-spacing> <range-km>"
+					+" [<EXPONENTIAL|GAUSSIAN> [<seed>]]");
+			System.exit(2);
+		}
+		File outputFile = new File(args[0]);
+		int numFields = Integer.parseInt(args[1]);
+		int nx = Integer.parseInt(args[2]);
+		int ny = Integer.parseInt(args[3]);
+		double gridSpacing = Double.parseDouble(args[4]);
+		double range = Double.parseDouble(args[5]);
+		CorrelationModel corrModel = args.length > 6 ? CorrelationModel.valueOf(args[6]) : CorrelationModel.EXPONENTIAL;
+		long seed = args.length > 7 ? Long.parseLong(args[7]) : System.nanoTime();
+		
+		D = true;
+		GaussianRandomFieldGenerator gen = new GaussianRandomFieldGenerator(nx, ny, gridSpacing, corrModel, range);
+		System.out.println("Generating "+numFields+" fields with seed="+seed);
+		gen.writeArchive(outputFile, numFields, seed);
+		
+		RandomFieldArchive archive = new RandomFieldArchive(outputFile);
+		MinMaxAveTracker track = new MinMaxAveTracker();
+		RandomFieldLoader field = archive.getField(0);
+		for (int i=0; i<field.size(); i++)
+			track.addValue(field.get(i));
+		System.out.println("Field 0 stats: "+track);
+		archive.close();
+	}
+	
+}
@@ -46,6 +46,7 @@ import com.google.common.collect.Range;
 import com.google.common.collect.Table;
 
 import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
+import mpi.MPI;
 import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
 import scratch.UCERF3.logicTree.LogicTreeBranch;
@@ -72,6 +73,8 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 	
 	private List<Asset> assets;
 	private RandomFieldLoader[] fields;
+	// binary archive backing the fields, if loaded from or generated to an archive
+	private RandomFieldArchive fieldArchive;
 	
 	// for preset between-event standard deviations
 	private double[] betweenEventStdDevs;
@@ -177,21 +180,83 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 			normDist = new NormalDistribution(rng, 0d, 1d);
 		}
 		
-		File fieldsDir = new File(cmd.getOptionValue("fields-dir"));
-		Preconditions.checkArgument(fieldsDir.exists());
+		int numFieldSources = 0;
+		for (String opt : new String[] {"fields-dir", "fields-archive", "gen-fields"})
+			if (cmd.hasOption(opt))
+				numFieldSources++;
+		Preconditions.checkArgument(numFieldSources == 1,
+				"must supply exactly one of --fields-dir, --fields-archive, or --gen-fields");
 		
-		File[] fieldFiles = fieldsDir.listFiles();
-		Arrays.sort(fieldFiles, new FileNameComparator());
-		
-		double gridSpacing = Double.parseDouble(cmd.getOptionValue("field-spacing"));
-		
-		List<RandomFieldLoader> randFields = new ArrayList<>();
-		for (File file : fieldFiles)
-			if (file.getName().endsWith(".csv"))
-				randFields.add(RandomFieldLoader.load(file, gridSpacing));
+		if (cmd.hasOption("fields-dir")) {
+			File fieldsDir = new File(cmd.getOptionValue("fields-dir"));
+			Preconditions.checkArgument(fieldsDir.exists());
+			
+			File[] fieldFiles = fieldsDir.listFiles();
+			Arrays.sort(fieldFiles, new FileNameComparator());
+			
+			Preconditions.checkArgument(cmd.hasOption("field-spacing"), "must supply --field-spacing with --fields-dir");
+			double gridSpacing = Double.parseDouble(cmd.getOptionValue("field-spacing"));
+			
+			List<RandomFieldLoader> randFields = new ArrayList<>();
+			for (File file : fieldFiles)
+				if (file.getName().endsWith(".csv"))
+					randFields.add(RandomFieldLoader.load(file, gridSpacing));
+			fields = randFields.toArray(new RandomFieldLoader[0]);
+		} else {
+			File archiveFile;
+			if (cmd.hasOption("fields-archive")) {
+				archiveFile = new File(cmd.getOptionValue("fields-archive"));
+				Preconditions.checkArgument(archiveFile.exists(),
+						"Fields archive doesn't exist: %s", archiveFile.getAbsolutePath());
+			} else {
+				int numFields = Integer.parseInt(cmd.getOptionValue("gen-fields"));
+				Preconditions.checkArgument(cmd.hasOption("field-spacing"), "must supply --field-spacing with --gen-fields");
+				double gridSpacing = Double.parseDouble(cmd.getOptionValue("field-spacing"));
+				int gridSize = cmd.hasOption("gen-grid-size") ?
+						Integer.parseInt(cmd.getOptionValue("gen-grid-size")) : 800;
+				double range = cmd.hasOption("gen-range") ? Double.parseDouble(cmd.getOptionValue("gen-range"))
+						: GaussianRandomFieldGenerator.getJayaramBakerRange(1d);
+				GaussianRandomFieldGenerator.CorrelationModel corrModel = cmd.hasOption("gen-corr-model") ?
+						GaussianRandomFieldGenerator.CorrelationModel.valueOf(cmd.getOptionValue("gen-corr-model"))
+						: GaussianRandomFieldGenerator.CorrelationModel.EXPONENTIAL;
+				// must be the same on all ranks so that every rank uses the same fields
+				long seed = cmd.hasOption("gen-seed") ? Long.parseLong(cmd.getOptionValue("gen-seed")) : 0l;
+				
+				// fields are generated once, by rank 0, to a shared archive which every rank then memory maps. the
+				// file name includes all generation parameters so that an existing archive can be reused
+				if (cmd.hasOption("gen-fields-file"))
+					archiveFile = new File(cmd.getOptionValue("gen-fields-file"));
+				else
+					archiveFile = new File(outputDir, "random_fields_"+numFields+"_"+gridSize+"x"+gridSize
+							+"_"+(float)gridSpacing+"km_"+corrModel.name()+"_"+(float)range+"km_seed"+seed+".bin");
+				if (rank == 0) {
+					if (archiveFile.exists()) {
+						debug("Using previously generated random fields: "+archiveFile.getAbsolutePath());
+					} else {
+						debug("Generating "+numFields+" "+gridSize+"x"+gridSize+" random fields, spacing="
+								+(float)gridSpacing+", "+corrModel+" correlation, range="+(float)range+", seed="+seed);
+						GaussianRandomFieldGenerator gen = new GaussianRandomFieldGenerator(
+								gridSize, gridSize, gridSpacing, corrModel, range);
+						// write to a temporary file first so that a partial archive is never used
+						File tempFile = new File(archiveFile.getAbsolutePath()+".tmp");
+						gen.writeArchive(tempFile, numFields, seed);
+						Preconditions.checkState(tempFile.renameTo(archiveFile),
+								"Couldn't rename %s to %s", tempFile.getAbsolutePath(), archiveFile.getAbsolutePath());
+					}
+				}
+				MPI.COMM_WORLD.Barrier();
+				RandomFieldArchive archive = new RandomFieldArchive(archiveFile);
+				boolean matches = archive.getNumFields() == numFields && archive.getNumX() == gridSize
+						&& archive.getNumY() == gridSize && (float)archive.getGridSpacing() == (float)gridSpacing;
+				archive.close();
+				Preconditions.checkState(matches, "Existing random fields archive doesn't match requested fields: %s",
+						archiveFile.getAbsolutePath());
+			}
+			fieldArchive = new RandomFieldArchive(archiveFile);
+			fields = fieldArchive.getFields();
+		}
 		if (rank == 0)
-			debug("Loaded "+randFields.size()+" random fields");
-		fields = randFields.toArray(new RandomFieldLoader[0]);
+			debug("Loaded "+fields.length+" random fields");
 		
 		magThreshFunc = MPJ_CondLossCalc.getDefaultMagDistFunc();
 		
@@ -464,6 +529,8 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 	@Override
 	protected void doFinalAssembly() throws Exception {
 		exec.shutdown();
+		if (fieldArchive != null)
+			fieldArchive.close();
 		
 		long totalInterps = 0;
 		long totalTilings = 0;
@@ -513,12 +580,48 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 		
 		Option fieldsDir = new Option("fd", "fields-dir", true,
 				"Directory containing random field CSV files");
-		fieldsDir.setRequired(true);
+		fieldsDir.setRequired(false);
 		options.addOption(fieldsDir);
 		
+		Option fieldsArchive = new Option("fa", "fields-archive", true,
+				"Binary random fields archive file (see RandomFieldArchive)");
+		fieldsArchive.setRequired(false);
+		options.addOption(fieldsArchive);
+		
+		Option genFields = new Option("gf", "gen-fields", true,
+				"Generate this many Gaussian random fields instead of loading them");
+		genFields.setRequired(false);
+		options.addOption(genFields);
+		
+		Option genGridSize = new Option("ggs", "gen-grid-size", true,
+				"Number of grid points in each dimension for generated fields (default: 800)");
+		genGridSize.setRequired(false);
+		options.addOption(genGridSize);
+		
+		Option genRange = new Option("gr", "gen-range", true,
+				"Correlation range in km for generated fields (default: Jayaram & Baker 2009 for SA 1s)");
+		genRange.setRequired(false);
+		options.addOption(genRange);
+		
+		Option genCorrModel = new Option("gcm", "gen-corr-model", true,
+				"Correlation model for generated fields (EXPONENTIAL or GAUSSIAN, default: EXPONENTIAL)");
+		genCorrModel.setRequired(false);
+		options.addOption(genCorrModel);
+		
+		Option genFieldsFile = new Option("gff", "gen-fields-file", true,
+				"Archive file for generated fields, which must be on a filesystem shared by all ranks. Generated by rank 0 "
+				+ "if it doesn't already exist (default: file in the output directory named for the generation parameters)");
+		genFieldsFile.setRequired(false);
+		options.addOption(genFieldsFile);
+		
+		Option genSeed = new Option("gsd", "gen-seed", true,
+				"Random seed for generated fields (default: 0)");
+		genSeed.setRequired(false);
+		options.addOption(genSeed);
+		
 		Option fieldSpacing = new Option("fs", "field-spacing", true,
-				"Field grid spacing in km");
-		fieldSpacing.setRequired(true);
+				"Field grid spacing in km, required with --fields-dir or --gen-fields");
+		fieldSpacing.setRequired(false);
 		options.addOption(fieldSpacing);
 		
 		return options;
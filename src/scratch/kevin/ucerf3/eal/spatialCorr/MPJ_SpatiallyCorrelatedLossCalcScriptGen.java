@@ -47,6 +47,9 @@ public class MPJ_SpatiallyCorrelatedLossCalcScriptGen {
 		
 		File randFieldsDir = new File("/home/scec-02/kmilner/ucerf3/eal/random_fields/sa10_1km_800x800");
 		double fieldSpacing = 1d;
+		// binary archive converted from the CSV fields with RandomFieldArchive, used instead of the CSVs if non null
+		File randFieldsArchive = null;
+//		File randFieldsArchive = new File("/home/scec-02/kmilner/ucerf3/eal/random_fields/sa10_1km_800x800.bin");
 		
 		int threads = 20;
 		int nodes = 24;
@@ -83,8 +86,12 @@ public class MPJ_SpatiallyCorrelatedLossCalcScriptGen {
 			argz += " --rand-taus "+randTaus;
 		else
 			argz += " --taus "+taus;
-		argz += " --fields-dir "+randFieldsDir.getAbsolutePath();
-		argz += " --field-spacing "+fieldSpacing;
+		if (randFieldsArchive == null) {
+			argz += " --fields-dir "+randFieldsDir.getAbsolutePath();
+			argz += " --field-spacing "+fieldSpacing;
+		} else {
+			argz += " --fields-archive "+randFieldsArchive.getAbsolutePath();
+		}
 		
 		argz += " "+remoteJobDir.getAbsolutePath();
 		
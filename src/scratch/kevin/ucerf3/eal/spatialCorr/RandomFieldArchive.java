@@ -0,0 +1,209 @@
+package scratch.kevin.ucerf3.eal.spatialCorr;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.FileNameComparator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Binary archive of random fields which share the same grid, stored as packed floats in a single file. The file is
+ * memory mapped when loaded, and each field is mapped separately the first time that it is requested, so fields are
+ * paged in by the operating system as they are used rather than being parsed and held on the heap.
+ * <br>
+ * File layout: int magic, int version, int numX, int numY, double grid spacing, int numFields, then numX*numY floats
+ * for each field in the order described in {@link RandomFieldLoader}.
+ *
+ * @author kevin
+ *
+ */
+public class RandomFieldArchive implements Closeable {
+	
+	private static final int MAGIC = 0x52464C44;
+	private static final int VERSION = 1;
+	private static final int HEADER_LEN = 28;
+	
+	private int nx, ny;
+	private double gridSpacing;
+	private int numFields;
+	
+	private RandomAccessFile raf;
+	private RandomFieldLoader[] fields;
+	
+	/**
+	 * Loads (memory maps) the given archive file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public RandomFieldArchive(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		Preconditions.checkState(raf.readInt() == MAGIC, "Not a random field archive: %s", file.getAbsolutePath());
+		int version = raf.readInt();
+		Preconditions.checkState(version == VERSION, "Unsupported archive version: %s", version);
+		nx = raf.readInt();
+		ny = raf.readInt();
+		gridSpacing = raf.readDouble();
+		numFields = raf.readInt();
+		
+		long expectedLen = HEADER_LEN + (long)numFields*getFieldLength();
+		Preconditions.checkState(expectedLen == raf.length(), "Archive length mismatch. Expected %s, file has %s",
+				expectedLen, raf.length());
+		
+		fields = new RandomFieldLoader[numFields];
+	}
+	
+	private long getFieldLength() {
+		return (long)nx*ny*4l;
+	}
+	
+	public int getNumFields() {
+		return numFields;
+	}
+	
+	public int getNumX() {
+		return nx;
+	}
+	
+	public int getNumY() {
+		return ny;
+	}
+	
+	public double getGridSpacing() {
+		return gridSpacing;
+	}
+	
+	/**
+	 * @param index
+	 * @return field at the given index, mapped the first time it is requested. The same instance is returned for
+	 * subsequent calls.
+	 * @throws IOException
+	 */
+	public synchronized RandomFieldLoader getField(int index) throws IOException {
+		if (fields[index] == null) {
+			FileChannel channel = raf.getChannel();
+			long start = HEADER_LEN + index*getFieldLength();
+			fields[index] = new RandomFieldLoader(nx, ny, gridSpacing,
+					channel.map(MapMode.READ_ONLY, start, getFieldLength()).asFloatBuffer());
+		}
+		return fields[index];
+	}
+	
+	/**
+	 * @return all fields in this archive
+	 * @throws IOException
+	 */
+	public RandomFieldLoader[] getFields() throws IOException {
+		RandomFieldLoader[] ret = new RandomFieldLoader[numFields];
+		for (int i=0; i<numFields; i++)
+			ret[i] = getField(i);
+		return ret;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+	
+	/**
+	 * Sequential writer for a random field archive. Exactly the number of fields specified in the constructor must be
+	 * written before closing.
+	 */
+	public static class Writer implements Closeable {
+		
+		private int nx, ny;
+		private double gridSpacing;
+		private int numFields;
+		private int numWritten = 0;
+		private DataOutputStream out;
+		
+		public Writer(File file, int nx, int ny, double gridSpacing, int numFields) throws IOException {
+			this.nx = nx;
+			this.ny = ny;
+			this.gridSpacing = gridSpacing;
+			this.numFields = numFields;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(nx);
+			out.writeInt(ny);
+			out.writeDouble(gridSpacing);
+			out.writeInt(numFields);
+			Preconditions.checkState(out.size() == HEADER_LEN);
+		}
+		
+		public void write(RandomFieldLoader field) throws IOException {
+			Preconditions.checkState(field.getNumX() == nx && field.getNumY() == ny,
+					"Field dimensions mismatch: %sx%s != %sx%s", field.getNumX(), field.getNumY(), nx, ny);
+			Preconditions.checkState((float)field.getGridSpacing() == (float)gridSpacing,
+					"Grid spacing mismatch: %s != %s", field.getGridSpacing(), gridSpacing);
+			Preconditions.checkState(numWritten < numFields, "Already wrote all %s fields", numFields);
+			for (int i=0; i<field.size(); i++)
+				out.writeFloat((float)field.get(i));
+			numWritten++;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			out.close();
+			Preconditions.checkState(numWritten == numFields, "Only wrote %s/%s fields", numWritten, numFields);
+		}
+	}
+	
+	/**
+	 * Converts all random field CSV files in the given directory (see {@link RandomFieldLoader#load(File, double)})
+	 * to a binary archive. Only one field is held in memory at a time.
+	 *
+	 * @param csvDir
+	 * @param gridSpacing
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void convert(File csvDir, double gridSpacing, File outputFile) throws IOException {
+		File[] files = csvDir.listFiles();
+		Arrays.sort(files, new FileNameComparator());
+		List<File> csvFiles = new ArrayList<>();
+		for (File file : files)
+			if (file.getName().endsWith(".csv"))
+				csvFiles.add(file);
+		Preconditions.checkState(!csvFiles.isEmpty(), "No CSV files found in %s", csvDir.getAbsolutePath());
+		
+		Writer writer = null;
+		for (int i=0; i<csvFiles.size(); i++) {
+			RandomFieldLoader field = RandomFieldLoader.load(csvFiles.get(i), gridSpacing);
+			if (writer == null)
+				writer = new Writer(outputFile, field.getNumX(), field.getNumY(), gridSpacing, csvFiles.size());
+			writer.write(field);
+			if (i % 10 == 0)
+				System.out.println("Converted "+i+"/"+csvFiles.size()+" fields");
+		}
+		writer.close();
+		System.out.println("Wrote "+csvFiles.size()+" fields to "+outputFile.getAbsolutePath());
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(RandomFieldArchive.class)
+					+" <csv-dir> <grid-spacing> <output-file>");
+			System.exit(2);
+		}
+		File csvDir = new File(args[0]);
+		double gridSpacing = Double.parseDouble(args[1]);
+		File outputFile = new File(args[2]);
+		
+		convert(csvDir, gridSpacing, outputFile);
+	}
+	
+}
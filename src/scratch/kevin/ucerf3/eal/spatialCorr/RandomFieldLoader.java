@@ -2,95 +2,148 @@ package scratch.kevin.ucerf3.eal.spatialCorr;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opensha.commons.data.CSVFile;
-import org.opensha.commons.data.xyz.EvenlyDiscrXYZ_DataSet;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.geo.LocationVector;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 
+import com.google.common.base.Preconditions;
+
+/**
+ * Random within-event residual field on a regular grid with minimum x and y of zero. Values are stored as floats,
+ * either on the heap (when loaded from a CSV file or generated) or in a memory mapped {@link RandomFieldArchive}.
+ * Values are stored in rows of constant y, with index = yIndex*numX + xIndex.
+ *
+ * @author kevin
+ *
+ */
 public class RandomFieldLoader {
 	
 	protected static boolean D = false;
 	
-	private EvenlyDiscrXYZ_DataSet field;
+	private int nx, ny;
+	private double gridSpacing;
+	private FloatBuffer values;
 	private double centerX, centerY;
 	
-	private double wrapMinX, wrapMaxX, wrapMinY, wrapMaxY;
-	
-	private long numWrappedCalcs;
-	private long totalNumCalcs;
+	private LongAdder numWrappedCalcs = new LongAdder();
+	private LongAdder totalNumCalcs = new LongAdder();
 
-	private RandomFieldLoader(EvenlyDiscrXYZ_DataSet field) {
-		this.field = field;
-		
-		centerX = 0.5*(field.getMinX() + field.getMaxX());
-		centerY = 0.5*(field.getMinY() + field.getMaxY());
+	RandomFieldLoader(int nx, int ny, double gridSpacing, FloatBuffer values) {
+		Preconditions.checkArgument(values.capacity() == nx*ny,
+				"Expected %s values, have %s", nx*ny, values.capacity());
+		this.nx = nx;
+		this.ny = ny;
+		this.gridSpacing = gridSpacing;
+		this.values = values;
+		
+		double maxX = (nx-1)*gridSpacing;
+		double maxY = (ny-1)*gridSpacing;
+		centerX = 0.5*maxX;
+		centerY = 0.5*maxY;
+	}
+	
+	/**
+	 * Heap backed field with the given values
+	 *
+	 * @param nx
+	 * @param ny
+	 * @param gridSpacing
+	 * @param values
+	 */
+	public RandomFieldLoader(int nx, int ny, double gridSpacing, float[] values) {
+		this(nx, ny, gridSpacing, FloatBuffer.wrap(values));
+	}
+	
+	public double getValue(Location siteLoc, Location ruptureCentroid) {
+		double ret = get(getIndex(siteLoc, ruptureCentroid));
 		
-		double deltaX = field.getGridSpacingX();
-		double deltaY = field.getGridSpacingY();
+		if (D) System.out.println("\tRET: "+ret);
 		
-		wrapMinX = field.getMinX() - 0.5*deltaX;
-		wrapMaxX = field.getMaxX() + 0.5*deltaX;
-		wrapMinY = field.getMinY() - 0.5*deltaY;
-		wrapMaxY = field.getMaxY() + 0.5*deltaY;
+		return ret;
 	}
 	
-	public double getValue(Location siteLoc, Location ruptureCentroid) {
+	/**
+	 * Computes the index of the grid node for the given site relative to the rupture centroid (which is placed at
+	 * the center of the field), tiling the field if the site is outside of it. The index is the same for all fields
+	 * on the same grid (see {@link #isSameGrid(RandomFieldLoader)}), so it can be computed once for each
+	 * (site, centroid) pair and used to look up values from every field with {@link #get(int)}. Thread safe.
+	 *
+	 * @param siteLoc
+	 * @param ruptureCentroid
+	 * @return index into this field
+	 */
+	public int getIndex(Location siteLoc, Location ruptureCentroid) {
 		LocationVector vector = LocationUtils.vector(ruptureCentroid, siteLoc);
 		double dist = vector.getHorzDistance();
 		double az = vector.getAzimuthRad();
 		double x = centerX + dist*Math.sin(az);
 		double y = centerY + dist*Math.cos(az);
 		
-		if (D) System.out.println("GET "+totalNumCalcs);
+		if (D) System.out.println("GET "+totalNumCalcs.sum());
 		if (D) System.out.println("\tx="+(float)x+"\ty="+(float)y);
 		
-//		field.getX(xIndex)
-		boolean wrapped = false;
-		while (x > wrapMaxX) {
-			wrapped = true;
-			x -= (wrapMaxX-wrapMinX);
-		}
-		while (x < wrapMinX) {
-			wrapped = true;
-			x += (wrapMaxX-wrapMinX);
-		}
-		while (y > wrapMaxY) {
-			wrapped = true;
-			y -= (wrapMaxY-wrapMinY);
-		}
-		while (y < wrapMinX) {
-			wrapped = true;
-			y += (wrapMaxY-wrapMinY);
-		}
-		
-		if (wrapped == true)
-			numWrappedCalcs++;
-		totalNumCalcs++;
+		// nearest grid node, which wraps around if outside of [-0.5*spacing, (n-0.5)*spacing)
+		int rawXInd = (int)Math.floor(x/gridSpacing + 0.5);
+		int rawYInd = (int)Math.floor(y/gridSpacing + 0.5);
+		int xInd = Math.floorMod(rawXInd, nx);
+		int yInd = Math.floorMod(rawYInd, ny);
+		boolean wrapped = xInd != rawXInd || yInd != rawYInd;
 		
-		int xInd = field.getXIndex(x);
-		int yInd = field.getYIndex(y);
+		if (wrapped)
+			numWrappedCalcs.increment();
+		totalNumCalcs.increment();
 		
 		if (D && wrapped)
-			System.out.println("\t\twrapped! new x="+(float)x+"\ty="+(float)y);
+			System.out.println("\t\twrapped! new x="+(float)(xInd*gridSpacing)+"\ty="+(float)(yInd*gridSpacing));
 		
 		if (D) System.out.println("\txInd="+xInd+"\tyInd="+yInd);
 		
-		double ret = field.get(xInd, yInd);
-		
-		if (D) System.out.println("\tRET: "+ret);
-		
-		return ret;
+		return yInd*nx + xInd;
+	}
+	
+	/**
+	 * @param o
+	 * @return true if the given field has the same dimensions and spacing as this field
+	 */
+	public boolean isSameGrid(RandomFieldLoader o) {
+		return nx == o.nx && ny == o.ny && (float)gridSpacing == (float)o.gridSpacing;
+	}
+
+	public double get(int xInd, int yInd) {
+		return values.get(yInd*nx + xInd);
+	}
+	
+	public double get(int index) {
+		return values.get(index);
+	}
+	
+	public int getNumX() {
+		return nx;
+	}
+	
+	public int getNumY() {
+		return ny;
+	}
+	
+	public int size() {
+		return nx*ny;
+	}
+	
+	public double getGridSpacing() {
+		return gridSpacing;
 	}
 
 	public long getNumWrappedCalcs() {
-		return numWrappedCalcs;
+		return numWrappedCalcs.sum();
 	}
 
 	public long getTotalNumCalcs() {
-		return totalNumCalcs;
+		return totalNumCalcs.sum();
 	}
 	
 	public static RandomFieldLoader load(File csvFile, double gridSpacing) throws IOException {
@@ -104,29 +157,26 @@ public class RandomFieldLoader {
 		int nx = 1 + maxXIndex - minXIndex;
 		int ny = 1 + maxYIndex - minYIndex;
 		
-		double minX = 0d;
-		double minY = 0d;
-		
-		EvenlyDiscrXYZ_DataSet field = new EvenlyDiscrXYZ_DataSet(nx, ny, minX, minY, gridSpacing);
+		float[] values = new float[nx*ny];
 		for (int row=1; row<csv.getNumRows(); row++) {
 			int x = csv.getInt(row, 0)-minXIndex;
 			int y = csv.getInt(row, 1)-minYIndex;
-			field.set(x, y, csv.getDouble(row, 2));
+			values[y*nx + x] = (float)csv.getDouble(row, 2);
 		}
 		
-		return new RandomFieldLoader(field);
+		return new RandomFieldLoader(nx, ny, gridSpacing, values);
 	}
 
 	public static void main(String[] args) throws IOException {
 		File dir = new File("/home/kevin/OpenSHA/UCERF3/eal/random_fields/sa10_1km_800x800");
 		
 		RandomFieldLoader loader = load(new File(dir, "800x800SA10_001.csv"), 1d);
-		System.out.println(loader.field.getNumX()+" "+loader.field.getNumY());
-		System.out.println(loader.field.getMaxX()+" "+loader.field.getMaxY());
+		System.out.println(loader.getNumX()+" "+loader.getNumY());
+		System.out.println((loader.getNumX()-1)*loader.getGridSpacing()+" "+(loader.getNumY()-1)*loader.getGridSpacing());
 		
 		MinMaxAveTracker track = new MinMaxAveTracker();
-		for (int i=0; i<loader.field.size(); i++)
-			track.addValue(loader.field.get(i));
+		for (int i=0; i<loader.size(); i++)
+			track.addValue(loader.get(i));
 		System.out.println("Field stats: "+track);
 		
 		Location centroid = new Location(34, -118);
@@ -96,16 +96,60 @@ public class SpatiallyCorrelatedLossCalc {
 			double[] betweenEventStdDevs, RandomFieldLoader[] randFields, DiscretizedFunc magThreshFunc) {
 		Table<Double, RandomFieldLoader, Double> ret = HashBasedTable.create();
 		
+		double[][] losses = calcSpatiallyCorrelatedLossArray(gmpe, assets, rup, rupCentroid,
+				betweenEventStdDevs, randFields, magThreshFunc);
+		if (losses == null)
+			// no assets within the magnitude/distance cutoff
+			return ret;
+		
+		for (int b=0; b<betweenEventStdDevs.length; b++)
+			for (int f=0; f<randFields.length; f++)
+				ret.put(betweenEventStdDevs[b], randFields[f], losses[b][f]);
+		
+		return ret;
+	}
+	
+	/**
+	 * Calculates the total loss across all assets for the given rupture, for each between-event term and random field.
+	 * The location of each asset within the random fields is computed once, and then values are gathered from every
+	 * field at that location, so all fields must share the same grid. This is thread safe so long as each thread uses
+	 * its own GMPE instance.
+	 *
+	 * @param gmpe
+	 * @param assets
+	 * @param rup
+	 * @param rupCentroid
+	 * @param betweenEventStdDevs
+	 * @param randFields
+	 * @param magThreshFunc
+	 * @return losses indexed by [betweenIndex][fieldIndex], or null if no assets pass the magnitude/distance cutoff
+	 */
+	public static double[][] calcSpatiallyCorrelatedLossArray(
+			ScalarIMR gmpe, List<Asset> assets, EqkRupture rup, Location rupCentroid,
+			double[] betweenEventStdDevs, RandomFieldLoader[] randFields, DiscretizedFunc magThreshFunc) {
+		Preconditions.checkArgument(randFields.length > 0, "Must supply at least one random field");
+		RandomFieldLoader refField = randFields[0];
+		for (RandomFieldLoader field : randFields)
+			Preconditions.checkArgument(refField.isSameGrid(field), "All random fields must share the same grid");
+		
+		double[][] losses = null;
+		// random field values at the current asset location
+		double[] fieldVals = new double[randFields.length];
+		
 		gmpe.setEqkRupture(rup);
 		for (Asset asset : assets) {
 			Site site = new Site();
 			for (Parameter<?> param : gmpe.getSiteParams())
 				site.addParameter((Parameter<?>)param.clone());
-			asset.siteSetup(site);
-			site = asset.getSite();
+			// assets are shared across threads, keep our own reference to the site that we set up
+			synchronized (asset) {
+				asset.siteSetup(site);
+				site = asset.getSite();
+			}
+			Location siteLoc = site.getLocation();
 			
 			if (magThreshFunc != null) {
-				double distance = rup.getRuptureSurface().getQuickDistance(site.getLocation());
+				double distance = rup.getRuptureSurface().getQuickDistance(siteLoc);
 				if (distance > magThreshFunc.getMaxX()) {
 					if (D) System.out.println("Skipping an asset above max dist (dist="+(float)distance+")");
 					continue;
@@ -126,7 +170,7 @@ public class SpatiallyCorrelatedLossCalc {
 				throw ExceptionUtils.asRuntimeException(e);
 			}
 			
-			gmpe.setSite(asset.getSite());
+			gmpe.setSite(site);
 			
 			String imt = vulnModel.getIMT();
 			gmpe.setIntensityMeasure(imt);
@@ -152,60 +196,55 @@ public class SpatiallyCorrelatedLossCalc {
 			if (D) System.out.println("Calculating for asset "+asset.getVulnModelName()+" with value "+asset.getValue());
 			if (D) System.out.println("mean="+mean+", phi="+phi+", tau="+tau);
 			
+			// location within the fields, same for all fields
+			int fieldIndex = refField.getIndex(siteLoc, rupCentroid);
+			for (int f=0; f<randFields.length; f++)
+				fieldVals[f] = randFields[f].get(fieldIndex);
+			
+			if (losses == null)
+				losses = new double[betweenEventStdDevs.length][randFields.length];
+			
 			DiscretizedFunc vulnFunc = vulnModel.getVulnerabilityFunc();
+			double vulnMinX = vulnFunc.getMinX();
+			double vulnMaxX = vulnFunc.getMaxX();
+			double vulnMaxY = vulnFunc.getMaxY();
+			double value = asset.getValue();
 			
-			for (double betweenEventStdDev : betweenEventStdDevs) {
+			for (int b=0; b<betweenEventStdDevs.length; b++) {
 				// ground motion considering the between-event term
-				double tauGM = mean + betweenEventStdDev*tau;
+				double tauGM = mean + betweenEventStdDevs[b]*tau;
 				
 				if (D) System.out.println("\ttauGM="+tauGM);
 				
-				for (RandomFieldLoader field : randFields) {
+				double[] betweenLosses = losses[b];
+				for (int f=0; f<fieldVals.length; f++) {
 					// ground motion considering the randomly sampled within-event term (and also tau)
-					double phiGM = tauGM + field.getValue(site.getLocation(), rupCentroid)*phi;
+					double phiGM = tauGM + fieldVals[f]*phi;
 					if (D) System.out.println("\t\tphiGM="+phiGM);
 					
 					Preconditions.checkState(Double.isFinite(phiGM),
 							"bad phiGM=%s for mean=%s, phi=%s, tau=%s, tauGM=%s",
 							phiGM, mean, phi, tau, tauGM);
 					
-					// set MAFE. 1 if below GM, 0 if above
 					double linearGM = Math.exp(phiGM);
 					if (D) System.out.println("\t\tlinearGM="+linearGM);
-//					if (D) System.out.println("\t\tMAFE");
-//					Preconditions.checkState(linearGM > 0d, "bad linearGM=%s for phiGM=%s", linearGM, phiGM);
-//					for (int i=0; i<mafe.size(); i++) {
-//						if (linearGM >= mafe.getX(i))
-//							mafe.set(i, 1d);
-//						else
-//							mafe.set(i, 0d);
-//						if (D) System.out.println("\t\t\t"+(float)mafe.getX(i)+"="+(float)mafe.getY(i)
-//							+"\t(D="+ealCalc.getDF().get(i).floatValue()+")");
-//					}
-//					ealCalc.setMAFE(mafe);
-//					
-//					// expected loss conditioned on occurence of this rup with this GM value
-//					double el = ealCalc.computeEAL();
 					double interpDF;
-					if (linearGM < vulnFunc.getMinX())
+					if (linearGM < vulnMinX)
 						interpDF = 0d;
-					else if (linearGM > vulnFunc.getMaxX())
-						interpDF = vulnFunc.getMaxY();
+					else if (linearGM > vulnMaxX)
+						interpDF = vulnMaxY;
 					else
 						interpDF = vulnFunc.getInterpolatedY(linearGM);
 					if (D) System.out.println("\t\tInterp DF: "+interpDF);
-					double el = asset.getValue()*interpDF;
+					double el = value*interpDF;
 					if (D) System.out.println("\t\tLoss: "+el);
 					
-					Double prevLoss = ret.get(betweenEventStdDev, field);
-					if (prevLoss == null)
-						prevLoss = 0d;
-					ret.put(betweenEventStdDev, field, prevLoss+el);
+					betweenLosses[f] += el;
 				}
 			}
 		}
 		
-		return ret;
+		return losses;
 	}
 	
 	public static void main(String[] args) throws IOException, DocumentException {
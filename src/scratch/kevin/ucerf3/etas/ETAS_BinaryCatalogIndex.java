@@ -0,0 +1,278 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensha.commons.util.ClassUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+
+/**
+ * Offset index for ETAS binary catalog files (results_*.bin). Binary catalog files have an int catalog count
+ * header, followed by a short version and int rupture count for each catalog, then 70 bytes per rupture. Finding
+ * catalog N thus requires walking all preceding catalogs, which this index does once (touching only the 6 byte
+ * catalog headers) and then stores in a sidecar file next to the binary file for reuse.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_BinaryCatalogIndex {
+	
+	/**
+	 * Number of bytes in the file header (number of catalogs)
+	 */
+	public static final int file_header_len = 4;
+	/**
+	 * Number of bytes in each catalog header (version and number of ruptures)
+	 */
+	public static final int catalog_header_len = 6;
+	/**
+	 * Number of bytes for each rupture
+	 */
+	public static final int bytes_per_rup = DuplicateCatalogsBinarySearch.bytes_per_rup;
+	
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int INDEX_VERSION = 1;
+	
+	private long fileLength;
+	private long[] offsets;
+	private int[] numRups;
+	
+	private ETAS_BinaryCatalogIndex(long fileLength, long[] offsets, int[] numRups) {
+		Preconditions.checkState(offsets.length == numRups.length);
+		this.fileLength = fileLength;
+		this.offsets = offsets;
+		this.numRups = numRups;
+	}
+	
+	/**
+	 * @param binFile
+	 * @return sidecar index file location for the given binary catalogs file
+	 */
+	public static File getIndexFile(File binFile) {
+		return new File(binFile.getParentFile(), binFile.getName()+INDEX_SUFFIX);
+	}
+	
+	/**
+	 * Loads the index for the given binary catalogs file from its sidecar file, building and writing it first if it
+	 * doesn't yet exist or is stale.
+	 *
+	 * @param binFile
+	 * @return index
+	 * @throws IOException
+	 */
+	public static ETAS_BinaryCatalogIndex loadOrBuild(File binFile) throws IOException {
+		File indexFile = getIndexFile(binFile);
+		if (indexFile.exists() && indexFile.lastModified() >= binFile.lastModified()) {
+			ETAS_BinaryCatalogIndex index = read(indexFile);
+			if (index != null && index.fileLength == binFile.length())
+				return index;
+			System.out.println("Index file is stale, rebuilding: "+indexFile.getAbsolutePath());
+		}
+		ETAS_BinaryCatalogIndex index = build(binFile);
+		try {
+			index.write(indexFile);
+		} catch (IOException e) {
+			// can still use it in memory, e.g. if the directory is read only
+			System.err.println("WARNING: couldn't write index file "+indexFile.getAbsolutePath()+": "+e.getMessage());
+		}
+		return index;
+	}
+	
+	/**
+	 * Builds an index for the given binary catalogs file, reading only the header of each catalog
+	 *
+	 * @param binFile
+	 * @return index
+	 * @throws IOException
+	 */
+	public static ETAS_BinaryCatalogIndex build(File binFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(binFile, "r");
+		FileChannel channel = raf.getChannel();
+		long fileLength = channel.size();
+		
+		ByteBuffer header = ByteBuffer.allocate(catalog_header_len);
+		
+		header.limit(file_header_len);
+		readFully(channel, header, 0l);
+		int numCatalogs = header.getInt(0);
+		Preconditions.checkState(numCatalogs >= 0, "Bad number of catalogs: %s", numCatalogs);
+		
+		long[] offsets = new long[numCatalogs];
+		int[] numRups = new int[numCatalogs];
+		
+		long pos = file_header_len;
+		for (int i=0; i<numCatalogs; i++) {
+			offsets[i] = pos;
+			header.clear();
+			readFully(channel, header, pos);
+			numRups[i] = header.getInt(2);
+			Preconditions.checkState(numRups[i] >= 0, "Bad numRups for catalog %s: %s", i, numRups[i]);
+			pos += catalog_header_len + (long)bytes_per_rup*numRups[i];
+		}
+		raf.close();
+		Preconditions.checkState(pos == fileLength,
+				"Index doesn't cover file. Expected %s bytes, file has %s", pos, fileLength);
+		
+		return new ETAS_BinaryCatalogIndex(fileLength, offsets, numRups);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos);
+			Preconditions.checkState(read >= 0, "Unexpected end of file at %s", pos);
+			pos += read;
+		}
+	}
+	
+	/**
+	 * Reads an index from the given file
+	 *
+	 * @param indexFile
+	 * @return index, or null if the index file version doesn't match
+	 * @throws IOException
+	 */
+	public static ETAS_BinaryCatalogIndex read(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile), ETAS_CatalogIO.buffer_len));
+		try {
+			int version = in.readInt();
+			if (version != INDEX_VERSION)
+				return null;
+			long fileLength = in.readLong();
+			int numCatalogs = in.readInt();
+			long[] offsets = new long[numCatalogs];
+			int[] numRups = new int[numCatalogs];
+			for (int i=0; i<numCatalogs; i++) {
+				offsets[i] = in.readLong();
+				numRups[i] = in.readInt();
+			}
+			return new ETAS_BinaryCatalogIndex(fileLength, offsets, numRups);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes this index to the given file
+	 *
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile), ETAS_CatalogIO.buffer_len));
+		out.writeInt(INDEX_VERSION);
+		out.writeLong(fileLength);
+		out.writeInt(offsets.length);
+		for (int i=0; i<offsets.length; i++) {
+			out.writeLong(offsets[i]);
+			out.writeInt(numRups[i]);
+		}
+		out.close();
+	}
+	
+	public int getNumCatalogs() {
+		return offsets.length;
+	}
+	
+	public long getFileLength() {
+		return fileLength;
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return file offset of the given catalog's header
+	 */
+	public long getOffset(int catalogIndex) {
+		return offsets[catalogIndex];
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return number of ruptures in the given catalog
+	 */
+	public int getNumRuptures(int catalogIndex) {
+		return numRups[catalogIndex];
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return total length of the given catalog in bytes, including its header
+	 */
+	public long getLength(int catalogIndex) {
+		return catalog_header_len + (long)bytes_per_rup*numRups[catalogIndex];
+	}
+	
+	/**
+	 * @param startIndex
+	 * @param endIndex
+	 * @return total number of ruptures in catalogs [startIndex, endIndex)
+	 */
+	public long getTotalNumRuptures(int startIndex, int endIndex) {
+		long total = 0;
+		for (int i=startIndex; i<endIndex; i++)
+			total += numRups[i];
+		return total;
+	}
+	
+	/**
+	 * Splits the catalogs into contiguous disjoint ranges with approximately equal numbers of ruptures, e.g. for
+	 * parallel scanning or partitioning across compute nodes.
+	 *
+	 * @param numPartitions
+	 * @return list of [startIndex, endIndex) ranges
+	 */
+	public List<int[]> getPartitions(int numPartitions) {
+		Preconditions.checkArgument(numPartitions > 0);
+		int numCatalogs = getNumCatalogs();
+		List<int[]> ranges = new ArrayList<>();
+		if (numCatalogs == 0)
+			return ranges;
+		numPartitions = Math.min(numPartitions, numCatalogs);
+		// weight each catalog by its header as well so that empty catalogs are also split up
+		long totWeight = getTotalNumRuptures(0, numCatalogs) + numCatalogs;
+		int start = 0;
+		long runningWeight = 0;
+		for (int i=0; i<numCatalogs; i++) {
+			runningWeight += numRups[i] + 1;
+			long target = (long)((double)totWeight*(ranges.size()+1)/(double)numPartitions);
+			int remainingCatalogs = numCatalogs - (i+1);
+			int remainingPartitions = numPartitions - (ranges.size()+1);
+			if ((runningWeight >= target || remainingCatalogs == remainingPartitions) && ranges.size() < numPartitions-1) {
+				ranges.add(new int[] {start, i+1});
+				start = i+1;
+			}
+		}
+		ranges.add(new int[] {start, numCatalogs});
+		return ranges;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(ETAS_BinaryCatalogIndex.class)
+						+" <binary-file>");
+			System.exit(2);
+		}
+		File binFile = new File(args[0]);
+		ETAS_BinaryCatalogIndex index = build(binFile);
+		File indexFile = getIndexFile(binFile);
+		index.write(indexFile);
+		System.out.println("Wrote index for "+index.getNumCatalogs()+" catalogs ("
+				+index.getTotalNumRuptures(0, index.getNumCatalogs())+" ruptures) to "+indexFile.getAbsolutePath());
+	}
+	
+}
@@ -0,0 +1,495 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+import scratch.UCERF3.erf.ETAS.ETAS_SimAnalysisTools;
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Streaming, multi-threaded filter/transform pipeline for ETAS binary catalog files. Replaces sequential passes
+ * through {@link ETAS_BinaryCatalogFilterByMag}, {@link ETAS_BinaryCatalogFilterDependents},
+ * {@link ETAS_UnionBinary}, {@link ETAS_RandomizeBinary} and {@link DuplicateCatalogsBinarySearch} with a single
+ * pass that applies any combination of stages.
+ * <br>
+ * Input files (more than one means a union) are read through {@link ETAS_MappedBinaryCatalogReader}. Chunks of
+ * catalogs are decoded, transformed and re-encoded on a worker pool, and a single writer (the calling thread) writes
+ * the encoded chunks in input order. Duplicate detection is done by the writer so that the first occurrence is
+ * always the one retained.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_BinaryCatalogPipeline {
+	
+	/**
+	 * A single transformation applied to each catalog. Stages must be thread safe, as they will be called
+	 * concurrently for different catalogs.
+	 */
+	public interface CatalogStage {
+		
+		/**
+		 * @param catalogIndex index of this catalog in the (union of the) input file(s)
+		 * @param catalog
+		 * @return transformed catalog (which can be the input catalog modified in place)
+		 */
+		public List<ETAS_EqkRupture> apply(int catalogIndex, List<ETAS_EqkRupture> catalog);
+		
+		public String getName();
+	}
+	
+	/**
+	 * Magnitude filter, optionally preserving the triggering chain (all ancestors) of each retained rupture
+	 */
+	public static class MagFilterStage implements CatalogStage {
+		
+		private double minMag;
+		private boolean preserveChain;
+		
+		public MagFilterStage(double minMag, boolean preserveChain) {
+			this.minMag = minMag;
+			this.preserveChain = preserveChain;
+		}
+		
+		@Override
+		public List<ETAS_EqkRupture> apply(int catalogIndex, List<ETAS_EqkRupture> catalog) {
+			HashSet<Integer> keepIDs = null;
+			if (preserveChain) {
+				Map<Integer, ETAS_EqkRupture> idMap = new HashMap<>();
+				for (ETAS_EqkRupture rup : catalog)
+					idMap.put(rup.getID(), rup);
+				keepIDs = new HashSet<>();
+				for (ETAS_EqkRupture rup : catalog) {
+					if (rup.getMag() < minMag)
+						continue;
+					// add this rupture and all of its ancestors
+					while (rup != null && keepIDs.add(rup.getID()))
+						rup = idMap.get(rup.getParentID());
+				}
+			}
+			List<ETAS_EqkRupture> filtered = new ArrayList<>();
+			for (ETAS_EqkRupture rup : catalog)
+				if (rup.getMag() >= minMag || (keepIDs != null && keepIDs.contains(rup.getID())))
+					filtered.add(rup);
+			return filtered;
+		}
+		
+		@Override
+		public String getName() {
+			return "M>="+(float)minMag+(preserveChain ? " (preserve chain)" : "");
+		}
+	}
+	
+	/**
+	 * Retains only descendants of the given trigger parent ID
+	 */
+	public static class DescendantsStage implements CatalogStage {
+		
+		private int triggerParentID;
+		
+		public DescendantsStage(int triggerParentID) {
+			this.triggerParentID = triggerParentID;
+		}
+		
+		@Override
+		public List<ETAS_EqkRupture> apply(int catalogIndex, List<ETAS_EqkRupture> catalog) {
+			return ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, triggerParentID);
+		}
+		
+		@Override
+		public String getName() {
+			return "Descendants of "+triggerParentID;
+		}
+	}
+	
+	/**
+	 * Randomizes origin times uniformly within the given window, then resorts each catalog by origin time.
+	 * Each catalog uses its own random seed derived from the given seed and its index so that results are
+	 * reproducible regardless of thread scheduling.
+	 */
+	public static class RandomizeStage implements CatalogStage {
+		
+		private long ot;
+		private double durationMillis;
+		private long seed;
+		
+		public RandomizeStage(double startYear, double durationYears, long seed) {
+			this.ot = Math.round((startYear-1970.0)*ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+			this.durationMillis = durationYears * ProbabilityModelsCalc.MILLISEC_PER_YEAR;
+			this.seed = seed;
+		}
+		
+		@Override
+		public List<ETAS_EqkRupture> apply(int catalogIndex, List<ETAS_EqkRupture> catalog) {
+			Random r = new Random(seed + 31l*catalogIndex);
+			for (ETAS_EqkRupture rup : catalog) {
+				long time = ot + (long)(r.nextDouble()*durationMillis);
+				rup.setOriginTime(time);
+			}
+			Collections.sort(catalog, otComparator);
+			return catalog;
+		}
+		
+		@Override
+		public String getName() {
+			return "Randomize";
+		}
+	}
+	
+	private static final Comparator<ETAS_EqkRupture> otComparator = new Comparator<ETAS_EqkRupture>() {
+		
+		@Override
+		public int compare(ETAS_EqkRupture o1, ETAS_EqkRupture o2) {
+			return Long.compare(o1.getOriginTime(), o2.getOriginTime());
+		}
+	};
+	
+	private File[] inputFiles;
+	private List<CatalogStage> stages;
+	private boolean skipDuplicates = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int chunkSize = 100;
+	
+	private static final int print_mod = 1000;
+	
+	public ETAS_BinaryCatalogPipeline(File... inputFiles) {
+		Preconditions.checkArgument(inputFiles.length > 0, "Must supply at least one input file");
+		this.inputFiles = inputFiles;
+		this.stages = new ArrayList<>();
+	}
+	
+	public ETAS_BinaryCatalogPipeline addStage(CatalogStage stage) {
+		stages.add(stage);
+		return this;
+	}
+	
+	/**
+	 * @param skipDuplicates if true, non empty catalogs which are byte-for-byte identical (after all stages) to a
+	 * previous catalog will not be written
+	 */
+	public ETAS_BinaryCatalogPipeline setSkipDuplicates(boolean skipDuplicates) {
+		this.skipDuplicates = skipDuplicates;
+		return this;
+	}
+	
+	public ETAS_BinaryCatalogPipeline setThreads(int threads) {
+		Preconditions.checkArgument(threads > 0);
+		this.threads = threads;
+		return this;
+	}
+	
+	public ETAS_BinaryCatalogPipeline setChunkSize(int chunkSize) {
+		Preconditions.checkArgument(chunkSize > 0);
+		this.chunkSize = chunkSize;
+		return this;
+	}
+	
+	private static class EncodedChunk {
+		private byte[][] catalogs;
+		private String[] digests;
+		private long inNumRups;
+		private long outNumRups;
+	}
+	
+	private class ChunkTask implements Callable<EncodedChunk> {
+		
+		private ETAS_MappedBinaryCatalogReader reader;
+		private int globalStart;
+		private int localStart;
+		private int num;
+		
+		public ChunkTask(ETAS_MappedBinaryCatalogReader reader, int globalStart, int localStart, int num) {
+			this.reader = reader;
+			this.globalStart = globalStart;
+			this.localStart = localStart;
+			this.num = num;
+		}
+		
+		@Override
+		public EncodedChunk call() throws Exception {
+			EncodedChunk chunk = new EncodedChunk();
+			chunk.catalogs = new byte[num][];
+			if (skipDuplicates)
+				chunk.digests = new String[num];
+			MessageDigest md = skipDuplicates ? MessageDigest.getInstance("MD5") : null;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (int i=0; i<num; i++) {
+				List<ETAS_EqkRupture> catalog = reader.getCatalog(localStart+i);
+				chunk.inNumRups += catalog.size();
+				for (CatalogStage stage : stages)
+					catalog = stage.apply(globalStart+i, catalog);
+				chunk.outNumRups += catalog.size();
+				
+				bytes.reset();
+				DataOutputStream out = new DataOutputStream(bytes);
+				ETAS_CatalogIO.writeCatalogBinary(out, catalog);
+				out.flush();
+				chunk.catalogs[i] = bytes.toByteArray();
+				if (md != null && !catalog.isEmpty())
+					chunk.digests[i] = DuplicateCatalogsBinarySearch.bytesToHex(md.digest(chunk.catalogs[i]));
+			}
+			return chunk;
+		}
+	}
+	
+	/**
+	 * Single writer which consumes encoded chunks in order, skipping duplicates if enabled
+	 */
+	private class ChunkWriter {
+		
+		private DataOutputStream out;
+		private int totNumCatalogs;
+		private HashSet<String> digests;
+		
+		private int numProcessed = 0;
+		private int numWritten = 0;
+		private int numDuplicates = 0;
+		private long inNumRups = 0;
+		private long outNumRups = 0;
+		
+		public ChunkWriter(DataOutputStream out, int totNumCatalogs) {
+			this.out = out;
+			this.totNumCatalogs = totNumCatalogs;
+			if (skipDuplicates)
+				digests = new HashSet<>();
+		}
+		
+		public void write(EncodedChunk chunk) throws IOException {
+			int prevProcessed = numProcessed;
+			numProcessed += chunk.catalogs.length;
+			inNumRups += chunk.inNumRups;
+			outNumRups += chunk.outNumRups;
+			for (int i=0; i<chunk.catalogs.length; i++) {
+				if (digests != null && chunk.digests[i] != null && !digests.add(chunk.digests[i])) {
+					numDuplicates++;
+					continue;
+				}
+				out.write(chunk.catalogs[i]);
+				numWritten++;
+			}
+			if (numProcessed/print_mod > prevProcessed/print_mod)
+				System.out.println("Processed "+numProcessed+"/"+totNumCatalogs+" catalogs");
+		}
+	}
+	
+	/**
+	 * Runs the pipeline, writing results to the given output file
+	 *
+	 * @param outputFile
+	 * @return number of catalogs written
+	 * @throws IOException
+	 */
+	public int run(File outputFile) throws IOException {
+		List<ETAS_MappedBinaryCatalogReader> readers = new ArrayList<>();
+		int totNumCatalogs = 0;
+		for (File inputFile : inputFiles) {
+			ETAS_MappedBinaryCatalogReader reader = new ETAS_MappedBinaryCatalogReader(inputFile);
+			readers.add(reader);
+			totNumCatalogs += reader.getNumCatalogs();
+		}
+		
+		System.out.println("Processing "+totNumCatalogs+" catalogs from "+inputFiles.length+" file(s) with "
+				+threads+" threads");
+		for (CatalogStage stage : stages)
+			System.out.println("\tStage: "+stage.getName());
+		if (skipDuplicates)
+			System.out.println("\tStage: Skip Duplicates");
+		Stopwatch watch = Stopwatch.createStarted();
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(outputFile), ETAS_CatalogIO.buffer_len));
+		
+		// write number of catalogs as int
+		out.writeInt(totNumCatalogs); // will overwrite later if duplicates are skipped
+		
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		// limit the number of chunks in memory at any given time
+		int maxOutstanding = threads*4;
+		Deque<Future<EncodedChunk>> futures = new ArrayDeque<>();
+		
+		ChunkWriter writer = new ChunkWriter(out, totNumCatalogs);
+		
+		try {
+			int globalStart = 0;
+			for (ETAS_MappedBinaryCatalogReader reader : readers) {
+				for (int localStart=0; localStart<reader.getNumCatalogs(); localStart+=chunkSize) {
+					int num = Math.min(chunkSize, reader.getNumCatalogs()-localStart);
+					futures.add(exec.submit(new ChunkTask(reader, globalStart+localStart, localStart, num)));
+					
+					while (futures.size() >= maxOutstanding)
+						writer.write(futures.removeFirst().get());
+				}
+				globalStart += reader.getNumCatalogs();
+			}
+			while (!futures.isEmpty())
+				writer.write(futures.removeFirst().get());
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			out.close();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		out.close();
+		
+		for (ETAS_MappedBinaryCatalogReader reader : readers)
+			reader.close();
+		
+		int numWritten = writer.numWritten;
+		if (numWritten != totNumCatalogs) {
+			// overwrite the number of catalogs header
+			RandomAccessFile raf = new RandomAccessFile(outputFile, "rw");
+			raf.seek(0l);
+			raf.writeInt(numWritten);
+			raf.close();
+		}
+		
+		watch.stop();
+		System.out.println("Done in "+watch.elapsed(TimeUnit.SECONDS)+" secs");
+		System.out.println("Wrote "+numWritten+"/"+writer.numProcessed+" catalogs to "+outputFile.getAbsolutePath());
+		if (skipDuplicates)
+			System.out.println("Skipped "+writer.numDuplicates+" duplicates (excluding empty)");
+		double percentRetained = writer.inNumRups == 0 ? 0d : 100d*(double)writer.outNumRups/(double)writer.inNumRups;
+		System.out.println("Output ruptures represent "+(float)percentRetained+" % of input ruptures");
+		
+		return numWritten;
+	}
+	
+	private static Options createOptions() {
+		Options ops = new Options();
+		
+		Option minMag = new Option("m", "min-mag", true, "Minimum magnitude filter");
+		minMag.setRequired(false);
+		ops.addOption(minMag);
+		
+		Option preserve = new Option("p", "preserve-chain", false,
+				"Flag to preserve triggering chains when filtering by magnitude");
+		preserve.setRequired(false);
+		ops.addOption(preserve);
+		
+		Option descendants = new Option("d", "descendants-of", true,
+				"Only retain descendants of the given trigger parent ID");
+		descendants.setRequired(false);
+		ops.addOption(descendants);
+		
+		Option randStart = new Option("rs", "randomize-start-year", true,
+				"Randomize origin times starting at this year (requires --randomize-duration)");
+		randStart.setRequired(false);
+		ops.addOption(randStart);
+		
+		Option randDuration = new Option("rd", "randomize-duration", true,
+				"Randomize origin times over this many years (requires --randomize-start-year)");
+		randDuration.setRequired(false);
+		ops.addOption(randDuration);
+		
+		Option seed = new Option("seed", "random-seed", true, "Random seed for origin time randomization");
+		seed.setRequired(false);
+		ops.addOption(seed);
+		
+		Option dups = new Option("sd", "skip-duplicates", false, "Skip duplicate (non empty) catalogs");
+		dups.setRequired(false);
+		ops.addOption(dups);
+		
+		Option threads = new Option("t", "threads", true, "Number of threads (default: all available)");
+		threads.setRequired(false);
+		ops.addOption(threads);
+		
+		return ops;
+	}
+	
+	public static void main(String[] args) {
+		Options options = createOptions();
+		String syntax = ClassUtils.getClassNameWithoutPackage(ETAS_BinaryCatalogPipeline.class)
+				+" [options] <input1> [...<inputN>] <output>";
+		
+		CommandLineParser parser = new GnuParser();
+		
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp(syntax, options, true);
+			System.exit(2);
+		}
+		
+		String[] fileArgs = cmd.getArgs();
+		if (fileArgs.length < 2) {
+			new HelpFormatter().printHelp(syntax, options, true);
+			System.exit(2);
+		}
+		
+		File outputFile = new File(fileArgs[fileArgs.length-1]);
+		File[] inputFiles = new File[fileArgs.length-1];
+		for (int i=0; i<inputFiles.length; i++) {
+			inputFiles[i] = new File(fileArgs[i]);
+			Preconditions.checkArgument(inputFiles[i].exists(),
+					"Input file doesn't exist: %s", inputFiles[i].getAbsolutePath());
+		}
+		
+		ETAS_BinaryCatalogPipeline pipeline = new ETAS_BinaryCatalogPipeline(inputFiles);
+		
+		if (cmd.hasOption("descendants-of"))
+			pipeline.addStage(new DescendantsStage(Integer.parseInt(cmd.getOptionValue("descendants-of"))));
+		if (cmd.hasOption("min-mag"))
+			pipeline.addStage(new MagFilterStage(Double.parseDouble(cmd.getOptionValue("min-mag")),
+					cmd.hasOption("preserve-chain")));
+		if (cmd.hasOption("randomize-start-year") || cmd.hasOption("randomize-duration")) {
+			Preconditions.checkArgument(cmd.hasOption("randomize-start-year") && cmd.hasOption("randomize-duration"),
+					"Must supply both --randomize-start-year and --randomize-duration");
+			long seed = cmd.hasOption("random-seed") ? Long.parseLong(cmd.getOptionValue("random-seed"))
+					: System.nanoTime();
+			pipeline.addStage(new RandomizeStage(Double.parseDouble(cmd.getOptionValue("randomize-start-year")),
+					Double.parseDouble(cmd.getOptionValue("randomize-duration")), seed));
+		}
+		pipeline.setSkipDuplicates(cmd.hasOption("skip-duplicates"));
+		if (cmd.hasOption("threads"))
+			pipeline.setThreads(Integer.parseInt(cmd.getOptionValue("threads")));
+		
+		try {
+			pipeline.run(outputFile);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.flush();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+	
+}
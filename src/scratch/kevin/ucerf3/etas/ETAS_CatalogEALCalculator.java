@@ -16,6 +16,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -42,6 +47,7 @@ import org.opensha.commons.gui.plot.PlotLineType;
 import org.opensha.commons.gui.plot.PlotSpec;
 import org.opensha.commons.util.DataUtils;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileNameComparator;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
@@ -98,7 +104,9 @@ public class ETAS_CatalogEALCalculator {
 	}
 	
 	private UCERF3_BranchAvgLossFetcher fetcher;
-	private List<? extends List<ETAS_EqkRupture>> catalogs;
+	private ETAS_ColumnarCatalogs catalogs;
+	// FSS index for each rupture in the catalogs (see getFSSIndex(ETAS_EqkRupture)), -1 if gridded
+	private int[] rupFSSIndexes;
 	private long startTime;
 	private FaultModels fm;
 	
@@ -108,7 +116,11 @@ public class ETAS_CatalogEALCalculator {
 	
 	private ETAS_EqkRupture triggerRup;
 	
-	private static boolean rup_mean_loss = true; // otherwise propagate loss distribution
+	private static boolean rup_mean_loss = false; // otherwise propagate loss distribution
+	// log10 bin spacing when propagating loss distributions, see LogBinnedLossConvolver
+	private static double loss_dist_log10_delta = LogBinnedLossConvolver.DEFAULT_LOG10_DELTA;
+	
+	private int threads = Runtime.getRuntime().availableProcessors();
 	
 	private static final double outside_region_dist_tol = 10d; // km
 	
@@ -116,7 +128,7 @@ public class ETAS_CatalogEALCalculator {
 	
 	private static int id_for_scenario = 0;
 	
-	private static List<? extends List<ETAS_EqkRupture>> loadCatalogs(File resultsBinFile) throws IOException {
+	private static ETAS_ColumnarCatalogs loadCatalogs(File resultsBinFile) throws IOException {
 		Preconditions.checkArgument(resultsBinFile.exists(), "catalog file doesn't exist");
 		
 		return loadCatalogs(resultsBinFile, AbstractGridSourceProvider.SOURCE_MIN_MAG_CUTOFF-0.05);
@@ -129,20 +141,30 @@ public class ETAS_CatalogEALCalculator {
 	
 	public ETAS_CatalogEALCalculator(UCERF3_BranchAvgLossFetcher fetcher, FaultSystemSolution meanSol,
 			FaultModels fm, List<? extends List<ETAS_EqkRupture>> catalogs) throws IOException, DocumentException {
+		this(fetcher, meanSol, fm, ETAS_ColumnarCatalogs.fromCatalogs(catalogs));
+	}
+	
+	/**
+	 * Loss calculator for catalogs in columnar form. Losses are computed from the primitive rupture values, and
+	 * ruptures are only built in unusual cases (gridded ruptures outside the region or with unexpected magnitudes,
+	 * and triggered only calculations).
+	 */
+	public ETAS_CatalogEALCalculator(UCERF3_BranchAvgLossFetcher fetcher, FaultSystemSolution meanSol,
+			FaultModels fm, ETAS_ColumnarCatalogs catalogs) throws IOException, DocumentException {
 		this.fetcher = fetcher;
 		this.fm = fm;
 		
 		this.catalogs = catalogs;
 		startTime = Long.MAX_VALUE;
-		for (List<ETAS_EqkRupture> catalog : catalogs) {
-			if (!catalog.isEmpty()) {
-				if (catalog.get(0).getOriginTime() < startTime)
-					startTime = catalog.get(0).getOriginTime();
+		for (int c=0; c<catalogs.getNumCatalogs(); c++) {
+			if (catalogs.getNumRuptures(c) > 0) {
+				if (catalogs.getOriginTime(catalogs.getStartIndex(c)) < startTime)
+					startTime = catalogs.getOriginTime(catalogs.getStartIndex(c));
 			}
 		}
 		
-		Preconditions.checkState(!catalogs.isEmpty(), "No catalogs loaded!");
-		System.out.println("Loaded "+catalogs.size()+" catalogs");
+		Preconditions.checkState(catalogs.getNumCatalogs() > 0, "No catalogs loaded!");
+		System.out.println("Loaded "+catalogs.getNumCatalogs()+" catalogs");
 		
 		LastEventData.populateSubSects(meanSol.getRupSet().getFaultSectionDataList(), LastEventData.load());
 		this.meanSol = meanSol;
@@ -153,6 +175,11 @@ public class ETAS_CatalogEALCalculator {
 		erf.updateForecast();
 		AbstractGridSourceProvider.SOURCE_MIN_MAG_CUTOFF = origMinMag;
 		System.out.println("Done loading ERF");
+		
+		// single pass, each rupture is only built here to look up its FSS index
+		rupFSSIndexes = new int[catalogs.getTotalNumRuptures()];
+		for (int r=0; r<rupFSSIndexes.length; r++)
+			rupFSSIndexes[r] = getFSSIndex(catalogs.buildRupture(r));
 	}
 	
 //	static List<List<ETAS_EqkRupture>> loadCatalogs(File[] etasCatalogsDirs, double minGriddedMag) throws IOException {
@@ -163,6 +190,14 @@ public class ETAS_CatalogEALCalculator {
 		this.triggeredOnly = triggeredOnly;
 	}
 	
+	/**
+	 * @param threads number of threads used to propagate catalog loss distributions
+	 */
+	public void setThreads(int threads) {
+		Preconditions.checkArgument(threads > 0);
+		this.threads = threads;
+	}
+	
 	/**
 	 * Load ETAS catalogs from file.
 	 * @param etasCatalogsDirs
@@ -171,15 +206,15 @@ public class ETAS_CatalogEALCalculator {
 	 * @return
 	 * @throws IOException
 	 */
-	static List<? extends List<ETAS_EqkRupture>> loadCatalogs(File resultsBinFile, double minGriddedMag) throws IOException {
+	static ETAS_ColumnarCatalogs loadCatalogs(File resultsBinFile, double minGriddedMag) throws IOException {
 		int numEmpty = 0;
 		
-		List<? extends List<ETAS_EqkRupture>> catalogs = ETAS_CatalogIO.loadCatalogsBinary(resultsBinFile, minGriddedMag);
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			if (catalog.isEmpty())
+		ETAS_ColumnarCatalogs catalogs = ETAS_ColumnarCatalogs.loadBinary(resultsBinFile, minGriddedMag);
+		for (int c=0; c<catalogs.getNumCatalogs(); c++)
+			if (catalogs.getNumRuptures(c) == 0)
 				numEmpty++;
 		
-		System.out.println(numEmpty+"/"+catalogs.size()+" catalogs are empty "
+		System.out.println(numEmpty+"/"+catalogs.getNumCatalogs()+" catalogs are empty "
 				+ "(including only fault and gridded above "+minGriddedMag+")");
 		return catalogs;
 	}
@@ -261,8 +296,9 @@ public class ETAS_CatalogEALCalculator {
 	
 	private double getRoundedMaxCatalogDiration() {
 		double maxCatalogDuration = 0d;
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			maxCatalogDuration = Math.max(maxCatalogDuration, ETAS_MultiSimAnalysisTools.calcDurationYears(catalog));
+		for (int c=0; c<catalogs.getNumCatalogs(); c++)
+			maxCatalogDuration = Math.max(maxCatalogDuration,
+					ETAS_MultiSimAnalysisTools.calcDurationYears(catalogs.getCatalog(c)));
 		// round to nearest year
 		maxCatalogDuration = Math.round(maxCatalogDuration);
 		return maxCatalogDuration;
@@ -285,6 +321,15 @@ public class ETAS_CatalogEALCalculator {
 		DiscretizedFunc[] griddedMagLossDists = fetcher.getGriddedMagLossDists(
 				attenRelRef, region);
 		
+		// grid node index for each gridded rupture, -1 if not in the region (those are handled separately)
+		int[] gridNodeIndexes = new int[catalogs.getTotalNumRuptures()];
+		for (int r=0; r<gridNodeIndexes.length; r++) {
+			if (rupFSSIndexes[r] >= 0)
+				gridNodeIndexes[r] = -1;
+			else
+				gridNodeIndexes[r] = region.indexForLocation(catalogs.getHypocenterLocation(r));
+		}
+		
 		double maxCatalogDuration = getRoundedMaxCatalogDiration();
 		System.out.println("Max duration: "+maxCatalogDuration+" yrs");
 		
@@ -305,12 +350,14 @@ public class ETAS_CatalogEALCalculator {
 			
 			List<DiscretizedFunc> catalogDists = Lists.newArrayList();
 			
-			List<? extends List<ETAS_EqkRupture>> catalogs = this.catalogs;
+			// global rupture index range of each (sub) catalog, start is -1 for empty sub catalogs
+			int[] rangeStarts;
+			int[] rangeEnds;
 			if (allSubDurations && maxCatalogDuration > durationYears*1.1) {
 				int numPer = (int)(maxCatalogDuration/durationYears);
 				System.out.println(numPer+" sub catalogs for "+durationYears+" yr");
-				if (numPer*catalogs.size() > max_all_sub_durations_n) {
-					numPer = max_all_sub_durations_n/catalogs.size();
+				if (numPer*catalogs.getNumCatalogs() > max_all_sub_durations_n) {
+					numPer = max_all_sub_durations_n/catalogs.getNumCatalogs();
 					System.out.println("Too many sub catalogs, trimming to "+numPer+" each");
 				}
 				Preconditions.checkState(numPer > 1, "bad numPer=%, durationYears=%s, maxCatDuration=%s",
@@ -323,50 +370,62 @@ public class ETAS_CatalogEALCalculator {
 					else
 						maxTimes[i] = maxTimes[i-1] + millisEach;
 				}
-				List<List<ETAS_EqkRupture>> subCatalogs = Lists.newArrayList();
-				for (List<ETAS_EqkRupture> catalog : catalogs) {
+				rangeStarts = new int[numPer*catalogs.getNumCatalogs()];
+				rangeEnds = new int[rangeStarts.length];
+				Arrays.fill(rangeStarts, -1);
+				for (int c=0; c<catalogs.getNumCatalogs(); c++) {
 					int curIndex = 0;
-					List<List<ETAS_EqkRupture>> mySubCatalogs = Lists.newArrayList();
-					for (int i=0; i<numPer; i++)
-						mySubCatalogs.add(null);
-					catalogLoop:
-					for (ETAS_EqkRupture rup : catalog) {
-						while (rup.getOriginTime() > maxTimes[curIndex]) {
+					int offset = c*numPer;
+					for (int r=catalogs.getStartIndex(c); r<catalogs.getEndIndex(c); r++) {
+						while (catalogs.getOriginTime(r) > maxTimes[curIndex]) {
 							curIndex++;
 							if (curIndex == maxTimes.length)
-								break catalogLoop;
+								break;
 						}
-						if (mySubCatalogs.get(curIndex) == null)
-							mySubCatalogs.set(curIndex, new ArrayList<ETAS_EqkRupture>());
-						mySubCatalogs.get(curIndex).add(rup);
+						if (curIndex == maxTimes.length)
+							break;
+						if (rangeStarts[offset+curIndex] < 0)
+							rangeStarts[offset+curIndex] = r;
+						rangeEnds[offset+curIndex] = r+1;
 					}
-					subCatalogs.addAll(mySubCatalogs);
 				}
-				catalogs = subCatalogs;
+			} else {
+				rangeStarts = new int[catalogs.getNumCatalogs()];
+				rangeEnds = new int[rangeStarts.length];
+				for (int c=0; c<rangeStarts.length; c++) {
+					rangeStarts[c] = catalogs.getStartIndex(c);
+					rangeEnds[c] = catalogs.getEndIndex(c);
+				}
 			}
 			
-			double rateEach = 1d/catalogs.size();
+			double rateEach = 1d/rangeStarts.length;
 			
-			for (int i = 0; i < catalogs.size(); i++) {
-				List<ETAS_EqkRupture> catalog = catalogs.get(i);
-				
+			// catalogs with fault ruptures have their loss distributions propagated in parallel
+			ExecutorService exec = null;
+			List<Integer> futureIndexes = new ArrayList<>();
+			List<Future<DiscretizedFunc>> futures = new ArrayList<>();
+			
+			for (int i = 0; i < rangeStarts.length; i++) {
 				DiscretizedFunc func;
-				if (catalog == null) {
+				if (rangeStarts[i] < 0) {
 					func = new LightFixedXFunc(new double[] {0d}, new double[] {1d});
 				} else {
 					func = new ArbitrarilyDiscretizedFunc();
 					List<Double> singleLosses = Lists.newArrayList();
 					List<DiscretizedFunc> lossDists = Lists.newArrayList();
 					
+					HashSet<Integer> triggeredIDs = null;
 					if (triggeredOnly)
-						catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
+						triggeredIDs = getTriggeredIDs(rangeStarts[i], rangeEnds[i]);
 					
-					for (ETAS_EqkRupture rup : catalog) {
-						if (!allSubDurations && rup.getOriginTime() > maxTime)
+					for (int r=rangeStarts[i]; r<rangeEnds[i]; r++) {
+						if (!allSubDurations && catalogs.getOriginTime(r) > maxTime)
 							break;
-						int fssIndex = getFSSIndex(rup);
+						if (triggeredIDs != null && !triggeredIDs.contains(catalogs.getID(r)))
+							continue;
+						int fssIndex = rupFSSIndexes[r];
 						
-						double mag = rup.getMag();
+						double mag = catalogs.getMag(r);
 						
 						double rupLoss = 0d;
 						if (fssIndex >= 0) {
@@ -385,7 +444,7 @@ public class ETAS_CatalogEALCalculator {
 							Preconditions.checkState((float)sumY == 1f, "rup losses don't sum to 1: "+(float)sumY);
 						} else {
 							// grid source
-							rupLoss = calcGridSourceLoss(rup, region, griddedMagLossDists, "Catalog "+i);
+							rupLoss = calcGridSourceLoss(r, gridNodeIndexes, region, griddedMagLossDists, i);
 							// single loss value with weight=1
 							singleLosses.add(rupLoss);
 						}
@@ -418,28 +477,12 @@ public class ETAS_CatalogEALCalculator {
 						// only point sources
 						func.set(xAxisScale*totSingleLosses, 1d);
 					} else {
-						// calculate expected number of loss dists for verification
-						int expectedNum = 1;
-						for (DiscretizedFunc lossDist : lossDists)
-							expectedNum *= lossDist.size();
-						
-						List<LossChain> lossChains = getLossChains(totSingleLosses, lossDists);
-						Preconditions.checkState(lossChains.size() == expectedNum,
-								"expected "+expectedNum+" chains, got "+lossChains.size());
-						
-						double sumWeight = 0d;
-						for (LossChain chain : lossChains) {
-							double weight = chain.weight;
-							double loss = chain.totLoss;
-							sumWeight += weight;
-							int xInd = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(loss, func);
-							if (xInd < 0)
-								func.set(xAxisScale*loss, weight);
-							else
-								func.set(xAxisScale*loss, weight + func.getY(xInd));
-						}
-						Preconditions.checkState((float)sumWeight == 1f,
-								"chain weights don't sum to 1: "+sumWeight+" ("+lossChains.size()+" chains)");
+						if (exec == null)
+							exec = Executors.newFixedThreadPool(threads);
+						futureIndexes.add(i);
+						futures.add(exec.submit(new LossDistConvolveCallable(totSingleLosses, lossDists, xAxisScale)));
+						catalogDists.add(null);
+						continue;
 					}
 				}
 				
@@ -451,6 +494,18 @@ public class ETAS_CatalogEALCalculator {
 				catalogDists.add(new LightFixedXFunc(func));
 			}
 			
+			if (exec != null) {
+				System.out.println("Propagating loss distributions for "+futures.size()+" catalogs");
+				try {
+					for (int f=0; f<futures.size(); f++)
+						catalogDists.set(futureIndexes.get(f), futures.get(f).get());
+				} catch (InterruptedException | ExecutionException e) {
+					exec.shutdownNow();
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+				exec.shutdown();
+			}
+			
 			if (triggerRup != null) {
 				int fssIndex = getFSSIndex(triggerRup);
 				
@@ -515,6 +570,40 @@ public class ETAS_CatalogEALCalculator {
 		return nodeIndex;
 	}
 	
+	/**
+	 * Grid source loss for the given rupture in the columnar catalogs. Ruptures outside the region or whose magnitude
+	 * isn't found at their node are built and passed to
+	 * {@link #calcGridSourceLoss(ETAS_EqkRupture, GriddedRegion, DiscretizedFunc[], String)}.
+	 */
+	private double calcGridSourceLoss(int rupIndex, int[] gridNodeIndexes, GriddedRegion region,
+			DiscretizedFunc[] griddedMagLossDists, int catalogIndex) {
+		double mag = catalogs.getMag(rupIndex);
+		if ((float)mag < (float)AbstractGridSourceProvider.SOURCE_MIN_MAG_CUTOFF)
+			// below our min mag
+			return 0;
+		int nodeIndex = gridNodeIndexes[rupIndex];
+		if (nodeIndex >= 0) {
+			DiscretizedFunc magLossDist = griddedMagLossDists[nodeIndex];
+			int magIndex = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(mag, magLossDist);
+			if (magIndex >= 0)
+				return magLossDist.getY(magIndex);
+		}
+		return calcGridSourceLoss(catalogs.buildRupture(rupIndex), region, griddedMagLossDists, "Catalog "+catalogIndex);
+	}
+	
+	/**
+	 * @return IDs of the ruptures in the given global index range which were triggered by the scenario rupture
+	 */
+	private HashSet<Integer> getTriggeredIDs(int startIndex, int endIndex) {
+		List<ETAS_EqkRupture> catalog = new ArrayList<>(endIndex - startIndex);
+		for (int r=startIndex; r<endIndex; r++)
+			catalog.add(catalogs.buildRupture(r));
+		HashSet<Integer> ids = new HashSet<>();
+		for (ETAS_EqkRupture rup : ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario))
+			ids.add(rup.getID());
+		return ids;
+	}
+	
 	double calcGridSourceLoss(ETAS_EqkRupture rup, GriddedRegion region,
 			DiscretizedFunc[] griddedMagLossDists, String catName) {
 		double mag = rup.getMag();
@@ -621,48 +710,29 @@ public class ETAS_CatalogEALCalculator {
 		triggerRup.setNthERF_Index(erf.get_nthRupIndicesForSource(erf.getSrcIndexForFltSysRup(fssRupID))[0]);
 	}
 	
-	private List<LossChain> getLossChains(double totSingleLosses, List<DiscretizedFunc> distsToProcess) {
-		return getLossChains(new LossChain(totSingleLosses), distsToProcess, 0);
-	}
-	
-	private List<LossChain> getLossChains(LossChain prevChain,
-			List<DiscretizedFunc> distsToProcess, int distIndex) {
-		if (distIndex == distsToProcess.size())
-			// we're done
-			return Lists.newArrayList(prevChain);
-		DiscretizedFunc lossDist = distsToProcess.get(distIndex);
-		
-		List<LossChain> ret = Lists.newArrayList();
-		
-		for (Point2D pt : lossDist) {
-			LossChain newChain = prevChain.copy();
-			newChain.add(pt.getX(), pt.getY());
-			ret.addAll(getLossChains(newChain, distsToProcess, distIndex+1));
-		}
+	private static class LossDistConvolveCallable implements Callable<DiscretizedFunc> {
 		
-		return ret;
-	}
-	
-	private class LossChain {
-		private double totLoss;
-		private double weight;
-		
-		public LossChain(double totSingleLosses) {
-			this(totSingleLosses, 1d);
-		}
-		
-		private LossChain(double totLoss, double weight) {
-			this.totLoss = totLoss;
-			this.weight = weight;
-		}
+		private double totSingleLosses;
+		private List<DiscretizedFunc> lossDists;
+		private double xAxisScale;
 		
-		public void add(double loss, double weight) {
-			this.totLoss += loss;
-			this.weight *= weight;
+		public LossDistConvolveCallable(double totSingleLosses, List<DiscretizedFunc> lossDists, double xAxisScale) {
+			this.totSingleLosses = totSingleLosses;
+			this.lossDists = lossDists;
+			this.xAxisScale = xAxisScale;
 		}
 		
-		public LossChain copy() {
-			return new LossChain(totLoss, weight);
+		@Override
+		public DiscretizedFunc call() throws Exception {
+			LogBinnedLossConvolver convolver = new LogBinnedLossConvolver(
+					LogBinnedLossConvolver.DEFAULT_MIN_LOSS, loss_dist_log10_delta);
+			convolver.addFixedLoss(totSingleLosses);
+			for (DiscretizedFunc lossDist : lossDists)
+				convolver.convolve(lossDist);
+			double sumWeight = convolver.getSumWeight();
+			Preconditions.checkState((float)sumWeight == 1f,
+					"convolved weights don't sum to 1: "+sumWeight+" ("+lossDists.size()+" dists)");
+			return convolver.getDistribution(xAxisScale);
 		}
 	}
 	
@@ -1362,7 +1432,7 @@ public class ETAS_CatalogEALCalculator {
 		// write maximum
 		double maxDur = durations.get(durations.size()-1);
 		List<DiscretizedFunc> maxLosses = lossDists.get(maxDur);
-		if (maxLosses.size() == catalogs.size()) {
+		if (maxLosses.size() == catalogs.getNumCatalogs()) {
 			// won't if all sub durations
 			File csvFile = new File(dir, prefix+"_"+getDurationLabel(maxDur).replaceAll(" ", "")+".csv");
 			writeLossesToCSV(csvFile, maxLosses);
@@ -1401,8 +1471,8 @@ public class ETAS_CatalogEALCalculator {
 	}
 	
 	public void writeLossesToCSV(File csvFile, List<DiscretizedFunc> lossDists) throws IOException {
-		Preconditions.checkState(lossDists.size() == catalogs.size(), "Have %s dists but %s catalogs!",
-				lossDists.size(), catalogs.size());
+		Preconditions.checkState(lossDists.size() == catalogs.getNumCatalogs(), "Have %s dists but %s catalogs!",
+				lossDists.size(), catalogs.getNumCatalogs());
 		
 		CSVFile<String> csv = new CSVFile<String>(true);
 		
@@ -1410,19 +1480,19 @@ public class ETAS_CatalogEALCalculator {
 		csv.addLine("Index", "Total Mean Loss", "# FSS Ruptures",
 				"# M>="+(float)cutoffMag, "Max Mag");
 		
-		for (int i=0; i<catalogs.size(); i++) {
+		for (int i=0; i<catalogs.getNumCatalogs(); i++) {
 			double totLoss = 0d;
 			for (Point2D pt : lossDists.get(i))
 				totLoss += pt.getX()*pt.getY();
 			int numFSSRups = 0;
 			int numAbove = 0;
 			double maxMag = 0;
-			for (ETAS_EqkRupture rup : catalogs.get(i)) {
-				if (getFSSIndex(rup) >= 0)
+			for (int r=catalogs.getStartIndex(i); r<catalogs.getEndIndex(i); r++) {
+				if (rupFSSIndexes[r] >= 0)
 					numFSSRups++;
-				if (rup.getMag() > maxMag)
-					maxMag = rup.getMag();
-				if ((float)rup.getMag() >= (float)cutoffMag)
+				if (catalogs.getMag(r) > maxMag)
+					maxMag = catalogs.getMag(r);
+				if ((float)catalogs.getMag(r) >= (float)cutoffMag)
 					numAbove++;
 			}
 			csv.addLine(i+"", totLoss+"", numFSSRups+"", numAbove+"", maxMag+"");
@@ -1456,19 +1526,18 @@ public class ETAS_CatalogEALCalculator {
 			}
 		}
 		
-		for (int i=0; i<catalogs.size(); i++) {
-			List<ETAS_EqkRupture> catalog = catalogs.get(i);
+		for (int i=0; i<catalogs.getNumCatalogs(); i++) {
 			rupLoop:
-			for (ETAS_EqkRupture rup : catalog) {
-				int fssIndex = getFSSIndex(rup);
+			for (int r=catalogs.getStartIndex(i); r<catalogs.getEndIndex(i); r++) {
+				int fssIndex = rupFSSIndexes[r];
 				if (fssIndex >= 0) {
 					List<FaultSection> data = rupSet.getFaultSectionDataForRupture(fssIndex);
 					for (int sectID : rupSet.getSectionsIndicesForRup(fssIndex)) {
 						if (sectIDs.contains(sectID)) {
 							String name = data.size()+" SECTIONS BETWEEN "+data.get(0).getName()
 									+" AND "+data.get(data.size()-1).getName();
-							float mag = (float)rup.getMag();
-							float deltaDays = (float)((rup.getOriginTime()-ot)/1000d/60d/60d/24d);
+							float mag = (float)catalogs.getMag(r);
+							float deltaDays = (float)((catalogs.getOriginTime(r)-ot)/1000d/60d/60d/24d);
 							System.out.println("catalog "+i+" has a M"+mag+" match "+deltaDays+" days after on: "+name);
 							continue rupLoop;
 						}
@@ -1655,7 +1724,7 @@ public class ETAS_CatalogEALCalculator {
 		if (triggeredOnly)
 			csvPrefixAdd = "_triggered";
 		
-		List<? extends List<ETAS_EqkRupture>> catalogs = null;
+		ETAS_ColumnarCatalogs catalogs = null;
 		
 		ETAS_CatalogEALCalculator calc = null;
 		
@@ -1673,9 +1742,10 @@ public class ETAS_CatalogEALCalculator {
 				// trim durations
 				List<Double> myDurations = Lists.newArrayList();
 				double maxDuration = 0d;
-				for (List<ETAS_EqkRupture> catalog : catalogs)
-					if (!catalog.isEmpty())
-						maxDuration = Math.max(maxDuration, ETAS_MultiSimAnalysisTools.calcDurationYears(catalog));
+				for (int c=0; c<catalogs.getNumCatalogs(); c++)
+					if (catalogs.getNumRuptures(c) > 0)
+						maxDuration = Math.max(maxDuration,
+								ETAS_MultiSimAnalysisTools.calcDurationYears(catalogs.getCatalog(c)));
 				Preconditions.checkState(maxDuration > 0);
 				System.out.println("Max catalog direction detected: "+maxDuration);
 				// pad max duration by 50%
@@ -1725,7 +1795,7 @@ public class ETAS_CatalogEALCalculator {
 //				writeLossHist(outputDir, attenRelRef.name(), lossHist, isLog10);
 				writeLossHist(outputDir, attenRelRef.name()+prefixAdd, lossHists, isLog10, triggeredOnly,
 						xAxisLabel, maxX);
-				Map<Double, DiscretizedFunc> exceedFuncs = toExceedFuncs(lossHists, calc.catalogs.size(),
+				Map<Double, DiscretizedFunc> exceedFuncs = toExceedFuncs(lossHists, calc.catalogs.getNumCatalogs(),
 						allSubDurations, calc.getRoundedMaxCatalogDiration());
 				for (double duration : exceedFuncs.keySet())
 					gmpeCombLossExceeds.put(attenRelRef.name(), duration, exceedFuncs.get(duration));
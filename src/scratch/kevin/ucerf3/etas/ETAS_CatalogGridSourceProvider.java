@@ -58,6 +58,10 @@ public class ETAS_CatalogGridSourceProvider extends AbstractGridSourceProvider {
 	
 	public ETAS_CatalogGridSourceProvider(List<? extends List<ETAS_EqkRupture>> catalogs, double resolution,
 			boolean conditional) {
+		this(ETAS_ColumnarCatalogs.fromCatalogs(catalogs), resolution, conditional);
+	}
+	
+	public ETAS_CatalogGridSourceProvider(ETAS_ColumnarCatalogs catalogs, double resolution, boolean conditional) {
 		this.conditional = conditional;
 		Preconditions.checkState(resolution <= region.getSpacing());
 		
@@ -71,32 +75,31 @@ public class ETAS_CatalogGridSourceProvider extends AbstractGridSourceProvider {
 		initIndexMap();
 	}
 	
-	private void initMFDs(List<? extends List<ETAS_EqkRupture>> catalogs) {
+	private void initMFDs(ETAS_ColumnarCatalogs catalogs) {
 		nodeMFDs = Maps.newHashMap();
 		
 		double rateEach;
 		if (conditional)
 			rateEach = 1d;
 		else
-			rateEach = 1d/catalogs.size();
+			rateEach = 1d/catalogs.getNumCatalogs();
 		
 		int numSkipped = 0;
 		int tot = 0;
 		int dupMFD_nodes = 0;
 		
 		int printMod = 1000;
-		if (catalogs.size() > 10000)
+		if (catalogs.getNumCatalogs() > 10000)
 			printMod = 10000;
-		System.out.println("Initializing ETAS gridded MFDs for "+catalogs.size()+" catalogs");
-		for (int i=0; i<catalogs.size(); i++) {
+		System.out.println("Initializing ETAS gridded MFDs for "+catalogs.getNumCatalogs()+" catalogs");
+		for (int i=0; i<catalogs.getNumCatalogs(); i++) {
 			if (i % printMod == 0)
 				System.out.println("Processing catalog "+i);
-			List<ETAS_EqkRupture> catalog = catalogs.get(i);
-			for (ETAS_EqkRupture rup : catalog) {
-				if (rup.getMag() < MIN_CATALOG_MAG || rup.getFSSIndex() >= 0)
+			for (int r=catalogs.getStartIndex(i); r<catalogs.getEndIndex(i); r++) {
+				double mag = catalogs.getMag(r);
+				if (mag < MIN_CATALOG_MAG || catalogs.getFSSIndex(r) >= 0)
 					continue;
-				Location loc = rup.getHypocenterLocation();
-				int node = highResRegion.indexForLocation(loc);
+				int node = getNodeIndex(catalogs.getLatitude(r), catalogs.getLongitude(r));
 				tot++;
 				if (node < 0) {
 					numSkipped++;
@@ -109,7 +112,7 @@ public class ETAS_CatalogGridSourceProvider extends AbstractGridSourceProvider {
 					mfd.setInfo("OG MFD. delta="+mfd.getDelta()+" "+DELTA_MAG);
 					nodeMFDs.put(node, mfd);
 				}
-				int magIndex = mfd.getClosestXIndex(rup.getMag());
+				int magIndex = mfd.getClosestXIndex(mag);
 				if (mfd.getY(magIndex) > 0)
 					dupMFD_nodes++;
 				if (conditional)
@@ -224,10 +227,31 @@ public class ETAS_CatalogGridSourceProvider extends AbstractGridSourceProvider {
 		return highResRegion.indexForLocation(etasRup.getHypocenterLocation());
 	}
 	
+	/**
+	 * @param lat hypocenter latitude
+	 * @param lon hypocenter longitude
+	 * @return node index for a rupture at the given location, or -1 if outside of the region
+	 */
+	public int getNodeIndex(double lat, double lon) {
+		return highResRegion.indexForLocation(new Location(lat, lon));
+	}
+	
 	public int getMagIndex(ETAS_EqkRupture etasRup) {
-		if (etasRup.getMag() < MIN_CATALOG_MAG)
+		return getMagIndex(etasRup.getMag());
+	}
+	
+	/**
+	 * @param mag
+	 * @return magnitude bin index for a rupture with the given magnitude, or -1 if below the minimum
+	 */
+	public int getMagIndex(double mag) {
+		if (mag < MIN_CATALOG_MAG)
 			return -1;
-		return sampleMFD.getClosestXIndex(etasRup.getMag());
+		return sampleMFD.getClosestXIndex(mag);
+	}
+	
+	public int getNumMagBins() {
+		return NUM_MAG;
 	}
 	
 	public Iterable<ProbEqkRupture> getConditionalRuptures(ETAS_EqkRupture etasRup) {
@@ -0,0 +1,347 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Columnar in memory representation of a set of ETAS catalogs. Each rupture attribute is stored in a primitive
+ * array spanning all catalogs, with per catalog offsets into those arrays. This uses a small fraction of the memory
+ * of a List<List<ETAS_EqkRupture>>, where each rupture is a heavyweight object with its own hypocenter Location
+ * and parameter list.
+ * <br>
+ * Primitive accessors take a global rupture index, see {@link #getStartIndex(int)} and {@link #getEndIndex(int)}.
+ * {@link #asCatalogList()} returns a List<List<ETAS_EqkRupture>> view for use with existing calculators, in which
+ * ruptures are built on the fly when accessed and are not retained. The following fields are populated in view
+ * ruptures: ID, parent ID, generation, origin time, magnitude, hypocenter, distance to parent, FSS index, nth ERF
+ * index and grid node index. Calculators which visit every rupture many times (e.g. once per site) should use the
+ * primitive accessors instead, as each access of a view rupture builds a new object.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_ColumnarCatalogs {
+	
+	private int[] catalogStarts; // length numCatalogs+1
+	
+	private int[] ids;
+	private int[] parentIDs;
+	private short[] generations;
+	private long[] originTimes;
+	private double[] mags;
+	private double[] lats;
+	private double[] lons;
+	private double[] depths;
+	private double[] distsToParent;
+	private int[] fssIndexes;
+	private int[] nthERFIndexes;
+	private int[] gridNodeIndexes;
+	
+	private ETAS_ColumnarCatalogs(int numCatalogs, int numRups) {
+		catalogStarts = new int[numCatalogs+1];
+		ids = new int[numRups];
+		parentIDs = new int[numRups];
+		generations = new short[numRups];
+		originTimes = new long[numRups];
+		mags = new double[numRups];
+		lats = new double[numRups];
+		lons = new double[numRups];
+		depths = new double[numRups];
+		distsToParent = new double[numRups];
+		fssIndexes = new int[numRups];
+		nthERFIndexes = new int[numRups];
+		gridNodeIndexes = new int[numRups];
+	}
+	
+	/**
+	 * Builds a columnar representation of the given catalogs
+	 *
+	 * @param catalogs
+	 * @return columnar catalogs
+	 */
+	public static ETAS_ColumnarCatalogs fromCatalogs(List<? extends List<ETAS_EqkRupture>> catalogs) {
+		long totRups = 0;
+		for (List<ETAS_EqkRupture> catalog : catalogs)
+			totRups += catalog.size();
+		Preconditions.checkState(totRups <= Integer.MAX_VALUE, "Too many ruptures: %s", totRups);
+		ETAS_ColumnarCatalogs columnar = new ETAS_ColumnarCatalogs(catalogs.size(), (int)totRups);
+		int index = 0;
+		for (int c=0; c<catalogs.size(); c++) {
+			columnar.catalogStarts[c] = index;
+			for (ETAS_EqkRupture rup : catalogs.get(c)) {
+				columnar.ids[index] = rup.getID();
+				columnar.parentIDs[index] = rup.getParentID();
+				columnar.generations[index] = (short)rup.getGeneration();
+				columnar.originTimes[index] = rup.getOriginTime();
+				columnar.mags[index] = rup.getMag();
+				Location hypo = rup.getHypocenterLocation();
+				columnar.lats[index] = hypo.getLatitude();
+				columnar.lons[index] = hypo.getLongitude();
+				columnar.depths[index] = hypo.getDepth();
+				columnar.distsToParent[index] = rup.getDistanceToParent();
+				columnar.fssIndexes[index] = rup.getFSSIndex();
+				columnar.nthERFIndexes[index] = rup.getNthERF_Index();
+				columnar.gridNodeIndexes[index] = rup.getGridNodeIndex();
+				index++;
+			}
+		}
+		columnar.catalogStarts[catalogs.size()] = index;
+		return columnar;
+	}
+	
+	/**
+	 * Loads catalogs from an ETAS binary catalog file directly into columnar form, without ever building
+	 * rupture objects
+	 *
+	 * @param binFile
+	 * @return columnar catalogs
+	 * @throws IOException
+	 */
+	public static ETAS_ColumnarCatalogs loadBinary(File binFile) throws IOException {
+		return loadBinary(binFile, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * Loads catalogs from an ETAS binary catalog file directly into columnar form, without ever building
+	 * rupture objects. Gridded ruptures (those without an FSS index) below the given magnitude are skipped,
+	 * fault based ruptures are always retained.
+	 *
+	 * @param binFile
+	 * @param minGriddedMag
+	 * @return columnar catalogs
+	 * @throws IOException
+	 */
+	public static ETAS_ColumnarCatalogs loadBinary(File binFile, double minGriddedMag) throws IOException {
+		ETAS_MappedBinaryCatalogReader reader = new ETAS_MappedBinaryCatalogReader(binFile);
+		ETAS_BinaryCatalogIndex index = reader.getIndex();
+		int numCatalogs = index.getNumCatalogs();
+		long totRups = index.getTotalNumRuptures(0, numCatalogs);
+		Preconditions.checkState(totRups <= Integer.MAX_VALUE, "Too many ruptures: %s", totRups);
+		
+		// allocate for all ruptures, will trim later if any were filtered out
+		ETAS_ColumnarCatalogs columnar = new ETAS_ColumnarCatalogs(numCatalogs, (int)totRups);
+		int r = 0;
+		for (int c=0; c<numCatalogs; c++) {
+			columnar.catalogStarts[c] = r;
+			ByteBuffer buf = reader.getCatalogBuffer(c);
+			buf.getShort(); // version
+			int numRups = buf.getInt();
+			for (int i=0; i<numRups; i++) {
+				int id = buf.getInt();
+				int parentID = buf.getInt();
+				short gen = buf.getShort();
+				long origTime = buf.getLong();
+				double lat = buf.getDouble();
+				double lon = buf.getDouble();
+				double depth = buf.getDouble();
+				double mag = buf.getDouble();
+				double distToParent = buf.getDouble();
+				int nthERFIndex = buf.getInt();
+				int fssIndex = buf.getInt();
+				int gridNodeIndex = buf.getInt();
+				
+				if (fssIndex < 0 && mag < minGriddedMag)
+					continue;
+				
+				columnar.ids[r] = id;
+				columnar.parentIDs[r] = parentID;
+				columnar.generations[r] = gen;
+				columnar.originTimes[r] = origTime;
+				columnar.mags[r] = mag;
+				columnar.lats[r] = lat;
+				columnar.lons[r] = lon;
+				columnar.depths[r] = depth;
+				columnar.distsToParent[r] = distToParent;
+				columnar.fssIndexes[r] = fssIndex;
+				columnar.nthERFIndexes[r] = nthERFIndex;
+				columnar.gridNodeIndexes[r] = gridNodeIndex;
+				r++;
+			}
+		}
+		columnar.catalogStarts[numCatalogs] = r;
+		reader.close();
+		
+		if (r < totRups)
+			columnar.trim(r);
+		
+		return columnar;
+	}
+	
+	private void trim(int numRups) {
+		ids = Arrays.copyOf(ids, numRups);
+		parentIDs = Arrays.copyOf(parentIDs, numRups);
+		generations = Arrays.copyOf(generations, numRups);
+		originTimes = Arrays.copyOf(originTimes, numRups);
+		mags = Arrays.copyOf(mags, numRups);
+		lats = Arrays.copyOf(lats, numRups);
+		lons = Arrays.copyOf(lons, numRups);
+		depths = Arrays.copyOf(depths, numRups);
+		distsToParent = Arrays.copyOf(distsToParent, numRups);
+		fssIndexes = Arrays.copyOf(fssIndexes, numRups);
+		nthERFIndexes = Arrays.copyOf(nthERFIndexes, numRups);
+		gridNodeIndexes = Arrays.copyOf(gridNodeIndexes, numRups);
+	}
+	
+	public int getNumCatalogs() {
+		return catalogStarts.length-1;
+	}
+	
+	public int getTotalNumRuptures() {
+		return catalogStarts[catalogStarts.length-1];
+	}
+	
+	public int getNumRuptures(int catalogIndex) {
+		return catalogStarts[catalogIndex+1] - catalogStarts[catalogIndex];
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return global index of the first rupture in the given catalog
+	 */
+	public int getStartIndex(int catalogIndex) {
+		return catalogStarts[catalogIndex];
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return global index one past the last rupture in the given catalog
+	 */
+	public int getEndIndex(int catalogIndex) {
+		return catalogStarts[catalogIndex+1];
+	}
+	
+	public int getID(int rupIndex) {
+		return ids[rupIndex];
+	}
+	
+	public int getParentID(int rupIndex) {
+		return parentIDs[rupIndex];
+	}
+	
+	public int getGeneration(int rupIndex) {
+		return generations[rupIndex];
+	}
+	
+	public long getOriginTime(int rupIndex) {
+		return originTimes[rupIndex];
+	}
+	
+	public double getMag(int rupIndex) {
+		return mags[rupIndex];
+	}
+	
+	public double getLatitude(int rupIndex) {
+		return lats[rupIndex];
+	}
+	
+	public double getLongitude(int rupIndex) {
+		return lons[rupIndex];
+	}
+	
+	public double getDepth(int rupIndex) {
+		return depths[rupIndex];
+	}
+	
+	public Location getHypocenterLocation(int rupIndex) {
+		return new Location(lats[rupIndex], lons[rupIndex], depths[rupIndex]);
+	}
+	
+	public double getDistanceToParent(int rupIndex) {
+		return distsToParent[rupIndex];
+	}
+	
+	public int getFSSIndex(int rupIndex) {
+		return fssIndexes[rupIndex];
+	}
+	
+	public int getNthERF_Index(int rupIndex) {
+		return nthERFIndexes[rupIndex];
+	}
+	
+	public int getGridNodeIndex(int rupIndex) {
+		return gridNodeIndexes[rupIndex];
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return the maximum magnitude in the given catalog, or NaN if empty
+	 */
+	public double getMaxMag(int catalogIndex) {
+		double max = Double.NaN;
+		for (int r=catalogStarts[catalogIndex]; r<catalogStarts[catalogIndex+1]; r++)
+			if (Double.isNaN(max) || mags[r] > max)
+				max = mags[r];
+		return max;
+	}
+	
+	/**
+	 * Builds a standalone rupture object for the given rupture
+	 *
+	 * @param rupIndex
+	 * @return rupture
+	 */
+	public ETAS_EqkRupture buildRupture(int rupIndex) {
+		ETAS_EqkRupture rup = new ETAS_EqkRupture();
+		rup.setID(ids[rupIndex]);
+		rup.setParentID(parentIDs[rupIndex]);
+		rup.setGeneration(generations[rupIndex]);
+		rup.setOriginTime(originTimes[rupIndex]);
+		rup.setMag(mags[rupIndex]);
+		rup.setHypocenterLocation(getHypocenterLocation(rupIndex));
+		rup.setDistanceToParent(distsToParent[rupIndex]);
+		rup.setFSSIndex(fssIndexes[rupIndex]);
+		rup.setNthERF_Index(nthERFIndexes[rupIndex]);
+		rup.setGridNodeIndex(gridNodeIndexes[rupIndex]);
+		return rup;
+	}
+	
+	/**
+	 * @param catalogIndex
+	 * @return list view of the given catalog, where ruptures are built when accessed
+	 */
+	public List<ETAS_EqkRupture> getCatalog(final int catalogIndex) {
+		final int start = catalogStarts[catalogIndex];
+		final int size = getNumRuptures(catalogIndex);
+		return new AbstractList<ETAS_EqkRupture>() {
+			
+			@Override
+			public ETAS_EqkRupture get(int index) {
+				Preconditions.checkElementIndex(index, size);
+				return buildRupture(start+index);
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * @return list view of all catalogs, where ruptures are built when accessed and not retained
+	 */
+	public List<List<ETAS_EqkRupture>> asCatalogList() {
+		return new AbstractList<List<ETAS_EqkRupture>>() {
+			
+			@Override
+			public List<ETAS_EqkRupture> get(int index) {
+				return getCatalog(index);
+			}
+			
+			@Override
+			public int size() {
+				return getNumCatalogs();
+			}
+		};
+	}
+	
+}
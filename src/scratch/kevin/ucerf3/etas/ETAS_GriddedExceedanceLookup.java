@@ -0,0 +1,410 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Precomputed conditional exceedance probabilities for gridded ETAS ruptures, binned by site class, magnitude bin
+ * and distance. This replaces GMPE evaluations for each (site, grid node, magnitude bin) in
+ * {@link ETAS_HazardMapCalc} with a table lookup.
+ * <br>
+ * Gridded ruptures are point sources, so for a given site class (sites with identical site parameters, optionally
+ * with Vs30 binned), magnitude bin and sub-rupture type (focal mechanism, depth) exceedance probabilities depend only
+ * on the distance to the grid node. Sub-rupture types are discovered, and the conditional rate of each at every
+ * (grid node, magnitude bin) used by the catalogs is stored, when this lookup is created. Exceedance probabilities are
+ * then tabulated for each type on a distance grid which is uniform in ln(dist+1) and refined until linear
+ * interpolation at grid midpoints is within the given tolerance. Tables are computed once by
+ * {@link #calcSiteClass(int, ScalarIMR)} and are read only (and thread safe) afterwards.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_GriddedExceedanceLookup {
+	
+	public static final double DEFAULT_TOLERANCE = 1e-3;
+	
+	// distances are gridded uniformly in ln(dist + DIST_OFFSET)
+	private static final double DIST_OFFSET = 1d;
+	// grid node locations can be slightly farther than the hypocenters used for the distance cutoff
+	private static final double DIST_BUFFER = 5d;
+	private static final int INITIAL_NUM_DISTS = 33;
+	private static final int MAX_REFINEMENTS = 6;
+	
+	private ETAS_CatalogGridSourceProvider gridSources;
+	private double[] calcXArray;
+	private double maxDist;
+	private double tolerance;
+	private double vs30BinWidth;
+	private int numMags;
+	
+	// site parameter key -> site class index
+	private Map<String, Integer> siteClassIndexes;
+	// representative site for each class
+	private List<Site> classSites;
+	
+	// sub-rupture types for each mag bin
+	private List<List<RupTemplate>> magTemplates;
+	// (node, mag) index -> conditional rate of each sub-rupture type in that mag bin
+	private Map<Integer, double[]> nodeMagWeights;
+	
+	// [class][mag][template]
+	private DistanceTable[][][] tables;
+	private double maxEstimatedError = 0d;
+	
+	private static class RupTemplate {
+		private String key;
+		// any rupture which generates this type, used to regenerate it when building tables
+		private ETAS_EqkRupture rep;
+		
+		public RupTemplate(String key, ETAS_EqkRupture rep) {
+			this.key = key;
+			this.rep = rep;
+		}
+	}
+	
+	/**
+	 * Exceedance probabilities for a single sub-rupture type as a function of distance
+	 */
+	private static class DistanceTable {
+		private double uMin;
+		private double du;
+		private int numDists;
+		private int numX;
+		// [dist][x], flattened
+		private float[] exceeds;
+		
+		public DistanceTable(double uMin, double du, double[][] exceeds) {
+			this.uMin = uMin;
+			this.du = du;
+			this.numDists = exceeds.length;
+			this.numX = exceeds[0].length;
+			this.exceeds = new float[numDists*numX];
+			for (int i=0; i<numDists; i++)
+				for (int k=0; k<numX; k++)
+					this.exceeds[i*numX + k] = (float)exceeds[i][k];
+		}
+		
+		/**
+		 * Multiplies 1 - weight*P(exceed) at the given distance into the given non-exceedance probabilities
+		 */
+		public void applyNonExceeds(double dist, double weight, double[] nonExceeds) {
+			double pos = (Math.log(dist + DIST_OFFSET) - uMin)/du;
+			int i = (int)pos;
+			if (i < 0)
+				i = 0;
+			else if (i > numDists-2)
+				i = numDists-2;
+			double f = pos - i;
+			if (f < 0d)
+				f = 0d;
+			else if (f > 1d)
+				f = 1d;
+			int offset1 = i*numX;
+			int offset2 = offset1 + numX;
+			for (int k=0; k<numX; k++) {
+				double exceed = (1d-f)*exceeds[offset1 + k] + f*exceeds[offset2 + k];
+				nonExceeds[k] *= 1d - weight*exceed;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the lookup and determines site classes and sub-rupture types. Tables must then be calculated for each
+	 * site class with {@link #calcSiteClass(int, ScalarIMR)} before use.
+	 *
+	 * @param gridSources conditional grid source provider
+	 * @param catalogs catalogs, used to determine which (grid node, mag bin) combinations are needed
+	 * @param sites all sites which will be calculated
+	 * @param calcXArray x values (log space if applicable)
+	 * @param maxDist maximum source-site distance
+	 * @param tolerance maximum interpolation error in exceedance probability
+	 * @param vs30BinWidth Vs30 bin width for site classes, or 0 to use exact values
+	 */
+	public ETAS_GriddedExceedanceLookup(ETAS_CatalogGridSourceProvider gridSources,
+			List<? extends List<ETAS_EqkRupture>> catalogs, List<Site> sites, double[] calcXArray,
+			double maxDist, double tolerance, double vs30BinWidth) {
+		Preconditions.checkArgument(gridSources.isConditional(), "Grid sources must be conditional");
+		Preconditions.checkArgument(tolerance > 0d, "Tolerance must be positive");
+		Preconditions.checkArgument(vs30BinWidth >= 0d, "Vs30 bin width must be >= 0");
+		this.gridSources = gridSources;
+		this.calcXArray = calcXArray;
+		this.maxDist = maxDist + DIST_BUFFER;
+		this.tolerance = tolerance;
+		this.vs30BinWidth = vs30BinWidth;
+		this.numMags = gridSources.getNumMagBins();
+		
+		initSiteClasses(sites);
+		initTemplates(catalogs);
+		
+		tables = new DistanceTable[classSites.size()][][];
+	}
+	
+	private void initSiteClasses(List<Site> sites) {
+		siteClassIndexes = new HashMap<>();
+		classSites = new ArrayList<>();
+		for (Site site : sites) {
+			String key = getSiteClassKey(site);
+			if (siteClassIndexes.containsKey(key))
+				continue;
+			siteClassIndexes.put(key, classSites.size());
+			Site classSite = new Site(site.getLocation());
+			for (Parameter<?> param : site)
+				classSite.addParameter((Parameter<?>)param.clone());
+			if (vs30BinWidth > 0d && classSite.containsParameter(Vs30_Param.NAME)) {
+				@SuppressWarnings("unchecked")
+				Parameter<Double> vs30Param = (Parameter<Double>)classSite.getParameter(Vs30_Param.NAME);
+				vs30Param.setValue(binVs30(vs30Param.getValue()));
+			}
+			classSites.add(classSite);
+		}
+		System.out.println("Gridded lookup: "+classSites.size()+" site classes for "+sites.size()+" sites");
+	}
+	
+	private double binVs30(double vs30) {
+		return vs30BinWidth*Math.round(vs30/vs30BinWidth);
+	}
+	
+	private String getSiteClassKey(Site site) {
+		StringBuilder key = new StringBuilder();
+		for (Parameter<?> param : site) {
+			key.append(param.getName()).append("=");
+			Object value = param.getValue();
+			if (vs30BinWidth > 0d && param.getName().equals(Vs30_Param.NAME) && value != null)
+				value = binVs30((Double)value);
+			key.append(value).append(";");
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * @param site
+	 * @return site class index for the given site, or -1 if this lookup wasn't built for that class
+	 */
+	public int getSiteClass(Site site) {
+		Integer index = siteClassIndexes.get(getSiteClassKey(site));
+		if (index == null)
+			return -1;
+		return index;
+	}
+	
+	public int getNumSiteClasses() {
+		return classSites.size();
+	}
+	
+	private void initTemplates(List<? extends List<ETAS_EqkRupture>> catalogs) {
+		magTemplates = new ArrayList<>();
+		for (int m=0; m<numMags; m++)
+			magTemplates.add(new ArrayList<RupTemplate>());
+		nodeMagWeights = new HashMap<>();
+		
+		for (List<ETAS_EqkRupture> catalog : catalogs) {
+			for (ETAS_EqkRupture rup : catalog) {
+				if (rup.getFSSIndex() >= 0)
+					continue;
+				int nodeIndex = gridSources.getNodeIndex(rup);
+				int magIndex = gridSources.getMagIndex(rup);
+				if (nodeIndex < 0 || magIndex < 0)
+					continue;
+				int key = nodeIndex*numMags + magIndex;
+				if (nodeMagWeights.containsKey(key))
+					continue;
+				
+				List<RupTemplate> templates = magTemplates.get(magIndex);
+				double[] weights = new double[0];
+				Iterable<ProbEqkRupture> subRups = gridSources.getConditionalRuptures(rup);
+				if (subRups != null) {
+					Map<String, Integer> keyCounts = new HashMap<>();
+					for (ProbEqkRupture subRup : subRups) {
+						String templateKey = getTemplateKey(subRup, keyCounts);
+						int templateIndex = getTemplateIndex(templates, templateKey);
+						if (templateIndex < 0) {
+							templateIndex = templates.size();
+							templates.add(new RupTemplate(templateKey, rup));
+						}
+						if (weights.length <= templateIndex) {
+							double[] newWeights = new double[templates.size()];
+							System.arraycopy(weights, 0, newWeights, 0, weights.length);
+							weights = newWeights;
+						}
+						weights[templateIndex] += -Math.log(1 - subRup.getProbability());
+					}
+				}
+				nodeMagWeights.put(key, weights);
+			}
+		}
+		
+		int numTemplates = 0;
+		for (List<RupTemplate> templates : magTemplates)
+			numTemplates += templates.size();
+		System.out.println("Gridded lookup: "+nodeMagWeights.size()+" (node, mag) combinations with "
+				+numTemplates+" sub-rupture types");
+	}
+	
+	/*
+	 * Key which identifies a sub-rupture type. Sub-ruptures with identical properties in the same source are
+	 * distinguished by their ordinal so that they are applied independently, as in the exact calculation.
+	 */
+	private static String getTemplateKey(ProbEqkRupture subRup, Map<String, Integer> counts) {
+		String key = (float)subRup.getMag()+"_"+(float)subRup.getAveRake()
+				+"_"+(float)subRup.getRuptureSurface().getAveDip()
+				+"_"+(float)subRup.getRuptureSurface().getAveRupTopDepth();
+		Integer count = counts.get(key);
+		if (count == null)
+			count = 0;
+		counts.put(key, count+1);
+		return key+"#"+count;
+	}
+	
+	private static int getTemplateIndex(List<RupTemplate> templates, String key) {
+		for (int i=0; i<templates.size(); i++)
+			if (templates.get(i).key.equals(key))
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Calculates tables for the given site class. Can be called concurrently for different site classes.
+	 *
+	 * @param classIndex
+	 * @param gmpe GMPE with IMT set, will be used for site class calculations
+	 */
+	public void calcSiteClass(int classIndex, ScalarIMR gmpe) {
+		Site classSite = classSites.get(classIndex);
+		Site site = new Site(classSite.getLocation());
+		for (Parameter<?> param : classSite)
+			site.addParameter((Parameter<?>)param.clone());
+		
+		DistanceTable[][] classTables = new DistanceTable[numMags][];
+		double classMaxError = 0d;
+		for (int m=0; m<numMags; m++) {
+			List<RupTemplate> templates = magTemplates.get(m);
+			classTables[m] = new DistanceTable[templates.size()];
+			for (int t=0; t<templates.size(); t++) {
+				RupTemplate template = templates.get(t);
+				Location origin = gridSources.getGriddedRegion().locationForIndex(
+						gridSources.getNodeIndex(template.rep));
+				// sub-ruptures are reused by the source, so the GMPE must be evaluated while iterating
+				Map<String, Integer> keyCounts = new HashMap<>();
+				for (ProbEqkRupture subRup : gridSources.getConditionalRuptures(template.rep)) {
+					if (!getTemplateKey(subRup, keyCounts).equals(template.key))
+						continue;
+					gmpe.setEqkRupture(subRup);
+					double[] maxError = new double[1];
+					classTables[m][t] = buildTable(gmpe, site, origin, maxError);
+					classMaxError = Math.max(classMaxError, maxError[0]);
+					break;
+				}
+				Preconditions.checkNotNull(classTables[m][t], "Couldn't regenerate sub-rupture %s", template.key);
+			}
+		}
+		synchronized (this) {
+			tables[classIndex] = classTables;
+			maxEstimatedError = Math.max(maxEstimatedError, classMaxError);
+		}
+	}
+	
+	private DistanceTable buildTable(ScalarIMR gmpe, Site site, Location origin, double[] maxError) {
+		double uMin = Math.log(DIST_OFFSET);
+		double uMax = Math.log(maxDist + DIST_OFFSET);
+		int numDists = INITIAL_NUM_DISTS;
+		double du = (uMax - uMin)/(numDists-1);
+		double[][] exceeds = new double[numDists][];
+		for (int i=0; i<numDists; i++)
+			exceeds[i] = calcExceeds(gmpe, site, origin, uMin + i*du);
+		
+		for (int r=0; true; r++) {
+			// check linear interpolation error at each midpoint
+			double[][] midExceeds = new double[numDists-1][];
+			double error = 0d;
+			for (int i=0; i<numDists-1; i++) {
+				midExceeds[i] = calcExceeds(gmpe, site, origin, uMin + (i+0.5)*du);
+				for (int k=0; k<calcXArray.length; k++) {
+					double interp = 0.5*(exceeds[i][k] + exceeds[i+1][k]);
+					error = Math.max(error, Math.abs(interp - midExceeds[i][k]));
+				}
+			}
+			
+			// refine, midpoints become grid points
+			double[][] refined = new double[2*numDists-1][];
+			for (int i=0; i<numDists; i++) {
+				refined[2*i] = exceeds[i];
+				if (i < numDists-1)
+					refined[2*i+1] = midExceeds[i];
+			}
+			exceeds = refined;
+			numDists = refined.length;
+			du *= 0.5;
+			
+			if (error <= tolerance || r == MAX_REFINEMENTS) {
+				// halving the spacing reduces linear interpolation error by ~4x
+				maxError[0] = 0.25*error;
+				return new DistanceTable(uMin, du, exceeds);
+			}
+		}
+	}
+	
+	private double[] calcExceeds(ScalarIMR gmpe, Site site, Location origin, double u) {
+		double dist = Math.exp(u) - DIST_OFFSET;
+		Location loc = LocationUtils.location(origin, 0d, dist);
+		site.setLocation(new Location(loc.getLatitude(), loc.getLongitude()));
+		gmpe.setSite(site);
+		double[] exceeds = new double[calcXArray.length];
+		for (int k=0; k<calcXArray.length; k++)
+			exceeds[k] = gmpe.getExceedProbability(calcXArray[k]);
+		return exceeds;
+	}
+	
+	/**
+	 * @return estimated maximum interpolation error in exceedance probability across all tables calculated so far
+	 */
+	public synchronized double getMaxEstimatedError() {
+		return maxEstimatedError;
+	}
+	
+	public double getTolerance() {
+		return tolerance;
+	}
+	
+	/**
+	 * Computes conditional non-exceedance probabilities for a gridded rupture in the given (grid node, mag bin),
+	 * equivalent to evaluating the GMPE for each conditional sub-rupture.
+	 *
+	 * @param siteClass site class index, from {@link #getSiteClass(Site)}
+	 * @param siteLoc site location
+	 * @param nodeIndex grid node index
+	 * @param magIndex magnitude bin index
+	 * @return conditional non-exceedance probabilities, or null if no conditional ruptures exist
+	 */
+	public double[] getNonExceeds(int siteClass, Location siteLoc, int nodeIndex, int magIndex) {
+		double[] weights = nodeMagWeights.get(nodeIndex*numMags + magIndex);
+		Preconditions.checkState(weights != null, "Node %s, mag bin %s not present in lookup", nodeIndex, magIndex);
+		if (weights.length == 0)
+			return null;
+		DistanceTable[] magTables = tables[siteClass][magIndex];
+		Location nodeLoc = gridSources.getGriddedRegion().locationForIndex(nodeIndex);
+		double dist = LocationUtils.horzDistanceFast(siteLoc, nodeLoc);
+		
+		double[] nonExceeds = new double[calcXArray.length];
+		for (int k=0; k<nonExceeds.length; k++)
+			nonExceeds[k] = 1d;
+		for (int t=0; t<weights.length; t++)
+			if (weights[t] > 0d)
+				magTables[t].applyNonExceeds(dist, weights[t], nonExceeds);
+		return nonExceeds;
+	}
+	
+}
@@ -9,7 +9,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -23,6 +25,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
@@ -40,6 +43,7 @@ import org.opensha.commons.data.siteData.SiteDataValue;
 import org.opensha.commons.data.siteData.SiteDataValueList;
 import org.opensha.commons.data.xyz.GriddedGeoDataSet;
 import org.opensha.commons.exceptions.GMT_MapException;
+import org.opensha.commons.geo.GeoTools;
 import org.opensha.commons.geo.GriddedRegion;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationList;
@@ -57,6 +61,7 @@ import org.opensha.commons.mapping.gmt.elements.PSXYSymbol;
 import org.opensha.commons.mapping.gmt.elements.PSXYSymbol.Symbol;
 import org.opensha.commons.param.Parameter;
 import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 import org.opensha.commons.util.XMLUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
@@ -94,7 +99,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Table;
 import com.google.common.collect.Table.Cell;
 import com.google.common.primitives.Doubles;
@@ -109,6 +113,7 @@ import scratch.UCERF3.erf.ETAS.ETAS_MultiSimAnalysisTools;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.mpj.CalcMetrics;
 
 public class ETAS_HazardMapCalc {
 	
@@ -123,15 +128,25 @@ public class ETAS_HazardMapCalc {
 	private boolean calcInLogSpace = true;
 	private double distCutoff = 200;
 	
-	private List<? extends List<ETAS_EqkRupture>> catalogs;
+	// primitive catalog data used for the hazard calculation, so that no rupture objects are built for each site
+	private ETAS_ColumnarCatalogs columnarCatalogs;
+	// true if the given catalog has a rupture above M5
+	private boolean[] catalogHasM5;
+	// grid source provider node and mag indexes for each gridded rupture, -1 if fault based or not applicable
+	private int[] griddedNodeIndexes;
+	private int[] griddedMagIndexes;
 	private HashSet<Integer> faultIndexesTriggered;
+	private int maxFaultIndexTriggered = -1;
+	// faultIndexesTriggered as a mask indexed by FSS index, for filtering precomputed fault data
+	private boolean[] faultIndexesTriggeredMask;
 	protected GriddedRegion region;
 	private DiscretizedFunc xVals;
 	private DiscretizedFunc calcXVals;
 	
 	private int printModulus = 100;
 	
-	// for precalc faults
+	// for precalc faults, either a random access archive or a legacy sequential file
+	private FaultShakingArchive faultArchive;
 	private DataInputStream in;
 	int faultSiteIndex = 0;
 	// for on the fly faults
@@ -140,6 +155,12 @@ public class ETAS_HazardMapCalc {
 	private ProbEqkSource[] sourcesForFSSRuptures;
 	
 	private ETAS_CatalogGridSourceProvider gridSources;
+	// optional precomputed lookup for gridded exceedance probabilities
+	private double griddedLookupTolerance = 0d;
+	private double griddedLookupVs30BinWidth = 0d;
+	private boolean validateGriddedLookup = false;
+	private ETAS_GriddedExceedanceLookup griddedLookup;
+	private MinMaxAveTracker griddedLookupErrorTrack;
 	private AttenRelRef gmpeRef;
 	protected String imtName;
 	private double period;
@@ -157,7 +178,15 @@ public class ETAS_HazardMapCalc {
 	private Duration[] longTermCalcDurations;
 	
 	protected Table<Duration, MapType, DiscretizedFunc[]> curves;
-	private int curvesCalculated;
+	private AtomicInteger curvesCalculated = new AtomicInteger();
+	
+	// instrumentation phases
+	static final String PHASE_LOAD = "Load";
+	static final String PHASE_GMPE = "GMPE";
+	static final String PHASE_COMBINE = "Combine";
+	static final String PHASE_WRITE = "Write";
+	static final String PHASE_CURVE = "Total Curve";
+	private CalcMetrics metrics = new CalcMetrics();
 	
 	enum MapType {
 		FAULT_ONLY("faults"),
@@ -177,6 +206,12 @@ public class ETAS_HazardMapCalc {
 		}
 	}
 	
+	// ETAS map types in the order used by the primitive curve arrays in calculateCurves
+	private static final MapType[] ETAS_TYPES = { MapType.FAULT_ONLY, MapType.GRIDDED_ONLY, MapType.COMBINED };
+	private static final int FAULT_TYPE_INDEX = 0;
+	private static final int GRIDDED_TYPE_INDEX = 1;
+	private static final int COMBINED_TYPE_INDEX = 2;
+	
 	enum DurationConstants {
 		FULL("Full Catalog", "full", 0d),
 		DAY("1 Day", "day", 1d/365.25),
@@ -324,7 +359,19 @@ public class ETAS_HazardMapCalc {
 	public ETAS_HazardMapCalc(List<? extends List<ETAS_EqkRupture>> catalogs, GriddedRegion region, DiscretizedFunc xVals,
 			File precalcFile, FaultSystemSolution sol, ETAS_CatalogGridSourceProvider gridSources,
 			AttenRelRef gmpeRef, String imtName, double period, List<Site> sites, Duration[] durations) throws IOException {
-		this.catalogs = catalogs;
+		this(ETAS_ColumnarCatalogs.fromCatalogs(catalogs), region, xVals, precalcFile, sol, gridSources,
+				gmpeRef, imtName, period, sites, durations);
+	}
+	
+	/**
+	 * Hazard map calculator for catalogs in columnar form. Ruptures are only built from the columnar catalogs when
+	 * the gridded lookup is initialized and when gridded exceedance probabilities are calculated exactly (once per
+	 * site for each grid node and magnitude bin).
+	 */
+	public ETAS_HazardMapCalc(ETAS_ColumnarCatalogs catalogs, GriddedRegion region, DiscretizedFunc xVals,
+			File precalcFile, FaultSystemSolution sol, ETAS_CatalogGridSourceProvider gridSources,
+			AttenRelRef gmpeRef, String imtName, double period, List<Site> sites, Duration[] durations) throws IOException {
+		this.columnarCatalogs = catalogs;
 		this.region = region;
 		initXVals(xVals);
 		this.gridSources = gridSources;
@@ -339,10 +386,10 @@ public class ETAS_HazardMapCalc {
 		this.durations = durations;
 		// claculate the min OT
 		minOT = Long.MAX_VALUE;
-		for (List<ETAS_EqkRupture> catalog : catalogs) {
-			if (catalog.isEmpty())
+		for (int c=0; c<columnarCatalogs.getNumCatalogs(); c++) {
+			if (columnarCatalogs.getNumRuptures(c) == 0)
 				continue;
-			long ot = catalog.get(0).getOriginTime();
+			long ot = columnarCatalogs.getOriginTime(columnarCatalogs.getStartIndex(c));
 			if (ot < minOT)
 				minOT = ot;
 		}
@@ -357,17 +404,52 @@ public class ETAS_HazardMapCalc {
 		calcGridded = (gridSources != null && gmpeRef != null && imtName != null && sites != null);
 		Preconditions.checkState(sites == null || sites.size() == region.getNodeCount());
 		
+		// per catalog and rupture values which don't depend on the site
+		catalogHasM5 = new boolean[columnarCatalogs.getNumCatalogs()];
+		for (int c=0; c<catalogHasM5.length; c++) {
+			for (int r=columnarCatalogs.getStartIndex(c); r<columnarCatalogs.getEndIndex(c); r++) {
+				if (columnarCatalogs.getMag(r) > 5) {
+					catalogHasM5[c] = true;
+					break;
+				}
+			}
+		}
+		if (calcGridded) {
+			griddedNodeIndexes = new int[columnarCatalogs.getTotalNumRuptures()];
+			griddedMagIndexes = new int[griddedNodeIndexes.length];
+			for (int r=0; r<griddedNodeIndexes.length; r++) {
+				if (columnarCatalogs.getFSSIndex(r) >= 0) {
+					griddedNodeIndexes[r] = -1;
+					griddedMagIndexes[r] = -1;
+				} else {
+					griddedNodeIndexes[r] = gridSources.getNodeIndex(
+							columnarCatalogs.getLatitude(r), columnarCatalogs.getLongitude(r));
+					griddedMagIndexes[r] = gridSources.getMagIndex(columnarCatalogs.getMag(r));
+				}
+			}
+		}
+		
 		// this is used to conserve memory and only load results for ruptures actually used
 		faultIndexesTriggered = new HashSet<Integer>();
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			for (ETAS_EqkRupture rup : catalog)
-				if (rup.getFSSIndex() > 0)
-					faultIndexesTriggered.add(rup.getFSSIndex());
+		for (int r=0; r<columnarCatalogs.getTotalNumRuptures(); r++)
+			if (columnarCatalogs.getFSSIndex(r) > 0)
+				faultIndexesTriggered.add(columnarCatalogs.getFSSIndex(r));
+		for (int fssIndex : faultIndexesTriggered)
+			maxFaultIndexTriggered = Math.max(maxFaultIndexTriggered, fssIndex);
+		faultIndexesTriggeredMask = new boolean[maxFaultIndexTriggered+1];
+		for (int fssIndex : faultIndexesTriggered)
+			faultIndexesTriggeredMask[fssIndex] = true;
 		
 		if (precalcFile != null) {
 			// load in precalculated fault data
-			in = new DataInputStream(new BufferedInputStream(new FileInputStream(precalcFile)));
-			int numSites = in.readInt();
+			int numSites;
+			if (FaultShakingArchive.isArchive(precalcFile)) {
+				faultArchive = new FaultShakingArchive(precalcFile);
+				numSites = faultArchive.getNumSites();
+			} else {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(precalcFile)));
+				numSites = in.readInt();
+			}
 			Preconditions.checkState(numSites == region.getNodeCount(), "Binary file has %s grid nodes, region has %s",
 					numSites, region.getNodeCount());
 			calcFaults = true;
@@ -543,10 +625,105 @@ public class ETAS_HazardMapCalc {
 		this.calcLongTerm = calcLongTerm;
 	}
 	
+	/**
+	 * @return thread safe instrumentation for this calculator, see {@link CalcMetrics}
+	 */
+	public CalcMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void setDistanceCutoff(double distCutoff) {
 		this.distCutoff = distCutoff;
 	}
 	
+	/**
+	 * Enables table lookups for gridded conditional exceedance probabilities, see {@link ETAS_GriddedExceedanceLookup}
+	 * 
+	 * @param tolerance maximum interpolation error in exceedance probability, or 0 to use the exact calculation
+	 */
+	public void setGriddedLookupTolerance(double tolerance) {
+		this.griddedLookupTolerance = tolerance;
+	}
+	
+	/**
+	 * @param vs30BinWidth Vs30 bin width for gridded lookup site classes, or 0 to use exact Vs30 values
+	 */
+	public void setGriddedLookupVs30BinWidth(double vs30BinWidth) {
+		this.griddedLookupVs30BinWidth = vs30BinWidth;
+	}
+	
+	/**
+	 * If true, gridded lookup values will also be calculated exactly and differences tracked, see
+	 * {@link #printGriddedLookupValidation()}. This is slower than the exact calculation alone.
+	 * 
+	 * @param validateGriddedLookup
+	 */
+	public void setValidateGriddedLookup(boolean validateGriddedLookup) {
+		this.validateGriddedLookup = validateGriddedLookup;
+	}
+	
+	/**
+	 * Builds the gridded exceedance lookup if enabled and not already built. This is called by {@link #calculate()},
+	 * but must be called before {@link #calculateCurves(Site, FaultShakingArchive.SiteValues)} if used directly.
+	 * 
+	 * @param executor executor used to calculate site classes in parallel
+	 */
+	public synchronized void buildGriddedLookup(ExecutorService executor) {
+		if (griddedLookup != null || griddedLookupTolerance <= 0d || !calcGridded)
+			return;
+		Stopwatch watch = Stopwatch.createStarted();
+		double[] calcXArray = new double[calcXVals.size()];
+		for (int i=0; i<calcXArray.length; i++)
+			calcXArray[i] = calcXVals.getX(i);
+		final ETAS_GriddedExceedanceLookup lookup = new ETAS_GriddedExceedanceLookup(gridSources,
+				columnarCatalogs.asCatalogList(), sites,
+				calcXArray, distCutoff, griddedLookupTolerance, griddedLookupVs30BinWidth);
+		List<Future<?>> futures = Lists.newArrayList();
+		for (int c=0; c<lookup.getNumSiteClasses(); c++) {
+			final int classIndex = c;
+			futures.add(executor.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					ScalarIMR gmpe = checkOutGMPE();
+					lookup.calcSiteClass(classIndex, gmpe);
+					checkInGMPE(gmpe);
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		watch.stop();
+		System.out.println("Built gridded lookup for "+lookup.getNumSiteClasses()+" site classes in "
+				+watch.elapsed(TimeUnit.SECONDS)+" secs, estimated max error: "+(float)lookup.getMaxEstimatedError());
+		griddedLookup = lookup;
+		if (validateGriddedLookup)
+			griddedLookupErrorTrack = new MinMaxAveTracker();
+	}
+	
+	private synchronized void trackGriddedLookupError(double[] lookupNonExceeds, double[] exactNonExceeds) {
+		for (int i=0; i<lookupNonExceeds.length; i++)
+			griddedLookupErrorTrack.addValue(Math.abs(lookupNonExceeds[i] - exactNonExceeds[i]));
+	}
+	
+	/**
+	 * Prints the differences between gridded lookup and exact conditional non-exceedance probabilities, if
+	 * validation is enabled
+	 */
+	public synchronized void printGriddedLookupValidation() {
+		if (griddedLookupErrorTrack == null)
+			return;
+		System.out.println("Gridded lookup validation, absolute errors: "+griddedLookupErrorTrack);
+		if (griddedLookupErrorTrack.getMax() > griddedLookup.getTolerance())
+			System.out.println("WARNING: max gridded lookup error ("+(float)griddedLookupErrorTrack.getMax()
+				+") exceeds tolerance ("+(float)griddedLookup.getTolerance()+")");
+	}
+	
 	public void setScenarioForElasticRebound(TestScenario scenario) {
 		if (scenario.getFSS_Index() < 0)
 			return;
@@ -611,21 +788,26 @@ public class ETAS_HazardMapCalc {
 		
 		ExecutorService executor = createExecutor();
 		
+		buildGriddedLookup(executor);
+		
 		List<Future<Integer>> hazardFutures = Lists.newArrayList();
 		
 		Stopwatch watch = Stopwatch.createStarted();
 		System.out.println("Calculating");
 		
-		curvesCalculated = 0;
+		curvesCalculated.set(0);
 		
 		for (int index=0; index<region.getNodeCount(); index++) {
 			if (index % printModulus == 0)
 				System.out.println("Processing site "+index+"/"+region.getNodeCount());
 			
-			Map<Integer, double[]> precomputedFaultVals = null;
+			// sites from an archive are read by the calculation threads
+			FaultShakingArchive.SiteValues precomputedFaultVals = null;
 			if (calcFaults && in != null) {
 				Preconditions.checkState(faultSiteIndex == index);
+				long loadStart = System.nanoTime();
 				precomputedFaultVals = loadNextSite();
+				metrics.addTime(PHASE_LOAD, loadStart);
 			}
 			
 			Future<Integer> future = null;
@@ -663,8 +845,10 @@ public class ETAS_HazardMapCalc {
 		long secs = watch.elapsed(TimeUnit.SECONDS);
 		System.out.println("Calculation took "+secs+" secs");
 		watch.stop();
-		double curvesPerSecond = (double)curvesCalculated/(double)secs;
+		double curvesPerSecond = (double)curvesCalculated.get()/(double)secs;
 		System.out.println((float)curvesPerSecond+" curves/sec");
+		System.out.println("Metrics: "+metrics);
+		printGriddedLookupValidation();
 		
 		executor.shutdown();
 	}
@@ -672,15 +856,20 @@ public class ETAS_HazardMapCalc {
 	private class HazardCalcRunnable implements Runnable {
 		
 		private int index;
-		private Map<Integer, double[]> precomputedFaultVals;
+		private FaultShakingArchive.SiteValues precomputedFaultVals;
 		
-		public HazardCalcRunnable(int index, Map<Integer, double[]> precomputedFaultVals) {
+		public HazardCalcRunnable(int index, FaultShakingArchive.SiteValues precomputedFaultVals) {
 			this.index = index;
 			this.precomputedFaultVals = precomputedFaultVals;
 		}
 
 		@Override
 		public void run() {
+			if (precomputedFaultVals == null && calcFaults && faultArchive != null) {
+				long loadStart = System.nanoTime();
+				precomputedFaultVals = loadSiteFromArchive(faultArchive, index);
+				metrics.addTime(PHASE_LOAD, loadStart);
+			}
 			Table<Duration, MapType, DiscretizedFunc> result = calculateCurves(sites.get(index), precomputedFaultVals);
 			for (Cell<Duration, MapType, DiscretizedFunc> cell : result.cellSet()) {
 				Duration duration = cell.getRowKey();
@@ -691,9 +880,9 @@ public class ETAS_HazardMapCalc {
 				curves.get(duration, type)[index] = cell.getValue();
 			}
 			
-			curvesCalculated++;
-			if (curvesCalculated % printModulus == 0)
-				System.out.println("Calculated "+curvesCalculated+"/"+region.getNodeCount()+" sites");
+			int calculated = curvesCalculated.incrementAndGet();
+			if (calculated % printModulus == 0)
+				System.out.println("Calculated "+calculated+"/"+region.getNodeCount()+" sites");
 		}
 	}
 	
@@ -702,124 +891,148 @@ public class ETAS_HazardMapCalc {
 	 * catalog, then computes a hazard curve across all catalogs by summing the exceedence probabilities scaled
 	 * by 1/numCatalogs.
 	 * 
+	 * Per catalog non-exceedance state and the conditional non-exceedance vectors for each fault/gridded rupture
+	 * are kept in primitive arrays, and are only converted to DiscretizedFunc instances at the very end.
+	 * 
 	 * @param site
 	 * @param precomputedFaultVals
 	 * @return HazardCalcResult instance
 	 */
-	Table<Duration, MapType, DiscretizedFunc> calculateCurves(Site site, Map<Integer, double[]> precomputedFaultVals) {
-		Table<Duration, MapType, DiscretizedFunc> curves = getInitializedCurvesMap(xVals, 0d); // linear space
+	Table<Duration, MapType, DiscretizedFunc> calculateCurves(Site site,
+			FaultShakingArchive.SiteValues precomputedFaultVals) {
+		Table<Duration, MapType, DiscretizedFunc> curves = HashBasedTable.create();
+		long curveStart = System.nanoTime();
 		
 		if (calcFaults || calcGridded) {
+			int numX = calcXVals.size();
+			double[] calcXArray = new double[numX];
+			for (int i=0; i<numX; i++)
+				calcXArray[i] = calcXVals.getX(i);
+			
 			// prepare inputs
 			ScalarIMR gmpe = null;
-			Map<Integer, DiscretizedFunc> faultNonExceeds = null;
+			double[][] faultNonExceeds = null; // indexed by FSS index
 			if (calcFaults) {
+				long faultStart = System.nanoTime();
 				if (precomputedFaultVals == null) {
 					// calculate them now
 					gmpe = checkOutGMPE();
-					faultNonExceeds = calcFaultIMs(site, gmpe);
+					faultNonExceeds = calcFaultNonExceeds(site, gmpe);
 				} else {
 					// use precomputed
-					faultNonExceeds = calcFaultExceeds(precomputedFaultVals);
+					faultNonExceeds = calcFaultNonExceeds(precomputedFaultVals, calcXArray);
 				}
-				complimentCurve(faultNonExceeds); // they were actually exceeds
+				metrics.addTime(PHASE_GMPE, faultStart);
 			}
 			
-			Table<Integer, Integer, DiscretizedFunc> griddedNonExceeds = null;
+			// node index -> [mag index][x index], calculated on the fly as needed
+			Map<Integer, double[][]> griddedNonExceeds = null;
+			// gridded lookup site class, or -1 for the exact calculation
+			int griddedSiteClass = -1;
 			if (calcGridded) {
-				// will calculate on the fly as needed
-				griddedNonExceeds = HashBasedTable.create();
+				griddedNonExceeds = new HashMap<>();
 				Preconditions.checkState(gridSources.isConditional());
-				if (gmpe == null)
-					gmpe = checkOutGMPE();
-				gmpe.setSite(site);
+				if (griddedLookup != null)
+					griddedSiteClass = griddedLookup.getSiteClass(site);
+				if (griddedSiteClass < 0 || griddedLookupErrorTrack != null) {
+					if (gmpe == null)
+						gmpe = checkOutGMPE();
+					gmpe.setSite(site);
+				}
 			}
 			
 			Preconditions.checkState(calcFaults || calcGridded);
 			
+			boolean[] typesCalculated = new boolean[ETAS_TYPES.length];
+			typesCalculated[FAULT_TYPE_INDEX] = calcFaults;
+			typesCalculated[GRIDDED_TYPE_INDEX] = calcGridded;
+			typesCalculated[COMBINED_TYPE_INDEX] = calcFaults && calcGridded;
+			
+			// [duration][type][x], log space if applicable
+			double[][][] catNonExceeds = new double[durations.length][ETAS_TYPES.length][numX];
+			// [duration][type][x], linear space
+			double[][][] totExceeds = new double[durations.length][ETAS_TYPES.length][numX];
+			
 			// now actually calculate
-			double rateEach = 1d/catalogs.size();
+			double rateEach = 1d/columnarCatalogs.getNumCatalogs();
 			
 			HashSet<Integer> ignoreGriddedNodes = new HashSet<Integer>();
 			
-			for (List<ETAS_EqkRupture> catalog : catalogs) {
-				boolean hasM5 = false;
-				for (ETAS_EqkRupture rup : catalog) {
-					if (rup.getMag() > 5) {
-						hasM5 = true;
-						break;
-					}
-				}
-				if (!hasM5)
+			// tracked locally and added to metrics once per site to avoid contention
+			long combineStart = System.nanoTime();
+			long griddedNanos = 0l;
+			int griddedCalcs = 0;
+			int griddedCacheHits = 0;
+			
+			double siteLatRad = site.getLocation().getLatRad();
+			double siteLonRad = site.getLocation().getLonRad();
+			
+			for (int c=0; c<columnarCatalogs.getNumCatalogs(); c++) {
+				if (!catalogHasM5[c])
 					continue;
-				Table<Duration, MapType, DiscretizedFunc> catCurves = getInitializedCurvesMap(calcXVals, 1d); // log space if applicable
+				for (double[][] durNonExceeds : catNonExceeds)
+					for (double[] typeNonExceeds : durNonExceeds)
+						Arrays.fill(typeNonExceeds, 1d);
 				
-				for (ETAS_EqkRupture rup : catalog) {
-					DiscretizedFunc condNonExceed; // conditional non-exceedance probabilities
-					MapType targetType; // hazard curve to apply this to
-					if (rup.getFSSIndex() >= 0) {
+				for (int r=columnarCatalogs.getStartIndex(c); r<columnarCatalogs.getEndIndex(c); r++) {
+					double[] condNonExceed; // conditional non-exceedance probabilities
+					int typeIndex; // hazard curve to apply this to
+					int fssIndex = columnarCatalogs.getFSSIndex(r);
+					if (fssIndex >= 0) {
 						// fault based
 						if (!calcFaults)
 							continue;
-						condNonExceed = faultNonExceeds.get(rup.getFSSIndex());
+						if (fssIndex >= faultNonExceeds.length)
+							continue;
+						condNonExceed = faultNonExceeds[fssIndex];
 						if (condNonExceed == null)
 							// not within cutoff dist
 							continue;
-						targetType = MapType.FAULT_ONLY;
+						typeIndex = FAULT_TYPE_INDEX;
 					} else {
 						// gridded
 						if (!calcGridded)
 							continue;
-						int nodeIndex = gridSources.getNodeIndex(rup);
-						int mfdIndex = gridSources.getMagIndex(rup);
+						int nodeIndex = griddedNodeIndexes[r];
+						int mfdIndex = griddedMagIndexes[r];
 						if (nodeIndex < 0 || mfdIndex < 0 || ignoreGriddedNodes.contains(nodeIndex))
 							continue;
-						double dist = LocationUtils.horzDistanceFast(site.getLocation(), rup.getHypocenterLocation());
+						double dist = horzDistanceFast(siteLatRad, siteLonRad,
+								columnarCatalogs.getLatitude(r), columnarCatalogs.getLongitude(r));
 						if (dist > distCutoff) {
 							ignoreGriddedNodes.add(nodeIndex);
 							continue;
 						}
-						condNonExceed = griddedNonExceeds.get(nodeIndex, mfdIndex);
-						targetType = MapType.GRIDDED_ONLY;
+						double[][] nodeNonExceeds = griddedNonExceeds.get(nodeIndex);
+						if (nodeNonExceeds == null) {
+							nodeNonExceeds = new double[gridSources.getNumMagBins()][];
+							griddedNonExceeds.put(nodeIndex, nodeNonExceeds);
+						}
+						condNonExceed = nodeNonExceeds[mfdIndex];
+						typeIndex = GRIDDED_TYPE_INDEX;
 						if (condNonExceed == null) {
-							// calculate it
-							// multiple ruptures with different focal mechanisms
-							Iterable<ProbEqkRupture> rups = gridSources.getConditionalRuptures(rup);
-							if (rups == null)
-								continue;
-							
-							condNonExceed = calcXVals.deepClone();
-							initializeCurve(condNonExceed, 1d);
-							double sumRate = 0d;
-							for (ProbEqkRupture subRup : rups) {
-								double subMag = subRup.getMag();
-								Preconditions.checkState(subMag >= rup.getMag()-0.06 && subMag <= rup.getMag()+0.06,
-										"Unexpected mag in sub-rupture. Expected %s, got %s", rup.getMag(), subMag);
-								gmpe.setEqkRupture(subRup);
-								double rupProb = subRup.getProbability();
-								double rupRate = -Math.log(1 - rupProb);
-								sumRate += rupRate;
-//								System.out.println(subRup.getAveRake()+": "+rupProb);
-								
-								for (int i=0; i<condNonExceed.size(); i++) {
-									// TODO doing this right?
-									double exceedProb = gmpe.getExceedProbability(condNonExceed.getX(i));
-									// scale by the rate of this rupture
-									condNonExceed.set(i, condNonExceed.getY(i)*(1-rupRate*exceedProb));
-									// this way if treating it as poisson, but since it's an actual occurance, I don't
-									// think that we should
-//									condNonExceed.set(i, condNonExceed.getY(i)*Math.pow(1-rupProb, exceedProb));
-								}
+							// calculate it, only now building a rupture object
+							long griddedStart = System.nanoTime();
+							griddedCalcs++;
+							if (griddedSiteClass >= 0) {
+								condNonExceed = griddedLookup.getNonExceeds(
+										griddedSiteClass, site.getLocation(), nodeIndex, mfdIndex);
+								if (condNonExceed != null && griddedLookupErrorTrack != null)
+									trackGriddedLookupError(condNonExceed, calcGriddedNonExceeds(
+											columnarCatalogs.buildRupture(r), gmpe, calcXArray));
+							} else {
+								condNonExceed = calcGriddedNonExceeds(columnarCatalogs.buildRupture(r), gmpe, calcXArray);
 							}
-//							System.out.println("SUM: "+sumProb);
-//							System.exit(0);
-							Preconditions.checkState((float)sumRate == 1f, "Rupture rates don't sum to 1! %s", sumRate);
-							
-							griddedNonExceeds.put(nodeIndex, mfdIndex, condNonExceed);
+							griddedNanos += System.nanoTime() - griddedStart;
+							if (condNonExceed == null)
+								continue;
+							nodeNonExceeds[mfdIndex] = condNonExceed;
+						} else {
+							griddedCacheHits++;
 						}
 					}
 					
-					long ot = rup.getOriginTime();
+					long ot = columnarCatalogs.getOriginTime(r);
 					
 					// now add the rupture to the appropriate curves
 					for (int i=0; i<durations.length; i++) {
@@ -827,48 +1040,126 @@ public class ETAS_HazardMapCalc {
 						if (ot < startOTs[i] || ot >= endOTs[i])
 							// rup occurs outside of window, skip
 							continue;
-						DiscretizedFunc targetCurve = catCurves.get(durations[i], targetType);
-						for (int k=0; k<targetCurve.size(); k++) {
+						double[] targetCurve = catNonExceeds[i][typeIndex];
+						for (int k=0; k<numX; k++)
 							// multiply this into the total non-exceedance probability
 							// (get the product of all non-eceedance probabilities)
-							targetCurve.set(k, targetCurve.getY(k) * condNonExceed.getY(k));
-						}
+							targetCurve[k] *= condNonExceed[k];
 					}
 				}
 				
-				if (catCurves.containsColumn(MapType.COMBINED)) {
-					// build combined catalog curves
-					for (Duration duration : catCurves.rowKeySet()) {
-						DiscretizedFunc catFaultCurve = catCurves.get(duration, MapType.FAULT_ONLY);
-						DiscretizedFunc catGriddedCurve = catCurves.get(duration, MapType.GRIDDED_ONLY);
-						DiscretizedFunc catCombinedCurve = catCurves.get(duration, MapType.COMBINED);
-						for (int k=0; k<catCombinedCurve.size(); k++)
-							catCombinedCurve.set(k, catFaultCurve.getY(k) * catGriddedCurve.getY(k));
+				for (int i=0; i<durations.length; i++) {
+					if (typesCalculated[COMBINED_TYPE_INDEX]) {
+						// build combined catalog curves
+						double[] catFaultCurve = catNonExceeds[i][FAULT_TYPE_INDEX];
+						double[] catGriddedCurve = catNonExceeds[i][GRIDDED_TYPE_INDEX];
+						double[] catCombinedCurve = catNonExceeds[i][COMBINED_TYPE_INDEX];
+						for (int k=0; k<numX; k++)
+							catCombinedCurve[k] = catFaultCurve[k] * catGriddedCurve[k];
 					}
-				}
-				
-				for (Cell<Duration, MapType, DiscretizedFunc> cell : catCurves.cellSet()) {
-					DiscretizedFunc catCurve = cell.getValue();
-					// convert from total non-exceed prob to total exceed prob
-					complimentCurve(catCurve);
 					
-					// add into total curves
-					DiscretizedFunc totalCurve = curves.get(cell.getRowKey(), cell.getColumnKey());
-					for (int k=0; k<xVals.size(); k++)
-						totalCurve.set(k, totalCurve.getY(k) + rateEach*catCurve.getY(k));
+					for (int t=0; t<ETAS_TYPES.length; t++) {
+						if (!typesCalculated[t])
+							continue;
+						double[] catCurve = catNonExceeds[i][t];
+						double[] totalCurve = totExceeds[i][t];
+						// convert from total non-exceed prob to total exceed prob, and add into total curves
+						for (int k=0; k<numX; k++)
+							totalCurve[k] += rateEach*(1d-catCurve[k]);
+					}
 				}
 			}
 			
+			if (calcGridded) {
+				metrics.addNanos(PHASE_GMPE, griddedNanos);
+				metrics.add(griddedSiteClass >= 0 ? "Gridded Lookups" : "Gridded GMPE Calcs", griddedCalcs);
+				metrics.add("Gridded Site Cache Hits", griddedCacheHits);
+			}
+			metrics.addNanos(PHASE_COMBINE, System.nanoTime() - combineStart - griddedNanos);
+			
 			if (gmpe != null)
 				checkInGMPE(gmpe);
+			
+			// now convert to curves (linear space)
+			for (int i=0; i<durations.length; i++) {
+				for (int t=0; t<ETAS_TYPES.length; t++) {
+					if (!typesCalculated[t])
+						continue;
+					DiscretizedFunc curve = xVals.deepClone();
+					double[] totalCurve = totExceeds[i][t];
+					for (int k=0; k<numX; k++)
+						curve.set(k, totalCurve[k]);
+					curves.put(durations[i], ETAS_TYPES[t], curve);
+				}
+			}
 		}
 		
 		if (calcLongTerm)
 			calcLongTerm(site, getLongTermCalcDurations(), curves);
 		
+		metrics.addTime(PHASE_CURVE, curveStart);
+		
 		return curves;
 	}
 	
+	/**
+	 * Same as {@link LocationUtils#horzDistanceFast(Location, Location)}, without building a Location for the rupture
+	 * 
+	 * @param lat1Rad first latitude in radians
+	 * @param lon1Rad first longitude in radians
+	 * @param lat2 second latitude in degrees
+	 * @param lon2 second longitude in degrees
+	 * @return approximate horizontal distance in km
+	 */
+	private static double horzDistanceFast(double lat1Rad, double lon1Rad, double lat2, double lon2) {
+		double lat2Rad = lat2*GeoTools.TO_RAD;
+		double dLat = lat1Rad - lat2Rad;
+		double dLon = (lon1Rad - lon2*GeoTools.TO_RAD) * Math.cos((lat1Rad + lat2Rad) * 0.5);
+		return GeoTools.EARTH_RADIUS_MEAN * Math.sqrt((dLat * dLat) + (dLon * dLon));
+	}
+	
+	/**
+	 * Calculates conditional non-exceedance probabilities for the given gridded rupture, accounting for each
+	 * focal mechanism returned by the grid source provider
+	 * 
+	 * @param rup
+	 * @param gmpe GMPE with site already set
+	 * @param calcXArray x values (log space if applicable)
+	 * @return conditional non-exceedance probabilities, or null if no conditional ruptures exist
+	 */
+	private double[] calcGriddedNonExceeds(ETAS_EqkRupture rup, ScalarIMR gmpe, double[] calcXArray) {
+		// multiple ruptures with different focal mechanisms
+		Iterable<ProbEqkRupture> rups = gridSources.getConditionalRuptures(rup);
+		if (rups == null)
+			return null;
+		
+		double[] condNonExceed = new double[calcXArray.length];
+		Arrays.fill(condNonExceed, 1d);
+		double sumRate = 0d;
+		for (ProbEqkRupture subRup : rups) {
+			double subMag = subRup.getMag();
+			Preconditions.checkState(subMag >= rup.getMag()-0.06 && subMag <= rup.getMag()+0.06,
+					"Unexpected mag in sub-rupture. Expected %s, got %s", rup.getMag(), subMag);
+			gmpe.setEqkRupture(subRup);
+			double rupProb = subRup.getProbability();
+			double rupRate = -Math.log(1 - rupProb);
+			sumRate += rupRate;
+			
+			for (int i=0; i<condNonExceed.length; i++) {
+				// TODO doing this right?
+				double exceedProb = gmpe.getExceedProbability(calcXArray[i]);
+				// scale by the rate of this rupture
+				condNonExceed[i] *= 1-rupRate*exceedProb;
+				// this way if treating it as poisson, but since it's an actual occurance, I don't
+				// think that we should
+//				condNonExceed[i] *= Math.pow(1-rupProb, exceedProb);
+			}
+		}
+		Preconditions.checkState((float)sumRate == 1f, "Rupture rates don't sum to 1! %s", sumRate);
+		
+		return condNonExceed;
+	}
+	
 	private void calcLongTerm(Site site, Duration[] calcDurations, Table<Duration, MapType, DiscretizedFunc> curves) {
 		FaultSystemSolutionERF erf = checkOutERF();
 		ScalarIMR gmpe = checkOutGMPE();
@@ -928,9 +1219,10 @@ public class ETAS_HazardMapCalc {
 		return linearCurve;
 	}
 	
-	private Map<Integer, DiscretizedFunc> calcFaultIMs(Site site, ScalarIMR gmpe) {
+	private double[][] calcFaultNonExceeds(Site site, ScalarIMR gmpe) {
 		// used if no precomputed data file
-		Map<Integer, DiscretizedFunc> rupVals = Maps.newHashMap();
+		double[][] rupVals = new double[maxFaultIndexTriggered+1][];
+		DiscretizedFunc exceedFunc = calcXVals.deepClone();
 		for (Integer fssIndex : faultIndexesTriggered) {
 			ProbEqkSource source = sourcesForFSSRuptures[fssIndex];
 			if (source == null)
@@ -945,49 +1237,68 @@ public class ETAS_HazardMapCalc {
 			gmpe.setSite(site);
 			gmpe.setEqkRupture(rup);
 			
-			rupVals.put(fssIndex, gmpe.getExceedProbabilities(calcXVals.deepClone()));
+			gmpe.getExceedProbabilities(exceedFunc);
+			double[] nonExceeds = new double[exceedFunc.size()];
+			for (int i=0; i<nonExceeds.length; i++)
+				nonExceeds[i] = 1d-exceedFunc.getY(i);
+			rupVals[fssIndex] = nonExceeds;
 		}
 		return rupVals;
 	}
 	
-	private Map<Integer, DiscretizedFunc> calcFaultExceeds(Map<Integer, double[]> precomputedFaultVals) {
-		Map<Integer, DiscretizedFunc> rupCondExceeds = Maps.newHashMap();
-		for (int rupIndex : precomputedFaultVals.keySet()) {
-			DiscretizedFunc condExceed = calcXVals.deepClone(); // log space if applicable
-			double[] vals = precomputedFaultVals.get(rupIndex);
-			double mean = vals[0];
-			double stdDev = vals[1];
+	private double[][] calcFaultNonExceeds(FaultShakingArchive.SiteValues precomputedFaultVals, double[] calcXArray) {
+		double[][] rupCondNonExceeds = new double[maxFaultIndexTriggered+1][];
+		for (int r=0; r<precomputedFaultVals.size(); r++) {
+			int rupIndex = precomputedFaultVals.getFSSIndex(r);
+			double mean = precomputedFaultVals.getMean(r);
+			double stdDev = precomputedFaultVals.getStdDev(r);
 			
-			for (int i=0; i<condExceed.size(); i++) {
+			double[] condNonExceed = new double[calcXArray.length]; // log space if applicable
+			for (int i=0; i<condNonExceed.length; i++) {
 				double exceedProb = AttenuationRelationship.getExceedProbability(
-						mean, stdDev, condExceed.getX(i), null, null);
-				condExceed.set(i, exceedProb);
+						mean, stdDev, calcXArray[i], null, null);
+				condNonExceed[i] = 1d-exceedProb;
 			}
-			rupCondExceeds.put(rupIndex, condExceed);
+			rupCondNonExceeds[rupIndex] = condNonExceed;
 		}
-		return rupCondExceeds;
-	}
-	
-	private void complimentCurve(Map<Integer, DiscretizedFunc> curves) {
-		for (DiscretizedFunc curve : curves.values())
-			complimentCurve(curve);
+		return rupCondNonExceeds;
 	}
 	
-	private void complimentCurve(DiscretizedFunc curve) {
-		for (int i=0; i<curve.size(); i++)
-			curve.set(i, 1d-curve.getY(i));
-	}
-	
-	private Map<Integer, double[]> loadNextSite() throws IOException {
-		Map<Integer, double[]> rupVals = loadSiteFromInputStream(in, faultSiteIndex);
+	private FaultShakingArchive.SiteValues loadNextSite() throws IOException {
+		FaultShakingArchive.SiteValues rupVals = loadSiteFromInputStream(in, faultSiteIndex);
 		
 		faultSiteIndex++;
 		return rupVals;
 	}
 	
-	Map<Integer, double[]> loadSiteFromInputStream(DataInputStream in, int expectedIndex) throws IOException {
+	/**
+	 * Loads precomputed values for the given site from an archive, keeping only ruptures which are present in the
+	 * catalogs. Thread safe.
+	 * 
+	 * @param archive
+	 * @param index
+	 * @return precomputed values for the given site
+	 */
+	FaultShakingArchive.SiteValues loadSiteFromArchive(FaultShakingArchive archive, int index) {
+		Location myLoc = archive.getLocation(index);
+		Location gridLoc = region.getLocation(index);
+		Preconditions.checkState(gridLoc.equals(myLoc),
+				"Grid locations don't match.\n\tFrom region: %s\n\tFrom file: %s", gridLoc, myLoc);
+		return archive.read(index, faultIndexesTriggeredMask);
+	}
+	
+	/**
+	 * Loads precomputed values for the next site from a legacy sequential stream, keeping only ruptures which are
+	 * present in the catalogs.
+	 * 
+	 * @param in
+	 * @param expectedIndex
+	 * @return precomputed values for the given site
+	 * @throws IOException
+	 */
+	FaultShakingArchive.SiteValues loadSiteFromInputStream(DataInputStream in, int expectedIndex) throws IOException {
 		int index = in.readInt();
-		Preconditions.checkState(index == expectedIndex, "Bad site index. Expected %s, encountered %s", index, faultSiteIndex);
+		Preconditions.checkState(index == expectedIndex, "Bad site index. Expected %s, encountered %s", expectedIndex, index);
 		double lat = in.readDouble();
 		double lon = in.readDouble();
 		Location myLoc = new Location(lat, lon);
@@ -996,7 +1307,10 @@ public class ETAS_HazardMapCalc {
 				"Grid locations don't match.\n\tFrom region: %s\n\tFrom file: %s", gridLoc, myLoc);
 		int numRups = in.readInt();
 		
-		Map<Integer, double[]> rupVals = Maps.newHashMap();
+		int[] fssIndexes = new int[numRups];
+		double[] means = new double[numRups];
+		double[] stdDevs = new double[numRups];
+		int numIncluded = 0;
 		
 		int fssIndex;
 		double mean, stdDev;
@@ -1004,14 +1318,24 @@ public class ETAS_HazardMapCalc {
 			fssIndex = in.readInt();
 			mean = in.readDouble();
 			stdDev = in.readDouble();
-			if (!faultIndexesTriggered.contains(fssIndex))
+			if (fssIndex >= faultIndexesTriggeredMask.length || !faultIndexesTriggeredMask[fssIndex])
 				continue;
 			
-			Preconditions.checkState(!rupVals.containsKey(fssIndex));
-			rupVals.put(fssIndex, new double[] { mean, stdDev });
+			fssIndexes[numIncluded] = fssIndex;
+			means[numIncluded] = mean;
+			stdDevs[numIncluded] = stdDev;
+			numIncluded++;
 		}
 		
-		return rupVals;
+		// make sure that no rupture is listed twice
+		int[] sortedIndexes = Arrays.copyOf(fssIndexes, numIncluded);
+		Arrays.sort(sortedIndexes);
+		for (int i=1; i<numIncluded; i++)
+			Preconditions.checkState(sortedIndexes[i] != sortedIndexes[i-1],
+					"Duplicate rupture %s for site %s", sortedIndexes[i], index);
+		
+		return new FaultShakingArchive.SiteValues(Arrays.copyOf(fssIndexes, numIncluded),
+				Arrays.copyOf(means, numIncluded), Arrays.copyOf(stdDevs, numIncluded));
 	}
 	
 	private void plotCurve(final Future<Integer> future) {
@@ -1678,35 +2002,6 @@ public class ETAS_HazardMapCalc {
 		FaultBasedMapGen.plotMap(outputDir, fullPrefix, false, map);
 	}
 	
-	private Table<Duration, MapType, DiscretizedFunc> getInitializedCurvesMap(DiscretizedFunc xVals, double initialVal) {
-		Table<Duration, MapType, DiscretizedFunc> curves = HashBasedTable.create();
-		
-		if (calcFaults)
-			for (Duration duration : durations)
-				curves.put(duration, MapType.FAULT_ONLY, getInitializeClone(xVals, initialVal));
-		
-		if (calcGridded)
-			for (Duration duration : durations)
-				curves.put(duration, MapType.GRIDDED_ONLY, getInitializeClone(xVals, initialVal));
-		
-		if (calcFaults && calcGridded)
-			for (Duration duration: durations)
-				curves.put(duration, MapType.COMBINED, getInitializeClone(xVals, initialVal));
-		
-		return curves;
-	}
-	
-	private static DiscretizedFunc getInitializeClone(DiscretizedFunc curve, double val) {
-		curve = curve.deepClone();
-		initializeCurve(curve, val);
-		return curve;
-	}
-	
-	private static void initializeCurve(DiscretizedFunc curve, double val) {
-		for (int i=0; i<curve.size(); i++)
-			curve.set(i, val);
-	}
-	
 	private static Table<Duration, MapType, File> detectCurveFiles(File dir, String prefix) {
 		Table<Duration, MapType, File> curveFiles = HashBasedTable.create();
 		
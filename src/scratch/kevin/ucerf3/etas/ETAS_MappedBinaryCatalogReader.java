@@ -0,0 +1,382 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Random access reader for ETAS binary catalog files, backed by memory mapped buffers and an
+ * {@link ETAS_BinaryCatalogIndex}. Catalog N can be loaded in O(1) without streaming through preceding catalogs,
+ * and all read methods are thread safe (each read operates on its own view of the shared mapped buffers), so
+ * disjoint ranges can be scanned in parallel.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_MappedBinaryCatalogReader implements Closeable {
+	
+	// individual mappings are limited to 2 GB, split the file into chunks aligned on catalog boundaries
+	private static final long MAX_CHUNK_LEN = Integer.MAX_VALUE;
+	
+	private File binFile;
+	private ETAS_BinaryCatalogIndex index;
+	
+	private RandomAccessFile raf;
+	private MappedByteBuffer[] chunks;
+	private long[] chunkStarts;
+	private int[] catalogChunks;
+	
+	/**
+	 * Creates a reader for the given file, loading (or building) the index sidecar file
+	 *
+	 * @param binFile
+	 * @throws IOException
+	 */
+	public ETAS_MappedBinaryCatalogReader(File binFile) throws IOException {
+		this(binFile, ETAS_BinaryCatalogIndex.loadOrBuild(binFile));
+	}
+	
+	public ETAS_MappedBinaryCatalogReader(File binFile, ETAS_BinaryCatalogIndex index) throws IOException {
+		Preconditions.checkState(binFile.length() == index.getFileLength(),
+				"Index doesn't match file. Index length: %s, file length: %s", index.getFileLength(), binFile.length());
+		this.binFile = binFile;
+		this.index = index;
+		
+		raf = new RandomAccessFile(binFile, "r");
+		FileChannel channel = raf.getChannel();
+		
+		int numCatalogs = index.getNumCatalogs();
+		catalogChunks = new int[numCatalogs];
+		List<MappedByteBuffer> chunkList = new ArrayList<>();
+		List<Long> chunkStartList = new ArrayList<>();
+		
+		int catIndex = 0;
+		while (catIndex < numCatalogs) {
+			long start = index.getOffset(catIndex);
+			long end = start;
+			int chunkIndex = chunkList.size();
+			while (catIndex < numCatalogs && (end - start) + index.getLength(catIndex) <= MAX_CHUNK_LEN) {
+				end += index.getLength(catIndex);
+				catalogChunks[catIndex] = chunkIndex;
+				catIndex++;
+			}
+			Preconditions.checkState(end > start, "Catalog %s is too large to map", catIndex);
+			chunkList.add(channel.map(MapMode.READ_ONLY, start, end - start));
+			chunkStartList.add(start);
+		}
+		
+		chunks = chunkList.toArray(new MappedByteBuffer[0]);
+		chunkStarts = new long[chunkStartList.size()];
+		for (int i=0; i<chunkStarts.length; i++)
+			chunkStarts[i] = chunkStartList.get(i);
+	}
+	
+	public File getFile() {
+		return binFile;
+	}
+	
+	public ETAS_BinaryCatalogIndex getIndex() {
+		return index;
+	}
+	
+	public int getNumCatalogs() {
+		return index.getNumCatalogs();
+	}
+	
+	public int getNumRuptures(int catalogIndex) {
+		return index.getNumRuptures(catalogIndex);
+	}
+	
+	/**
+	 * Returns a read only view of the raw bytes for the given catalog, including the 6 byte catalog header. The
+	 * returned buffer has its own position/limit and can be used from any thread.
+	 *
+	 * @param catalogIndex
+	 * @return buffer positioned at the start of the catalog header
+	 */
+	public ByteBuffer getCatalogBuffer(int catalogIndex) {
+		int chunkIndex = catalogChunks[catalogIndex];
+		ByteBuffer buf = chunks[chunkIndex].asReadOnlyBuffer();
+		int start = (int)(index.getOffset(catalogIndex) - chunkStarts[chunkIndex]);
+		buf.position(start);
+		buf.limit(start + (int)index.getLength(catalogIndex));
+		return buf.slice();
+	}
+	
+	/**
+	 * Loads the given catalog
+	 *
+	 * @param catalogIndex
+	 * @return catalog
+	 */
+	public List<ETAS_EqkRupture> getCatalog(int catalogIndex) {
+		return getCatalog(catalogIndex, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * Loads the given catalog, only including ruptures with magnitudes at or above the given minimum. Magnitudes
+	 * are checked before rupture objects are built.
+	 *
+	 * @param catalogIndex
+	 * @param minMag
+	 * @return catalog
+	 */
+	public List<ETAS_EqkRupture> getCatalog(int catalogIndex, double minMag) {
+		ByteBuffer buf = getCatalogBuffer(catalogIndex);
+		buf.getShort(); // version
+		int numRups = buf.getInt();
+		Preconditions.checkState(numRups == index.getNumRuptures(catalogIndex));
+		List<ETAS_EqkRupture> catalog = new ArrayList<>(numRups);
+		for (int r=0; r<numRups; r++) {
+			int start = buf.position();
+			if (minMag > Double.NEGATIVE_INFINITY && getMag(buf, start) < minMag) {
+				buf.position(start + ETAS_BinaryCatalogIndex.bytes_per_rup);
+				continue;
+			}
+			catalog.add(readRupture(buf));
+		}
+		return catalog;
+	}
+	
+	// offset of the magnitude within each rupture record: id, parent id, generation, origin time, lat, lon, depth
+	static final int MAG_OFFSET = 4 + 4 + 2 + 8 + 8 + 8 + 8;
+	
+	static double getMag(ByteBuffer buf, int rupStart) {
+		return buf.getDouble(rupStart + MAG_OFFSET);
+	}
+	
+	/**
+	 * Reads a single 70 byte rupture record at the buffer's current position, in the same layout written by
+	 * ETAS_CatalogIO.writeCatalogBinary
+	 *
+	 * @param buf
+	 * @return rupture
+	 */
+	static ETAS_EqkRupture readRupture(ByteBuffer buf) {
+		int id = buf.getInt();
+		int parentID = buf.getInt();
+		int gen = buf.getShort();
+		long origTime = buf.getLong();
+		double lat = buf.getDouble();
+		double lon = buf.getDouble();
+		double depth = buf.getDouble();
+		double mag = buf.getDouble();
+		double distToParent = buf.getDouble();
+		int nthERFIndex = buf.getInt();
+		int fssIndex = buf.getInt();
+		int gridNodeIndex = buf.getInt();
+		
+		ETAS_EqkRupture rup = new ETAS_EqkRupture();
+		rup.setID(id);
+		rup.setParentID(parentID);
+		rup.setGeneration(gen);
+		rup.setOriginTime(origTime);
+		rup.setHypocenterLocation(new Location(lat, lon, depth));
+		rup.setMag(mag);
+		rup.setDistanceToParent(distToParent);
+		rup.setNthERF_Index(nthERFIndex);
+		rup.setFSSIndex(fssIndex);
+		rup.setGridNodeIndex(gridNodeIndex);
+		return rup;
+	}
+	
+	/**
+	 * Loads the given catalogs
+	 *
+	 * @param catalogIndexes
+	 * @return catalogs, in the order requested
+	 */
+	public List<List<ETAS_EqkRupture>> getCatalogs(int[] catalogIndexes) {
+		List<List<ETAS_EqkRupture>> catalogs = new ArrayList<>(catalogIndexes.length);
+		for (int catalogIndex : catalogIndexes)
+			catalogs.add(getCatalog(catalogIndex));
+		return catalogs;
+	}
+	
+	/**
+	 * Draws a random subset of catalogs without replacement
+	 *
+	 * @param num
+	 * @param r
+	 * @return sorted catalog indexes
+	 */
+	public int[] getRandomSubsetIndexes(int num, Random r) {
+		int numCatalogs = getNumCatalogs();
+		Preconditions.checkArgument(num <= numCatalogs, "Can't draw %s of %s catalogs", num, numCatalogs);
+		// partial Fisher-Yates shuffle
+		int[] indexes = new int[numCatalogs];
+		for (int i=0; i<numCatalogs; i++)
+			indexes[i] = i;
+		for (int i=0; i<num; i++) {
+			int swap = i + r.nextInt(numCatalogs - i);
+			int tmp = indexes[i];
+			indexes[i] = indexes[swap];
+			indexes[swap] = tmp;
+		}
+		int[] ret = Arrays.copyOf(indexes, num);
+		Arrays.sort(ret);
+		return ret;
+	}
+	
+	/**
+	 * Draws a bootstrap sample (with replacement) of catalog indexes
+	 *
+	 * @param num
+	 * @param r
+	 * @return catalog indexes
+	 */
+	public int[] getBootstrapIndexes(int num, Random r) {
+		int numCatalogs = getNumCatalogs();
+		int[] indexes = new int[num];
+		for (int i=0; i<num; i++)
+			indexes[i] = r.nextInt(numCatalogs);
+		return indexes;
+	}
+	
+	/**
+	 * Lazily loaded list view of the catalogs in the given range. Catalogs are decoded each time that they are
+	 * accessed and are not retained.
+	 *
+	 * @param startIndex
+	 * @param endIndex exclusive
+	 * @return list view
+	 */
+	public List<List<ETAS_EqkRupture>> getRange(final int startIndex, final int endIndex) {
+		Preconditions.checkArgument(startIndex >= 0 && startIndex <= endIndex && endIndex <= getNumCatalogs());
+		return new AbstractList<List<ETAS_EqkRupture>>() {
+			
+			@Override
+			public List<ETAS_EqkRupture> get(int index) {
+				Preconditions.checkElementIndex(index, size());
+				return getCatalog(startIndex + index);
+			}
+			
+			@Override
+			public int size() {
+				return endIndex - startIndex;
+			}
+			
+			@Override
+			public Iterator<List<ETAS_EqkRupture>> iterator() {
+				return new Iterator<List<ETAS_EqkRupture>>() {
+					
+					private int index = startIndex;
+					
+					@Override
+					public boolean hasNext() {
+						return index < endIndex;
+					}
+					
+					@Override
+					public List<ETAS_EqkRupture> next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return getCatalog(index++);
+					}
+				};
+			}
+		};
+	}
+	
+	public interface CatalogProcessor {
+		
+		/**
+		 * Called once for each catalog. May be called concurrently from multiple threads (for different catalogs).
+		 *
+		 * @param catalogIndex
+		 * @param catalog
+		 */
+		public void process(int catalogIndex, List<ETAS_EqkRupture> catalog);
+	}
+	
+	/**
+	 * Scans all catalogs in parallel, splitting the file into disjoint ranges with similar numbers of ruptures
+	 *
+	 * @param processor
+	 * @param threads
+	 */
+	public void scanParallel(final CatalogProcessor processor, int threads) {
+		scanParallel(processor, threads, 0, getNumCatalogs());
+	}
+	
+	/**
+	 * Scans the given catalog range in parallel, splitting it into disjoint sub ranges with similar numbers of
+	 * ruptures
+	 *
+	 * @param processor
+	 * @param threads
+	 * @param startIndex
+	 * @param endIndex exclusive
+	 */
+	public void scanParallel(final CatalogProcessor processor, int threads, int startIndex, int endIndex) {
+		Preconditions.checkArgument(threads > 0);
+		// split into more ranges than threads for better load balancing
+		int numRanges = Math.min(endIndex - startIndex, threads*10);
+		if (numRanges < 1)
+			return;
+		List<int[]> ranges = new ArrayList<>();
+		int rangeStart = startIndex;
+		long totRups = index.getTotalNumRuptures(startIndex, endIndex) + (endIndex - startIndex);
+		long runningRups = 0;
+		for (int i=startIndex; i<endIndex; i++) {
+			runningRups += index.getNumRuptures(i) + 1;
+			if (runningRups >= (double)totRups*(ranges.size()+1)/(double)numRanges || i == endIndex-1) {
+				ranges.add(new int[] {rangeStart, i+1});
+				rangeStart = i+1;
+			}
+		}
+		
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (final int[] range : ranges) {
+			futures.add(exec.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					for (int i=range[0]; i<range[1]; i++)
+						processor.process(i, getCatalog(i));
+				}
+			}));
+		}
+		
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// mapped buffers are released when garbage collected
+		chunks = null;
+		raf.close();
+	}
+	
+}
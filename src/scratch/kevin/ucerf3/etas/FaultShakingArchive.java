@@ -0,0 +1,347 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ClassUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+
+/**
+ * Random access archive of precomputed fault rupture shaking (GMPE log mean and standard deviation for each fault
+ * system rupture at each site) used by {@link ETAS_HazardMapCalc}. This replaces the legacy sequential format
+ * (int numSites, then for each site: int index, double lat, double lon, int numRups, and [int fssIndex, double mean,
+ * double stdDev] for each rupture), which must be scanned to locate any given site, with a versioned columnar format
+ * that has a header offset table. The file is memory mapped, so any number of threads can read sites concurrently
+ * without locking, and sites decode directly into primitive arrays.
+ * <br>
+ * File layout: int magic, int version, int numSites, then a site table with [double lat, double lon, long offset,
+ * int numRups] for each site, then a block for each site at its offset with int fssIndexes (sorted ascending),
+ * double means, and double stdDevs, each numRups long.
+ * <br>
+ * Legacy files can be converted with {@link #convert(File, File)}.
+ *
+ * @author kevin
+ *
+ */
+public class FaultShakingArchive implements Closeable {
+	
+	private static final int MAGIC = 0x46534841;
+	private static final int VERSION = 1;
+	
+	private static final int FILE_HEADER_LEN = 12;
+	private static final int SITE_TABLE_ENTRY_LEN = 28;
+	private static final int BYTES_PER_RUP = 20;
+	
+	private int numSites;
+	private double[] lats;
+	private double[] lons;
+	private long[] offsets;
+	private int[] numRups;
+	
+	private RandomAccessFile raf;
+	// sites are mapped in chunks, each site is entirely within a single chunk
+	private MappedByteBuffer[] chunks;
+	private long[] chunkStarts;
+	private int[] siteChunks;
+	
+	/**
+	 * Primitive precomputed values for a single site
+	 */
+	public static class SiteValues {
+		
+		private int[] fssIndexes;
+		private double[] means;
+		private double[] stdDevs;
+		
+		public SiteValues(int[] fssIndexes, double[] means, double[] stdDevs) {
+			Preconditions.checkArgument(fssIndexes.length == means.length && means.length == stdDevs.length);
+			this.fssIndexes = fssIndexes;
+			this.means = means;
+			this.stdDevs = stdDevs;
+		}
+		
+		public int size() {
+			return fssIndexes.length;
+		}
+		
+		public int getFSSIndex(int i) {
+			return fssIndexes[i];
+		}
+		
+		public double getMean(int i) {
+			return means[i];
+		}
+		
+		public double getStdDev(int i) {
+			return stdDevs[i];
+		}
+	}
+	
+	/**
+	 * Loads (memory maps) the given archive file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public FaultShakingArchive(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		Preconditions.checkState(raf.readInt() == MAGIC, "Not a fault shaking archive: %s", file.getAbsolutePath());
+		int version = raf.readInt();
+		Preconditions.checkState(version == VERSION, "Unsupported archive version: %s", version);
+		numSites = raf.readInt();
+		
+		byte[] tableBytes = new byte[numSites*SITE_TABLE_ENTRY_LEN];
+		raf.readFully(tableBytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(tableBytes));
+		lats = new double[numSites];
+		lons = new double[numSites];
+		offsets = new long[numSites];
+		numRups = new int[numSites];
+		for (int i=0; i<numSites; i++) {
+			lats[i] = in.readDouble();
+			lons[i] = in.readDouble();
+			offsets[i] = in.readLong();
+			numRups[i] = in.readInt();
+		}
+		in.close();
+		
+		FileChannel channel = raf.getChannel();
+		long fileLen = channel.size();
+		List<MappedByteBuffer> chunkList = new ArrayList<>();
+		List<Long> chunkStartList = new ArrayList<>();
+		siteChunks = new int[numSites];
+		int site = 0;
+		while (site < numSites) {
+			long start = offsets[site];
+			Preconditions.checkState(getSiteEnd(site) - start <= Integer.MAX_VALUE,
+					"Block for site %s is too large to map", site);
+			long end = start;
+			int chunkIndex = chunkList.size();
+			while (site < numSites && getSiteEnd(site) - start <= Integer.MAX_VALUE) {
+				Preconditions.checkState(offsets[site] == end, "Site blocks must be contiguous");
+				end = getSiteEnd(site);
+				siteChunks[site] = chunkIndex;
+				site++;
+			}
+			Preconditions.checkState(end <= fileLen, "Archive is truncated. Expected at least %s bytes, have %s",
+					end, fileLen);
+			chunkList.add(channel.map(MapMode.READ_ONLY, start, end-start));
+			chunkStartList.add(start);
+		}
+		chunks = chunkList.toArray(new MappedByteBuffer[0]);
+		chunkStarts = new long[chunkStartList.size()];
+		for (int i=0; i<chunkStarts.length; i++)
+			chunkStarts[i] = chunkStartList.get(i);
+	}
+	
+	private long getSiteEnd(int site) {
+		return offsets[site] + (long)numRups[site]*BYTES_PER_RUP;
+	}
+	
+	/**
+	 * @param file
+	 * @return true if the given file is an archive in this format (rather than the legacy sequential format)
+	 * @throws IOException
+	 */
+	public static boolean isArchive(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= FILE_HEADER_LEN && in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+	
+	public int getNumSites() {
+		return numSites;
+	}
+	
+	public Location getLocation(int siteIndex) {
+		return new Location(lats[siteIndex], lons[siteIndex]);
+	}
+	
+	public int getNumRuptures(int siteIndex) {
+		return numRups[siteIndex];
+	}
+	
+	/**
+	 * Reads values for the given site. Thread safe.
+	 *
+	 * @param siteIndex
+	 * @param includeFSSIndexes if non null, only fault system ruptures with includeFSSIndexes[fssIndex] == true are
+	 * returned
+	 * @return values for the given site
+	 */
+	public SiteValues read(int siteIndex, boolean[] includeFSSIndexes) {
+		int num = numRups[siteIndex];
+		MappedByteBuffer chunk = chunks[siteChunks[siteIndex]];
+		int indexPos = (int)(offsets[siteIndex] - chunkStarts[siteChunks[siteIndex]]);
+		int meanPos = indexPos + 4*num;
+		int stdDevPos = meanPos + 8*num;
+		
+		int numIncluded = 0;
+		if (includeFSSIndexes == null) {
+			numIncluded = num;
+		} else {
+			for (int i=0; i<num; i++) {
+				int fssIndex = chunk.getInt(indexPos + 4*i);
+				if (fssIndex >= includeFSSIndexes.length)
+					// sorted, so none of the rest will be included either
+					break;
+				if (includeFSSIndexes[fssIndex])
+					numIncluded++;
+			}
+		}
+		
+		int[] fssIndexes = new int[numIncluded];
+		double[] means = new double[numIncluded];
+		double[] stdDevs = new double[numIncluded];
+		int index = 0;
+		for (int i=0; i<num && index<numIncluded; i++) {
+			int fssIndex = chunk.getInt(indexPos + 4*i);
+			if (includeFSSIndexes != null && !includeFSSIndexes[fssIndex])
+				continue;
+			fssIndexes[index] = fssIndex;
+			means[index] = chunk.getDouble(meanPos + 8*i);
+			stdDevs[index] = chunk.getDouble(stdDevPos + 8*i);
+			index++;
+		}
+		return new SiteValues(fssIndexes, means, stdDevs);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+	
+	/**
+	 * Converts a legacy sequential fault shaking file to an archive. Only one site is held in memory at a time.
+	 *
+	 * @param legacyFile
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void convert(File legacyFile, File outputFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(legacyFile), ETAS_CatalogIO.buffer_len));
+		int numSites = in.readInt();
+		Preconditions.checkState(numSites > 0 && numSites != MAGIC, "Not a legacy fault shaking file: %s",
+				legacyFile.getAbsolutePath());
+		
+		double[] lats = new double[numSites];
+		double[] lons = new double[numSites];
+		long[] offsets = new long[numSites];
+		int[] numRups = new int[numSites];
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(outputFile), ETAS_CatalogIO.buffer_len));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numSites);
+		// placeholder site table, filled in once all sites have been written
+		out.write(new byte[numSites*SITE_TABLE_ENTRY_LEN]);
+		long pos = FILE_HEADER_LEN + (long)numSites*SITE_TABLE_ENTRY_LEN;
+		
+		for (int s=0; s<numSites; s++) {
+			int index = in.readInt();
+			Preconditions.checkState(index == s, "Bad site index. Expected %s, encountered %s", s, index);
+			lats[s] = in.readDouble();
+			lons[s] = in.readDouble();
+			int num = in.readInt();
+			Preconditions.checkState(num >= 0);
+			
+			int[] fssIndexes = new int[num];
+			double[] means = new double[num];
+			double[] stdDevs = new double[num];
+			for (int i=0; i<num; i++) {
+				fssIndexes[i] = in.readInt();
+				means[i] = in.readDouble();
+				stdDevs[i] = in.readDouble();
+			}
+			// sort by FSS index
+			int[] order = sortedOrder(fssIndexes);
+			
+			offsets[s] = pos;
+			numRups[s] = num;
+			int prevIndex = -1;
+			for (int i : order) {
+				Preconditions.checkState(fssIndexes[i] != prevIndex, "Duplicate FSS index %s for site %s",
+						fssIndexes[i], s);
+				prevIndex = fssIndexes[i];
+				out.writeInt(fssIndexes[i]);
+			}
+			for (int i : order)
+				out.writeDouble(means[i]);
+			for (int i : order)
+				out.writeDouble(stdDevs[i]);
+			pos += (long)num*BYTES_PER_RUP;
+			
+			if (s % 1000 == 0)
+				System.out.println("Converted "+s+"/"+numSites+" sites");
+		}
+		in.close();
+		out.close();
+		
+		ByteArrayOutputStream tableBytes = new ByteArrayOutputStream(numSites*SITE_TABLE_ENTRY_LEN);
+		DataOutputStream tableOut = new DataOutputStream(tableBytes);
+		for (int s=0; s<numSites; s++) {
+			tableOut.writeDouble(lats[s]);
+			tableOut.writeDouble(lons[s]);
+			tableOut.writeLong(offsets[s]);
+			tableOut.writeInt(numRups[s]);
+		}
+		tableOut.close();
+		
+		RandomAccessFile raf = new RandomAccessFile(outputFile, "rw");
+		Preconditions.checkState(raf.length() == pos, "Unexpected file length. Expected %s, have %s",
+				pos, raf.length());
+		raf.seek(FILE_HEADER_LEN);
+		raf.write(tableBytes.toByteArray());
+		raf.close();
+		System.out.println("Wrote "+numSites+" sites to "+outputFile.getAbsolutePath());
+	}
+	
+	private static int[] sortedOrder(int[] values) {
+		long[] packed = new long[values.length];
+		for (int i=0; i<values.length; i++)
+			packed[i] = ((long)values[i] << 32) | i;
+		Arrays.sort(packed);
+		int[] order = new int[values.length];
+		for (int i=0; i<values.length; i++)
+			order[i] = (int)packed[i];
+		return order;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(FaultShakingArchive.class)
+					+" <legacy-file> <output-file>");
+			System.exit(2);
+		}
+		File legacyFile = new File(args[0]);
+		File outputFile = new File(args[1]);
+		
+		convert(legacyFile, outputFile);
+	}
+	
+}
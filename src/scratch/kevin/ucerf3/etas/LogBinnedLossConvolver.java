@@ -0,0 +1,238 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.util.Arrays;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Computes the distribution of the sum of independent loss distributions on a log10 spaced loss grid, as a
+ * replacement for enumerating every combination of conditional rupture losses (whose count is the product of the
+ * distribution sizes).
+ * <br>
+ * Each convolution step combines every occupied bin with every point of the incoming distribution, so the cost is
+ * O(bins*points) rather than exponential in the number of ruptures. Sums which fall between two bins are split
+ * between them in proportion to their distance, which exactly preserves total weight and mean loss. Other
+ * statistics are accurate to within the bin width, which is controlled by the log10 spacing (e.g. a spacing of 0.005
+ * is a relative loss error of ~1.2%). Losses below the minimum bin are split between zero and that bin.
+ * <br>
+ * A log grid is used rather than FFT convolution on a linear grid as losses span many orders of magnitude, and
+ * conditional rupture loss distributions are sparse (a handful of points each).
+ * <br>
+ * Instances are not thread safe, use one per catalog.
+ *
+ * @author kevin
+ *
+ */
+public class LogBinnedLossConvolver {
+	
+	public static final double DEFAULT_LOG10_DELTA = 0.005;
+	public static final double DEFAULT_MIN_LOSS = 1d;
+	
+	private double minLog10;
+	private double log10Delta;
+	
+	// bin values, grown as needed
+	private double[] binLosses;
+	
+	// weight at exactly zero loss
+	private double zeroWeight;
+	// weights for each log bin
+	private double[] weights;
+	// index of the highest nonzero log bin
+	private int maxIndex = -1;
+	
+	// constant losses (e.g. gridded ruptures) which are added exactly at the end
+	private double offset = 0d;
+	
+	private double[] scratchWeights;
+	
+	public LogBinnedLossConvolver() {
+		this(DEFAULT_MIN_LOSS, DEFAULT_LOG10_DELTA);
+	}
+	
+	/**
+	 * @param minLoss loss for the lowest (nonzero) bin, must be > 0
+	 * @param log10Delta bin spacing in log10 units, must be > 0
+	 */
+	public LogBinnedLossConvolver(double minLoss, double log10Delta) {
+		Preconditions.checkArgument(minLoss > 0d, "Min loss must be positive");
+		Preconditions.checkArgument(log10Delta > 0d, "Log10 delta must be positive");
+		this.minLog10 = Math.log10(minLoss);
+		this.log10Delta = log10Delta;
+		binLosses = new double[0];
+		weights = new double[0];
+		scratchWeights = new double[0];
+		ensureCapacity(1024);
+		reset();
+	}
+	
+	/**
+	 * Resets to a single loss of zero with weight 1
+	 */
+	public void reset() {
+		Arrays.fill(weights, 0d);
+		zeroWeight = 1d;
+		maxIndex = -1;
+		offset = 0d;
+	}
+	
+	private void ensureCapacity(int size) {
+		if (size <= binLosses.length)
+			return;
+		int newSize = Math.max(size, binLosses.length*2);
+		int oldSize = binLosses.length;
+		binLosses = Arrays.copyOf(binLosses, newSize);
+		for (int i=oldSize; i<newSize; i++)
+			binLosses[i] = Math.pow(10, minLog10 + i*log10Delta);
+		weights = Arrays.copyOf(weights, newSize);
+		scratchWeights = new double[newSize];
+	}
+	
+	/**
+	 * Adds a fixed loss (which occurs with probability 1). This is tracked exactly, not binned.
+	 *
+	 * @param loss
+	 */
+	public void addFixedLoss(double loss) {
+		offset += loss;
+	}
+	
+	/**
+	 * Convolves the current distribution with the given distribution
+	 *
+	 * @param lossDist loss distribution, x=loss, y=weight (weights should sum to 1)
+	 */
+	public void convolve(DiscretizedFunc lossDist) {
+		int num = lossDist.size();
+		if (num == 0)
+			return;
+		if (num == 1 && (float)lossDist.getY(0) == 1f) {
+			// single certain loss, no need to bin
+			addFixedLoss(lossDist.getX(0));
+			return;
+		}
+		double maxLoss = (maxIndex >= 0 ? binLosses[maxIndex] : 0d) + lossDist.getMaxX();
+		if (maxLoss > 0d)
+			ensureCapacity(indexAbove(maxLoss)+2);
+		
+		double[] newWeights = scratchWeights;
+		Arrays.fill(newWeights, 0d);
+		double[] newZero = { 0d };
+		int[] newMax = { -1 };
+		
+		for (int j=0; j<num; j++) {
+			double loss = lossDist.getX(j);
+			double weight = lossDist.getY(j);
+			if (weight == 0d)
+				continue;
+			Preconditions.checkState(loss >= 0d, "Negative loss: %s", loss);
+			if (zeroWeight > 0d)
+				deposit(loss, zeroWeight*weight, newWeights, newZero, newMax);
+			for (int i=0; i<=maxIndex; i++) {
+				double w = weights[i];
+				if (w > 0d)
+					deposit(binLosses[i] + loss, w*weight, newWeights, newZero, newMax);
+			}
+		}
+		
+		// swap
+		scratchWeights = weights;
+		weights = newWeights;
+		zeroWeight = newZero[0];
+		maxIndex = newMax[0];
+	}
+	
+	/**
+	 * @param loss
+	 * @return index of the first bin with a loss >= the given loss (assuming capacity)
+	 */
+	private int indexAbove(double loss) {
+		double pos = (Math.log10(loss) - minLog10)/log10Delta;
+		if (pos <= 0d)
+			return 0;
+		int index = (int)Math.ceil(pos);
+		// correct for floating point error in the bin values
+		while (index > 0 && index-1 < binLosses.length && binLosses[index-1] >= loss)
+			index--;
+		while (index < binLosses.length && binLosses[index] < loss)
+			index++;
+		return index;
+	}
+	
+	/**
+	 * Adds weight at the given loss, split between the neighboring bins so that the mean is preserved
+	 */
+	private void deposit(double loss, double weight, double[] newWeights, double[] newZero, int[] newMax) {
+		if (loss <= 0d) {
+			newZero[0] += weight;
+			return;
+		}
+		int upper = indexAbove(loss);
+		// capacity is ensured before convolving
+		Preconditions.checkState(upper < newWeights.length, "Loss %s is above the bin capacity", loss);
+		double upperLoss = binLosses[upper];
+		double lowerLoss = upper == 0 ? 0d : binLosses[upper-1];
+		double upperFract = upperLoss == loss ? 1d : (loss - lowerLoss)/(upperLoss - lowerLoss);
+		double lowerFract = 1d - upperFract;
+		newWeights[upper] += weight*upperFract;
+		if (lowerFract > 0d) {
+			if (upper == 0)
+				newZero[0] += weight*lowerFract;
+			else
+				newWeights[upper-1] += weight*lowerFract;
+		}
+		if (upper > newMax[0])
+			newMax[0] = upper;
+	}
+	
+	/**
+	 * @return mean loss of the current distribution
+	 */
+	public double getMean() {
+		double mean = 0d;
+		for (int i=0; i<=maxIndex; i++)
+			mean += binLosses[i]*weights[i];
+		return offset + mean;
+	}
+	
+	/**
+	 * @return total weight of the current distribution, which should be 1
+	 */
+	public double getSumWeight() {
+		double sum = zeroWeight;
+		for (int i=0; i<=maxIndex; i++)
+			sum += weights[i];
+		return sum;
+	}
+	
+	/**
+	 * @param xAxisScale scale factor applied to each loss value
+	 * @return current distribution, x=loss, y=weight, omitting empty bins
+	 */
+	public DiscretizedFunc getDistribution(double xAxisScale) {
+		int num = zeroWeight > 0d ? 1 : 0;
+		for (int i=0; i<=maxIndex; i++)
+			if (weights[i] > 0d)
+				num++;
+		double[] xVals = new double[num];
+		double[] yVals = new double[num];
+		int index = 0;
+		if (zeroWeight > 0d) {
+			xVals[index] = xAxisScale*offset;
+			yVals[index] = zeroWeight;
+			index++;
+		}
+		for (int i=0; i<=maxIndex; i++) {
+			if (weights[i] > 0d) {
+				xVals[index] = xAxisScale*(offset + binLosses[i]);
+				yVals[index] = weights[i];
+				index++;
+			}
+		}
+		return new LightFixedXFunc(xVals, yVals);
+	}
+	
+}
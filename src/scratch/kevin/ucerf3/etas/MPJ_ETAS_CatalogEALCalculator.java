@@ -26,6 +26,7 @@ import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.erf.mean.TrueMeanBuilder;
 import scratch.UCERF3.logicTree.LogicTreeBranch;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.mpj.CalcMetrics;
 
 public class MPJ_ETAS_CatalogEALCalculator extends MPJTaskCalculator {
 	
@@ -43,6 +44,9 @@ public class MPJ_ETAS_CatalogEALCalculator extends MPJTaskCalculator {
 	private double[] durations = { 1d/365.25, 7d/365.25, 30/365.25, 1d, 10d };
 	
 	private double maxX = 200;
+	
+	private CalcMetrics metrics = new CalcMetrics();
+	private File metricsDir;
 
 	public MPJ_ETAS_CatalogEALCalculator(CommandLine cmd) throws IOException, DocumentException {
 		super(cmd);
@@ -102,6 +106,12 @@ public class MPJ_ETAS_CatalogEALCalculator extends MPJTaskCalculator {
 		
 		triggeredOnly = cmd.hasOption("triggered-only");
 		allSubDurations = cmd.hasOption("sub-durations");
+		
+		if (cmd.hasOption("metrics-dir")) {
+			metricsDir = new File(cmd.getOptionValue("metrics-dir"));
+			Preconditions.checkState(metricsDir.exists() || metricsDir.mkdirs(),
+					"Metrics dir doesn't exist and could not be created: %s", metricsDir.getAbsolutePath());
+		}
 	}
 	
 	private static String xAxisLabel = "$ (Billions)";
@@ -127,14 +137,19 @@ public class MPJ_ETAS_CatalogEALCalculator extends MPJTaskCalculator {
 		for (int index : batch) {
 			File resultsFile = resultsFiles.get(index);
 			
+			long start = System.nanoTime();
 			ETAS_CatalogEALCalculator.calculate(resultsFile, triggeredOnly, xAxisLabel, maxX, deltaX, xAxisScale,
 					dataDirs, imrWeightsMap, fm, baSol, cfss, trueMeanSol, branchMappings, durations, allSubDurations, false);
+			metrics.addTime("Calculate", start);
+			metrics.increment("Results Files Calculated");
 		}
 	}
 
 	@Override
 	protected void doFinalAssembly() throws Exception {
-		
+		debug("Metrics: "+metrics);
+		if (metricsDir != null)
+			metrics.writeCSV(CalcMetrics.getRankFile(metricsDir, rank), rank, getNumThreads());
 	}
 	
 	public static Options createOptions() {
@@ -177,6 +192,11 @@ public class MPJ_ETAS_CatalogEALCalculator extends MPJTaskCalculator {
 		allSubDurs.setRequired(false);
 		ops.addOption(allSubDurs);
 		
+		Option metricsDir = new Option("md", "metrics-dir", true,
+				"If supplied, per rank timing metrics will be written to CSV files in this directory");
+		metricsDir.setRequired(false);
+		ops.addOption(metricsDir);
+		
 		return ops;
 	}
 
@@ -36,18 +36,20 @@ import mpi.MPI;
 import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
 import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
-import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.mpj.CalcMetrics;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.Duration;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.DurationConstants;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.MapType;
 
 public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 	
-	private List<? extends List<ETAS_EqkRupture>> catalogs;
+	private ETAS_ColumnarCatalogs catalogs;
 	
-	// for precomputed shakemaps
+	// for precomputed shakemaps, either a memory mapped archive read concurrently by all threads
+	private FaultShakingArchive faultArchive;
+	// or a legacy sequential file
 	private RandomAccessFile raFile;
 	private long[] filePositions;
 	private int[] fileLengths;
@@ -81,19 +83,33 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 	private DiscretizedFunc xVals;
 	
 	private boolean printEach;
+	
+	private File outputDir;
+	private CalcMetrics metrics;
 
 	public MPJ_ETAS_HazardMapCalc(CommandLine cmd) throws IOException, DocumentException {
 		super(cmd);
 		
 		File catalogsFile = new File(cmd.getOptionValue("catalogs"));
-		catalogs = ETAS_CatalogIO.loadCatalogsBinary(catalogsFile);
+		// catalogs are held in primitive arrays either way, the flag just skips building every rupture up front
+		if (cmd.hasOption("columnar-catalogs"))
+			catalogs = ETAS_ColumnarCatalogs.loadBinary(catalogsFile);
+		else
+			catalogs = ETAS_ColumnarCatalogs.fromCatalogs(ETAS_CatalogIO.loadCatalogsBinary(catalogsFile));
 		
 		FaultSystemSolution sol = null;
 		if (cmd.hasOption("fault-data-file")) {
 			// precalc mode
 			File faultDataFile = new File(cmd.getOptionValue("fault-data-file"));
 			Preconditions.checkState(faultDataFile.exists());
-			raFile = new RandomAccessFile(faultDataFile, "r");
+			if (FaultShakingArchive.isArchive(faultDataFile)) {
+				faultArchive = new FaultShakingArchive(faultDataFile);
+			} else {
+				if (rank == 0)
+					debug("Legacy fault data file, convert with "+FaultShakingArchive.class.getSimpleName()
+							+" for concurrent random access");
+				raFile = new RandomAccessFile(faultDataFile, "r");
+			}
 		} else {
 			Preconditions.checkArgument(cmd.hasOption("solution-file"),
 					"Must supply fault system solution file if no fault data precalc file");
@@ -104,6 +120,9 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		
 		double spacing = Double.parseDouble(cmd.getOptionValue("spacing"));
 		region = new CaliforniaRegions.RELM_TESTING_GRIDDED(spacing);
+		if (faultArchive != null)
+			Preconditions.checkState(faultArchive.getNumSites() == region.getNodeCount(),
+					"Fault data file has %s sites, region has %s", faultArchive.getNumSites(), region.getNodeCount());
 		
 		calcGridded = !cmd.hasOption("no-gridded");
 		calcFault = !cmd.hasOption("no-fault");
@@ -123,7 +142,7 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 			imtName = imt.toLowerCase();
 		}
 		
-		File outputDir = new File(cmd.getOptionValue("output-dir"));
+		outputDir = new File(cmd.getOptionValue("output-dir"));
 		if (rank == 0)
 			Preconditions.checkState(outputDir.exists() && outputDir.isDirectory() || outputDir.mkdir(),
 				"Output directory doesn't exist or couldn't be created: %s", outputDir.getAbsoluteFile());
@@ -173,8 +192,23 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 			mapCalc.setDistanceCutoff(distCutoff);
 		}
 		
+		if (calcGridded && cmd.hasOption("gridded-lookup")) {
+			double tolerance = ETAS_GriddedExceedanceLookup.DEFAULT_TOLERANCE;
+			if (cmd.getOptionValue("gridded-lookup") != null)
+				tolerance = Double.parseDouble(cmd.getOptionValue("gridded-lookup"));
+			mapCalc.setGriddedLookupTolerance(tolerance);
+			if (cmd.hasOption("gridded-lookup-vs30-bin"))
+				mapCalc.setGriddedLookupVs30BinWidth(
+						Double.parseDouble(cmd.getOptionValue("gridded-lookup-vs30-bin")));
+			mapCalc.setValidateGriddedLookup(cmd.hasOption("gridded-lookup-validate"));
+		}
+		
+		metrics = mapCalc.getMetrics();
+		
 		executor = mapCalc.createExecutor(getNumThreads());
 		
+		mapCalc.buildGriddedLookup(executor);
+		
 		if (calcFault && raFile != null)
 			loadFilePositions();
 		
@@ -335,11 +369,16 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		
 		if (allDone) {
 			debug(index+" already done, skipping");
+			metrics.increment("Sites Skipped");
 			return;
 		}
 		
-		Map<Integer, double[]> precomputedFaultVals = null;
-		if (raFile != null) {
+		long loadStart = System.nanoTime();
+		FaultShakingArchive.SiteValues precomputedFaultVals = null;
+		if (faultArchive != null) {
+			// load precomputed fault shakemaps, no locking needed
+			precomputedFaultVals = mapCalc.loadSiteFromArchive(faultArchive, index);
+		} else if (raFile != null) {
 			// load precomputed fault shakemaps
 			long pos = filePositions[index];
 			int len = fileLengths[index];
@@ -356,11 +395,14 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 
 			precomputedFaultVals = mapCalc.loadSiteFromInputStream(in, index);
 		}
+		if (precomputedFaultVals != null)
+			metrics.addTime(ETAS_HazardMapCalc.PHASE_LOAD, loadStart);
 		
 		if (printEach)
 			debug("Calculating "+index);
 		Table<Duration, MapType, DiscretizedFunc> curves = mapCalc.calculateCurves(sites.get(index), precomputedFaultVals);
 		
+		long writeStart = System.nanoTime();
 		for (Cell<Duration, MapType, CurveMetadata> cell : curveMetas.cellSet()) {
 			Duration duration = cell.getRowKey();
 			MapType type = cell.getColumnKey();
@@ -368,6 +410,8 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 			Preconditions.checkState(curve != null, "Curve not calculated for %s, %s! Size=%s", duration, type, curves.size());
 			archiver.archiveCurve(curve, cell.getValue());
 		}
+		metrics.addTime(ETAS_HazardMapCalc.PHASE_WRITE, writeStart);
+		metrics.increment("Sites Calculated");
 	}
 	
 	public static Options createOptions() {
@@ -378,7 +422,7 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		ops.addOption(catalogs);
 		
 		Option faultFile = new Option("f", "fault-data-file", true,
-				"Fault shakemap precalc data file. Must supply this, or --solution-file.");
+				"Fault shakemap precalc data file (archive or legacy format). Must supply this, or --solution-file.");
 		faultFile.setRequired(false);
 		ops.addOption(faultFile);
 		
@@ -447,13 +491,42 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		distCutoff.setRequired(false);
 		ops.addOption(distCutoff);
 		
+		Option columnar = new Option("col", "columnar-catalogs", false,
+				"Flag to read catalogs directly into compact columnar form, reducing peak memory usage by "
+				+ "never loading the full list of rupture objects");
+		columnar.setRequired(false);
+		ops.addOption(columnar);
+		
+		Option griddedLookup = new Option("gl", "gridded-lookup", true,
+				"Flag to use precomputed distance binned tables for gridded exceedance probabilities rather than "
+				+ "evaluating the GMPE for each site. Optional value is the interpolation error tolerance in "
+				+ "exceedance probability (default: "+ETAS_GriddedExceedanceLookup.DEFAULT_TOLERANCE+")");
+		griddedLookup.setOptionalArg(true);
+		griddedLookup.setRequired(false);
+		ops.addOption(griddedLookup);
+		
+		Option griddedLookupVs30 = new Option("glvs", "gridded-lookup-vs30-bin", true,
+				"Vs30 bin width (m/s) for gridded lookup site classes. Default is to use exact site parameters");
+		griddedLookupVs30.setRequired(false);
+		ops.addOption(griddedLookupVs30);
+		
+		Option griddedLookupValidate = new Option("glval", "gridded-lookup-validate", false,
+				"Flag to also calculate gridded exceedance probabilities exactly and report lookup errors");
+		griddedLookupValidate.setRequired(false);
+		ops.addOption(griddedLookupValidate);
+		
 		return ops;
 	}
 
 	@Override
 	protected void doFinalAssembly() throws Exception {
 		executor.shutdown();
+		mapCalc.printGriddedLookupValidation();
+		debug("Metrics: "+metrics);
+		metrics.writeCSV(CalcMetrics.getRankFile(outputDir, rank), rank, getNumThreads());
 		archiver.close();
+		if (faultArchive != null)
+			faultArchive.close();
 		if (raFile != null)
 			raFile.close();
 	}
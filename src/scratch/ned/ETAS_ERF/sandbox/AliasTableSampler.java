@@ -0,0 +1,101 @@
+package scratch.ned.ETAS_ERF.sandbox;
+
+import java.util.Random;
+
+/**
+ * This samples integer indices in proportion to the given (non-negative) weights using Walker's alias method
+ * (with Vose's construction), so that each sample takes constant time regardless of the number of weights.
+ * Instances are immutable once built, so they can be shared among threads as long as each thread supplies its
+ * own Random.
+ * @author field
+ *
+ */
+public class AliasTableSampler {
+	
+	private final double[] prob;
+	private final int[] alias;
+	
+	/**
+	 * @param weights - must be non-negative with a positive sum
+	 */
+	public AliasTableSampler(double[] weights) {
+		this(weights, 0, weights.length);
+	}
+	
+	/**
+	 * This builds the table for the given slice of the weights array
+	 * @param weights - must be non-negative with a positive sum over the slice
+	 * @param offset - index of the first weight to use
+	 * @param num - number of weights to use; sampled indices are relative to offset
+	 */
+	public AliasTableSampler(double[] weights, int offset, int num) {
+		double sum = 0;
+		for(int i=0; i<num; i++) {
+			double wt = weights[offset+i];
+			if(wt < 0 || Double.isNaN(wt))
+				throw new IllegalArgumentException("Weights must be non-negative; weight "+i+" is "+wt);
+			sum += wt;
+		}
+		if(!(sum > 0) || Double.isInfinite(sum))
+			throw new IllegalArgumentException("Sum of weights must be positive and finite; sum="+sum);
+		
+		prob = new double[num];
+		alias = new int[num];
+		
+		// scaled probabilities, where 1 is the average; small ones are stacked from the bottom of the work array
+		// and large ones from the top
+		double[] scaled = new double[num];
+		int[] work = new int[num];
+		int numSmall = 0;
+		int largeStart = num;
+		for(int i=0; i<num; i++) {
+			scaled[i] = weights[offset+i]*num/sum;
+			if(scaled[i] < 1.0)
+				work[numSmall++] = i;
+			else
+				work[--largeStart] = i;
+		}
+		
+		while(numSmall > 0 && largeStart < num) {
+			int small = work[--numSmall];
+			int large = work[largeStart++];
+			prob[small] = scaled[small];
+			alias[small] = large;
+			scaled[large] = (scaled[large]+scaled[small])-1.0;
+			if(scaled[large] < 1.0)
+				work[numSmall++] = large;
+			else
+				work[--largeStart] = large;
+		}
+		// whatever remains is 1 to within round off
+		while(largeStart < num) {
+			int i = work[largeStart++];
+			prob[i] = 1.0;
+			alias[i] = i;
+		}
+		while(numSmall > 0) {
+			int i = work[--numSmall];
+			prob[i] = 1.0;
+			alias[i] = i;
+		}
+	}
+	
+	/**
+	 * @return the number of indices that can be sampled
+	 */
+	public int size() {
+		return prob.length;
+	}
+	
+	/**
+	 * @param r
+	 * @return a random index between 0 and size()-1
+	 */
+	public int getRandomInt(Random r) {
+		int i = r.nextInt(prob.length);
+		if(r.nextDouble() < prob[i])
+			return i;
+		return alias[i];
+	}
+	
+}
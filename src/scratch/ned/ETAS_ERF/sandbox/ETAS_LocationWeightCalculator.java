@@ -1,11 +1,19 @@
 package scratch.ned.ETAS_ERF.sandbox;
 
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
-import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationList;
 import org.opensha.commons.gui.plot.PlotCurveCharacterstics;
@@ -15,8 +23,24 @@ import org.opensha.commons.gui.plot.GraphWindow;
 
 import scratch.ned.ETAS_ERF.EqksInGeoBlock;
 
+/**
+ * This computes the ETAS spatial kernel (distance-decay weights) on a grid of relative lat, lon, and depth
+ * for the first quadrant, and samples aftershock locations from it.
+ *
+ * The kernel is stored as a flat array (see getIndex()), and can be cached in a binary file keyed by all the
+ * constructor parameters so it only has to be computed once.  The sub-location samplers are alias tables
+ * built in the constructor and never modified, so one instance can be used by concurrent simulations as
+ * long as each thread supplies its own Random.
+ * @author field
+ *
+ */
 public class ETAS_LocationWeightCalculator {
 	
+	final static boolean D = false;
+	
+	// this identifies the cache file format
+	private final static int CACHE_FILE_VERSION = 1;
+	
 	int numLatLon, numDepth;
 	double maxLatLonDeg, maxDepthKm, latLonDiscrDeg, depthDiscr, midLat, maxDistKm;
 	
@@ -25,16 +49,34 @@ public class ETAS_LocationWeightCalculator {
 	double cosMidLat;
 	
 	double[] totWtAtDepth;	
-	double[][][] nominalWt;
+	double[] normWtForHypoDep;	// the total weight for the layers available to a hypocenter at each depth index
+	double[] nominalWt;	// flat kernel array; see getIndex()
 	
 	LocationList[][][] subLocsArray;
-	IntegerPDF_FunctionSampler[][][] subLocSamplerArray;
+	AliasTableSampler[][][] subLocSamplerArray;
 	int maxNumPtsWithSubLocs = 3;
 	int[] numSubLocDivisions = {12,8,4};
 	
 	
 	public ETAS_LocationWeightCalculator(double maxDistKm, double maxDepthKm, double latLonDiscrDeg, double depthDiscr, 
 			double midLat, double distDecay, double minDist) {
+		this(maxDistKm, maxDepthKm, latLonDiscrDeg, depthDiscr, midLat, distDecay, minDist, null);
+	}
+	
+	/**
+	 *
+	 * @param maxDistKm
+	 * @param maxDepthKm
+	 * @param latLonDiscrDeg
+	 * @param depthDiscr
+	 * @param midLat
+	 * @param distDecay
+	 * @param minDist
+	 * @param cacheDir - directory for the kernel cache file (see getCacheFile()); it's read if it exists, and
+	 * written otherwise.  Set as null to always compute the kernel.
+	 */
+	public ETAS_LocationWeightCalculator(double maxDistKm, double maxDepthKm, double latLonDiscrDeg, double depthDiscr,
+			double midLat, double distDecay, double minDist, File cacheDir) {
 		
 		cosMidLat = Math.cos(midLat*Math.PI/180);
 		double aveLatLonDiscrKm = (latLonDiscrDeg+cosMidLat*latLonDiscrDeg)*111/2.0;
@@ -52,12 +94,75 @@ public class ETAS_LocationWeightCalculator {
 		numLatLon = (int)Math.round(maxLatLonDeg/latLonDiscrDeg);
 		numDepth = (int)Math.round(maxDepthKm/depthDiscr);
 	
-		System.out.println("aveLatLonDiscrKm="+aveLatLonDiscrKm+
+		if(D) System.out.println("aveLatLonDiscrKm="+aveLatLonDiscrKm+
 				"\nmaxLatLonDeg="+maxLatLonDeg+
 				"\ncosMidLat="+cosMidLat+
 				"\nnumLatLon="+numLatLon+
 				"\nnumDepth="+numDepth);
 
+		File cacheFile = null;
+		if(cacheDir != null)
+			cacheFile = getCacheFile(cacheDir, maxDistKm, maxDepthKm, latLonDiscrDeg, depthDiscr, midLat, distDecay, minDist);
+		
+		if(cacheFile == null || !readCache(cacheFile)) {
+			computeNominalWts();
+			if(cacheFile != null)
+				writeCache(cacheFile);
+		}
+		
+		totWtAtDepth = new double[numDepth];
+		double testTot=0;
+		int numPerLayer = numLatLon*numLatLon;
+		for(int iDep=0;iDep<numDepth; iDep++) {
+			double wtAtDep=0;
+			int offset = iDep*numPerLayer;
+			for(int i=0;i<numPerLayer; i++)
+				wtAtDep += nominalWt[offset+i];
+			totWtAtDepth[iDep]=wtAtDep;
+//			System.out.println("totWtAtDepth\t"+iDep+"\t"+wtAtDep);
+			testTot += wtAtDep;
+		}
+		
+		// the total weight for the layers available to a hypocenter at each depth
+		normWtForHypoDep = new double[numDepth];
+		for(int iHypoDep=0; iHypoDep<numDepth; iHypoDep++) {
+			double normWt=0;
+			// sum those at same depth and below	// if at surface (iHypoDepth=0), should include all; if at bottom (iHypoDepth=numDepth-1), should include just 0th
+			for(int d=0; d<numDepth-iHypoDep;d++)
+				normWt += totWtAtDepth[d];
+			// sum those above; none if iHypoDepth=0; those above if at bottom (iHypoDepth=numDepth-1)
+			for(int d=1; d<=iHypoDep;d++)
+				normWt += totWtAtDepth[d];
+			normWtForHypoDep[iHypoDep] = normWt;
+		}
+		
+		makeSubLocSamplers();
+		
+		if(D) System.out.println("TotWt over all depths="+(float)testTot);
+		
+		if(D) System.out.println("Constructor runtime = "+ (System.currentTimeMillis()-startTime)/1000 +" sec");
+		
+	}
+	
+	private static String getCacheFileName(double maxDistKm, double maxDepthKm, double latLonDiscrDeg,
+			double depthDiscr, double midLat, double distDecay, double minDist) {
+		return "etas_loc_wts_"+(float)maxDistKm+"km_"+(float)maxDepthKm+"km_"+(float)latLonDiscrDeg+"deg_"
+				+(float)depthDiscr+"km_lat"+(float)midLat+"_decay"+(float)distDecay+"_min"+(float)minDist+".bin";
+	}
+	
+	/**
+	 * This returns the kernel cache file for the given parameters in the given directory (the file might not exist)
+	 */
+	public static File getCacheFile(File cacheDir, double maxDistKm, double maxDepthKm, double latLonDiscrDeg,
+			double depthDiscr, double midLat, double distDecay, double minDist) {
+		return new File(cacheDir, getCacheFileName(maxDistKm, maxDepthKm, latLonDiscrDeg, depthDiscr, midLat,
+				distDecay, minDist));
+	}
+	
+	/**
+	 * This computes the nominalWt array
+	 */
+	private void computeNominalWts() {
 //		double deltaDistForHist = Math.round(aveLatLonDiscrKm);
 		double deltaDistForHist = depthDiscr;
 		double min = deltaDistForHist/2;
@@ -69,8 +174,7 @@ public class ETAS_LocationWeightCalculator {
 		distBinWt.setTolerance(deltaDistForHist);
 
 		
-		double[][][] distances = new double[numLatLon][numLatLon][numDepth];
-		nominalWt = new double[numLatLon][numLatLon][numDepth];
+		nominalWt = new double[numLatLon*numLatLon*numDepth];
 		for(int iDep=0;iDep<numDepth; iDep++) {
 //			System.out.println("Working on depth "+iDep);
 			for(int iLat=0;iLat<numLatLon; iLat++) {
@@ -78,14 +182,11 @@ public class ETAS_LocationWeightCalculator {
 					double dist = getDistance(iLat, iLon, iDep);
 //					if(dist<10)	// fix close/biased distances
 //						dist = getEquivDistFast(iLat, iLon, iDep, 10);
-					distances[iLat][iLon][iDep] = dist;
 					if(dist<=maxDistKm) {
 						distHistogram.add(dist, 1.0);
-						nominalWt[iLat][iLon][iDep] = Math.pow(dist+minDist, -distDecay);
-						distBinWt.add(dist, nominalWt[iLat][iLon][iDep]);
-					}
-					else {
-						nominalWt[iLat][iLon][iDep] = 0;
+						double wt = Math.pow(dist+minDist, -distDecay);
+						nominalWt[getIndex(iLat, iLon, iDep)] = wt;
+						distBinWt.add(dist, wt);
 					}
 				}
 			}
@@ -110,123 +211,178 @@ public class ETAS_LocationWeightCalculator {
 		for(int i=0; i<target.size();i++) target.set(i,target.getY(i)/sum2);
 		for(int i=0; i<target.size();i++) targetHist.add(target.getX(i), target.getY(i));
 		
-		for(int iLat=0;iLat<numLatLon; iLat++) {
-			for(int iLon=0;iLon<numLatLon; iLon++) {
-				for(int iDep=0;iDep<numDepth; iDep++) {
-					double dist = distances[iLat][iLon][iDep];
+		// distances are recomputed here rather than stored, which would double the memory
+		double totWt=0;
+		for(int iDep=0;iDep<numDepth; iDep++) {
+			for(int iLat=0;iLat<numLatLon; iLat++) {
+				for(int iLon=0;iLon<numLatLon; iLon++) {
+					int index = getIndex(iLat, iLon, iDep);
+					double dist = getDistance(iLat, iLon, iDep);
 					if(dist<maxDistKm) {
-						nominalWt[iLat][iLon][iDep] *= targetHist.getY(dist)/distBinWt.getY(dist);
+						nominalWt[index] *= targetHist.getY(dist)/distBinWt.getY(dist);
 					}
+					totWt += nominalWt[index];
 				}
 			}
 		}
+		if(D) System.out.println("totWt="+totWt);
+	}
 
-		double totWt=0;
-		for(int iLat=0;iLat<numLatLon; iLat++) {
-			for(int iLon=0;iLon<numLatLon; iLon++) {
-				for(int iDep=0;iDep<numDepth; iDep++) {
-//					double dist = distances[iLat][iLon][iDep];
-//					if(dist<maxDistKm) {
-//						nominalWt[iLat][iLon][iDep] /= distHistogram.getY(dist);
-						totWt += nominalWt[iLat][iLon][iDep];
-//					}
+	/**
+	 * This reads nominalWt from the given cache file, returning false if the file doesn't exist or
+	 * doesn't match this calculator's parameters
+	 */
+	private boolean readCache(File cacheFile) {
+		if(!cacheFile.exists())
+			return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1024*1024));
+			if(in.readInt() != CACHE_FILE_VERSION
+					|| in.readDouble() != maxDistKm || in.readDouble() != maxDepthKm
+					|| in.readDouble() != latLonDiscrDeg || in.readDouble() != depthDiscr
+					|| in.readDouble() != midLat || in.readDouble() != distDecay || in.readDouble() != minDist
+					|| in.readInt() != numLatLon || in.readInt() != numDepth) {
+				System.out.println("Ignoring cache file with different parameters: "+cacheFile.getAbsolutePath());
+				return false;
+			}
+			double[] wts = new double[numLatLon*numLatLon*numDepth];
+			for(int i=0; i<wts.length; i++)
+				wts[i] = in.readDouble();
+			nominalWt = wts;
+			if(D) System.out.println("Read kernel from "+cacheFile.getAbsolutePath());
+			return true;
+		} catch (IOException e) {
+			System.out.println("Couldn't read cache file "+cacheFile.getAbsolutePath()+"; recomputing");
+			e.printStackTrace();
+			return false;
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 			}
 		}
-		System.out.println("totWt="+totWt);
-		
-//		double finalTotWt=0;
-//		for(int iDep=0;iDep<numDepth; iDep++) {
-//			for(int iLat=0;iLat<numLatLon; iLat++) {
-//				for(int iLon=0;iLon<numLatLon; iLon++) {
-//					double dist = distances[iLat][iLon][iDep];
-//					if(dist<maxDistKm) {
-//						nominalWt[iLat][iLon][iDep] /= totWt;
-//						finalTotWt += nominalWt[iLat][iLon][iDep];
-//					}
-//				}
-//			}
-//		}
-//		System.out.println("finalTotWt="+(float)finalTotWt);
+	}
 		
-		totWtAtDepth = new double[numDepth];
-		double testTot=0;
-		for(int iDep=0;iDep<numDepth; iDep++) {
-			double wtAtDep=0;
-			for(int iLat=0;iLat<numLatLon; iLat++) {
-				for(int iLon=0;iLon<numLatLon; iLon++) {
-					wtAtDep += nominalWt[iLat][iLon][iDep];
-				}
+	/**
+	 * This writes nominalWt (with a header of the parameters) to the given cache file. It's written to a
+	 * temporary file first and then renamed so that other processes never see a partial file.
+	 */
+	private void writeCache(File cacheFile) {
+		File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName()+".tmp"+System.nanoTime());
+		try {
+			cacheFile.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1024*1024));
+			try {
+				out.writeInt(CACHE_FILE_VERSION);
+				out.writeDouble(maxDistKm);
+				out.writeDouble(maxDepthKm);
+				out.writeDouble(latLonDiscrDeg);
+				out.writeDouble(depthDiscr);
+				out.writeDouble(midLat);
+				out.writeDouble(distDecay);
+				out.writeDouble(minDist);
+				out.writeInt(numLatLon);
+				out.writeInt(numDepth);
+				for(double wt : nominalWt)
+					out.writeDouble(wt);
+			} finally {
+				out.close();
 			}
-			totWtAtDepth[iDep]=wtAtDep;
-//			System.out.println("totWtAtDepth\t"+iDep+"\t"+wtAtDep);
-			testTot += wtAtDep;
+			if(!tempFile.renameTo(cacheFile) && !cacheFile.exists())
+				throw new IOException("Couldn't rename "+tempFile.getAbsolutePath());
+			if(D) System.out.println("Wrote kernel to "+cacheFile.getAbsolutePath());
+		} catch (IOException e) {
+			System.out.println("Couldn't write cache file "+cacheFile.getAbsolutePath());
+			e.printStackTrace();
+		} finally {
+			tempFile.delete();
 		}
+	}
 		
-		
+	/**
+	 * This builds the sub-location lists and samplers for the cells closest to the hypocenter
+	 */
+	private void makeSubLocSamplers() {
 		subLocsArray = new LocationList[maxNumPtsWithSubLocs][maxNumPtsWithSubLocs][maxNumPtsWithSubLocs];
-		subLocSamplerArray = new IntegerPDF_FunctionSampler[maxNumPtsWithSubLocs][maxNumPtsWithSubLocs][maxNumPtsWithSubLocs];
-
-		System.out.println("TotWt over all depths="+(float)testTot);
+		subLocSamplerArray = new AliasTableSampler[maxNumPtsWithSubLocs][maxNumPtsWithSubLocs][maxNumPtsWithSubLocs];
+		for(int iLat=0; iLat<maxNumPtsWithSubLocs; iLat++) {
+			for(int iLon=0; iLon<maxNumPtsWithSubLocs; iLon++) {
+				for(int iDep=0; iDep<maxNumPtsWithSubLocs; iDep++) {
+					int numSubLoc = getNumSubLocs(iLat, iLon, iDep);
+					double deltaLatLon = latLonDiscrDeg/numSubLoc;
+					double deltaDepth = depthDiscr/numSubLoc;
+					double midLat = getLat(iLat);
+					double midLon = getLon(iLon);
+					double midDepth = getDepth(iDep);
+					LocationList locList = new LocationList();
+					double[] wts = new double[numSubLoc*numSubLoc*numSubLoc];
+					int index = 0;
+					for(int latIndex = 0; latIndex < numSubLoc; latIndex++) {
+						double lat = midLat - latLonDiscrDeg/2 + latIndex*deltaLatLon + deltaLatLon/2;
+						double distLat = (lat)*111.0;
+						for(int lonIndex = 0; lonIndex < numSubLoc; lonIndex++) {
+							double lon = midLon-latLonDiscrDeg/2 + lonIndex*deltaLatLon + deltaLatLon/2;
+							double distLon = (lon) * 111.0 * cosMidLat;
+							for(int depIndex = 0; depIndex < numSubLoc; depIndex++) {
+								double dep = (midDepth - depthDiscr/2 + depIndex*deltaDepth + deltaDepth/2);
+								locList.add(new Location(lat,lon, dep));
+								double dist = Math.sqrt(distLat*distLat+distLon*distLon+dep*dep);
+								wts[index] = Math.pow(dist+minDist, -distDecay);
+								index ++;
+							}
+						}
+					}
+					subLocsArray[iLat][iLon][iDep] = locList;
+					subLocSamplerArray[iLat][iLon][iDep] = new AliasTableSampler(wts);
+				}
+			}
+		}
+	}
 		
-		System.out.println("Constructor runtime = "+ (System.currentTimeMillis()-startTime)/1000 +" sec");
-
+	private int getNumSubLocs(int iLat, int iLon, int iDep) {
+		int temp = Math.max(iLat, iLon);
+		int max = Math.max(temp, iDep);
+		return numSubLocDivisions[max];
 	}
 	
 	/**
 	 * This returns a location containing delta lat, lon, and depth based on distance decay
-	 * RIGHT HERE IS WHAT I NEED TO WORK ON
 	 * @param relLat
 	 * @param relLon
 	 * @param relDep
 	 * @return
 	 */
 	public Location getRandomDeltaLoc(double relLat, double relLon, double relDep) {
-		int iLat = getLatIndex(relLat);
-		int iLon = getLatIndex(relLon);
-		int iDep = getDepthIndex(relDep);
+		return getRandomDeltaLoc(relLat, relLon, relDep, ThreadLocalRandom.current());
+	}
+	
+	/**
+	 * This returns a location containing delta lat, lon, and depth based on distance decay, where sub-locations
+	 * are sampled for the cells closest to the hypocenter
+	 * @param relLat
+	 * @param relLon
+	 * @param relDep
+	 * @param r
+	 * @return
+	 */
+	public Location getRandomDeltaLoc(double relLat, double relLon, double relDep, Random r) {
+		return getRandomDeltaLoc(getLatIndex(relLat), getLonIndex(relLon), getDepthIndex(relDep), r);
+	}
+	
+	private Location getRandomDeltaLoc(int iLat, int iLon, int iDep, Random r) {
 		Location loc;
 		double deltaLatLon;
 		double deltaDepth;
 
 		if(iLat<maxNumPtsWithSubLocs && iLon<maxNumPtsWithSubLocs && iDep<maxNumPtsWithSubLocs) {
-//			LocationList[][][] subLocsArray;
-//			IntegerPDF_FunctionSampler[][][] subLocSamplerArray;
-//			int maxNumPtsWithSubLocs = 3;
-//			int[] numSubLocDivisions = {12,8,4};
-			int temp = Math.max(iLat, iLon);
-			int max = Math.max(temp, iDep);
-			int numSubLoc = numSubLocDivisions[max];
+			int numSubLoc = getNumSubLocs(iLat, iLon, iDep);
 			deltaLatLon = latLonDiscrDeg/numSubLoc;
 			deltaDepth = depthDiscr/numSubLoc;
-
-			if(subLocsArray[iLat][iLon][iDep] == null) {
-				double midLat = getLat(iLat);
-				double midLon = getLon(iLon);
-				double midDepth = getDepth(iDep);
-				LocationList locList = new LocationList();
-				IntegerPDF_FunctionSampler newSampler = new IntegerPDF_FunctionSampler(numSubLoc*numSubLoc*numSubLoc);
-				int index = 0;
-				for(int latIndex = 0; latIndex < numSubLoc; latIndex++) {
-					double lat = midLat - latLonDiscrDeg/2 + latIndex*deltaLatLon + deltaLatLon/2;
-					double distLat = (lat)*111.0;
-					for(int lonIndex = 0; lonIndex < numSubLoc; lonIndex++) {
-						double lon = midLon-latLonDiscrDeg/2 + lonIndex*deltaLatLon + deltaLatLon/2;
-						double distLon = (lon) * 111.0 * cosMidLat;
-						for(int depIndex = 0; depIndex < numSubLoc; depIndex++) {
-							double dep = (midDepth - depthDiscr/2 + depIndex*deltaDepth + deltaDepth/2);
-							locList.add(new Location(lat,lon, dep));
-							double dist = Math.sqrt(distLat*distLat+distLon*distLon+dep*dep);
-							newSampler.add(index, Math.pow(dist+minDist, distDecay));
-							index ++;
-						}
-					}
-				}
-				subLocsArray[iLat][iLon][iDep] = locList;
-				subLocSamplerArray[iLat][iLon][iDep] = newSampler;
-			}
-			
-			int locIndex = subLocSamplerArray[iLat][iLon][iDep].getRandomInt();
+			int locIndex = subLocSamplerArray[iLat][iLon][iDep].getRandomInt(r);
 			loc = subLocsArray[iLat][iLon][iDep].get(locIndex);			
 		}
 		else {	// no sublocations
@@ -236,9 +392,9 @@ public class ETAS_LocationWeightCalculator {
 		}
 		// ADD A RANDOM ELEMENT
 		
-		return new Location(loc.getLatitude()+deltaLatLon*(Math.random()-0.5),
-							loc.getLongitude()+deltaLatLon*(Math.random()-0.5),
-							loc.getDepth()+deltaDepth*(Math.random()-0.5));
+		return new Location(loc.getLatitude()+deltaLatLon*(r.nextDouble()-0.5),
+							loc.getLongitude()+deltaLatLon*(r.nextDouble()-0.5),
+							loc.getDepth()+deltaDepth*(r.nextDouble()-0.5));
 		
 	}
 	
@@ -249,22 +405,18 @@ public class ETAS_LocationWeightCalculator {
 		return Math.sqrt(latDistKm*latDistKm+lonDistKm*lonDistKm+dep*dep);
 	}
 	
+	/**
+	 * This is the index in the flat nominalWt array, where each depth layer is contiguous
+	 */
+	private int getIndex(int iLat, int iLon, int iDep) {
+		return (iDep*numLatLon + iLat)*numLatLon + iLon;
+	}
+	
 	
 	public double getProbAtPoint(double relLat, double relLon, double relDep, double hypoDep) {
 		int iLat = getLatIndex(relLat);
-		int iLon = getLatIndex(relLon);
+		int iLon = getLonIndex(relLon);
 		int iDep = getDepthIndex(relDep);
-		int iHypoDep = getDepthIndex(hypoDep);
-		
-		// solve for the total weight for the associated layers
-		double normWt=0;
-		// sum those at same depth and below	// if at surface (iHypoDepth=0), should include all; if at bottom (iHypoDepth=numDepth-1), should include just 0th
-		for(int d=0; d<numDepth-iHypoDep;d++)
-			normWt += totWtAtDepth[d];
-		// sum those above; none if iHypoDepth=0; those above if at bottom (iHypoDepth=numDepth-1)
-		if(iHypoDep > 0)
-			for(int d=1; d<=iHypoDep;d++)
-				normWt += totWtAtDepth[d];
 		
 		if(iLat >= numLatLon || iLon >= numLatLon || iDep >= numDepth) {
 //			System.out.println("relLat="+relLat+"\tiLat="+iLat);
@@ -273,8 +425,23 @@ public class ETAS_LocationWeightCalculator {
 			return 0;
 		}
 
+		// total weight for the associated layers (precomputed in the constructor)
+		double normWt = normWtForHypoDep[getHypoDepthIndex(hypoDep)];
+		
 		// factor of four below is to account for the other 3 quadrants
-		return nominalWt[iLat][iLon][iDep]/(normWt*4);
+		return nominalWt[getIndex(iLat, iLon, iDep)]/(normWt*4);
+	}
+	
+	/**
+	 * Depth index for the hypocenter, where those at exactly maxDepthKm (or zero) are kept in range
+	 */
+	private int getHypoDepthIndex(double hypoDep) {
+		int iHypoDep = getDepthIndex(hypoDep);
+		if(iHypoDep >= numDepth)
+			iHypoDep = numDepth-1;
+		else if(iHypoDep < 0)
+			iHypoDep = 0;
+		return iHypoDep;
 	}
 	
 	private double getLat(int iLat) {
@@ -304,20 +471,18 @@ public class ETAS_LocationWeightCalculator {
 
 
 
+	
 	public void testRandomSamples(int numSamples) {
-		IntegerPDF_FunctionSampler sampler;
-		sampler = new IntegerPDF_FunctionSampler(numLatLon*numLatLon*numDepth);
+		AliasTableSampler sampler = new AliasTableSampler(nominalWt);
 		double[] distanceArray = new double[numLatLon*numLatLon*numDepth];
-		int index=0;
 		for(int iDep=0;iDep<numDepth; iDep++) {
 			for(int iLat=0;iLat<numLatLon; iLat++) {
 				for(int iLon=0;iLon<numLatLon; iLon++) {
-					sampler.set(index,nominalWt[iLat][iLon][iDep]);
-					distanceArray[index] = getDistance(iLat, iLon, iDep);
-					index +=1;
+					distanceArray[getIndex(iLat, iLon, iDep)] = getDistance(iLat, iLon, iDep);
 				}
 			}
 		}
+		Random r = new Random();
 		
 		// create histogram
 		double deltaDistForHist = depthDiscr;
@@ -328,7 +493,7 @@ public class ETAS_LocationWeightCalculator {
 		distHistogram.setTolerance(deltaDistForHist);
 		
 		for(int i=0;i<numSamples;i++) {
-			distHistogram.add(distanceArray[sampler.getRandomInt()], 1.0/numSamples);
+			distHistogram.add(distanceArray[sampler.getRandomInt(r)], 1.0/numSamples);
 		}
 		
 		EvenlyDiscretizedFunc targetHist = new EvenlyDiscretizedFunc(min , max, num);
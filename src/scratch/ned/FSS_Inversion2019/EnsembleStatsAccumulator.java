@@ -0,0 +1,123 @@
+package scratch.ned.FSS_Inversion2019;
+
+import java.util.Arrays;
+
+import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This accumulates statistics (mean, min, max, standard deviation, and 95% confidence bounds on the mean) for an
+ * ensemble of solution arrays one solution at a time, so that memory does not grow with the number of solutions.
+ *
+ * As in FaultSystemRuptureRateInversion.get95perConfForMultRuns(), the 95% bounds are mean +/- 1.96*stdDev/sqrt(N),
+ * where stdDev is the sample standard deviation.
+ *
+ * @author Field
+ *
+ */
+public class EnsembleStatsAccumulator {
+	
+	private int numValues;
+	private int num = 0;
+	
+	private double[] sum;
+	private double[] min;
+	private double[] max;
+	// running mean and sum of squared differences (Welford)
+	private double[] runningMean;
+	private double[] m2;
+	
+	public EnsembleStatsAccumulator(int numValues) {
+		this.numValues = numValues;
+		sum = new double[numValues];
+		min = new double[numValues];
+		max = new double[numValues];
+		runningMean = new double[numValues];
+		m2 = new double[numValues];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * Adds a solution to the ensemble
+	 * @param values
+	 */
+	public void add(double[] values) {
+		Preconditions.checkArgument(values.length == numValues, "Expected %s values, got %s", numValues, values.length);
+		num++;
+		for(int i=0; i<numValues; i++) {
+			double val = values[i];
+			sum[i] += val;
+			if(val < min[i]) min[i] = val;
+			if(val > max[i]) max[i] = val;
+			double delta = val - runningMean[i];
+			runningMean[i] += delta/num;
+			m2[i] += delta*(val - runningMean[i]);
+		}
+	}
+	
+	public int getNumSolutions() {
+		return num;
+	}
+	
+	public double[] getMean() {
+		double[] ret = new double[numValues];
+		for(int i=0; i<numValues; i++)
+			ret[i] = sum[i]/num;
+		return ret;
+	}
+	
+	public double[] getMin() {
+		return Arrays.copyOf(min, numValues);
+	}
+	
+	public double[] getMax() {
+		return Arrays.copyOf(max, numValues);
+	}
+	
+	public double[] getStdDev() {
+		double[] ret = new double[numValues];
+		for(int i=0; i<numValues; i++)
+			ret[i] = num > 1 ? Math.sqrt(m2[i]/(num-1)) : 0d;
+		return ret;
+	}
+	
+	/**
+	 * @return lower 95% confidence bound on the mean (mean - 1.96*stdDev/sqrt(N))
+	 */
+	public double[] getLower95Conf() {
+		return get95Conf(-1.96);
+	}
+	
+	/**
+	 * @return upper 95% confidence bound on the mean (mean + 1.96*stdDev/sqrt(N))
+	 */
+	public double[] getUpper95Conf() {
+		return get95Conf(1.96);
+	}
+	
+	private double[] get95Conf(double numStdDevs) {
+		Preconditions.checkState(num > 0, "No solutions added");
+		double[] mean = getMean();
+		double[] stdDev = getStdDev();
+		double sqrtNum = Math.sqrt(num);
+		double[] ret = new double[numValues];
+		for(int i=0; i<numValues; i++)
+			ret[i] = mean[i] + numStdDevs*stdDev[i]/sqrtNum;
+		return ret;
+	}
+	
+	/**
+	 * Convenience method to put the given values in a function with x values of 0, 1, 2, ...
+	 * @param values
+	 * @return
+	 */
+	public static EvenlyDiscretizedFunc toFunc(double[] values) {
+		EvenlyDiscretizedFunc func = new EvenlyDiscretizedFunc(0d, values.length, 1d);
+		for(int i=0; i<values.length; i++)
+			func.set(i, values[i]);
+		return func;
+	}
+	
+}
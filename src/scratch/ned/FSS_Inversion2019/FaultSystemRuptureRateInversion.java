@@ -11,8 +11,15 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.hssf.usermodel.HSSFRow;
@@ -52,6 +59,7 @@ import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZGraphPanel;
 import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotSpec;
 import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotWindow;
 import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.RunScript;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
@@ -169,7 +177,7 @@ public class FaultSystemRuptureRateInversion {
 
 	
 	private static boolean MATLAB_TEST = false;
-	double[][] C_wted, C;	// inversion matrices
+	SparseInversionMatrix C_wted, C;	// inversion matrices (sparse)
 	double[] d, d_wted, data_wt, full_wt, d_pred;  // the data vector
 	
 	private double minRupRateArray[]; // the minimum rate constraint for each rupture
@@ -221,6 +229,8 @@ public class FaultSystemRuptureRateInversion {
 	ArbDiscrEmpiricalDistFunc_3D rateOfThroughGoingRupsAtSectBoudaryFromMultRuns;
 	ArbDiscrEmpiricalDistFunc_3D finalSectMeanSlipFromMultRuns;
 	ArbDiscrEmpiricalDistFunc_3D finalSectSlipCOV_FromMultRuns;
+	// incremental rupture rate statistics, used instead of rupRatesFromMultRunsArrayList by doInversionSA_MultiStart()
+	EnsembleStatsAccumulator rupRateStatsFromMultRuns;
 	
 
 	/**
@@ -707,9 +717,9 @@ public class FaultSystemRuptureRateInversion {
 		if(D) System.out.println("\n"+tempString+"\n");
 		modelSetUpInfoString += "\n"+tempString+"\n";
 			
-		C = new double[totNumRows][numRuptures];
+		// rows are filled in order, only nonzero values are stored
+		SparseInversionMatrix.Builder cBuilder = new SparseInversionMatrix.Builder(totNumRows, numRuptures);
 		d = new double[totNumRows];  // data vector
-		C_wted = new double[totNumRows][numRuptures]; // wted version
 		d_wted = new double[totNumRows];  // wted data vector
 
 		data_wt = new double[totNumRows];  // data weights
@@ -727,7 +737,7 @@ public class FaultSystemRuptureRateInversion {
 			if(wtedInversion)
 				data_wt[row] = 1/((1-moRateReduction)*sectSlipRateStdDev[row]);
 			for(int col=0; col<numRuptures; col++)
-				C[row][col] = sectSlipInRup[row][col];
+				cBuilder.set(row, col, sectSlipInRup[row][col]);
 		}
 		
 		// now fill in the section event rate constraints if requested
@@ -742,9 +752,9 @@ public class FaultSystemRuptureRateInversion {
 					data_wt[row] = 1/constraint.getStdDevOfMean();
 				for(int col=0; col<numRuptures; col++)
 					if(applyProbVisible)
-						C[row][col] = rupSectionMatrix[sect][col]*getProbVisible(rupMeanMag[col]);
+						cBuilder.set(row, col, rupSectionMatrix[sect][col]*getProbVisible(rupMeanMag[col]));
 					else
-						C[row][col] = rupSectionMatrix[sect][col];
+						cBuilder.set(row, col, rupSectionMatrix[sect][col]);
 			}
 		}
 		
@@ -756,7 +766,7 @@ public class FaultSystemRuptureRateInversion {
 				d[row] = aPriori_rate[i];
 				if(wtedInversion)
 					data_wt[row] = aPriori_wt[i];
-				C[row][col]=1.0;
+				cBuilder.set(row, col, 1.0);
 			}
 		}
 		
@@ -779,10 +789,10 @@ public class FaultSystemRuptureRateInversion {
 					if(rupSectionMatrix[sect1][col]==1 && rupSectionMatrix[sect2][col]==1) {
 						if(segConst.isSlipRateConstraint()) {
 							double aveSlip = (sectSlipInRup[sect1][col]+sectSlipInRup[sect2][col])/2.0;
-							C[row][col] = aveSlip*(1-moRateReduction);
+							cBuilder.set(row, col, aveSlip*(1-moRateReduction));
 						}
 						else {
-							C[row][col]=1.0;
+							cBuilder.set(row, col, 1.0);
 				// System.out.println("HERE: "+segConstraint_rupIndex[i]+"\t\t"+ segConstraint_rupRate[i] +"\t\t"+segConstraint_RupWt[i]);
 						}
 					}
@@ -801,7 +811,7 @@ public class FaultSystemRuptureRateInversion {
 				}
 				for(int col=0; col<numRuptures; col++)
 					if(mfdConstraint.getClosestXIndex(rupMeanMag[col]) == i)
-						C[row][col]=1.0;
+						cBuilder.set(row, col, 1.0);
 			}
 		}
 		
@@ -812,7 +822,7 @@ public class FaultSystemRuptureRateInversion {
 			if(wtedInversion && totalRateSigma != 0)
 				data_wt[row] = 1.0/totalRateSigma;
 			for(int col=0; col<numRuptures; col++)
-				C[row][col]=1.0;
+				cBuilder.set(row, col, 1.0);
 		}
 		
 		// now fill in the smoothness constraints if requested
@@ -823,7 +833,7 @@ public class FaultSystemRuptureRateInversion {
 					int row = rowIncrement+firstRowSmoothnessConstraint;
 					d[row] = 0.0; 
 					for(int col=0; col<numRuptures; col++)
-						C[row][col] = -rupSectionMatrix[s-1][col] + 2*rupSectionMatrix[s][col] - rupSectionMatrix[s+1][col];
+						cBuilder.set(row, col, -rupSectionMatrix[s-1][col] + 2*rupSectionMatrix[s][col] - rupSectionMatrix[s+1][col]);
 					rowIncrement += 1;
 				}
 			}
@@ -831,23 +841,20 @@ public class FaultSystemRuptureRateInversion {
 
 		
 		
+		C = cBuilder.build();
+		
 		// copy un-wted data to wted versions (wts added below)
-		for(int row=0;row<totNumRows; row++){
+		for(int row=0;row<totNumRows; row++)
 			d_wted[row] = d[row];
-			for(int col=0;col<numRuptures; col++)
-				C_wted[row][col] = C[row][col];
-		}
+		C_wted = C.copy();
 			
 
 		// CORRECT IF MINIMUM RATE CONSTRAINT DESIRED
 		if(minRupRate >0.0) {
-			double[] Cmin = new double[totNumRows];  // the data vector
+			double[] Cmin = C_wted.multiply(minRupRateArray);  // the data vector
 			// correct the data vector
-			for(int row=0; row <totNumRows; row++) {
-				for(int col=0; col < numRuptures; col++)
-					Cmin[row]+=minRupRateArray[col]*C_wted[row][col];
+			for(int row=0; row <totNumRows; row++)
 				d_wted[row] -= Cmin[row];
-			}
 		}
 		
 		// APPLY WEIGHTS
@@ -859,8 +866,7 @@ public class FaultSystemRuptureRateInversion {
 			else
 				full_wt[row] = 1.0;
 			d_wted[row] *= full_wt[row];
-			for(int col=0; col<numRuptures; col++)
-				C_wted[row][col] *= full_wt[row];
+			C_wted.scaleRow(row, full_wt[row]);
 		}
 		// sect event rate wts
 		if(relativeSectRateWt > 0.0) {
@@ -869,8 +875,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relativeSectRateWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				for(int col=0; col<numRuptures; col++)
-					C_wted[row][col] *= full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		// a-priori rate wts
@@ -881,20 +886,18 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relative_aPrioriRupWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				C_wted[row][col]*=full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		// seg const wts
 		if(relative_segConstraintWt > 0.0) {
 			for(int i=0; i < num_segConstraints; i++) {
-				SegmentationConstraint segConst = segmentationConstraintList.get(i);
 				int row = i+firstRowSegConstraint;
 				full_wt[row] = relative_segConstraintWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				for(int col=0;col<numRuptures; col++)
-					if(rupSectionMatrix[segConst.getSect1_Index()][col]==1 && rupSectionMatrix[segConst.getSect2_Index()][col]==1)
-						C_wted[row][col]*=full_wt[row];
+				// only ruptures which include both sections are nonzero in this row
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		// MFD constraint wts
@@ -904,8 +907,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relativeMFD_constraintWt;
 				if(wtedInversion) full_wt[row] *= data_wt[row];
 				d_wted[row] *= full_wt[row];
-				for(int rup=0; rup < numRuptures; rup++) 
-					C_wted[row][rup] *= full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 		
@@ -915,8 +917,7 @@ public class FaultSystemRuptureRateInversion {
 			full_wt[row] = relativeTotalRateConstraintWt;
 			if(wtedInversion) full_wt[row] *= data_wt[row];
 			d_wted[row] *= full_wt[row];
-			for(int rup=0; rup<numRuptures; rup++)
-				C_wted[row][rup] *= full_wt[row];
+			C_wted.scaleRow(row, full_wt[row]);
 
 		}
 		
@@ -927,8 +928,7 @@ public class FaultSystemRuptureRateInversion {
 				full_wt[row] = relativeSmoothnessConstraintWt;
 //				if(wtedInversion) full_wt[row] *= data_wt[row]; // not data wt for smoothness constraint
 				d_wted[row] *= full_wt[row];
-				for(int rup=0; rup<numRuptures; rup++)
-					C_wted[row][rup] *= full_wt[row];
+				C_wted.scaleRow(row, full_wt[row]);
 			}
 		}
 	}
@@ -969,10 +969,7 @@ public class FaultSystemRuptureRateInversion {
 		setRupRatesBelowMinToZero();
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 		
 		
 				
@@ -998,10 +995,7 @@ public class FaultSystemRuptureRateInversion {
 		rupRateSolution = rupRatesArray;
 		
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -1019,15 +1013,7 @@ public class FaultSystemRuptureRateInversion {
 	public void setMultipleSolutions(ArrayList<double[]> rupRatesArrayList, String info, String dirName) {
 				
 		// set these to null in case this method was already called
-		rupRatesFromMultRunsArrayList = null;
-		rupRatesFromMultRuns = null;
-		mfdsFromMultRuns = null; 
-		cumMfdsFromMultRuns = null; 
-		finalSectSlipRateFromMultRuns = null;
-		finalPaleoVisibleSectEventRateFromMultRuns = null;
-		rateOfThroughGoingRupsAtSectBoudaryFromMultRuns = null;
-		finalSectMeanSlipFromMultRuns = null;
-		finalSectSlipCOV_FromMultRuns = null;
+		clearMultRunData();
 
 		if(info !=null)
 			modelRunInfoString = "\n"+info+"\n";
@@ -1038,10 +1024,7 @@ public class FaultSystemRuptureRateInversion {
 			Preconditions.checkState(rupRateSolution.length == numRuptures, "input rupture rates does not have the correct number of ruptures (%s vs %s", rupRateSolution.length, numRuptures);
 
 			// compute predicted data
-			d_pred = new double[totNumRows];  // predicted data vector
-			for(int row=0;row<totNumRows; row++)
-				for(int col=0; col <numRuptures; col++)
-					d_pred[row] += rupRateSolution[col]*C[row][col];
+			d_pred = C.multiply(rupRateSolution);  // predicted data vector
 					
 			String solNumString = "\nFOR SOLUTION NUMBER "+solNum+":\n----------------------------\n";
 			modelRunInfoString += solNumString;
@@ -1129,10 +1112,7 @@ public class FaultSystemRuptureRateInversion {
 		setRupRatesBelowMinToZero();
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -1160,16 +1140,7 @@ public class FaultSystemRuptureRateInversion {
 		this.sa_coolingSchedule = sa_coolingSchedule;
 		
 		// set these to null in case this method was already called
-		rupRatesFromMultRunsArrayList=null;
-		rupRatesFromMultRuns = null;
-		mfdsFromMultRuns = null; 
-		cumMfdsFromMultRuns = null; 
-		finalSectSlipRateFromMultRuns = null;
-		finalPaleoVisibleSectEventRateFromMultRuns = null;
-		rateOfThroughGoingRupsAtSectBoudaryFromMultRuns = null;
-		finalSectMeanSlipFromMultRuns = null;
-		finalSectSlipCOV_FromMultRuns = null;
-
+		clearMultRunData();
 				
 		modelRunInfoString = "\nInversion Type = Simulated Annearling with\n\n\tcompletionCriteria = "+
 				completionCriteria.toString()+
@@ -1197,85 +1168,256 @@ public class FaultSystemRuptureRateInversion {
 			// Not exactly sure how the following works, and doesn't appear to take a seed
 			rupRateSolution = getSimulatedAnnealingThreadedSolution(C_wted, d_wted, initialState, completionCriteria, randomSeed, rupSampler);
 
+			processMultRunSolution(invNum, dirName, true);
+		}
+		
+		modelRunInfoString += "\nFOR MEAN INVERSION:\n---------------------------------\n";
+		EvenlyDiscretizedFunc meanRupRateFunc = rupRatesFromMultRuns.getMeanCurve();
+		double[] rupRatesArray = new double[numRuptures];
+		for(int i=0;i<numRuptures;i++)
+			rupRatesArray[i] = meanRupRateFunc.getY(i);
+		
+		setSolution(rupRatesArray, null);
 
-			// CORRECT FINAL RATES IF MINIMUM RATE CONSTRAINT APPLIED
-			if(minRupRate >0.0)
-				for(int rup=0; rup<numRuptures;rup++) rupRateSolution[rup] += minRupRateArray[rup];
-			
-			// set rates below the minimum to zero
-			setRupRatesBelowMinToZero();
+	}
+	
+	
+	/**
+	 * This does the inversion numInversions times like doInversionSA_MultTimes(), but runs independent serial
+	 * annealing chains concurrently (one per thread) rather than one threaded annealing run at a time.  All chains
+	 * share a single read-only copy of the weighted constraint matrix, and chain invNum uses random seed randomSeed+invNum
+	 * (so results are reproducible regardless of the number of threads).  Each solution is processed and written to
+	 * dirName as soon as its chain finishes, and rupture rate statistics are accumulated incrementally (see 
+	 * getRupRateStatsFromMultRuns()) rather than saving every solution, so memory does not grow with the number of
+	 * rupture rate solutions; getNumSolutions() returns 1 afterward and getFaultSystemSolution(index) is not available.
+	 * The mean, min, max, and 95% bounds of rupture rates are written to dirName+"/ruptureRatesStats.txt", and the
+	 * final solution is set to the mean rupture rates.
+	 * @param numThreads - number of chains to run at once
+	 */
+	public void doInversionSA_MultiStart(CompletionCriteria completionCriteria, double[] initialState, long randomSeed, int numInversions, String dirName,
+			CoolingScheduleType sa_coolingSchedule, GenerationFunctionType perturbationFunc, IntegerPDF_FunctionSampler rupSampler, int numThreads) {
+		
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+		this.sa_coolingSchedule = sa_coolingSchedule;
+		
+		// set these to null in case this method was already called
+		clearMultRunData();
+		
+		modelRunInfoString = "\nInversion Type = Multi-Start Simulated Annearling with\n\n\tcompletionCriteria = "+
+				completionCriteria.toString()+
+				"\n\trandomSeed = "+randomSeed+
+				"\n\tnumInversions = "+numInversions+
+				"\n\tnumThreads = "+numThreads+
+				"\n\tsa_CoolingSchedule = "+sa_coolingSchedule+
+				"\n\tperturbationFunc = "+perturbationFunc.toString();
+		if(initialState != null)
+			modelRunInfoString += "\n\tinitialState is NOT null";
+		else
+			modelRunInfoString += "\n\tinitialState is null";
+		if(rupSampler != null)
+			modelRunInfoString += "\n\trupSampler is NOT null";
+		else
+			modelRunInfoString += "\n\trupSampler is null\n";
+		
+		// shared by all chains (only read during annealing)
+		final SparseDoubleMatrix2D matrixC = C_wted.toColtMatrix();
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		CompletionService<SA_ChainResult> completion = new ExecutorCompletionService<SA_ChainResult>(exec);
+		for(int invNum=0; invNum<numInversions;invNum++)
+			completion.submit(new SA_ChainCallable(invNum, matrixC, d_wted, initialState, completionCriteria,
+					randomSeed+invNum, perturbationFunc, rupSampler));
+		
+		rupRateStatsFromMultRuns = new EnsembleStatsAccumulator(numRuptures);
+		try {
+			for(int i=0; i<numInversions; i++) {
+				// process solutions in the order they finish
+				SA_ChainResult result = completion.take().get();
+				rupRateSolution = result.solution;
+				processMultRunSolution(result.invNum, dirName, false);
+				rupRateStatsFromMultRuns.add(rupRateSolution);
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		
+		if(dirName != null) {
+			double[] mean = rupRateStatsFromMultRuns.getMean();
+			double[] min = rupRateStatsFromMultRuns.getMin();
+			double[] max = rupRateStatsFromMultRuns.getMax();
+			double[] lower95 = rupRateStatsFromMultRuns.getLower95Conf();
+			double[] upper95 = rupRateStatsFromMultRuns.getUpper95Conf();
+			try{
+				FileWriter fw = new FileWriter(dirName+"/ruptureRatesStats.txt");
+				fw.write("rupIndex\tmean\tmin\tmax\tlower95\tupper95\n");
+				for(int r=0;r<numRuptures; r++)
+					fw.write(r+"\t"+mean[r]+"\t"+min[r]+"\t"+max[r]+"\t"+lower95[r]+"\t"+upper95[r]+"\n");
+				fw.close();
+			}catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		modelRunInfoString += "\nFOR MEAN INVERSION:\n---------------------------------\n";
+		setSolution(rupRateStatsFromMultRuns.getMean(), null);
+	}
+	
+	
+	/**
+	 * This returns the incrementally computed rupture rate statistics from doInversionSA_MultiStart(),
+	 * or null if that method has not been run
+	 * @return
+	 */
+	public EnsembleStatsAccumulator getRupRateStatsFromMultRuns() {
+		return rupRateStatsFromMultRuns;
+	}
+	
+	
+	private void clearMultRunData() {
+		rupRatesFromMultRunsArrayList=null;
+		rupRatesFromMultRuns = null;
+		rupRateStatsFromMultRuns = null;
+		mfdsFromMultRuns = null; 
+		cumMfdsFromMultRuns = null; 
+		finalSectSlipRateFromMultRuns = null;
+		finalPaleoVisibleSectEventRateFromMultRuns = null;
+		rateOfThroughGoingRupsAtSectBoudaryFromMultRuns = null;
+		finalSectMeanSlipFromMultRuns = null;
+		finalSectSlipCOV_FromMultRuns = null;
+	}
+	
+	
+	/**
+	 * This processes the current rupRateSolution from one of multiple SA runs: it applies the minimum rate
+	 * correction, computes final stuff, writes the rupture rates to dirName (if not null), and adds results to the 
+	 * mult run data objects.
+	 * @param keepRupRates - whether to save the rupture rates in rupRatesFromMultRunsArrayList and rupRatesFromMultRuns
+	 */
+	private void processMultRunSolution(int invNum, String dirName, boolean keepRupRates) {
+		// CORRECT FINAL RATES IF MINIMUM RATE CONSTRAINT APPLIED
+		if(minRupRate >0.0)
+			for(int rup=0; rup<numRuptures;rup++) rupRateSolution[rup] += minRupRateArray[rup];
+		
+		// set rates below the minimum to zero
+		setRupRatesBelowMinToZero();
 
-			// compute predicted data
-			d_pred = new double[totNumRows];  // predicted data vector
-			for(int row=0;row<totNumRows; row++)
-				for(int col=0; col <numRuptures; col++)
-					d_pred[row] += rupRateSolution[col]*C[row][col];
+		// compute predicted data
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
+				
+		String invNumString = "\nFOR INVERSION NUMBER "+invNum+":\n----------------------------\n";
+		modelRunInfoString += invNumString;
+		if(D) System.out.println(invNumString);
+		
+		// Compute stuff
+		computeFinalStuff();
+		computeSectMFDs();
+		setMiscRunInfo();
 					
-			String invNumString = "\nFOR INVERSION NUMBER "+invNum+":\n----------------------------\n";
-			modelRunInfoString += invNumString;
-			if(D) System.out.println(invNumString);
-			
-			// Compute stuff
-			computeFinalStuff();
-			computeSectMFDs();
-			setMiscRunInfo();
-						
-			// write these out now in case of crash
-			String fileNamePrefix = null;
-			if(dirName != null) {
-				fileNamePrefix = dirName+"/ruptureRates_"+invNum;
-				try{
-					FileWriter fw = new FileWriter(fileNamePrefix+".txt");
-					for(int i=0;i<numRuptures; i++) {				
-						fw.write(i+"\t"+rupRateSolution[i]+"\n");
-					}
-					fw.close();
-				}catch(Exception e) {
-					e.printStackTrace();
-				}		
-			}
-			
-			// create mult run data objects if currently null
-			if(rupRatesFromMultRunsArrayList==null) {
+		// write these out now in case of crash
+		String fileNamePrefix = null;
+		if(dirName != null) {
+			fileNamePrefix = dirName+"/ruptureRates_"+invNum;
+			try{
+				FileWriter fw = new FileWriter(fileNamePrefix+".txt");
+				for(int i=0;i<numRuptures; i++) {				
+					fw.write(i+"\t"+rupRateSolution[i]+"\n");
+				}
+				fw.close();
+			}catch(Exception e) {
+				e.printStackTrace();
+			}		
+		}
+		
+		// create mult run data objects if currently null
+		if(mfdsFromMultRuns==null) {
+			if(keepRupRates) {
 				rupRatesFromMultRunsArrayList = new ArrayList<double[]>();
 				rupRatesFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numRuptures, 1.0);
-				mfdsFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(magFreqDist.getMinX(), magFreqDist.size(), magFreqDist.getDelta()); 
-				EvenlyDiscretizedFunc cumTemp = magFreqDist.getCumRateDistWithOffset();
-				cumMfdsFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(cumTemp.getMinX(), cumTemp.size(), cumTemp.getDelta()); 
-				finalSectSlipRateFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
-				finalPaleoVisibleSectEventRateFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
-				rateOfThroughGoingRupsAtSectBoudaryFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(-0.5, rateOfThroughGoingRupsAtSectBoudary.length, 1.0);
-				finalSectMeanSlipFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
-				finalSectSlipCOV_FromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
 			}
+			mfdsFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(magFreqDist.getMinX(), magFreqDist.size(), magFreqDist.getDelta()); 
+			EvenlyDiscretizedFunc cumTemp = magFreqDist.getCumRateDistWithOffset();
+			cumMfdsFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(cumTemp.getMinX(), cumTemp.size(), cumTemp.getDelta()); 
+			finalSectSlipRateFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
+			finalPaleoVisibleSectEventRateFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
+			rateOfThroughGoingRupsAtSectBoudaryFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(-0.5, rateOfThroughGoingRupsAtSectBoudary.length, 1.0);
+			finalSectMeanSlipFromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
+			finalSectSlipCOV_FromMultRuns = new ArbDiscrEmpiricalDistFunc_3D(0, numSections, 1.0);
+		}
+		if(keepRupRates) {
 			rupRatesFromMultRunsArrayList.add(rupRateSolution);
 			for(int i=0;i<numRuptures;i++)
 				rupRatesFromMultRuns.set(i, rupRateSolution[i], 1.0);
+		}
 
-			mfdsFromMultRuns.set(magFreqDist, 1.0);
-			cumMfdsFromMultRuns.set(magFreqDist.getCumRateDistWithOffset(), 1.0);
-			
-			for(int s=0;s<numSections;s++) {
-				finalSectSlipRateFromMultRuns.set(s, finalSectSlipRate[s], 1.0);
-				finalPaleoVisibleSectEventRateFromMultRuns.set(s, finalPaleoVisibleSectEventRate[s], 1.0);
-				finalSectMeanSlipFromMultRuns.set(s, finalSectMeanSlip[s], 1.0);
-				finalSectSlipCOV_FromMultRuns.set(s, finalSectSlipCOV[s], 1.0);
-			}
-			
-			for(int s=0;s<rateOfThroughGoingRupsAtSectBoudary.length;s++) {
-				rateOfThroughGoingRupsAtSectBoudaryFromMultRuns.set(s, rateOfThroughGoingRupsAtSectBoudary[s], 1.0);
-			}
-
+		mfdsFromMultRuns.set(magFreqDist, 1.0);
+		cumMfdsFromMultRuns.set(magFreqDist.getCumRateDistWithOffset(), 1.0);
+		
+		for(int s=0;s<numSections;s++) {
+			finalSectSlipRateFromMultRuns.set(s, finalSectSlipRate[s], 1.0);
+			finalPaleoVisibleSectEventRateFromMultRuns.set(s, finalPaleoVisibleSectEventRate[s], 1.0);
+			finalSectMeanSlipFromMultRuns.set(s, finalSectMeanSlip[s], 1.0);
+			finalSectSlipCOV_FromMultRuns.set(s, finalSectSlipCOV[s], 1.0);
 		}
 		
-		modelRunInfoString += "\nFOR MEAN INVERSION:\n---------------------------------\n";
-		EvenlyDiscretizedFunc meanRupRateFunc = rupRatesFromMultRuns.getMeanCurve();
-		double[] rupRatesArray = new double[numRuptures];
-		for(int i=0;i<numRuptures;i++)
-			rupRatesArray[i] = meanRupRateFunc.getY(i);
+		for(int s=0;s<rateOfThroughGoingRupsAtSectBoudary.length;s++) {
+			rateOfThroughGoingRupsAtSectBoudaryFromMultRuns.set(s, rateOfThroughGoingRupsAtSectBoudary[s], 1.0);
+		}
+	}
+	
+	
+	private static class SA_ChainResult {
+		private int invNum;
+		private double[] solution;
 		
-		setSolution(rupRatesArray, null);
-
+		private SA_ChainResult(int invNum, double[] solution) {
+			this.invNum = invNum;
+			this.solution = solution;
+		}
+	}
+	
+	
+	/**
+	 * This runs a single serial simulated annealing chain
+	 */
+	private class SA_ChainCallable implements Callable<SA_ChainResult> {
+		
+		private int invNum;
+		private SparseDoubleMatrix2D matrixC;
+		private double[] d;
+		private double[] initialState;
+		private CompletionCriteria completionCriteria;
+		private long randomSeed;
+		private GenerationFunctionType perturbationFunc;
+		private IntegerPDF_FunctionSampler rupSampler;
+		
+		private SA_ChainCallable(int invNum, SparseDoubleMatrix2D matrixC, double[] d, double[] initialState,
+				CompletionCriteria completionCriteria, long randomSeed, GenerationFunctionType perturbationFunc,
+				IntegerPDF_FunctionSampler rupSampler) {
+			this.invNum = invNum;
+			this.matrixC = matrixC;
+			this.d = d;
+			this.initialState = initialState;
+			this.completionCriteria = completionCriteria;
+			this.randomSeed = randomSeed;
+			this.perturbationFunc = perturbationFunc;
+			this.rupSampler = rupSampler;
+		}
+
+		@Override
+		public SA_ChainResult call() throws Exception {
+			// each chain gets its own copy of the initial state
+			double[] chainInitial = initialState == null ? null : Arrays.copyOf(initialState, initialState.length);
+			SerialSimulatedAnnealing simulatedAnnealing = new SerialSimulatedAnnealing(matrixC, d, chainInitial);
+			simulatedAnnealing.setCoolingFunc(sa_coolingSchedule);
+			simulatedAnnealing.setRandom(new Random(randomSeed));
+			simulatedAnnealing.setPerturbationFunc(perturbationFunc);
+			simulatedAnnealing.setRuptureSampler(rupSampler);
+			simulatedAnnealing.iterate(completionCriteria);
+			if(D) System.out.println("Done with SA chain "+invNum);
+			return new SA_ChainResult(invNum, simulatedAnnealing.getBestSolution());
+		}
 	}
 
 	
@@ -1389,9 +1531,9 @@ public class FaultSystemRuptureRateInversion {
 	}
 	
 		
-	private double[] getSimulatedAnnealingSolution(double[][] C, double[] d, double[] initialState, CompletionCriteria completionCriteria,  long randomSeed,
+	private double[] getSimulatedAnnealingSolution(SparseInversionMatrix C, double[] d, double[] initialState, CompletionCriteria completionCriteria,  long randomSeed,
 			GenerationFunctionType perturbationFunc, IntegerPDF_FunctionSampler rupSampler) {
-		SparseDoubleMatrix2D matrixC = new SparseDoubleMatrix2D(C); //
+		SparseDoubleMatrix2D matrixC = C.toColtMatrix();
 		SerialSimulatedAnnealing simulatedAnnealing =new SerialSimulatedAnnealing(matrixC, d, initialState);
 		simulatedAnnealing.setCoolingFunc(sa_coolingSchedule);
 		simulatedAnnealing.setRandom(new Random(randomSeed));
@@ -1403,9 +1545,9 @@ public class FaultSystemRuptureRateInversion {
 
 
 
-	private double[] getSimulatedAnnealingThreadedSolution(double[][] C, double[] d, double[] initialState, CompletionCriteria completionCriteria,  
+	private double[] getSimulatedAnnealingThreadedSolution(SparseInversionMatrix C, double[] d, double[] initialState, CompletionCriteria completionCriteria,  
 			long randomSeed, IntegerPDF_FunctionSampler rupSampler) {
-		SparseDoubleMatrix2D matrixC = new SparseDoubleMatrix2D(C); //
+		SparseDoubleMatrix2D matrixC = C.toColtMatrix();
 		//this is the "sub completion criteria" - the amount of time (or iterations) between synchronization
 		CompletionCriteria subCompetionCriteria = TimeCompletionCriteria.getInSeconds(1); // 1 second;
 		// this will use all available processors
@@ -1422,6 +1564,45 @@ public class FaultSystemRuptureRateInversion {
 
 	
 	
+	/**
+	 * This gets the non-negative least squares solution for the sparse matrix C
+	 * and data vector d. The NNLS solver requires a dense column-major array,
+	 * which is filled directly from the sparse matrix.
+	 * @param C
+	 * @param d
+	 * @return
+	 */
+	public static double[] getNNLS_solution(SparseInversionMatrix C, double[] d) {
+
+		int nRow = C.getNumRows();
+		int nCol = C.getNumCols();
+		
+		double[] x = new double[nCol];
+	
+		if(MATLAB_TEST) {
+			System.out.println("display "+"SSAF Inversion test");
+			System.out.println("C = [");
+			for(int i=0; i<nRow;i++) {
+				for(int j=0;j<nCol;j++) 
+					System.out.print(C.get(i, j)+"   ");
+				System.out.print("\n");
+			}
+			System.out.println("];");
+			System.out.println("d = [");
+			for(int i=0; i<nRow;i++)
+				System.out.println(d[i]);
+			System.out.println("];");
+		}
+		
+		nnls.update(C.toColumnMajorArray(),nRow,nCol);
+		
+		boolean converged = nnls.solve(d,x);
+		if(!converged)
+			throw new RuntimeException("ERROR:  NNLS Inversion Failed");
+		
+		return x;
+	}
+	
 	/**
 	 * This gets the non-negative least squares solution for the matrix C
 	 * and data vector d.
@@ -2554,6 +2735,23 @@ public class FaultSystemRuptureRateInversion {
 			rup_plotChars.add(new PlotCurveCharacterstics(PlotLineType.SHADED_UNCERTAIN, 1f, new Color(120,120,120)));
 
 		}
+		else if(rupRateStatsFromMultRuns != null) {	// from doInversionSA_MultiStart()
+			EvenlyDiscretizedFunc meanCurve = EnsembleStatsAccumulator.toFunc(rupRateStatsFromMultRuns.getMean());
+			UncertainArbDiscDataset rupRatesMinMaxRange = new UncertainArbDiscDataset(meanCurve, 
+					EnsembleStatsAccumulator.toFunc(rupRateStatsFromMultRuns.getMin()),
+					EnsembleStatsAccumulator.toFunc(rupRateStatsFromMultRuns.getMax()));
+			rupRatesMinMaxRange.setName("rupRatesMinMaxRange");
+			rup_funcs.add(rupRatesMinMaxRange);
+			
+			UncertainArbDiscDataset rupRatesMean95conf = new UncertainArbDiscDataset(meanCurve, 
+					EnsembleStatsAccumulator.toFunc(rupRateStatsFromMultRuns.getLower95Conf()),
+					EnsembleStatsAccumulator.toFunc(rupRateStatsFromMultRuns.getUpper95Conf()));
+			rupRatesMean95conf.setName("rupRatesMean95conf");
+			rup_funcs.add(rupRatesMean95conf);
+			
+			rup_plotChars.add(new PlotCurveCharacterstics(PlotLineType.SHADED_UNCERTAIN, 1f, new Color(200,200,200)));
+			rup_plotChars.add(new PlotCurveCharacterstics(PlotLineType.SHADED_UNCERTAIN, 1f, new Color(120,120,120)));
+		}
 		
 		EvenlyDiscretizedFunc rupRateFunc = new EvenlyDiscretizedFunc(min, max, numRuptures);
 		for(int rup=0; rup<numRuptures;rup++) {
@@ -3233,10 +3431,7 @@ public class FaultSystemRuptureRateInversion {
 		// MINIMUM RATE CONSTRAINT IS INGORED
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -3272,10 +3467,7 @@ public class FaultSystemRuptureRateInversion {
 		// MINIMUM RATE CONSTRAINT IS INGORED
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
@@ -3315,10 +3507,7 @@ public class FaultSystemRuptureRateInversion {
 		// MINIMUM RATE CONSTRAINT IS INGORED
 
 		// compute predicted data
-		d_pred = new double[totNumRows];  // predicted data vector
-		for(int row=0;row<totNumRows; row++)
-			for(int col=0; col <numRuptures; col++)
-				d_pred[row] += rupRateSolution[col]*C[row][col];
+		d_pred = C.multiply(rupRateSolution);  // predicted data vector
 				
 		// Compute final segment slip rates and event rates
 		computeFinalStuff();
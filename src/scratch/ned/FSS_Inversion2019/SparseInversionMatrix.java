@@ -0,0 +1,208 @@
+package scratch.ned.FSS_Inversion2019;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+
+/**
+ * Compressed sparse row (CSR) matrix for inversion constraint assembly. Only nonzero values are stored, which
+ * avoids dense double[numRows][numRuptures] arrays for large rupture sets. Rows are scaled in place for data
+ * weights, and predictions are computed with a sparse matrix-vector product.
+ *
+ * Build with {@link Builder}, which requires that rows are filled in nondecreasing order (as the constraint sets
+ * are), though columns within a row can be set in any order.
+ *
+ * @author Field
+ *
+ */
+public class SparseInversionMatrix {
+	
+	private int numRows;
+	private int numCols;
+	
+	private int[] rowStarts; // length numRows+1
+	private int[] colIndexes;
+	private double[] values;
+	
+	private SparseInversionMatrix(int numRows, int numCols, int[] rowStarts, int[] colIndexes, double[] values) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowStarts = rowStarts;
+		this.colIndexes = colIndexes;
+		this.values = values;
+	}
+	
+	public static class Builder {
+		
+		private int numRows;
+		private int numCols;
+		
+		private int[] rowStarts;
+		private int[] colIndexes;
+		private double[] values;
+		private int num = 0;
+		private int curRow = 0;
+		
+		public Builder(int numRows, int numCols) {
+			this.numRows = numRows;
+			this.numCols = numCols;
+			rowStarts = new int[numRows+1];
+			int initialSize = Math.max(16, numRows);
+			colIndexes = new int[initialSize];
+			values = new double[initialSize];
+		}
+		
+		/**
+		 * Sets the given value. Zero values are ignored. Rows must be set in nondecreasing order, and each
+		 * element can only be set once.
+		 *
+		 * @param row
+		 * @param col
+		 * @param value
+		 */
+		public void set(int row, int col, double value) {
+			Preconditions.checkState(row >= curRow, "Rows must be set in order (%s < %s)", row, curRow);
+			Preconditions.checkElementIndex(row, numRows);
+			Preconditions.checkElementIndex(col, numCols);
+			if (value == 0d)
+				return;
+			if (row > curRow)
+				finishRowsTo(row);
+			if (num == colIndexes.length) {
+				colIndexes = Arrays.copyOf(colIndexes, num*2);
+				values = Arrays.copyOf(values, num*2);
+			}
+			colIndexes[num] = col;
+			values[num] = value;
+			num++;
+		}
+		
+		private void finishRowsTo(int row) {
+			sortRow(rowStarts[curRow], num);
+			for (int r=curRow+1; r<=row; r++)
+				rowStarts[r] = num;
+			curRow = row;
+		}
+		
+		private void sortRow(int start, int end) {
+			// insertion sort, rows are usually already in order
+			for (int i=start+1; i<end; i++) {
+				int col = colIndexes[i];
+				double val = values[i];
+				int j = i-1;
+				while (j >= start && colIndexes[j] > col) {
+					colIndexes[j+1] = colIndexes[j];
+					values[j+1] = values[j];
+					j--;
+				}
+				Preconditions.checkState(j < start || colIndexes[j] != col, "Duplicate value at col %s", col);
+				colIndexes[j+1] = col;
+				values[j+1] = val;
+			}
+		}
+		
+		public SparseInversionMatrix build() {
+			sortRow(rowStarts[curRow], num);
+			for (int r=curRow+1; r<=numRows; r++)
+				rowStarts[r] = num;
+			curRow = numRows;
+			return new SparseInversionMatrix(numRows, numCols, rowStarts,
+					Arrays.copyOf(colIndexes, num), Arrays.copyOf(values, num));
+		}
+	}
+	
+	public int getNumRows() {
+		return numRows;
+	}
+	
+	public int getNumCols() {
+		return numCols;
+	}
+	
+	public int getNumNonZero() {
+		return values.length;
+	}
+	
+	/**
+	 * @param row
+	 * @param col
+	 * @return value at the given row and column (zero if not set)
+	 */
+	public double get(int row, int col) {
+		int index = Arrays.binarySearch(colIndexes, rowStarts[row], rowStarts[row+1], col);
+		if (index < 0)
+			return 0d;
+		return values[index];
+	}
+	
+	/**
+	 * @return copy of this matrix with independent values (the sparsity structure is shared)
+	 */
+	public SparseInversionMatrix copy() {
+		return new SparseInversionMatrix(numRows, numCols, rowStarts, colIndexes, Arrays.copyOf(values, values.length));
+	}
+	
+	/**
+	 * Multiplies all values in the given row by the given scalar, in place
+	 *
+	 * @param row
+	 * @param scale
+	 */
+	public void scaleRow(int row, double scale) {
+		for (int i=rowStarts[row]; i<rowStarts[row+1]; i++)
+			values[i] *= scale;
+	}
+	
+	/**
+	 * @param x vector of length numCols
+	 * @return A*x
+	 */
+	public double[] multiply(double[] x) {
+		double[] result = new double[numRows];
+		multiply(x, result);
+		return result;
+	}
+	
+	/**
+	 * Computes A*x into the given result array
+	 *
+	 * @param x vector of length numCols
+	 * @param result vector of length numRows
+	 */
+	public void multiply(double[] x, double[] result) {
+		Preconditions.checkArgument(x.length == numCols);
+		Preconditions.checkArgument(result.length == numRows);
+		for (int row=0; row<numRows; row++) {
+			double sum = 0d;
+			for (int i=rowStarts[row]; i<rowStarts[row+1]; i++)
+				sum += x[colIndexes[i]]*values[i];
+			result[row] = sum;
+		}
+	}
+	
+	/**
+	 * @return colt sparse matrix with the same values, for use with simulated annealing
+	 */
+	public SparseDoubleMatrix2D toColtMatrix() {
+		SparseDoubleMatrix2D mat = new SparseDoubleMatrix2D(numRows, numCols);
+		for (int row=0; row<numRows; row++)
+			for (int i=rowStarts[row]; i<rowStarts[row+1]; i++)
+				mat.setQuick(row, colIndexes[i], values[i]);
+		return mat;
+	}
+	
+	/**
+	 * @return dense column major array of this matrix, as required by the NNLS solver
+	 */
+	public double[] toColumnMajorArray() {
+		Preconditions.checkState((long)numRows*(long)numCols <= Integer.MAX_VALUE, "Matrix too large for dense array");
+		double[] A = new double[numRows*numCols];
+		for (int row=0; row<numRows; row++)
+			for (int i=rowStarts[row]; i<rowStarts[row+1]; i++)
+				A[colIndexes[i]*numRows + row] = values[i];
+		return A;
+	}
+	
+}
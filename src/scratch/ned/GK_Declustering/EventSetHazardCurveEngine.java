@@ -0,0 +1,482 @@
+package scratch.ned.GK_Declustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc_3D;
+import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
+import org.opensha.commons.data.function.UncertainArbDiscDataset;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+import org.opensha.sha.imr.AttenRelRef;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.EqkRuptureParams.HypocentralDepthParam;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * This computes event-set hazard curves (and expected number of exceedance curves) at one site for every sub-catalog
+ * of an ensemble of catalogs, for any number of sub-catalog durations at once. Each sub-catalog curve is computed as
+ * in U3ETAS_SimulationAnalysis.computeHazardCurveLnX() and computeExpNumExceedCurveLnX(), but each rupture's
+ * exceedance probabilities (P(IML>iml) at each hazard curve x value) are only computed once:
+ *
+ * 1) Ruptures which recur across catalogs (fault system ruptures, identified by their Nth ERF index, and other finite
+ * ruptures, identified by their surface) are computed once up front, in parallel, and stored in primitive arrays.
+ * Magnitude and rake are also part of the key. ETAS ruptures keep their own sampled hypocenter, so hypocenter depth
+ * is only added to the key if the IMR has a hypocentral depth rupture parameter (otherwise every occurrence of a
+ * fault system rupture would have its own key).
+ *
+ * 2) Catalogs are then processed in parallel. Each remaining (point source) rupture is computed once, and the
+ * probabilities of each rupture are combined into the curves for the sub-catalog that contains it for every duration.
+ * Point sources aren't shared, because their surface is the event's own (continuously sampled) hypocenter.
+ *
+ * Exceedance probabilities come from the same HazardCurveCalculator (see
+ * U3ETAS_SimulationAnalysis.getHazardCurveCalculator()) applied to each rupture on its own, so magnitude and
+ * distance cutoffs and point source distance corrections are unchanged. Each thread has its own IMR instance.
+ *
+ * Sub-catalog i (starting at zero) for duration d contains events with origin times in
+ * [start + i*d, start + (i+1)*d), where start is U3ETAS_SimulationAnalysis.catalogStartYear. Events after the last
+ * complete sub-catalog are ignored. These windows are not quite the same as those from
+ * U3ETAS_SimulationAnalysis.getSubcatalogList() (which drops the event that starts each new window and merges
+ * windows across gaps), so curves can differ slightly from the sub-catalog by sub-catalog methods.
+ *
+ * @author field
+ *
+ */
+public class EventSetHazardCurveEngine {
+	
+	static boolean D = true; // debugging flag
+	
+	private Location location;
+	private double saPeriod;
+	private AttenRelRef imrRef;
+	private int numThreads;
+	
+	private List<? extends List<? extends ObsEqkRupture>> catalogs;
+	
+	// exceedance probabilities for each shared rupture, null if always zero
+	private Map<RupKey, Integer> sharedIndexes;
+	private double[][] sharedProbs;
+	// true if the IMR uses hypocentral depth, in which case it's part of the shared rupture key
+	private boolean keyOnHypoDepth;
+	// number of shared rupture occurrences which reused an already computed rupture
+	private long numSharedHits;
+	
+	private ThreadLocal<CurveCalc> curveCalcs = new ThreadLocal<CurveCalc>() {
+		
+		@Override
+		protected CurveCalc initialValue() {
+			return new CurveCalc();
+		}
+	};
+	
+	/**
+	 *
+	 * @param catalogs - each must be in chronological order
+	 * @param location - site location
+	 * @param saPeriod - 0 for PGA
+	 * @param imrRef - IMR, instantiated for each thread with default parameters
+	 * @param numThreads
+	 */
+	public EventSetHazardCurveEngine(List<? extends List<? extends ObsEqkRupture>> catalogs, Location location,
+			double saPeriod, AttenRelRef imrRef, int numThreads) {
+		this.catalogs = catalogs;
+		this.location = location;
+		this.saPeriod = saPeriod;
+		this.imrRef = imrRef;
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Key for ruptures which are shared across catalogs
+	 */
+	private static class RupKey {
+		private Object id;
+		private double mag;
+		private double rake;
+		private double hypoDepth; // NaN if no hypocenter or not used by the IMR
+		
+		private RupKey(Object id, ObsEqkRupture rup, boolean keyOnHypoDepth) {
+			this.id = id;
+			this.mag = rup.getMag();
+			this.rake = rup.getAveRake();
+			Location hypo = keyOnHypoDepth ? rup.getHypocenterLocation() : null;
+			this.hypoDepth = hypo == null ? Double.NaN : hypo.getDepth();
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = id instanceof Integer ? id.hashCode() : System.identityHashCode(id);
+			result = 31*result + Double.hashCode(mag);
+			result = 31*result + Double.hashCode(rake);
+			result = 31*result + Double.hashCode(hypoDepth);
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof RupKey))
+				return false;
+			RupKey o = (RupKey)obj;
+			boolean sameID = id instanceof Integer ? id.equals(o.id) : id == o.id;
+			return sameID && mag == o.mag && rake == o.rake
+					&& Double.doubleToLongBits(hypoDepth) == Double.doubleToLongBits(o.hypoDepth);
+		}
+	}
+	
+	/**
+	 * @param rup
+	 * @return key if this rupture can recur across catalogs, otherwise null
+	 */
+	private RupKey getKey(ObsEqkRupture rup) {
+		if(rup instanceof ETAS_EqkRupture && ((ETAS_EqkRupture)rup).getFSSIndex() != -1)
+			return new RupKey(((ETAS_EqkRupture)rup).getNthERF_Index(), rup, keyOnHypoDepth);
+		if(!rup.getRuptureSurface().isPointSurface())
+			return new RupKey(rup.getRuptureSurface(), rup, keyOnHypoDepth);
+		return null;
+	}
+	
+	/**
+	 * IMR, site and calculator for one thread
+	 */
+	private class CurveCalc {
+		
+		private ScalarIMR imr;
+		private Site site;
+		private HazardCurveCalculator calc;
+		private EvenlyDiscretizedFunc curve;
+		private List<EqkRupture> rupList;
+		
+		private CurveCalc() {
+			imr = imrRef.instance(null);
+			imr.setParamDefaults();
+			site = new Site(location);
+			for (Parameter<?> param : imr.getSiteParams())
+				site.addParameter(param);
+			if(saPeriod == 0) {
+				imr.setIntensityMeasure(PGA_Param.NAME);
+			}
+			else {
+				SA_Param saParam = (SA_Param)imr.getParameter(SA_Param.NAME);
+				saParam.getPeriodParam().setValue(saPeriod);
+				imr.setIntensityMeasure(saParam);
+			}
+			calc = U3ETAS_SimulationAnalysis.getHazardCurveCalculator();
+			curve = newCurve();
+			rupList = new ArrayList<EqkRupture>(1);
+			rupList.add(null);
+		}
+		
+		/**
+		 * @param rup
+		 * @return probability of exceeding each hazard curve x value, or null if all are zero
+		 */
+		private double[] calcExceedProbs(EqkRupture rup) {
+			rupList.set(0, rup);
+			calc.getEventSetExpNumExceedCurve(curve, site, imr, rupList, false);
+			double[] probs = null;
+			for(int i=0; i<curve.size(); i++) {
+				double prob = curve.getY(i);
+				if(prob > 0) {
+					if(probs == null)
+						probs = new double[curve.size()];
+					probs[i] = prob;
+				}
+			}
+			return probs;
+		}
+	}
+	
+	private static EvenlyDiscretizedFunc newCurve() {
+		return new EvenlyDiscretizedFunc(U3ETAS_SimulationAnalysis.hazCurveLnMin, U3ETAS_SimulationAnalysis.hazCurveNum,
+				U3ETAS_SimulationAnalysis.hazCurveDelta);
+	}
+	
+	/**
+	 * This computes exceedance probabilities for all shared ruptures (if not already computed)
+	 */
+	private synchronized void calcSharedRuptures() {
+		if(sharedProbs != null)
+			return;
+		keyOnHypoDepth = curveCalcs.get().imr.getEqkRuptureParams().containsParameter(HypocentralDepthParam.NAME);
+		sharedIndexes = new HashMap<RupKey, Integer>();
+		final List<ObsEqkRupture> sharedRups = new ArrayList<ObsEqkRupture>();
+		long numRups = 0;
+		numSharedHits = 0;
+		for(List<? extends ObsEqkRupture> catalog : catalogs) {
+			for(ObsEqkRupture rup : catalog) {
+				numRups++;
+				RupKey key = getKey(rup);
+				if(key == null)
+					continue;
+				if(sharedIndexes.containsKey(key)) {
+					numSharedHits++;
+				} else {
+					sharedIndexes.put(key, sharedRups.size());
+					sharedRups.add(rup);
+				}
+			}
+		}
+		if(D) System.out.println("Computing exceedance probabilities for "+sharedRups.size()+" shared ruptures (of "
+				+numRups+" total, "+numSharedHits+" reused, keyOnHypoDepth="+keyOnHypoDepth+")");
+		sharedProbs = new double[sharedRups.size()][];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int blockSize = Math.max(1, sharedRups.size()/(numThreads*10));
+		for(int start=0; start<sharedRups.size(); start+=blockSize) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(sharedRups.size(), start+blockSize);
+			tasks.add(new Callable<Void>() {
+				
+				@Override
+				public Void call() throws Exception {
+					CurveCalc calc = curveCalcs.get();
+					for(int i=blockStart; i<blockEnd; i++)
+						sharedProbs[i] = calc.calcExceedProbs(sharedRups.get(i));
+					return null;
+				}
+			});
+		}
+		runTasks(tasks);
+	}
+	
+	/**
+	 * Computes curves for every sub-catalog for each duration
+	 * @param durations - sub-catalog durations (years)
+	 * @param expNumExceed - if true, expected number of exceedance curves are computed rather than hazard curves
+	 * @return distribution of the curves (in ln(iml) space) over all sub-catalogs for each duration
+	 */
+	public ArbDiscrEmpiricalDistFunc_3D[] calcCurves(final double[] durations, final boolean expNumExceed) {
+		calcSharedRuptures();
+		
+		final int numDurations = durations.length;
+		final long startEpoch = (long)((U3ETAS_SimulationAnalysis.catalogStartYear-1970)
+				*U3ETAS_SimulationAnalysis.millisPerYr);
+		final long[] durationMillis = new long[numDurations];
+		final int[] numSubCats = new int[numDurations];
+		final ArbDiscrEmpiricalDistFunc_3D[] results = new ArbDiscrEmpiricalDistFunc_3D[numDurations];
+		for(int d=0; d<numDurations; d++) {
+			durationMillis[d] = (long)(durations[d]*U3ETAS_SimulationAnalysis.millisPerYr);
+			// add a day (0.003) to make sure we get the last window, as in getSubcatalogList()
+			numSubCats[d] = (int)Math.floor((U3ETAS_SimulationAnalysis.catalogDuration+0.003)/durations[d]);
+			Preconditions.checkState(numSubCats[d] > 0, "Duration %s is longer than the catalogs", durations[d]);
+			results[d] = new ArbDiscrEmpiricalDistFunc_3D(U3ETAS_SimulationAnalysis.hazCurveLnMin,
+					U3ETAS_SimulationAnalysis.hazCurveNum, U3ETAS_SimulationAnalysis.hazCurveDelta);
+		}
+		final int numX = U3ETAS_SimulationAnalysis.hazCurveNum;
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(final List<? extends ObsEqkRupture> catalog : catalogs) {
+			tasks.add(new Callable<Void>() {
+				
+				@Override
+				public Void call() throws Exception {
+					CurveCalc calc = curveCalcs.get();
+					// sum of exceedance probabilities (expNumExceed) or product of non-exceedance probabilities for
+					// each duration and sub-catalog
+					double[][][] values = new double[numDurations][][];
+					for(int d=0; d<numDurations; d++) {
+						values[d] = new double[numSubCats[d]][numX];
+						if(!expNumExceed)
+							for(double[] subCatValues : values[d])
+								Arrays.fill(subCatValues, 1d);
+					}
+					for(ObsEqkRupture rup : catalog) {
+						long relTime = Math.max(0l, rup.getOriginTime() - startEpoch);
+						RupKey key = getKey(rup);
+						double[] probs;
+						if(key == null)
+							probs = calc.calcExceedProbs(rup);
+						else
+							probs = sharedProbs[sharedIndexes.get(key)];
+						if(probs == null)
+							continue;
+						for(int d=0; d<numDurations; d++) {
+							long subCat = relTime/durationMillis[d];
+							if(subCat >= numSubCats[d])
+								continue;
+							double[] subCatValues = values[d][(int)subCat];
+							if(expNumExceed)
+								for(int i=0; i<numX; i++)
+									subCatValues[i] += probs[i];
+							else
+								for(int i=0; i<numX; i++)
+									subCatValues[i] *= 1d - probs[i];
+						}
+					}
+					List<List<EvenlyDiscretizedFunc>> curves = new ArrayList<List<EvenlyDiscretizedFunc>>();
+					for(int d=0; d<numDurations; d++) {
+						List<EvenlyDiscretizedFunc> durCurves = new ArrayList<EvenlyDiscretizedFunc>();
+						for(double[] subCatValues : values[d]) {
+							EvenlyDiscretizedFunc curve = newCurve();
+							for(int i=0; i<numX; i++)
+								curve.set(i, expNumExceed ? subCatValues[i] : 1d - subCatValues[i]);
+							durCurves.add(curve);
+						}
+						curves.add(durCurves);
+					}
+					for(int d=0; d<numDurations; d++) {
+						synchronized (results[d]) {
+							for(EvenlyDiscretizedFunc curve : curves.get(d))
+								results[d].set(curve, 1.0);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		if(D) System.out.println("Computing curves for "+catalogs.size()+" catalogs and "+numDurations+" durations");
+		runTasks(tasks);
+		return results;
+	}
+	
+	private void runTasks(List<Callable<Void>> tasks) {
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for(Callable<Void> task : tasks)
+				futures.add(exec.submit(task));
+			for(Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+	}
+	
+	/**
+	 * @return number of ruptures shared across catalogs (computed once each)
+	 */
+	public int getNumSharedRuptures() {
+		calcSharedRuptures();
+		return sharedProbs.length;
+	}
+	
+	/**
+	 * @return number of shared rupture occurrences which reused an already computed rupture (cache hits)
+	 */
+	public long getNumSharedRuptureHits() {
+		calcSharedRuptures();
+		return numSharedHits;
+	}
+	
+	/**
+	 * This builds a small synthetic ensemble with a few recurring finite ruptures and random point sources
+	 * @param numCatalogs
+	 * @param duration - sub-catalog duration (years); a far away event starts each sub-catalog so that the windows
+	 * match those from U3ETAS_SimulationAnalysis.getSubcatalogList()
+	 * @param r
+	 * @return catalogs
+	 */
+	private static ArrayList<ObsEqkRupList> buildTestCatalogs(int numCatalogs, double duration, Random r) {
+		List<RuptureSurface> surfaces = new ArrayList<RuptureSurface>();
+		double[] mags = { 6.5, 7.0, 7.6 };
+		double[] rakes = { 180, 90, 0 };
+		for(int i=0; i<mags.length; i++) {
+			FaultTrace trace = new FaultTrace("Test Fault "+i);
+			trace.add(new Location(33.9+0.1*i, -118.6+0.1*i));
+			trace.add(new Location(34.2+0.1*i, -118.0+0.1*i));
+			surfaces.add(new StirlingGriddedSurface(trace, 90-20*i, 0d, 14d, 1d));
+		}
+		int numSubCats = (int)Math.floor((U3ETAS_SimulationAnalysis.catalogDuration+0.003)/duration);
+		long startEpoch = (long)((U3ETAS_SimulationAnalysis.catalogStartYear-1970)*U3ETAS_SimulationAnalysis.millisPerYr);
+		long durationMillis = (long)(duration*U3ETAS_SimulationAnalysis.millisPerYr);
+		long millisPerDay = U3ETAS_SimulationAnalysis.millisPerYr/365;
+		ArrayList<ObsEqkRupList> catalogs = new ArrayList<ObsEqkRupList>();
+		for(int c=0; c<numCatalogs; c++) {
+			ObsEqkRupList catalog = new ObsEqkRupList();
+			for(int s=0; s<numSubCats; s++) {
+				long windowStart = startEpoch + s*durationMillis;
+				ETAS_EqkRupture marker = new ETAS_EqkRupture();
+				marker.setOriginTime(windowStart + millisPerDay);
+				marker.setMag(5.0);
+				marker.setHypocenterLocation(new Location(45, -100, 10));
+				marker.setFSSIndex(-1);
+				marker.setAveRake(0.);
+				marker.setPointSurface(marker.getHypocenterLocation(), 0., 90.);
+				catalog.add(marker);
+				int numEvents = 5 + r.nextInt(10);
+				long[] times = new long[numEvents];
+				for(int i=0; i<numEvents; i++)
+					times[i] = windowStart + 2*millisPerDay + (long)(r.nextDouble()*(durationMillis - 3*millisPerDay));
+				Arrays.sort(times);
+				for(long time : times) {
+					ETAS_EqkRupture rup = new ETAS_EqkRupture();
+					rup.setOriginTime(time);
+					if(r.nextDouble() < 0.3) {
+						// recurring fault system rupture, with its own hypocenter
+						int index = r.nextInt(surfaces.size());
+						Location hypo = surfaces.get(index).getEvenlyDiscritizedListOfLocsOnSurface().get(
+								r.nextInt(surfaces.get(index).getEvenlyDiscritizedListOfLocsOnSurface().size()));
+						rup.setHypocenterLocation(hypo);
+						rup.setMag(mags[index]);
+						rup.setAveRake(rakes[index]);
+						rup.setFSSIndex(index);
+						rup.setNthERF_Index(index);
+						rup.setRuptureSurface(surfaces.get(index));
+					} else {
+						rup.setHypocenterLocation(new Location(33.5+r.nextDouble(), -119+r.nextDouble(), 2+10*r.nextDouble()));
+						rup.setMag(5 + 2*r.nextDouble());
+						rup.setFSSIndex(-1);
+						rup.setAveRake(0.);
+						rup.setPointSurface(rup.getHypocenterLocation(), 0., 90.);
+					}
+					catalog.add(rup);
+				}
+			}
+			catalogs.add(catalog);
+		}
+		return catalogs;
+	}
+	
+	public static void main(String[] args) {
+		// compare with the sub-catalog by sub-catalog calculation on a small synthetic ensemble
+		int numCatalogs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		double duration = 100;
+		double saPeriod = 0.2;
+		Location loc = new Location(34.05,-118.25);
+		ArrayList<ObsEqkRupList> catalogs = buildTestCatalogs(numCatalogs, duration, new Random(12345));
+		
+		for(AttenRelRef imrRef : new AttenRelRef[] {AttenRelRef.BSSA_2014, AttenRelRef.CB_2014}) {
+			EventSetHazardCurveEngine engine = new EventSetHazardCurveEngine(catalogs, loc, saPeriod, imrRef,
+					Runtime.getRuntime().availableProcessors());
+			ArbDiscrEmpiricalDistFunc_3D engineFunc = engine.calcCurves(new double[] {duration}, false)[0];
+			UncertainArbDiscDataset refData = U3ETAS_SimulationAnalysis.computeHazardCurvesFromCatalogs(
+					catalogs, loc, duration, saPeriod, false, imrRef.instance(null))[0];
+			EvenlyDiscretizedFunc mean = engineFunc.getMeanCurve();
+			EvenlyDiscretizedFunc min = engineFunc.getMinCurve();
+			EvenlyDiscretizedFunc max = engineFunc.getMaxCurve();
+			double maxDiff = 0;
+			for(int i=0; i<mean.size(); i++) {
+				maxDiff = Math.max(maxDiff, Math.abs(mean.getY(i) - refData.getY(i)));
+				maxDiff = Math.max(maxDiff, Math.abs(min.getY(i) - refData.getLowerY(i)));
+				maxDiff = Math.max(maxDiff, Math.abs(max.getY(i) - refData.getUpperY(i)));
+			}
+			System.out.println(imrRef.getShortName()+": "+engine.getNumSharedRuptures()+" shared ruptures, "
+					+engine.getNumSharedRuptureHits()+" cache hits, max curve difference: "+maxDiff);
+		}
+	}
+	
+}
@@ -0,0 +1,293 @@
+package scratch.ned.GK_Declustering;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
+import org.opensha.sha.earthquake.observedEarthquake.Declustering.GardnerKnopoffDeclustering;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.BinarayCatalogsIterable;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * This applies Gardner-Knopoff (1974) window declustering to large ensembles of ETAS catalogs, streaming them from an
+ * ETAS_CatalogIO binary file so that only the catalogs currently being processed are held in memory. Catalogs are
+ * declustered in parallel, and each result is passed to a CatalogProcessor, e.g., to accumulate summary MFDs
+ * (MFD_Accumulator) or to write the declustered catalogs to a new binary file (BinaryWriter).
+ *
+ * Each catalog is declustered with GardnerKnopoffDeclustering.getDeclusteredCatalog(), exactly as in
+ * U3ETAS_SimulationAnalysis.getGK_DeclusteredCatalog().
+ *
+ * @author field
+ *
+ */
+public class GK_StreamingDeclustering {
+	
+	static boolean D = true; // debugging flag
+	
+	/**
+	 * @param catalog
+	 * @return new list containing the mainshocks in the given catalog, from GardnerKnopoffDeclustering
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E extends ObsEqkRupture> List<E> getDeclusteredCatalog(List<E> catalog) {
+		ObsEqkRupList rupList = new ObsEqkRupList();
+		rupList.addAll(catalog);
+		List<E> declustered = new ArrayList<E>();
+		// these are the same rupture objects that were passed in
+		for(ObsEqkRupture rup : GardnerKnopoffDeclustering.getDeclusteredCatalog(rupList))
+			declustered.add((E)rup);
+		return declustered;
+	}
+	
+	/**
+	 * Receives each catalog and its declustered version. Implementations must be thread safe, as catalogs are
+	 * processed in parallel and passed in no particular order.
+	 */
+	public interface CatalogProcessor {
+		
+		/**
+		 * @param index - index of the catalog in the input file
+		 * @param catalog
+		 * @param declustered
+		 * @throws IOException
+		 */
+		public void process(int index, List<ETAS_EqkRupture> catalog, List<ETAS_EqkRupture> declustered)
+				throws IOException;
+	}
+	
+	/**
+	 * This declusters every catalog in the given binary file in parallel, passing results to the given processor. No
+	 * more than twice the number of threads catalogs are being processed at once (not counting any that the processor
+	 * keeps, e.g., the bounded buffer in BinaryWriter).
+	 * @param catalogsFile - ETAS_CatalogIO binary catalogs file
+	 * @param minMag - minimum magnitude to load (events below are ignored entirely)
+	 * @param numThreads
+	 * @param processor
+	 * @return number of catalogs processed
+	 * @throws IOException
+	 */
+	public static int process(File catalogsFile, double minMag, int numThreads, final CatalogProcessor processor)
+			throws IOException {
+		BinarayCatalogsIterable iterable = ETAS_CatalogIO.getBinaryCatalogsIterable(catalogsFile, minMag);
+		if(D) System.out.println("Declustering "+iterable.getNumCatalogs()+" catalogs with "+numThreads+" threads");
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		final Semaphore inFlight = new Semaphore(2*numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		int index = 0;
+		try {
+			for(final List<ETAS_EqkRupture> catalog : iterable) {
+				inFlight.acquire();
+				final int catalogIndex = index++;
+				futures.add(exec.submit(new Callable<Void>() {
+					
+					@Override
+					public Void call() throws Exception {
+						try {
+							processor.process(catalogIndex, catalog, getDeclusteredCatalog(catalog));
+						} finally {
+							inFlight.release();
+						}
+						return null;
+					}
+				}));
+				if(D && index % 1000 == 0)
+					System.out.println("Submitted "+index+" catalogs");
+			}
+			for(Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			exec.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		exec.shutdown();
+		return index;
+	}
+	
+	/**
+	 * Accumulates total numbers of events in each magnitude bin for original and declustered catalogs
+	 */
+	public static class MFD_Accumulator implements CatalogProcessor {
+		
+		private IncrementalMagFreqDist fullMFD, declusteredMFD;
+		private int numCatalogs = 0;
+		
+		public MFD_Accumulator(double minMag, int numMag, double deltaMag) {
+			fullMFD = new IncrementalMagFreqDist(minMag, numMag, deltaMag);
+			declusteredMFD = new IncrementalMagFreqDist(minMag, numMag, deltaMag);
+		}
+		
+		@Override
+		public void process(int index, List<ETAS_EqkRupture> catalog, List<ETAS_EqkRupture> declustered) {
+			// bin locally so that the lock is only held briefly
+			double[] fullCounts = binMags(catalog);
+			double[] declusteredCounts = binMags(declustered);
+			synchronized (this) {
+				for(int i=0; i<fullCounts.length; i++) {
+					fullMFD.add(i, fullCounts[i]);
+					declusteredMFD.add(i, declusteredCounts[i]);
+				}
+				numCatalogs++;
+			}
+		}
+		
+		private double[] binMags(List<ETAS_EqkRupture> catalog) {
+			double[] counts = new double[fullMFD.size()];
+			double minEdge = fullMFD.getMinX() - 0.5*fullMFD.getDelta();
+			for(ETAS_EqkRupture rup : catalog) {
+				int bin = (int)Math.floor((rup.getMag() - minEdge)/fullMFD.getDelta());
+				if(bin >= 0 && bin < counts.length)
+					counts[bin]++;
+			}
+			return counts;
+		}
+		
+		/**
+		 * @return total number of events in each magnitude bin, summed over all catalogs
+		 */
+		public synchronized IncrementalMagFreqDist getFullMFD() {
+			return fullMFD;
+		}
+		
+		/**
+		 * @return total number of declustered events in each magnitude bin, summed over all catalogs
+		 */
+		public synchronized IncrementalMagFreqDist getDeclusteredMFD() {
+			return declusteredMFD;
+		}
+		
+		public synchronized int getNumCatalogs() {
+			return numCatalogs;
+		}
+	}
+	
+	/**
+	 * Writes declustered catalogs to a binary file in their original order. Catalogs which finish out of order are
+	 * buffered until their turn, but no more than maxPending ahead of the next catalog to be written; threads with
+	 * catalogs further ahead wait (holding their place in process()'s limit on catalogs in memory) until it is written.
+	 */
+	public static class BinaryWriter implements CatalogProcessor, Closeable {
+		
+		private File outputFile;
+		private DataOutputStream out;
+		private int maxPending;
+		private int nextIndex = 0;
+		private Map<Integer, List<ETAS_EqkRupture>> pending = new HashMap<Integer, List<ETAS_EqkRupture>>();
+		
+		public BinaryWriter(File outputFile) throws IOException {
+			this(outputFile, 100);
+		}
+		
+		/**
+		 * @param outputFile
+		 * @param maxPending - maximum number of finished catalogs buffered while waiting for an earlier one
+		 * @throws IOException
+		 */
+		public BinaryWriter(File outputFile, int maxPending) throws IOException {
+			Preconditions.checkArgument(maxPending > 0, "maxPending must be positive");
+			this.outputFile = outputFile;
+			this.maxPending = maxPending;
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(outputFile), ETAS_CatalogIO.buffer_len));
+			// write number of catalogs as int
+			out.writeInt(0); // will overwrite on close
+		}
+		
+		@Override
+		public synchronized void process(int index, List<ETAS_EqkRupture> catalog,
+				List<ETAS_EqkRupture> declustered) throws IOException {
+			// catalogs are submitted in order, so the next one to be written is never waiting here
+			while(index - nextIndex > maxPending) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+			}
+			pending.put(index, declustered);
+			if(!pending.containsKey(nextIndex))
+				return;
+			while(pending.containsKey(nextIndex)) {
+				ETAS_CatalogIO.writeCatalogBinary(out, pending.remove(nextIndex));
+				nextIndex++;
+			}
+			notifyAll();
+		}
+		
+		@Override
+		public synchronized void close() throws IOException {
+			Preconditions.checkState(pending.isEmpty(), "%s catalogs never written, missing catalog %s",
+					pending.size(), nextIndex);
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(outputFile, "rw");
+			raf.seek(0l);
+			raf.writeInt(nextIndex);
+			raf.close();
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3 || args.length > 4) {
+			System.err.println("USAGE: "+ClassUtils.getClassNameWithoutPackage(GK_StreamingDeclustering.class)
+					+" <input-binary-file> <min-mag> <threads> [<output-binary-file>]");
+			System.exit(2);
+		}
+		File inputFile = new File(args[0]);
+		double minMag = Double.parseDouble(args[1]);
+		int numThreads = Integer.parseInt(args[2]);
+		
+		final MFD_Accumulator mfds = new MFD_Accumulator(5.05, 40, 0.1);
+		final BinaryWriter writer = args.length == 4 ? new BinaryWriter(new File(args[3])) : null;
+		CatalogProcessor processor = mfds;
+		if(writer != null) {
+			processor = new CatalogProcessor() {
+				
+				@Override
+				public void process(int index, List<ETAS_EqkRupture> catalog, List<ETAS_EqkRupture> declustered)
+						throws IOException {
+					mfds.process(index, catalog, declustered);
+					writer.process(index, catalog, declustered);
+				}
+			};
+		}
+		long startTime = System.currentTimeMillis();
+		int numCatalogs = process(inputFile, minMag, numThreads, processor);
+		if(writer != null)
+			writer.close();
+		System.out.println("Declustered "+numCatalogs+" catalogs in "
+				+(System.currentTimeMillis()-startTime)/1000d+" s");
+		
+		IncrementalMagFreqDist full = mfds.getFullMFD();
+		IncrementalMagFreqDist declustered = mfds.getDeclusteredMFD();
+		System.out.println("Mag\tNumFull\tNumDeclustered\tRatio");
+		for(int i=0; i<full.size(); i++)
+			if(full.getY(i) > 0)
+				System.out.println((float)full.getX(i)+"\t"+(long)full.getY(i)+"\t"+(long)declustered.getY(i)
+						+"\t"+(float)(declustered.getY(i)/full.getY(i)));
+		System.exit(0);
+	}
+	
+}
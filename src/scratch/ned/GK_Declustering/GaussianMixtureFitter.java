@@ -0,0 +1,531 @@
+package scratch.ned.GK_Declustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This fits 1-D or 2-D Gaussian mixture models to data in primitive arrays using the expectation-maximization (EM)
+ * algorithm, e.g., for the log nearest neighbor distances (1-D) or log rescaled times and distances (2-D) used in
+ * nearest neighbor declustering. This replaces the Spark MLlib GaussianMixture, which required starting a Spark
+ * session for each catalog.
+ *
+ * The E and M steps are combined in a single pass over the data which accumulates weighted sums for each component, so
+ * no responsibility matrix is stored and nothing is allocated during iterations. A fitter reuses its work arrays
+ * between fits, so instances are not thread safe; use fitAll() to fit many data sets in parallel.
+ *
+ * Fits are deterministic: component means are initialized evenly across the range of the data (along the diagonal
+ * of the bounding box for 2-D), with the overall variance(s) and equal weights. Components in the returned fits are
+ * sorted by increasing mean (of the first dimension for 2-D).
+ *
+ * @author field
+ *
+ */
+public class GaussianMixtureFitter {
+	
+	static boolean D = false; // debugging flag
+	
+	/**
+	 * Default convergence tolerance on the change in mean log-likelihood per data point
+	 */
+	public static final double DEFAULT_TOLERANCE = 1e-6;
+	public static final int DEFAULT_MAX_ITERATIONS = 1000;
+	
+	private static final double LOG_2PI = Math.log(2d*Math.PI);
+	// component variances are kept above this fraction of the overall variance
+	private static final double MIN_VARIANCE_FRACT = 1e-6;
+	// components are kept if their weight sum is above this
+	private static final double MIN_WEIGHT_SUM = 1e-10;
+	// correlation coefficients are kept within +/- this for 2-D fits
+	private static final double MAX_CORRELATION = 0.999;
+	// number of data sets in each parallel task for fitAll()
+	private static final int BLOCK_SIZE = 10;
+	
+	private int numComponents;
+	private double tolerance;
+	private int maxIterations;
+	
+	// work arrays
+	private double[] weights;
+	private double[][] means; // [component][dimension]
+	private double[][] covs; // [component][var] for 1-D, [component][varX, varY, covXY] for 2-D
+	private double[] logNorms, logProbs;
+	private double[] sumR, sumX, sumY, sumXX, sumYY, sumXY;
+	private double[] invXX, invYY, invXY;
+	
+	public GaussianMixtureFitter(int numComponents) {
+		this(numComponents, DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+	}
+	
+	/**
+	 *
+	 * @param numComponents - number of Gaussians in the mixture
+	 * @param tolerance - convergence tolerance on the change in mean log-likelihood per data point
+	 * @param maxIterations - maximum number of EM iterations
+	 */
+	public GaussianMixtureFitter(int numComponents, double tolerance, int maxIterations) {
+		Preconditions.checkArgument(numComponents > 0, "Must have at least one component");
+		Preconditions.checkArgument(tolerance >= 0, "Tolerance can't be negative");
+		Preconditions.checkArgument(maxIterations > 0, "Must allow at least one iteration");
+		this.numComponents = numComponents;
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+		
+		weights = new double[numComponents];
+		means = new double[numComponents][2];
+		covs = new double[numComponents][3];
+		logNorms = new double[numComponents];
+		logProbs = new double[numComponents];
+		sumR = new double[numComponents];
+		sumX = new double[numComponents];
+		sumY = new double[numComponents];
+		sumXX = new double[numComponents];
+		sumYY = new double[numComponents];
+		sumXY = new double[numComponents];
+		invXX = new double[numComponents];
+		invYY = new double[numComponents];
+		invXY = new double[numComponents];
+	}
+	
+	/**
+	 * Fits a 1-D mixture to the given data
+	 * @param data
+	 * @return
+	 */
+	public Fit fit(double[] data) {
+		int n = data.length;
+		Preconditions.checkArgument(n >= numComponents, "Need at least %s data points, have %s", numComponents, n);
+		
+		// initialize
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double mean = 0d;
+		for(int i=0; i<n; i++) {
+			min = Math.min(min, data[i]);
+			max = Math.max(max, data[i]);
+			mean += data[i];
+		}
+		mean /= n;
+		double var = 0d;
+		for(int i=0; i<n; i++)
+			var += (data[i]-mean)*(data[i]-mean);
+		var /= n;
+		Preconditions.checkArgument(var > 0, "Data have no variance");
+		double minVar = var*MIN_VARIANCE_FRACT;
+		for(int k=0; k<numComponents; k++) {
+			weights[k] = 1d/numComponents;
+			means[k][0] = min + (k+0.5)*(max-min)/numComponents;
+			covs[k][0] = var;
+		}
+		
+		double prevLL = Double.NEGATIVE_INFINITY;
+		double ll = Double.NaN;
+		boolean converged = false;
+		int iteration = 0;
+		while(iteration < maxIterations) {
+			iteration++;
+			for(int k=0; k<numComponents; k++) {
+				logNorms[k] = Math.log(weights[k]) - 0.5*(LOG_2PI + Math.log(covs[k][0]));
+				invXX[k] = 1d/covs[k][0];
+				sumR[k] = 0d;
+				sumX[k] = 0d;
+				sumXX[k] = 0d;
+			}
+			
+			// E step, accumulating sums (centered on the current means) for the M step
+			ll = 0d;
+			for(int i=0; i<n; i++) {
+				double x = data[i];
+				double maxLogProb = Double.NEGATIVE_INFINITY;
+				for(int k=0; k<numComponents; k++) {
+					double dx = x - means[k][0];
+					logProbs[k] = logNorms[k] - 0.5*dx*dx*invXX[k];
+					maxLogProb = Math.max(maxLogProb, logProbs[k]);
+				}
+				double sum = 0d;
+				for(int k=0; k<numComponents; k++) {
+					logProbs[k] = Math.exp(logProbs[k] - maxLogProb);
+					sum += logProbs[k];
+				}
+				ll += maxLogProb + Math.log(sum);
+				for(int k=0; k<numComponents; k++) {
+					double r = logProbs[k]/sum;
+					double dx = x - means[k][0];
+					sumR[k] += r;
+					sumX[k] += r*dx;
+					sumXX[k] += r*dx*dx;
+				}
+			}
+			
+			// M step
+			for(int k=0; k<numComponents; k++) {
+				weights[k] = sumR[k]/n;
+				if(sumR[k] < MIN_WEIGHT_SUM)
+					continue;
+				double offset = sumX[k]/sumR[k];
+				means[k][0] += offset;
+				covs[k][0] = Math.max(minVar, sumXX[k]/sumR[k] - offset*offset);
+			}
+			
+			if(D) System.out.println("Iteration "+iteration+": log-likelihood="+ll);
+			if(Math.abs(ll - prevLL) <= tolerance*n) {
+				converged = true;
+				break;
+			}
+			prevLL = ll;
+		}
+		
+		return new Fit(1, weights, means, covs, ll, iteration, converged);
+	}
+	
+	/**
+	 * Fits a 2-D mixture (with full covariance matrices) to the given data
+	 * @param xData
+	 * @param yData
+	 * @return
+	 */
+	public Fit fit(double[] xData, double[] yData) {
+		int n = xData.length;
+		Preconditions.checkArgument(yData.length == n, "X and Y data sizes differ");
+		Preconditions.checkArgument(n >= numComponents, "Need at least %s data points, have %s", numComponents, n);
+		
+		// initialize
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double meanX = 0d, meanY = 0d;
+		for(int i=0; i<n; i++) {
+			minX = Math.min(minX, xData[i]);
+			maxX = Math.max(maxX, xData[i]);
+			minY = Math.min(minY, yData[i]);
+			maxY = Math.max(maxY, yData[i]);
+			meanX += xData[i];
+			meanY += yData[i];
+		}
+		meanX /= n;
+		meanY /= n;
+		double varX = 0d, varY = 0d;
+		for(int i=0; i<n; i++) {
+			varX += (xData[i]-meanX)*(xData[i]-meanX);
+			varY += (yData[i]-meanY)*(yData[i]-meanY);
+		}
+		varX /= n;
+		varY /= n;
+		Preconditions.checkArgument(varX > 0 && varY > 0, "Data have no variance");
+		double minVarX = varX*MIN_VARIANCE_FRACT;
+		double minVarY = varY*MIN_VARIANCE_FRACT;
+		for(int k=0; k<numComponents; k++) {
+			weights[k] = 1d/numComponents;
+			means[k][0] = minX + (k+0.5)*(maxX-minX)/numComponents;
+			means[k][1] = minY + (k+0.5)*(maxY-minY)/numComponents;
+			covs[k][0] = varX;
+			covs[k][1] = varY;
+			covs[k][2] = 0d;
+		}
+		
+		double prevLL = Double.NEGATIVE_INFINITY;
+		double ll = Double.NaN;
+		boolean converged = false;
+		int iteration = 0;
+		while(iteration < maxIterations) {
+			iteration++;
+			for(int k=0; k<numComponents; k++) {
+				double det = covs[k][0]*covs[k][1] - covs[k][2]*covs[k][2];
+				logNorms[k] = Math.log(weights[k]) - LOG_2PI - 0.5*Math.log(det);
+				invXX[k] = covs[k][1]/det;
+				invYY[k] = covs[k][0]/det;
+				invXY[k] = -covs[k][2]/det;
+				sumR[k] = 0d;
+				sumX[k] = 0d;
+				sumY[k] = 0d;
+				sumXX[k] = 0d;
+				sumYY[k] = 0d;
+				sumXY[k] = 0d;
+			}
+			
+			// E step, accumulating sums (centered on the current means) for the M step
+			ll = 0d;
+			for(int i=0; i<n; i++) {
+				double x = xData[i];
+				double y = yData[i];
+				double maxLogProb = Double.NEGATIVE_INFINITY;
+				for(int k=0; k<numComponents; k++) {
+					double dx = x - means[k][0];
+					double dy = y - means[k][1];
+					logProbs[k] = logNorms[k] - 0.5*(dx*dx*invXX[k] + 2d*dx*dy*invXY[k] + dy*dy*invYY[k]);
+					maxLogProb = Math.max(maxLogProb, logProbs[k]);
+				}
+				double sum = 0d;
+				for(int k=0; k<numComponents; k++) {
+					logProbs[k] = Math.exp(logProbs[k] - maxLogProb);
+					sum += logProbs[k];
+				}
+				ll += maxLogProb + Math.log(sum);
+				for(int k=0; k<numComponents; k++) {
+					double r = logProbs[k]/sum;
+					double dx = x - means[k][0];
+					double dy = y - means[k][1];
+					sumR[k] += r;
+					sumX[k] += r*dx;
+					sumY[k] += r*dy;
+					sumXX[k] += r*dx*dx;
+					sumYY[k] += r*dy*dy;
+					sumXY[k] += r*dx*dy;
+				}
+			}
+			
+			// M step
+			for(int k=0; k<numComponents; k++) {
+				weights[k] = sumR[k]/n;
+				if(sumR[k] < MIN_WEIGHT_SUM)
+					continue;
+				double offsetX = sumX[k]/sumR[k];
+				double offsetY = sumY[k]/sumR[k];
+				means[k][0] += offsetX;
+				means[k][1] += offsetY;
+				double cxx = Math.max(minVarX, sumXX[k]/sumR[k] - offsetX*offsetX);
+				double cyy = Math.max(minVarY, sumYY[k]/sumR[k] - offsetY*offsetY);
+				double maxCov = MAX_CORRELATION*Math.sqrt(cxx*cyy);
+				double cxy = Math.max(-maxCov, Math.min(maxCov, sumXY[k]/sumR[k] - offsetX*offsetY));
+				covs[k][0] = cxx;
+				covs[k][1] = cyy;
+				covs[k][2] = cxy;
+			}
+			
+			if(D) System.out.println("Iteration "+iteration+": log-likelihood="+ll);
+			if(Math.abs(ll - prevLL) <= tolerance*n) {
+				converged = true;
+				break;
+			}
+			prevLL = ll;
+		}
+		
+		return new Fit(2, weights, means, covs, ll, iteration, converged);
+	}
+	
+	/**
+	 * Fits 1-D mixtures to each of the given data sets in parallel, with the default tolerance and
+	 * maximum iterations
+	 * @param dataSets
+	 * @param numComponents
+	 * @param numThreads
+	 * @return fits in the same order as the data sets
+	 */
+	public static List<Fit> fitAll(List<double[]> dataSets, int numComponents, int numThreads) {
+		return fitAll(dataSets, null, numComponents, DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS, numThreads);
+	}
+	
+	/**
+	 * Fits 1-D mixtures to each of the given data sets in parallel
+	 * @param dataSets
+	 * @param numComponents
+	 * @param tolerance - convergence tolerance on the change in mean log-likelihood per data point
+	 * @param maxIterations - maximum number of EM iterations
+	 * @param numThreads
+	 * @return fits in the same order as the data sets
+	 */
+	public static List<Fit> fitAll(List<double[]> dataSets, int numComponents, double tolerance,
+			int maxIterations, int numThreads) {
+		return fitAll(dataSets, null, numComponents, tolerance, maxIterations, numThreads);
+	}
+	
+	/**
+	 * Fits 2-D mixtures to each of the given data sets in parallel, with the default tolerance and
+	 * maximum iterations
+	 * @param xDataSets
+	 * @param yDataSets - must be the same size as xDataSets
+	 * @param numComponents
+	 * @param numThreads
+	 * @return fits in the same order as the data sets
+	 */
+	public static List<Fit> fitAll(List<double[]> xDataSets, List<double[]> yDataSets, int numComponents,
+			int numThreads) {
+		return fitAll(xDataSets, yDataSets, numComponents, DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS, numThreads);
+	}
+	
+	/**
+	 * Fits 2-D mixtures (or 1-D if yDataSets is null) to each of the given data sets in parallel
+	 * @param xDataSets
+	 * @param yDataSets - must be the same size as xDataSets, or null for 1-D fits
+	 * @param numComponents
+	 * @param tolerance - convergence tolerance on the change in mean log-likelihood per data point
+	 * @param maxIterations - maximum number of EM iterations
+	 * @param numThreads
+	 * @return fits in the same order as the data sets
+	 */
+	public static List<Fit> fitAll(final List<double[]> xDataSets, final List<double[]> yDataSets,
+			final int numComponents, final double tolerance, final int maxIterations, int numThreads) {
+		Preconditions.checkArgument(numComponents > 0, "Must have at least one component");
+		Preconditions.checkArgument(tolerance >= 0, "Tolerance can't be negative");
+		Preconditions.checkArgument(maxIterations > 0, "Must allow at least one iteration");
+		Preconditions.checkArgument(yDataSets == null || yDataSets.size() == xDataSets.size(),
+				"Must have the same number of X and Y data sets");
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		List<Future<List<Fit>>> futures = new ArrayList<Future<List<Fit>>>();
+		for(int start=0; start<xDataSets.size(); start+=BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(xDataSets.size(), start+BLOCK_SIZE);
+			futures.add(pool.submit(new Callable<List<Fit>>() {
+				
+				@Override
+				public List<Fit> call() throws Exception {
+					GaussianMixtureFitter fitter = new GaussianMixtureFitter(numComponents, tolerance, maxIterations);
+					List<Fit> fits = new ArrayList<Fit>();
+					for(int i=blockStart; i<blockEnd; i++) {
+						if(yDataSets == null)
+							fits.add(fitter.fit(xDataSets.get(i)));
+						else
+							fits.add(fitter.fit(xDataSets.get(i), yDataSets.get(i)));
+					}
+					return fits;
+				}
+			}));
+		}
+		List<Fit> fits = new ArrayList<Fit>();
+		try {
+			for(Future<List<Fit>> future : futures)
+				fits.addAll(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			pool.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		pool.shutdown();
+		return fits;
+	}
+	
+	/**
+	 * Fit Gaussian mixture, with components sorted by increasing mean (of the first dimension for 2-D)
+	 */
+	public static class Fit {
+		
+		private int numDims;
+		private double[] weights;
+		private double[][] means;
+		private double[][] covs;
+		private double logLikelihood;
+		private int numIterations;
+		private boolean converged;
+		
+		private Fit(int numDims, double[] weights, double[][] means, double[][] covs, double logLikelihood,
+				int numIterations, boolean converged) {
+			this.numDims = numDims;
+			this.logLikelihood = logLikelihood;
+			this.numIterations = numIterations;
+			this.converged = converged;
+			int numComponents = weights.length;
+			Integer[] order = new Integer[numComponents];
+			for(int k=0; k<numComponents; k++)
+				order[k] = k;
+			for(int k=1; k<numComponents; k++) {
+				// insertion sort by mean, as there are few components
+				int index = order[k];
+				int p = k-1;
+				while(p >= 0 && means[order[p]][0] > means[index][0]) {
+					order[p+1] = order[p];
+					p--;
+				}
+				order[p+1] = index;
+			}
+			this.weights = new double[numComponents];
+			this.means = new double[numComponents][];
+			this.covs = new double[numComponents][];
+			for(int k=0; k<numComponents; k++) {
+				this.weights[k] = weights[order[k]];
+				this.means[k] = new double[] {means[order[k]][0], means[order[k]][1]};
+				this.covs[k] = new double[] {covs[order[k]][0], covs[order[k]][1], covs[order[k]][2]};
+			}
+		}
+		
+		public int getNumComponents() {
+			return weights.length;
+		}
+		
+		public int getNumDimensions() {
+			return numDims;
+		}
+		
+		public double getWeight(int component) {
+			return weights[component];
+		}
+		
+		/**
+		 * @param component
+		 * @param dim - 0 for 1-D or X, 1 for Y
+		 * @return
+		 */
+		public double getMean(int component, int dim) {
+			checkDim(dim);
+			return means[component][dim];
+		}
+		
+		/**
+		 * @param component
+		 * @param dim - 0 for 1-D or X, 1 for Y
+		 * @return
+		 */
+		public double getVariance(int component, int dim) {
+			checkDim(dim);
+			return covs[component][dim];
+		}
+		
+		/**
+		 * @param component
+		 * @param dim - 0 for 1-D or X, 1 for Y
+		 * @return
+		 */
+		public double getStdDev(int component, int dim) {
+			return Math.sqrt(getVariance(component, dim));
+		}
+		
+		/**
+		 * @param component
+		 * @return X-Y covariance for 2-D fits
+		 */
+		public double getCovariance(int component) {
+			Preconditions.checkState(numDims == 2, "Covariance is only defined for 2-D fits");
+			return covs[component][2];
+		}
+		
+		private void checkDim(int dim) {
+			Preconditions.checkArgument(dim >= 0 && dim < numDims, "Bad dimension %s for %s-D fit", dim, numDims);
+		}
+		
+		/**
+		 * @return total log-likelihood of the data (for the parameters before the final M step)
+		 */
+		public double getLogLikelihood() {
+			return logLikelihood;
+		}
+		
+		public int getNumIterations() {
+			return numIterations;
+		}
+		
+		/**
+		 * @return false if the maximum number of iterations was reached before convergence
+		 */
+		public boolean isConverged() {
+			return converged;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(numDims+"-D Gaussian mixture, logLikelihood="+logLikelihood+", iterations="+numIterations
+					+", converged="+converged);
+			for(int k=0; k<weights.length; k++) {
+				str.append("\n\tweight="+weights[k]+"\tmean="+means[k][0]+"\tvar="+covs[k][0]);
+				if(numDims == 2)
+					str.append("\tmeanY="+means[k][1]+"\tvarY="+covs[k][1]+"\tcovXY="+covs[k][2]);
+			}
+			return str.toString();
+		}
+	}
+	
+}
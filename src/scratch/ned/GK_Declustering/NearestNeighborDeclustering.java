@@ -2,23 +2,9 @@ package scratch.ned.GK_Declustering;
 
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
 import org.opensha.commons.data.function.HistogramFunction;
-import org.opensha.commons.geo.Location;
-import org.opensha.commons.geo.LocationUtils;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
 import org.opensha.sha.magdist.GaussianMagFreqDist;
-import org.sparkproject.guava.primitives.Doubles;
-import org.apache.spark.api.java.JavaRDD;
-import org.apache.spark.mllib.clustering.GaussianMixture;
-import org.apache.spark.mllib.clustering.GaussianMixtureModel;
-import org.apache.spark.mllib.clustering.KMeans;
-import org.apache.spark.mllib.clustering.KMeansModel;
-import org.apache.spark.mllib.linalg.DenseVector;
-import org.apache.spark.mllib.linalg.Vector;
-import org.apache.spark.mllib.linalg.Vectors;
-import org.apache.spark.sql.Dataset;
-import org.apache.spark.sql.Encoders;
-import org.apache.spark.sql.SparkSession;
 
 import java.util.ArrayList;
 
@@ -44,6 +30,10 @@ public class NearestNeighborDeclustering {
 	double d = 1.6; // fractal dimension of catalog
 	double q = 0.5; // weighting of temporal (vs spatial) distance in rescaled distances
 
+	double fitTolerance = GaussianMixtureFitter.DEFAULT_TOLERANCE;
+	int fitMaxIterations = GaussianMixtureFitter.DEFAULT_MAX_ITERATIONS;
+	GaussianMixtureFitter.Fit nnDistFit;
+	
 	double fitWt1;
 	double fitWt2;
 	double fitMean1;
@@ -51,6 +41,10 @@ public class NearestNeighborDeclustering {
 	double fitSigma1;
 	double fitSigma2;
 	
+	double cellDeg = 0.1; // grid cell size (degrees) for the nearest neighbor search
+	long jitterSeed = 0; // seed for jittering zero distances
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	
 	double minNND = -15; //Double.MAX_VALUE;
 	double maxNND = 0; //-Double.MAX_VALUE;
 	
@@ -90,80 +84,35 @@ public class NearestNeighborDeclustering {
 	
 	private void decluster() {
 		
-		// search for aftershocks
-		int counter = 0;
-		for(int i=fullCatalog.size()-1;i>0;i--) {
-			counter += 1;
-			if(D && counter == 1000) {
-				System.out.println(i+" left to process");
-				counter = 0;
-			}
-			ObsEqkRupture rup = fullCatalog.get(i);
-			for(int j=i-1;j>=0;j--) {
-				ObsEqkRupture candidateParent = fullCatalog.get(j);
-				long timeDiffMills = rup.getOriginTime() - candidateParent.getOriginTime();
-				if(timeDiffMills < 0)
-					throw new RuntimeException("Error: catalog is not in chronological order");	
-				if(timeDiffMills == 0)
-					timeDiffMills = 1000;
-
-				double timeDiffYrs = (double)timeDiffMills/(double)(1e3*60*60*24*365.25);
-//				double distKm = LocationUtils.linearDistance(rup.getHypocenterLocation(), candidateAftershock.getHypocenterLocation());
-				double distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), candidateParent.getHypocenterLocation());
-				if(distKm==0.0) {
-					double newLat = candidateParent.getHypocenterLocation().getLatitude() + (-0.05+(0.1*Math.random()));
-					double newLon = candidateParent.getHypocenterLocation().getLongitude() + (-0.05+(0.1*Math.random()));
-					Location newLoc = new Location(newLat,newLon);
-					distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), newLoc);
-//					throw new RuntimeException("Zero Distance");
-				}
-				double mag = candidateParent.getMag();
-				double normDist = Math.pow(distKm, d)*Math.pow(10, -(1-q)*b*mag);
-				double normTime = timeDiffYrs*Math.pow(10, -q*b*mag);
-				double nnDist = normDist*normTime;
-				if(nnDist < logNNDistanceToParentArray[i]) {
-					indexOfParentArray[i] = j;
-					logNormDistToParentArray[i] = Math.log10(normDist);
-					logNormTimeToParentArray[i] = Math.log10(normTime);
-					logNNDistanceToParentArray[i] = Math.log10(nnDist);
-				}
-				if(nnDist==0.0) {
-					System.out.println("nnDist="+nnDist);
-					System.out.println("normDist="+normDist);
-					System.out.println("normTime="+normTime);
-					System.out.println("i, j="+i+", "+j);
-					System.out.println("timeDiffYrs="+timeDiffYrs);
-					System.out.println("distKm="+distKm);
-					throw new RuntimeException("Problem related to nnDist being zero");
-				}
-			}
+		// search for parents (nearest neighbors)
+		long startTime = System.currentTimeMillis();
+		NearestNeighborSearch search = new NearestNeighborSearch(fullCatalog, b, d, q, cellDeg, jitterSeed);
+		search.calculate(numThreads);
+		int[] parents = search.getParents();
+		double[] logNormDists = search.getLogNormDists();
+		double[] logNormTimes = search.getLogNormTimes();
+		double[] logNNDists = search.getLogNNDists();
+		for(int i=1;i<fullCatalog.size();i++) {
+			indexOfParentArray[i] = parents[i];
+			logNormDistToParentArray[i] = logNormDists[i];
+			logNormTimeToParentArray[i] = logNormTimes[i];
+			logNNDistanceToParentArray[i] = logNNDists[i];
 		}
+		if(D) System.out.println("Nearest neighbor search took "+(System.currentTimeMillis()-startTime)/1000d+" s");
 		
 		double[] shorterArray = new double[logNNDistanceToParentArray.length-1];
 		for(int i=1; i<logNNDistanceToParentArray.length;i++)
 			shorterArray[i-1] = logNNDistanceToParentArray[i];
 		
-		// Spark gaussian mixture model
-		SparkSession spark = SparkSession.builder().master("local").getOrCreate();
-		Dataset<Double> dataset = spark.createDataset(Doubles.asList(shorterArray), Encoders.DOUBLE());
-		JavaRDD<Vector> parsedData = dataset.toJavaRDD().map(s -> Vectors.dense(s));
-		parsedData.cache();
-		// default tolerance = 0.01 and maxIterations=100
-//		GaussianMixtureModel gmm = new GaussianMixture().setK(2).run(parsedData.rdd());
-		
-		// this does not do any better
-		GaussianMixtureModel gmm = new GaussianMixture().setK(2).setConvergenceTol(0.001).setMaxIterations(1000).run(parsedData.rdd());
-		// Output the parameters of the mixture model
-		for (int j = 0; j < gmm.k(); j++) {
-		  System.out.printf("weight=%f\nmu=%s\nsigma=\n%s\n",
-		    gmm.weights()[j], gmm.gaussians()[j].mu(), gmm.gaussians()[j].sigma());
-		}
-		fitWt1 = gmm.weights()[0];
-		fitWt2 = gmm.weights()[1];
-		fitMean1 = gmm.gaussians()[0].mu().toArray()[0];
-		fitMean2 = gmm.gaussians()[1].mu().toArray()[0];
-		fitSigma1 = gmm.gaussians()[0].sigma().toArray()[0];
-		fitSigma2 = gmm.gaussians()[1].sigma().toArray()[0];
+		// gaussian mixture model
+		nnDistFit = new GaussianMixtureFitter(2, fitTolerance, fitMaxIterations).fit(shorterArray);
+		if(D) System.out.println(nnDistFit);
+		fitWt1 = nnDistFit.getWeight(0);
+		fitWt2 = nnDistFit.getWeight(1);
+		fitMean1 = nnDistFit.getMean(0, 0);
+		fitMean2 = nnDistFit.getMean(1, 0);
+		fitSigma1 = nnDistFit.getStdDev(0, 0);
+		fitSigma2 = nnDistFit.getStdDev(1, 0);
 		
 		System.out.println("fitMean1="+fitMean1+"\nfitMean2="+fitMean2+
 				"\nfitSigma1="+fitSigma1+"\nfitSigma2="+fitSigma2);
@@ -207,6 +156,31 @@ public class NearestNeighborDeclustering {
 		
 	}
 	
+	/**
+	 * This returns the two component Gaussian mixture fit to the log10 nearest neighbor distances (component 0 has
+	 * the smaller mean, i.e., is the clustered mode)
+	 * @return
+	 */
+	public GaussianMixtureFitter.Fit getNNDistFit() {
+		return nnDistFit;
+	}
+	
+	/**
+	 * This fits a Gaussian mixture with the given number of components to the log10 rescaled times (x) and distances
+	 * (y) to the parent of each event
+	 * @param numComponents
+	 * @return
+	 */
+	public GaussianMixtureFitter.Fit getRescaledTimeDistFit(int numComponents) {
+		double[] logTimes = new double[logNormTimeToParentArray.length-1];
+		double[] logDists = new double[logNormDistToParentArray.length-1];
+		for(int i=1; i<logNormTimeToParentArray.length;i++) {	// first rupture has no parent
+			logTimes[i-1] = logNormTimeToParentArray[i];
+			logDists[i-1] = logNormDistToParentArray[i];
+		}
+		return new GaussianMixtureFitter(numComponents, fitTolerance, fitMaxIterations).fit(logTimes, logDists);
+	}
+	
 	public HistogramFunction getNNDistHistogram() {
 		int num = 108;
 //		for(int i=1; i<nnDistanceToParentArray.length;i++) {	// first rupture has no parent
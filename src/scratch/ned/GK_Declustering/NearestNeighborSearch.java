@@ -0,0 +1,586 @@
+package scratch.ned.GK_Declustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This finds the Zaliapin & Ben-Zion (2013) nearest neighbor (parent) of each event in a chronological catalog, where
+ * the rescaled distance from child i to earlier event j is:
+ *
+ * 		eta_ij = r_ij^d * 10^(-(1-q)*b*m_j) * t_ij * 10^(-q*b*m_j)
+ *
+ * with r_ij from LocationUtils.horzDistanceFast() and t_ij in years. Results are identical to comparing every pair
+ * (see calcBruteForce()), but candidate parents are bounded as follows so that large (e.g., ETAS) catalogs are
+ * feasible:
+ *
+ * 1) Events are binned in a lat/lon grid, with each cell listing its events in chronological order. Cells are
+ * searched in rings around the child, and each cell is scanned backward in time until the lower bound
+ * rMin^d * t * 10^(-b*mMaxCell) exceeds the best eta found so far (rMin being the minimum distance from the child to
+ * the cell).
+ *
+ * 2) Any event outside the searched rings is at least R away, so it can only be a better parent if
+ * t < bestEta / (R^d * 10^(-b*mMax)). Once few enough events satisfy that time bound, they are scanned directly
+ * (backward in time from the child) rather than searching more rings.
+ *
+ * Zero distances are jittered as in the original implementation (the parent location is moved by up to 0.05 degrees
+ * in latitude and longitude), but with random numbers determined by the seed and the pair of event indexes, so
+ * results don't depend on search order or the number of threads. Children are processed in parallel.
+ *
+ * @author field
+ *
+ */
+public class NearestNeighborSearch {
+	
+	static boolean D = false; // debugging flag
+	
+	private static final double MILLIS_PER_YEAR = 1e3*60*60*24*365.25;
+	// km per degree latitude, consistent with LocationUtils.horzDistanceFast()
+	private static final double KM_PER_DEG = 6371.0072*Math.PI/180d;
+	// relative slack in lower bounds, to guard against rounding
+	private static final double BOUND_SLACK = 1e-10;
+	// number of children in each parallel task
+	private static final int BLOCK_SIZE = 1000;
+	// candidates are searched directly (rather than searching more rings) once there are no more than this many, or
+	// no more than the number of cells in the next ring times DIRECT_SCAN_CELL_FACTOR
+	private static final int MIN_DIRECT_SCAN = 64;
+	private static final int DIRECT_SCAN_CELL_FACTOR = 2;
+	// magnitude bin width for time bounds on events outside of the searched rings
+	private static final double MAG_BIN_WIDTH = 0.5;
+	
+	private double b, d, q;
+	private long seed;
+	
+	private int numEvents;
+	private Location[] locs;
+	private long[] times;
+	private double[] mags;
+	// 10^(-(1-q)*b*m) and 10^(-q*b*m) for each event
+	private double[] distScalars, timeScalars;
+	
+	// event indexes in each magnitude bin, in chronological order
+	private int[][] magBinEvents;
+	// 10^(-b*mMax) for each magnitude bin, where mMax is the largest magnitude in the bin
+	private double[] magBinScalars;
+	
+	// grid
+	private double cellDeg;
+	private double minLat, minLon;
+	private int numLatCells, numLonCells;
+	private int[] eventLatCells, eventLonCells;
+	// event indexes in each cell, in chronological order
+	private int[][] cellEvents;
+	// 10^(-b*mMax) for each cell, where mMax is the largest magnitude in the cell
+	private double[] cellMagScalars;
+	// cos(max |lat|), used to bound longitudinal distances
+	private double minCosLat;
+	
+	// results
+	private int[] parents;
+	private double[] logNormDists, logNormTimes, logNNDists;
+	
+	/**
+	 *
+	 * @param catalog - must be in chronological order
+	 * @param b - GR b-value
+	 * @param d - fractal dimension
+	 * @param q - weighting of temporal (vs spatial) distance
+	 * @param cellDeg - grid cell size in degrees
+	 * @param seed - seed for zero distance jitter
+	 */
+	public NearestNeighborSearch(ObsEqkRupList catalog, double b, double d, double q, double cellDeg, long seed) {
+		Preconditions.checkArgument(cellDeg > 0, "Cell size must be positive");
+		this.b = b;
+		this.d = d;
+		this.q = q;
+		this.cellDeg = cellDeg;
+		this.seed = seed;
+		
+		numEvents = catalog.size();
+		locs = new Location[numEvents];
+		times = new long[numEvents];
+		mags = new double[numEvents];
+		distScalars = new double[numEvents];
+		timeScalars = new double[numEvents];
+		double minMag = Double.POSITIVE_INFINITY;
+		double maxMag = Double.NEGATIVE_INFINITY;
+		minLat = Double.POSITIVE_INFINITY;
+		minLon = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		double maxAbsLat = 0;
+		for(int i=0; i<numEvents; i++) {
+			ObsEqkRupture rup = catalog.get(i);
+			locs[i] = rup.getHypocenterLocation();
+			times[i] = rup.getOriginTime();
+			if(i > 0 && times[i] < times[i-1])
+				throw new RuntimeException("Error: catalog is not in chronological order");
+			mags[i] = rup.getMag();
+			distScalars[i] = Math.pow(10, -(1-q)*b*mags[i]);
+			timeScalars[i] = Math.pow(10, -q*b*mags[i]);
+			minMag = Math.min(minMag, mags[i]);
+			maxMag = Math.max(maxMag, mags[i]);
+			double lat = locs[i].getLatitude();
+			double lon = locs[i].getLongitude();
+			minLat = Math.min(minLat, lat);
+			maxLat = Math.max(maxLat, lat);
+			minLon = Math.min(minLon, lon);
+			maxLon = Math.max(maxLon, lon);
+			maxAbsLat = Math.max(maxAbsLat, Math.abs(lat));
+		}
+		// parent midpoint latitudes can't exceed this (jitter can move a parent by up to 0.05 deg, but jittered
+		// pairs are always in the same cell and are evaluated exactly)
+		minCosLat = Math.cos(Math.toRadians(Math.min(90d, maxAbsLat)));
+		
+		if(numEvents > 0) {
+			buildGrid(maxLat, maxLon);
+			buildMagBins(minMag, maxMag);
+		}
+		
+		parents = new int[numEvents];
+		logNormDists = new double[numEvents];
+		logNormTimes = new double[numEvents];
+		logNNDists = new double[numEvents];
+		Arrays.fill(parents, -1);
+		Arrays.fill(logNormDists, Double.NaN);
+		Arrays.fill(logNormTimes, Double.NaN);
+		Arrays.fill(logNNDists, Double.NaN);
+	}
+	
+	private void buildGrid(double maxLat, double maxLon) {
+		numLatCells = (int)((maxLat - minLat)/cellDeg) + 1;
+		numLonCells = (int)((maxLon - minLon)/cellDeg) + 1;
+		Preconditions.checkState((long)numLatCells*(long)numLonCells < Integer.MAX_VALUE,
+				"Too many grid cells (%s x %s), increase the cell size", numLatCells, numLonCells);
+		eventLatCells = new int[numEvents];
+		eventLonCells = new int[numEvents];
+		int[] cellCounts = new int[numLatCells*numLonCells];
+		for(int i=0; i<numEvents; i++) {
+			eventLatCells[i] = Math.min(numLatCells-1, (int)((locs[i].getLatitude() - minLat)/cellDeg));
+			eventLonCells[i] = Math.min(numLonCells-1, (int)((locs[i].getLongitude() - minLon)/cellDeg));
+			cellCounts[cellIndex(eventLatCells[i], eventLonCells[i])]++;
+		}
+		cellEvents = new int[cellCounts.length][];
+		double[] cellMaxMags = new double[cellCounts.length];
+		Arrays.fill(cellMaxMags, Double.NEGATIVE_INFINITY);
+		for(int c=0; c<cellCounts.length; c++)
+			if(cellCounts[c] > 0)
+				cellEvents[c] = new int[cellCounts[c]];
+		int[] cellSizes = new int[cellCounts.length];
+		for(int i=0; i<numEvents; i++) {
+			int c = cellIndex(eventLatCells[i], eventLonCells[i]);
+			cellEvents[c][cellSizes[c]++] = i;
+			cellMaxMags[c] = Math.max(cellMaxMags[c], mags[i]);
+		}
+		cellMagScalars = new double[cellCounts.length];
+		for(int c=0; c<cellCounts.length; c++)
+			if(cellCounts[c] > 0)
+				cellMagScalars[c] = Math.pow(10, -b*cellMaxMags[c])*(1d-BOUND_SLACK);
+		if(D) System.out.println("Grid: "+numLatCells+" x "+numLonCells+" cells");
+	}
+	
+	private void buildMagBins(double minMag, double maxMag) {
+		int numBins = (int)((maxMag - minMag)/MAG_BIN_WIDTH) + 1;
+		int[] binCounts = new int[numBins];
+		int[] eventBins = new int[numEvents];
+		for(int i=0; i<numEvents; i++) {
+			eventBins[i] = Math.min(numBins-1, (int)((mags[i] - minMag)/MAG_BIN_WIDTH));
+			binCounts[eventBins[i]]++;
+		}
+		int numNonEmpty = 0;
+		for(int k=0; k<numBins; k++)
+			if(binCounts[k] > 0)
+				numNonEmpty++;
+		magBinEvents = new int[numNonEmpty][];
+		magBinScalars = new double[numNonEmpty];
+		int[] binIndexes = new int[numBins];
+		int index = 0;
+		for(int k=0; k<numBins; k++) {
+			if(binCounts[k] > 0) {
+				binIndexes[k] = index;
+				magBinEvents[index++] = new int[binCounts[k]];
+			}
+		}
+		double[] binMaxMags = new double[numNonEmpty];
+		Arrays.fill(binMaxMags, Double.NEGATIVE_INFINITY);
+		int[] binSizes = new int[numNonEmpty];
+		for(int i=0; i<numEvents; i++) {
+			int k = binIndexes[eventBins[i]];
+			magBinEvents[k][binSizes[k]++] = i;
+			binMaxMags[k] = Math.max(binMaxMags[k], mags[i]);
+		}
+		for(int k=0; k<numNonEmpty; k++)
+			magBinScalars[k] = Math.pow(10, -b*binMaxMags[k])*(1d-BOUND_SLACK);
+	}
+	
+	private int cellIndex(int latCell, int lonCell) {
+		return latCell*numLonCells + lonCell;
+	}
+	
+	/**
+	 * This finds the parent of every event using the given number of threads
+	 * @param numThreads
+	 */
+	public void calculate(int numThreads) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for(int start=1; start<numEvents; start+=BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(numEvents, start+BLOCK_SIZE);
+			futures.add(pool.submit(new Callable<Integer>() {
+				
+				@Override
+				public Integer call() throws Exception {
+					SearchState state = new SearchState();
+					for(int i=blockStart; i<blockEnd; i++)
+						state.search(i);
+					return blockEnd - blockStart;
+				}
+			}));
+		}
+		int numDone = 0;
+		try {
+			for(Future<Integer> future : futures) {
+				numDone += future.get();
+				if(D && futures.size() > 1 && numDone % (100*BLOCK_SIZE) < BLOCK_SIZE)
+					System.out.println(numDone+"/"+(numEvents-1)+" events processed");
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			pool.shutdownNow();
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		pool.shutdown();
+	}
+	
+	/**
+	 * This finds the parent of every event by comparing every pair of events (for validation)
+	 */
+	public void calcBruteForce() {
+		SearchState state = new SearchState();
+		for(int i=1; i<numEvents; i++) {
+			state.reset(i);
+			for(int j=i-1; j>=0; j--)
+				state.evaluate(j);
+			state.store();
+		}
+	}
+	
+	/**
+	 * Per thread search state for a single child
+	 */
+	private class SearchState {
+		
+		private int child;
+		private double childLat, childLon;
+		private int childLatCell, childLonCell;
+		private double best;
+		private int bestParent;
+		private double bestNormDist, bestNormTime;
+		// position of the child in each magnitude bin
+		private int[] binPositions;
+		private boolean binPositionsFound;
+		
+		private void reset(int child) {
+			this.child = child;
+			childLat = locs[child].getLatitude();
+			childLon = locs[child].getLongitude();
+			if(cellEvents != null) {
+				childLatCell = eventLatCells[child];
+				childLonCell = eventLonCells[child];
+			}
+			best = Double.POSITIVE_INFINITY;
+			bestParent = -1;
+			binPositionsFound = false;
+		}
+		
+		/**
+		 * Unlike timeDiffYrs(), this doesn't replace zero differences, so it is monotonic when searching backward in
+		 * time and is a lower bound on timeDiffYrs()
+		 */
+		private double boundTimeYrs(int j) {
+			return (double)(times[child] - times[j])/MILLIS_PER_YEAR;
+		}
+		
+		private double timeDiffYrs(int j) {
+			long timeDiffMills = times[child] - times[j];
+			if(timeDiffMills == 0)
+				timeDiffMills = 1000;
+			return (double)timeDiffMills/MILLIS_PER_YEAR;
+		}
+		
+		/**
+		 * This computes the rescaled distance to candidate parent j, keeping it if it's the best so far
+		 */
+		private void evaluate(int j) {
+			double timeDiffYrs = timeDiffYrs(j);
+			double distKm = LocationUtils.horzDistanceFast(locs[child], locs[j]);
+			if(distKm == 0.0) {
+				long hash = mix(seed + child*0x9E3779B97F4A7C15L + j*0xC2B2AE3D27D4EB4FL);
+				double rand1 = (hash >>> 11)*0x1.0p-53;
+				double rand2 = (mix(hash) >>> 11)*0x1.0p-53;
+				double newLat = locs[j].getLatitude() + (-0.05+(0.1*rand1));
+				double newLon = locs[j].getLongitude() + (-0.05+(0.1*rand2));
+				distKm = LocationUtils.horzDistanceFast(locs[child], new Location(newLat,newLon));
+			}
+			double normDist = Math.pow(distKm, d)*distScalars[j];
+			double normTime = timeDiffYrs*timeScalars[j];
+			double nnDist = normDist*normTime;
+			if(nnDist == 0.0)
+				throw new RuntimeException("Problem related to nnDist being zero: i, j="+child+", "+j
+						+", distKm="+distKm+", timeDiffYrs="+timeDiffYrs);
+			// ties go to the most recent event, as when searching backward in time
+			if(nnDist < best || (nnDist == best && j > bestParent)) {
+				best = nnDist;
+				bestParent = j;
+				bestNormDist = normDist;
+				bestNormTime = normTime;
+			}
+		}
+		
+		private void store() {
+			parents[child] = bestParent;
+			logNormDists[child] = Math.log10(bestNormDist);
+			logNormTimes[child] = Math.log10(bestNormTime);
+			logNNDists[child] = Math.log10(best);
+		}
+		
+		/**
+		 * Minimum distance (km) from the child to any point in the given cell range (inclusive)
+		 */
+		private double minDist(int minLatCell, int maxLatCell, int minLonCell, int maxLonCell) {
+			double cellMinLat = minLat + minLatCell*cellDeg;
+			double cellMaxLat = minLat + (maxLatCell+1)*cellDeg;
+			double cellMinLon = minLon + minLonCell*cellDeg;
+			double cellMaxLon = minLon + (maxLonCell+1)*cellDeg;
+			double latGap = Math.max(0d, Math.max(cellMinLat - childLat, childLat - cellMaxLat));
+			double lonGap = Math.max(0d, Math.max(cellMinLon - childLon, childLon - cellMaxLon));
+			double latKm = latGap*KM_PER_DEG;
+			double lonKm = lonGap*KM_PER_DEG*minCosLat;
+			return Math.sqrt(latKm*latKm + lonKm*lonKm);
+		}
+		
+		/**
+		 * Scans the given cell backward in time from the child
+		 */
+		private void scanCell(int latCell, int lonCell) {
+			int c = cellIndex(latCell, lonCell);
+			int[] events = cellEvents[c];
+			if(events == null || events[0] >= child)
+				return;
+			int pos = insertionPoint(events, child);
+			double rMin = minDist(latCell, latCell, lonCell, lonCell);
+			double boundScalar = Math.pow(rMin, d)*cellMagScalars[c];
+			for(int p=pos-1; p>=0; p--) {
+				int j = events[p];
+				if(boundScalar*boundTimeYrs(j) > best)
+					// all earlier events in this cell are further in time
+					break;
+				evaluate(j);
+			}
+		}
+		
+		private boolean inRings(int j, int ring) {
+			return Math.abs(eventLatCells[j] - childLatCell) <= ring && Math.abs(eventLonCells[j] - childLonCell) <= ring;
+		}
+		
+		private void search(int child) {
+			reset(child);
+			int maxRing = Math.max(Math.max(childLatCell, numLatCells-1-childLatCell),
+					Math.max(childLonCell, numLonCells-1-childLonCell));
+			for(int ring=0; ring<=maxRing; ring++) {
+				int minLatCell = childLatCell-ring;
+				int maxLatCell = childLatCell+ring;
+				int minLonCell = childLonCell-ring;
+				int maxLonCell = childLonCell+ring;
+				// search all cells on the perimeter of this ring
+				if(ring == 0) {
+					scanCell(childLatCell, childLonCell);
+				} else {
+					int lonStart = Math.max(0, minLonCell);
+					int lonEnd = Math.min(numLonCells-1, maxLonCell);
+					if(minLatCell >= 0)
+						for(int lonCell=lonStart; lonCell<=lonEnd; lonCell++)
+							scanCell(minLatCell, lonCell);
+					if(maxLatCell < numLatCells)
+						for(int lonCell=lonStart; lonCell<=lonEnd; lonCell++)
+							scanCell(maxLatCell, lonCell);
+					int latStart = Math.max(0, minLatCell+1);
+					int latEnd = Math.min(numLatCells-1, maxLatCell-1);
+					if(minLonCell >= 0)
+						for(int latCell=latStart; latCell<=latEnd; latCell++)
+							scanCell(latCell, minLonCell);
+					if(maxLonCell < numLonCells)
+						for(int latCell=latStart; latCell<=latEnd; latCell++)
+							scanCell(latCell, maxLonCell);
+				}
+				if(ring == maxRing || bestParent < 0)
+					continue;
+				
+				// everything outside of these rings is at least this far away
+				double outsideDist = Math.min(
+						Math.min(minDist(minLatCell-1, minLatCell-1, minLonCell, maxLonCell),
+								minDist(maxLatCell+1, maxLatCell+1, minLonCell, maxLonCell)),
+						Math.min(minDist(minLatCell, maxLatCell, minLonCell-1, minLonCell-1),
+								minDist(minLatCell, maxLatCell, maxLonCell+1, maxLonCell+1)));
+				double outsideScalar = Math.pow(outsideDist, d);
+				if(outsideScalar == 0d)
+					continue;
+				// events in each magnitude bin can only be better if they are within best/(outsideScalar*binScalar)
+				// of the child
+				if(!binPositionsFound) {
+					if(binPositions == null)
+						binPositions = new int[magBinEvents.length];
+					for(int k=0; k<magBinEvents.length; k++)
+						binPositions[k] = insertionPoint(magBinEvents[k], child);
+					binPositionsFound = true;
+				}
+				int numCandidates = 0;
+				for(int k=0; k<magBinEvents.length; k++) {
+					double minTime = times[child] - MILLIS_PER_YEAR*best/(outsideScalar*magBinScalars[k]);
+					int pos = binPositions[k];
+					if(minTime <= times[0])
+						numCandidates += pos;
+					else
+						numCandidates += pos - firstIndexAfter(magBinEvents[k], (long)minTime, pos);
+				}
+				// search them directly once that is cheaper than searching more rings
+				if(numCandidates <= Math.max(MIN_DIRECT_SCAN, DIRECT_SCAN_CELL_FACTOR*8*(ring+1))) {
+					for(int k=0; k<magBinEvents.length; k++) {
+						double boundScalar = outsideScalar*magBinScalars[k];
+						int[] events = magBinEvents[k];
+						for(int p=binPositions[k]-1; p>=0; p--) {
+							int j = events[p];
+							if(boundScalar*boundTimeYrs(j) > best)
+								break;
+							if(!inRings(j, ring))
+								evaluate(j);
+						}
+					}
+					break;
+				}
+			}
+			store();
+		}
+	}
+	
+	/**
+	 * @return position of the first of the given (chronological) events with origin time >= the given time, searching
+	 * positions before maxPos
+	 */
+	private int firstIndexAfter(int[] events, long time, int maxPos) {
+		int low = 0;
+		int high = maxPos;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(times[events[mid]] < time)
+				low = mid+1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * @return position of the first of the given (sorted) event indexes that is >= the given index
+	 */
+	private static int insertionPoint(int[] events, int index) {
+		int pos = Arrays.binarySearch(events, index);
+		return pos < 0 ? -(pos+1) : pos;
+	}
+	
+	private static long mix(long key) {
+		// murmur3 64 bit finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+	
+	/**
+	 * @return index of the parent (nearest neighbor) of each event, or -1 for the first event
+	 */
+	public int[] getParents() {
+		return parents;
+	}
+	
+	/**
+	 * @return log10 of the rescaled distance to the parent of each event (NaN for the first event)
+	 */
+	public double[] getLogNormDists() {
+		return logNormDists;
+	}
+	
+	/**
+	 * @return log10 of the rescaled time to the parent of each event (NaN for the first event)
+	 */
+	public double[] getLogNormTimes() {
+		return logNormTimes;
+	}
+	
+	/**
+	 * @return log10 of the nearest neighbor distance (eta) to the parent of each event (NaN for the first event)
+	 */
+	public double[] getLogNNDists() {
+		return logNNDists;
+	}
+	
+	public static void main(String[] args) {
+		// compare with brute force on a random clustered catalog
+		int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Random r = new Random(12345);
+		ObsEqkRupList catalog = new ObsEqkRupList();
+		long time = 0;
+		for(int i=0; i<numEvents; i++) {
+			double lat, lon;
+			if(i > 0 && r.nextDouble() < 0.7) {
+				// aftershock-like, near a previous event
+				Location parent = catalog.get(r.nextInt(i)).getHypocenterLocation();
+				lat = parent.getLatitude() + 0.02*r.nextGaussian();
+				lon = parent.getLongitude() + 0.02*r.nextGaussian();
+				if(r.nextDouble() < 0.05) {
+					lat = parent.getLatitude();
+					lon = parent.getLongitude();
+				}
+			} else {
+				lat = 32 + 10*r.nextDouble();
+				lon = -124 + 10*r.nextDouble();
+			}
+			time += (long)(r.nextDouble()*1e7);
+			double mag = 2.5 - Math.log10(r.nextDouble());
+			ObsEqkRupture rup = new ObsEqkRupture(i+"", time, new Location(lat, lon, 5d), mag);
+			catalog.add(rup);
+		}
+		
+		NearestNeighborSearch indexed = new NearestNeighborSearch(catalog, 1.0, 1.6, 0.5, 0.05, 0l);
+		long start = System.currentTimeMillis();
+		indexed.calculate(Runtime.getRuntime().availableProcessors());
+		System.out.println("Indexed search took "+(System.currentTimeMillis()-start)+" ms");
+		
+		NearestNeighborSearch brute = new NearestNeighborSearch(catalog, 1.0, 1.6, 0.5, 0.05, 0l);
+		start = System.currentTimeMillis();
+		brute.calcBruteForce();
+		System.out.println("Brute force took "+(System.currentTimeMillis()-start)+" ms");
+		
+		int numMismatches = 0;
+		for(int i=0; i<numEvents; i++)
+			if(indexed.parents[i] != brute.parents[i] || Double.compare(indexed.logNNDists[i], brute.logNNDists[i]) != 0)
+				numMismatches++;
+		System.out.println(numMismatches+" mismatches");
+	}
+	
+}
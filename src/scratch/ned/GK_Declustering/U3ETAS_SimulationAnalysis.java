@@ -146,6 +146,33 @@ public class U3ETAS_SimulationAnalysis {
 	}
 	
 	
+	/**
+	 * This GK declusters every catalog in the given binary file in parallel, streaming catalogs from the file rather
+	 * than loading them all (see GK_StreamingDeclustering), and returns MFDs in the same format as makeMFD().
+	 * @param catalogsFile
+	 * @param minMag - minimum magnitude to load
+	 * @param numThreads
+	 * @return - original (index 0) and GK declustered (index 1) incremental MFDs, scaled to annual rates per catalog
+	 * @throws IOException
+	 */
+	public static ArrayList<IncrementalMagFreqDist> getGK_DeclusteredMFDs(File catalogsFile, double minMag, int numThreads)
+			throws IOException {
+		GK_StreamingDeclustering.MFD_Accumulator accumulator =
+				new GK_StreamingDeclustering.MFD_Accumulator(U3ETAS_SimulationAnalysis.minMag, numMag, deltaMag);
+		GK_StreamingDeclustering.process(catalogsFile, minMag, numThreads, accumulator);
+		ArrayList<IncrementalMagFreqDist> mfds = new ArrayList<IncrementalMagFreqDist>();
+		mfds.add(accumulator.getFullMFD());
+		mfds.add(accumulator.getDeclusteredMFD());
+		for(IncrementalMagFreqDist mfd : mfds) {
+			mfd.setTolerance(deltaMag);
+			mfd.scale(1.0/(accumulator.getNumCatalogs()*catalogDuration));
+		}
+		mfds.get(0).setName("Full TD Catalog");
+		mfds.get(1).setName("GK Declustered");
+		return mfds;
+	}
+	
+	
 	/**
 	 * This declusters according to whether it was spontaneous in U3ETAS
 	 * @param catalogList
@@ -516,6 +543,35 @@ public class U3ETAS_SimulationAnalysis {
 //		tempFuncList.add(curvesFromAllCatalogsFunc_3D.getMeanCurve());
 //		tempPlotAllHazardCurves(tempFuncList, duration, null, true, "Test");
 			
+		return getHazardCurveDatasets(curvesFromAllCatalogsFunc_3D, location, duration, saPeriod);
+	}
+	
+	
+	/**
+	 * This is a faster version of computeHazardCurvesFromCatalogs(...) (without random IMLs) for multiple durations,
+	 * which computes each rupture's exceedance probabilities only once and processes catalogs in parallel (see
+	 * EventSetHazardCurveEngine).
+	 * @param catalogList
+	 * @param location
+	 * @param durations
+	 * @param saPeriod
+	 * @param imrRef
+	 * @param numThreads
+	 * @return - the results of computeHazardCurvesFromCatalogs(...) for each duration
+	 */
+	public static ArrayList<UncertainArbDiscDataset[]> computeHazardCurvesFromCatalogs(ArrayList<ObsEqkRupList> catalogList, 
+			Location location, double[] durations, double saPeriod, AttenRelRef imrRef, int numThreads) {
+		EventSetHazardCurveEngine engine = new EventSetHazardCurveEngine(catalogList, location, saPeriod, imrRef, numThreads);
+		ArbDiscrEmpiricalDistFunc_3D[] curvesFuncs = engine.calcCurves(durations, false);
+		ArrayList<UncertainArbDiscDataset[]> dataSetsArray = new ArrayList<UncertainArbDiscDataset[]>();
+		for(int i=0;i<durations.length;i++)
+			dataSetsArray.add(getHazardCurveDatasets(curvesFuncs[i], location, durations[i], saPeriod));
+		return dataSetsArray;
+	}
+	
+	
+	private static UncertainArbDiscDataset[] getHazardCurveDatasets(ArbDiscrEmpiricalDistFunc_3D curvesFromAllCatalogsFunc_3D, 
+			Location location, double duration, double saPeriod) {
 
 		EvenlyDiscretizedFunc hazCurveMeanLnX = curvesFromAllCatalogsFunc_3D.getMeanCurve();
 		EvenlyDiscretizedFunc hazCurveMinLnX = curvesFromAllCatalogsFunc_3D.getMinCurve();
@@ -1234,7 +1290,7 @@ public class U3ETAS_SimulationAnalysis {
 	 * @param calc
 	 * @return
 	 */
-	private static HazardCurveCalculator getHazardCurveCalculator() {
+	static HazardCurveCalculator getHazardCurveCalculator() {
 		HazardCurveCalculator calc = new HazardCurveCalculator();
 		calc.setPtSrcDistCorrType(PtSrcDistCorr.Type.NSHMP08);
 		calc.setMinMagnitude(5.0);